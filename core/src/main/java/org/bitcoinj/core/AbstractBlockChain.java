@@ -110,6 +110,8 @@ public abstract class AbstractBlockChain {
         final Block block;
         final List<Sha256Hash> filteredTxHashes;
         final Map<Sha256Hash, Transaction> filteredTxn;
+        // Roughly how much memory the orphan takes up, for the purposes of MAX_ORPHAN_BLOCKS_SIZE.
+        final int size;
         OrphanBlock(Block block, @Nullable List<Sha256Hash> filteredTxHashes, @Nullable Map<Sha256Hash, Transaction> filteredTxn) {
             final boolean filtered = filteredTxHashes != null && filteredTxn != null;
             Preconditions.checkArgument((block.transactions == null && filtered)
@@ -117,11 +119,27 @@ public abstract class AbstractBlockChain {
             this.block = block;
             this.filteredTxHashes = filteredTxHashes;
             this.filteredTxn = filteredTxn;
+            int size = block.getOptimalEncodingMessageSize();
+            if (filtered) {
+                size += filteredTxHashes.size() * Sha256Hash.LENGTH;
+                for (Transaction tx : filteredTxn.values())
+                    size += tx.getOptimalEncodingMessageSize();
+            }
+            this.size = size;
         }
     }
+
+    /** The maximum number of orphan blocks that are kept. If there are more, the oldest ones are forgotten. */
+    public static int MAX_ORPHAN_BLOCKS = 5000;
+    /** The maximum total size in bytes of the orphan blocks that are kept. If exceeded, the oldest ones are forgotten. */
+    public static long MAX_ORPHAN_BLOCKS_SIZE = 32 * 1024 * 1024;
+
     // Holds blocks that we have received but can't plug into the chain yet, eg because they were created whilst we
-    // were downloading the block chain.
+    // were downloading the block chain. Iterates oldest first.
     private final LinkedHashMap<Sha256Hash, OrphanBlock> orphanBlocks = new LinkedHashMap<>();
+    // The same orphan blocks, keyed by the hash of the block they build on.
+    private final ListMultimap<Sha256Hash, OrphanBlock> orphanBlocksByPrevHash = ArrayListMultimap.create();
+    private long orphanBlocksSize;
 
     /** False positive estimation uses a double exponential moving average. */
     public static final double FP_ESTIMATOR_ALPHA = 0.0001;
@@ -134,6 +152,14 @@ public abstract class AbstractBlockChain {
 
     private final VersionTally versionTally;
 
+    // Listener notifications held back by holdNotifications(), in the order they were made. Null if they are sent
+    // straight away.
+    @Nullable private List<Notification> heldNotifications;
+
+    private interface Notification {
+        void send() throws VerificationException;
+    }
+
     /** See {@link #AbstractBlockChain(Context, List, BlockStore)} */
     public AbstractBlockChain(NetworkParameters params, List<? extends Wallet> transactionReceivedListeners,
                               BlockStore blockStore) throws BlockStoreException {
@@ -341,6 +367,49 @@ public abstract class AbstractBlockChain {
      */
     protected abstract StoredBlock getStoredBlockInCurrentScope(Sha256Hash hash) throws BlockStoreException;
 
+    /**
+     * Holds back the notifications of listeners, including wallets, about new blocks and re-organizations, until
+     * {@link #sendHeldNotifications()} is called. For subclasses that commit several blocks at once, and may have to
+     * undo them before they are committed.
+     */
+    protected void holdNotifications() {
+        checkState(lock.isHeldByCurrentThread());
+        checkState(heldNotifications == null, "Notifications are already held");
+        heldNotifications = new ArrayList<>();
+    }
+
+    /**
+     * Sends the notifications held since {@link #holdNotifications()} or the last call, in order, and keeps holding
+     * the ones that follow.
+     */
+    protected void sendHeldNotifications() throws VerificationException {
+        checkState(lock.isHeldByCurrentThread());
+        List<Notification> notifications = checkNotNull(heldNotifications);
+        heldNotifications = new ArrayList<>();
+        for (Notification notification : notifications)
+            notification.send();
+    }
+
+    /**
+     * Stops holding notifications back. The ones still held are dropped, as they are for blocks that were undone
+     * before they were committed.
+     */
+    protected void stopHoldingNotifications() {
+        checkState(lock.isHeldByCurrentThread());
+        List<Notification> notifications = checkNotNull(heldNotifications);
+        if (!notifications.isEmpty())
+            log.info("Dropping {} listener notifications for blocks that were undone", notifications.size());
+        heldNotifications = null;
+    }
+
+    // Sends the notification, or holds it back if notifications are held.
+    private void notifyListeners(Notification notification) throws VerificationException {
+        if (heldNotifications != null)
+            heldNotifications.add(notification);
+        else
+            notification.send();
+    }
+
     /**
      * Processes a received block and tries to add it to the chain. If there's something wrong with the block an
      * exception is thrown. If the block is OK but cannot be connected to the chain at this time, returns false.
@@ -428,8 +497,8 @@ public abstract class AbstractBlockChain {
         // TODO: Use read/write locks to ensure that during chain download properties are still low latency.
         lock.lock();
         try {
-            // Quick check for duplicates to avoid an expensive check further down (in findSplit). This can happen a lot
-            // when connecting orphan transactions due to the dumb brute force algorithm we use.
+            // Quick check for duplicates to avoid an expensive check further down (in findSplit). This happens when
+            // peers announce the chain head again, or an orphan block arrives that is already waiting for its parent.
             if (block.equals(getChainHead().getHeader())) {
                 return true;
             }
@@ -480,7 +549,7 @@ public abstract class AbstractBlockChain {
                 // have more blocks.
                 checkState(tryConnecting, "bug in tryConnectingOrphans");
                 log.warn("Block does not connect: {} prev {}", block.getHashAsString(), block.getPrevBlockHash());
-                orphanBlocks.put(block.getHash(), new OrphanBlock(block, filteredTxHashList, filteredTxn));
+                addOrphanBlock(new OrphanBlock(block, filteredTxHashList, filteredTxn));
                 return false;
             } else {
                 checkState(lock.isHeldByCurrentThread());
@@ -490,7 +559,7 @@ public abstract class AbstractBlockChain {
             }
 
             if (tryConnecting)
-                tryConnectingOrphans();
+                tryConnectingOrphans(block.getHash());
 
             return true;
         } finally {
@@ -508,6 +577,8 @@ public abstract class AbstractBlockChain {
         try {
             Set<Sha256Hash> hashes = new HashSet<>(orphanBlocks.keySet());
             orphanBlocks.clear();
+            orphanBlocksByPrevHash.clear();
+            orphanBlocksSize = 0;
             return hashes;
         } finally {
             lock.unlock();
@@ -615,6 +686,18 @@ public abstract class AbstractBlockChain {
                                             @Nullable final List<Sha256Hash> filteredTxHashList,
                                             @Nullable final Map<Sha256Hash, Transaction> filteredTxn,
                                             final StoredBlock newStoredBlock) throws VerificationException {
+        notifyListeners(new Notification() {
+            @Override
+            public void send() throws VerificationException {
+                sendNewBlockToListeners(block, newBlockType, filteredTxHashList, filteredTxn, newStoredBlock);
+            }
+        });
+    }
+
+    private void sendNewBlockToListeners(final Block block, final NewBlockType newBlockType,
+                                         @Nullable final List<Sha256Hash> filteredTxHashList,
+                                         @Nullable final Map<Sha256Hash, Transaction> filteredTxn,
+                                         final StoredBlock newStoredBlock) throws VerificationException {
         // Notify the listeners of the new block, so the depth and workDone of stored transactions can be updated
         // (in the case of the listener being a wallet). Wallets need to know how deep each transaction is so
         // coinbases aren't used before maturity.
@@ -682,6 +765,11 @@ public abstract class AbstractBlockChain {
                                                          StoredBlock newStoredBlock, boolean first,
                                                          TransactionReceivedInBlockListener listener,
                                                          Set<Sha256Hash> falsePositives) throws VerificationException {
+        if (listener instanceof TransactionsReceivedInBlockListener) {
+            sendBlockToListener(block, newBlockType, filteredTxHashList, filteredTxn, newStoredBlock, !first,
+                    (TransactionsReceivedInBlockListener) listener, falsePositives);
+            return;
+        }
         if (block.transactions != null) {
             // If this is not the first wallet, ask for the transactions to be duplicated before being given
             // to the wallet when relevant. This ensures that if we have two connected wallets and a tx that
@@ -711,6 +799,48 @@ public abstract class AbstractBlockChain {
         }
     }
 
+    // Like informListenerForNewTransactions(), in one call for all the transactions.
+    private static void sendBlockToListener(Block block, NewBlockType newBlockType,
+                                            @Nullable List<Sha256Hash> filteredTxHashList,
+                                            @Nullable Map<Sha256Hash, Transaction> filteredTxn,
+                                            StoredBlock newStoredBlock, boolean clone,
+                                            TransactionsReceivedInBlockListener listener,
+                                            Set<Sha256Hash> falsePositives) throws VerificationException {
+        List<Sha256Hash> txHashes;
+        Map<Sha256Hash, Transaction> transactions = new HashMap<>();
+        if (block.transactions != null) {
+            txHashes = new ArrayList<>(block.transactions.size());
+            for (Transaction tx : block.transactions) {
+                txHashes.add(tx.getHash());
+                transactions.put(tx.getHash(), tx);
+            }
+        } else if (filteredTxHashList != null) {
+            checkNotNull(filteredTxn);
+            txHashes = filteredTxHashList;
+            for (Sha256Hash hash : filteredTxHashList) {
+                Transaction tx = filteredTxn.get(hash);
+                if (tx != null)
+                    transactions.put(hash, tx);
+            }
+        } else {
+            return;
+        }
+        if (clone) {
+            // See informListenerForNewTransactions().
+            for (Map.Entry<Sha256Hash, Transaction> entry : transactions.entrySet()) {
+                Transaction tx = entry.getValue();
+                try {
+                    entry.setValue(tx.params.getDefaultSerializer().makeTransaction(tx.bitcoinSerialize()));
+                } catch (ProtocolException e) {
+                    // Failed to duplicate tx, should never happen.
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+        falsePositives.removeAll(transactions.keySet());
+        falsePositives.removeAll(listener.receiveFromBlock(txHashes, transactions, newStoredBlock, newBlockType));
+    }
+
     /**
      * Gets the median timestamp of the last 11 blocks
      */
@@ -791,6 +921,18 @@ public abstract class AbstractBlockChain {
         // Now inform the listeners. This is necessary so the set of currently active transactions (that we can spend)
         // can be updated to take into account the re-organize. We might also have received new coins we didn't have
         // before and our previous spends might have been undone.
+        notifyListeners(new Notification() {
+            @Override
+            public void send() throws VerificationException {
+                sendReorganizeToListeners(splitPoint, oldBlocks, newBlocks);
+            }
+        });
+        // Update the pointer to the best known block.
+        setChainHead(storedNewHead);
+    }
+
+    private void sendReorganizeToListeners(final StoredBlock splitPoint, final List<StoredBlock> oldBlocks,
+                                           final List<StoredBlock> newBlocks) throws VerificationException {
         for (final ListenerRegistration<ReorganizeListener> registration : reorganizeListeners) {
             if (registration.executor == Threading.SAME_THREAD) {
                 // Short circuit the executor so we can propagate any exceptions.
@@ -809,8 +951,6 @@ public abstract class AbstractBlockChain {
                 });
             }
         }
-        // Update the pointer to the best known block.
-        setChainHead(storedNewHead);
     }
 
     /**
@@ -898,40 +1038,62 @@ public abstract class AbstractBlockChain {
     }
 
     /**
-     * For each block in orphanBlocks, see if we can now fit it on top of the chain and if so, do so.
+     * Connects the orphan blocks that build on the given block, which was just connected, and then the orphans that
+     * build on those, and so on.
      */
-    private void tryConnectingOrphans() throws VerificationException, BlockStoreException, PrunedException {
+    private void tryConnectingOrphans(Sha256Hash connectedBlockHash) throws VerificationException, BlockStoreException, PrunedException {
         checkState(lock.isHeldByCurrentThread());
-        // For each block in our orphan list, try and fit it onto the head of the chain. If we succeed remove it
-        // from the list and keep going. If we changed the head of the list at the end of the round try again until
-        // we can't fit anything else on the top.
-        //
-        // This algorithm is kind of crappy, we should do a topo-sort then just connect them in order, but for small
-        // numbers of orphan blocks it does OK.
-        int blocksConnectedThisRound;
-        do {
-            blocksConnectedThisRound = 0;
-            Iterator<OrphanBlock> iter = orphanBlocks.values().iterator();
-            while (iter.hasNext()) {
-                OrphanBlock orphanBlock = iter.next();
-                // Look up the blocks previous.
-                StoredBlock prev = getStoredBlockInCurrentScope(orphanBlock.block.getPrevBlockHash());
-                if (prev == null) {
-                    // This is still an unconnected/orphan block.
-                    log.debug("Orphan block {} is not connectable right now", orphanBlock.block.getHash());
-                    continue;
-                }
-                // Otherwise we can connect it now.
+        // Orphans are indexed by the hash of their parent, so rather than checking every orphan against the chain
+        // each time, we only have to walk down from the block that was connected.
+        ArrayDeque<Sha256Hash> parents = new ArrayDeque<>();
+        parents.add(connectedBlockHash);
+        int blocksConnected = 0;
+        while (!parents.isEmpty()) {
+            Sha256Hash parent = parents.poll();
+            if (!orphanBlocksByPrevHash.containsKey(parent))
+                continue;
+            if (getStoredBlockInCurrentScope(parent) == null) {
+                // The parent isn't usable from here, so the orphans stay where they are.
+                log.debug("Orphan blocks building on {} are not connectable right now", parent);
+                continue;
+            }
+            for (OrphanBlock orphanBlock : new ArrayList<>(orphanBlocksByPrevHash.get(parent))) {
+                // Removed first, so that an orphan which fails verification isn't tried again.
+                removeOrphanBlock(orphanBlock);
                 // False here ensures we don't recurse infinitely downwards when connecting huge chains.
                 log.info("Connected orphan {}", orphanBlock.block.getHash());
                 add(orphanBlock.block, false, orphanBlock.filteredTxHashes, orphanBlock.filteredTxn);
-                iter.remove();
-                blocksConnectedThisRound++;
+                parents.add(orphanBlock.block.getHash());
+                blocksConnected++;
             }
-            if (blocksConnectedThisRound > 0) {
-                log.info("Connected {} orphan blocks.", blocksConnectedThisRound);
-            }
-        } while (blocksConnectedThisRound > 0);
+        }
+        if (blocksConnected > 0) {
+            log.info("Connected {} orphan blocks.", blocksConnected);
+        }
+    }
+
+    private void addOrphanBlock(OrphanBlock orphanBlock) {
+        checkState(lock.isHeldByCurrentThread());
+        orphanBlocks.put(orphanBlock.block.getHash(), orphanBlock);
+        orphanBlocksByPrevHash.put(orphanBlock.block.getPrevBlockHash(), orphanBlock);
+        orphanBlocksSize += orphanBlock.size;
+        // Forget the oldest orphans if we are holding too many, but always keep the one that was just added.
+        Iterator<OrphanBlock> oldest = orphanBlocks.values().iterator();
+        while (orphanBlocks.size() > 1 &&
+                (orphanBlocks.size() > MAX_ORPHAN_BLOCKS || orphanBlocksSize > MAX_ORPHAN_BLOCKS_SIZE)) {
+            OrphanBlock evicted = oldest.next();
+            oldest.remove();
+            orphanBlocksByPrevHash.remove(evicted.block.getPrevBlockHash(), evicted);
+            orphanBlocksSize -= evicted.size;
+            log.info("Too many orphan blocks, forgetting {}", evicted.block.getHash());
+        }
+    }
+
+    private void removeOrphanBlock(OrphanBlock orphanBlock) {
+        checkState(lock.isHeldByCurrentThread());
+        orphanBlocks.remove(orphanBlock.block.getHash());
+        orphanBlocksByPrevHash.remove(orphanBlock.block.getPrevBlockHash(), orphanBlock);
+        orphanBlocksSize -= orphanBlock.size;
     }
 
     /**
@@ -28,12 +28,16 @@ import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.*;
 
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
 /**
@@ -55,6 +59,15 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
     // Whether or not to execute scriptPubKeys before accepting a transaction (i.e. check signatures).
     private boolean runScripts = true;
 
+    /** The default for {@link #setPipelineDepth(int)}. */
+    public static final int DEFAULT_PIPELINE_DEPTH = 16;
+    private int pipelineDepth = DEFAULT_PIPELINE_DEPTH;
+
+    // While addAll() is running, the script checks of the blocks whose changes are not committed yet. Null otherwise.
+    @Nullable private List<Future<VerificationException>> pendingScriptChecks;
+    // How many blocks were added since the last commit while addAll() is running.
+    private int uncommittedBlocks;
+
     /**
      * Constructs a block chain connected to the given wallet and store. To obtain a {@link Wallet} you can construct
      * one from scratch, or you can deserialize a saved wallet from disk using
@@ -143,10 +156,107 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         this.runScripts = value;
     }
 
+    /**
+     * Sets how many blocks {@link #addAll(List)} may process before waiting for their scripts to be verified and
+     * committing them to the block store in one go. A depth of 1 verifies and commits every block on its own, like
+     * {@link #add(Block)}. Deeper pipelines keep more cores busy, but more blocks have to be undone if one of them
+     * turns out to be invalid. Defaults to {@link #DEFAULT_PIPELINE_DEPTH}.
+     */
+    public void setPipelineDepth(int pipelineDepth) {
+        checkArgument(pipelineDepth > 0, "pipelineDepth must be positive");
+        lock.lock();
+        try {
+            this.pipelineDepth = pipelineDepth;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * <p>Adds a run of blocks, in order. Unlike calling {@link #add(Block)} for each of them, the scripts of a block are
+     * verified on other threads while the unspent outputs of the blocks that follow it are looked up and updated. Up
+     * to {@link #setPipelineDepth(int)} blocks are then committed to the block store together, once all of their
+     * scripts have been verified. This is meant for the initial download of the chain, when blocks arrive much faster
+     * than they can be verified one at a time.</p>
+     *
+     * <p>If a block turns out to be invalid, the chain is rolled back to the last commit and the exception is thrown.
+     * The valid blocks that were rolled back have to be added again. Listeners, including wallets, are only told about
+     * blocks once they are committed, so they never hear about blocks which are then rolled back.</p>
+     *
+     * @return true if all blocks were connected to the chain, false if some of them were put aside as orphans.
+     */
+    public boolean addAll(List<Block> blocks) throws VerificationException, PrunedException {
+        lock.lock();
+        try {
+            checkState(pendingScriptChecks == null, "addAll is not re-entrant");
+            StoredBlock lastCommittedHead = getChainHead();
+            pendingScriptChecks = new ArrayList<>();
+            uncommittedBlocks = 0;
+            holdNotifications();
+            boolean allConnected = true;
+            try {
+                for (Block block : blocks) {
+                    allConnected &= add(block);
+                    if (uncommittedBlocks >= pipelineDepth) {
+                        commitPipeline();
+                        lastCommittedHead = getChainHead();
+                        sendHeldNotifications();
+                    }
+                }
+                commitPipeline();
+                lastCommittedHead = getChainHead();
+                sendHeldNotifications();
+            } catch (PrunedException | RuntimeException e) {
+                rollbackPipeline(lastCommittedHead);
+                throw e;
+            } finally {
+                pendingScriptChecks = null;
+                // Whatever is still held is for blocks that were rolled back.
+                stopHoldingNotifications();
+            }
+            return allConnected;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Waits for the scripts of all uncommitted blocks to be verified, then commits them. */
+    private void commitPipeline() throws VerificationException {
+        checkState(lock.isHeldByCurrentThread());
+        List<Future<VerificationException>> checks = checkNotNull(pendingScriptChecks);
+        waitForScriptChecks(checks);
+        checks.clear();
+        if (uncommittedBlocks > 0) {
+            try {
+                blockStore.commitDatabaseBatchWrite();
+            } catch (BlockStoreException e) {
+                throw new RuntimeException(e);
+            }
+            uncommittedBlocks = 0;
+        }
+    }
+
+    private void rollbackPipeline(StoredBlock lastCommittedHead) {
+        checkState(lock.isHeldByCurrentThread());
+        cancelScriptChecks(checkNotNull(pendingScriptChecks));
+        pendingScriptChecks = null;
+        try {
+            blockStore.abortDatabaseBatchWrite();
+            if (!getChainHead().equals(lastCommittedHead)) {
+                log.warn("Rolling back to {} after a block failed verification", lastCommittedHead);
+                blockStore.beginDatabaseBatchWrite();
+                setChainHead(lastCommittedHead);
+            }
+        } catch (BlockStoreException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     // TODO: Remove lots of duplicated code in the two connectTransactions
 
     // TODO: execute in order of largest transaction (by input count) first
-    ExecutorService scriptVerificationExecutor = Executors.newFixedThreadPool(
+    // Never shut down, so that it can be reused for every block.
+    final ExecutorService scriptVerificationExecutor = Executors.newFixedThreadPool(
             Runtime.getRuntime().availableProcessors(), new ContextPropagatingThreadFactory("Script verification"));
 
     /**
@@ -178,6 +288,31 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         }
     }
 
+    /** Waits for the given script checks in order, and throws the first failure. The rest are cancelled then. */
+    private void waitForScriptChecks(List<Future<VerificationException>> checks) throws VerificationException {
+        for (Future<VerificationException> future : checks) {
+            VerificationException e;
+            try {
+                e = future.get();
+            } catch (InterruptedException thrownE) {
+                throw new RuntimeException(thrownE); // Shouldn't happen
+            } catch (ExecutionException thrownE) {
+                cancelScriptChecks(checks);
+                log.error("Script.correctlySpends threw a non-normal exception: " + thrownE.getCause());
+                throw new VerificationException("Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", thrownE);
+            }
+            if (e != null) {
+                cancelScriptChecks(checks);
+                throw e;
+            }
+        }
+    }
+
+    private static void cancelScriptChecks(List<Future<VerificationException>> checks) {
+        for (Future<VerificationException> future : checks)
+            future.cancel(true);
+    }
+
     /**
      * Get the {@link Script} from the script bytes or return Script of empty byte array.
      */
@@ -206,6 +341,40 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         return address;
     }
 
+    /**
+     * Reads every output spent by the given transactions from the store in one batch, so that connecting a block costs
+     * one round trip to the UTXO set instead of one per input. Outputs created by the transactions themselves are left
+     * out as they are not in the store yet.
+     */
+    private Map<TransactionOutPoint, UTXO> prefetchSpentOutputs(List<Transaction> transactions) throws BlockStoreException {
+        Set<Sha256Hash> createdHere = new HashSet<>();
+        for (Transaction tx : transactions)
+            createdHere.add(tx.getHash());
+        List<TransactionOutPoint> outPoints = new ArrayList<>();
+        for (Transaction tx : transactions) {
+            if (tx.isCoinBase())
+                continue;
+            for (TransactionInput in : tx.getInputs()) {
+                if (!createdHere.contains(in.getOutpoint().getHash()))
+                    outPoints.add(in.getOutpoint());
+            }
+        }
+        return blockStore.getTransactionOutputs(outPoints);
+    }
+
+    /**
+     * Looks up the output spent by an input, preferring the prefetched copy. A prefetched output is handed out only
+     * once: a second spend of it in the same block falls through to the store, which by then no longer has it.
+     */
+    @Nullable
+    private UTXO getSpentOutput(Map<TransactionOutPoint, UTXO> prefetched, TransactionOutPoint outPoint)
+            throws BlockStoreException {
+        UTXO prevOut = prefetched.remove(outPoint);
+        if (prevOut == null)
+            prevOut = blockStore.getTransactionOutput(outPoint.getHash(), outPoint.getIndex());
+        return prevOut;
+    }
+
     @Override
     protected TransactionOutputChanges connectTransactions(int height, Block block)
             throws VerificationException, BlockStoreException {
@@ -221,9 +390,6 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         LinkedList<UTXO> txOutsCreated = new LinkedList<>();
         long sigOps = 0;
 
-        if (scriptVerificationExecutor.isShutdown())
-            scriptVerificationExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-
         List<Future<VerificationException>> listScriptVerificationResults = new ArrayList<>(block.transactions.size());
         try {
             if (!params.isCheckpoint(height)) {
@@ -241,6 +407,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                         sigOps += tx.getSigOpCount();
                 }
             }
+            Map<TransactionOutPoint, UTXO> prefetched = prefetchSpentOutputs(block.transactions);
             Coin totalFees = Coin.ZERO;
             Coin coinbaseValue = null;
             for (final Transaction tx : block.transactions) {
@@ -254,8 +421,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                     // outputs.
                     for (int index = 0; index < tx.getInputs().size(); index++) {
                         TransactionInput in = tx.getInputs().get(index);
-                        UTXO prevOut = blockStore.getTransactionOutput(in.getOutpoint().getHash(),
-                                in.getOutpoint().getIndex());
+                        UTXO prevOut = getSpentOutput(prefetched, in.getOutpoint());
                         if (prevOut == null)
                             throw new VerificationException("Attempted to spend a non-existent or already spent output!");
                         // Coinbases can't be spent until they mature, to avoid re-orgs destroying entire transaction
@@ -315,25 +481,18 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
             }
             if (totalFees.compareTo(params.getMaxMoney()) > 0 || block.getBlockInflation(height).add(totalFees).compareTo(coinbaseValue) < 0)
                 throw new VerificationException("Transaction fees out of range");
-            for (Future<VerificationException> future : listScriptVerificationResults) {
-                VerificationException e;
-                try {
-                    e = future.get();
-                } catch (InterruptedException thrownE) {
-                    throw new RuntimeException(thrownE); // Shouldn't happen
-                } catch (ExecutionException thrownE) {
-                    log.error("Script.correctlySpends threw a non-normal exception: " + thrownE.getCause());
-                    throw new VerificationException("Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", thrownE);
-                }
-                if (e != null)
-                    throw e;
+            if (pendingScriptChecks != null) {
+                // Inside addAll(): the scripts keep running while the next blocks are processed.
+                pendingScriptChecks.addAll(listScriptVerificationResults);
+            } else {
+                waitForScriptChecks(listScriptVerificationResults);
             }
         } catch (VerificationException e) {
-            scriptVerificationExecutor.shutdownNow();
+            cancelScriptChecks(listScriptVerificationResults);
             blockStore.abortDatabaseBatchWrite();
             throw e;
         } catch (BlockStoreException e) {
-            scriptVerificationExecutor.shutdownNow();
+            cancelScriptChecks(listScriptVerificationResults);
             blockStore.abortDatabaseBatchWrite();
             throw e;
         }
@@ -372,11 +531,10 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                             throw new VerificationException("Block failed BIP30 test!");
                     }
                 }
+                Map<TransactionOutPoint, UTXO> prefetched = prefetchSpentOutputs(transactions);
                 Coin totalFees = Coin.ZERO;
                 Coin coinbaseValue = null;
 
-                if (scriptVerificationExecutor.isShutdown())
-                    scriptVerificationExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
                 List<Future<VerificationException>> listScriptVerificationResults = new ArrayList<>(transactions.size());
                 for (final Transaction tx : transactions) {
                     final Set<VerifyFlag> verifyFlags =
@@ -389,8 +547,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                     if (!isCoinBase) {
                         for (int index = 0; index < tx.getInputs().size(); index++) {
                             final TransactionInput in = tx.getInputs().get(index);
-                            final UTXO prevOut = blockStore.getTransactionOutput(in.getOutpoint().getHash(),
-                                    in.getOutpoint().getIndex());
+                            final UTXO prevOut = getSpentOutput(prefetched, in.getOutpoint());
                             if (prevOut == null)
                                 throw new VerificationException("Attempted spend of a non-existent or already spent output!");
                             if (prevOut.isCoinbase() && newBlock.getHeight() - prevOut.getHeight() < params.getSpendableCoinbaseDepth())
@@ -448,19 +605,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                         newBlock.getHeader().getBlockInflation(newBlock.getHeight()).add(totalFees).compareTo(coinbaseValue) < 0)
                     throw new VerificationException("Transaction fees out of range");
                 txOutChanges = new TransactionOutputChanges(txOutsCreated, txOutsSpent);
-                for (Future<VerificationException> future : listScriptVerificationResults) {
-                    VerificationException e;
-                    try {
-                        e = future.get();
-                    } catch (InterruptedException thrownE) {
-                        throw new RuntimeException(thrownE); // Shouldn't happen
-                    } catch (ExecutionException thrownE) {
-                        log.error("Script.correctlySpends threw a non-normal exception: " + thrownE.getCause());
-                        throw new VerificationException("Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", thrownE);
-                    }
-                    if (e != null)
-                        throw e;
-                }
+                waitForScriptChecks(listScriptVerificationResults);
             } else {
                 txOutChanges = block.getTxOutChanges();
                 if (!params.isCheckpoint(newBlock.getHeight()))
@@ -475,11 +620,9 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                     blockStore.removeUnspentTransactionOutput(out);
             }
         } catch (VerificationException e) {
-            scriptVerificationExecutor.shutdownNow();
             blockStore.abortDatabaseBatchWrite();
             throw e;
         } catch (BlockStoreException e) {
-            scriptVerificationExecutor.shutdownNow();
             blockStore.abortDatabaseBatchWrite();
             throw e;
         }
@@ -515,6 +658,11 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
     protected void doSetChainHead(StoredBlock chainHead) throws BlockStoreException {
         checkState(lock.isHeldByCurrentThread());
         blockStore.setVerifiedChainHead(chainHead);
+        if (pendingScriptChecks != null) {
+            // Inside addAll(): committed together with the following blocks, once their scripts are verified.
+            uncommittedBlocks++;
+            return;
+        }
         blockStore.commitDatabaseBatchWrite();
     }
 
@@ -0,0 +1,506 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.core.listeners.BlocksDownloadedEventListener;
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.utils.Threading;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import net.jcip.annotations.GuardedBy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Downloads the block chain headers first and the block bodies afterwards, from several peers at once. Used by
+ * {@link PeerGroup} when {@link PeerGroup#setHeadersFirstDownload(boolean)} is enabled.</p>
+ *
+ * <p>Headers are requested from a single peer. They are checked (proof of work, difficulty and linkage) and put
+ * into the {@link BlockStore} right away, without moving the chain head. The bodies of those blocks are then requested
+ * in small windows from every connected peer that serves blocks. A window that doesn't complete in time is handed to
+ * another peer. Bodies are passed to {@link AbstractBlockChain#add(Block)} strictly in chain order, whichever peer they
+ * came from, so wallets see exactly the same sequence of blocks as with a regular download. Blocks created before the
+ * fast catchup time are added as bare headers, as in a regular download.</p>
+ *
+ * <p>Full blocks are requested, not filtered ones, because a filtered block can't be matched to its request.
+ * Headers are stored at most {@link #MAX_BLOCKS_AHEAD} plus one headers message ahead of the chain head, which keeps
+ * them well within the capacity of an {@link org.bitcoinj.store.SPVBlockStore}.</p>
+ *
+ * <p>Once every header the peer knew about has been connected, or if something goes wrong, the future returned
+ * by {@link #getFuture()} completes. The regular single peer download then picks up from wherever the chain head is.</p>
+ */
+public class HeadersFirstDownload {
+    private static final Logger log = LoggerFactory.getLogger(HeadersFirstDownload.class);
+
+    /** How many blocks are requested from a peer in a single getdata. */
+    public static int WINDOW_SIZE = 16;
+    /** How many blocks may be requested or downloaded without being connected to the chain yet. */
+    public static int MAX_BLOCKS_AHEAD = 1024;
+    /** A request for blocks or headers that didn't complete within this time is handed to another peer. */
+    public static long STALL_TIMEOUT_MILLIS = 10 * 1000;
+
+    private final NetworkParameters params;
+    private final AbstractBlockChain chain;
+    private final BlockStore store;
+    // A live view of the connected peers, which is iterated without locking.
+    private final List<Peer> peers;
+    private final long fastCatchupTimeSecs;
+    @Nullable private final BlocksDownloadedEventListener listener;
+    private final Executor listenerExecutor;
+    private final SettableFuture<Void> future = SettableFuture.create();
+
+    private final ReentrantLock lock = Threading.lock("headersfirstdownload");
+    // Held while connecting blocks to the chain, so that they are connected one at a time and in order. Never
+    // acquired while holding lock.
+    private final ReentrantLock connectLock = Threading.lock("headersfirstdownload-connect");
+
+    @GuardedBy("lock") @Nullable private Peer headerPeer;
+    @GuardedBy("lock") @Nullable private ListenableFuture<List<Block>> headersRequest;
+    @GuardedBy("lock") private long headersRequestTimeMillis;
+    @GuardedBy("lock") private StoredBlock headersTip;
+    @GuardedBy("lock") private boolean headersDone;
+    // Blocks whose headers were checked but whose bodies were not requested yet, in chain order.
+    @GuardedBy("lock") private final ArrayDeque<Sha256Hash> pending = new ArrayDeque<>();
+    // Blocks that were requested from a peer that failed to deliver them, and must be requested again.
+    @GuardedBy("lock") private final ArrayDeque<Sha256Hash> retry = new ArrayDeque<>();
+    // Every block that was requested at least once and is not connected yet, in chain order.
+    @GuardedBy("lock") private final ArrayDeque<Sha256Hash> toConnect = new ArrayDeque<>();
+    @GuardedBy("lock") private final Map<Sha256Hash, DownloadedBlock> downloaded = new HashMap<>();
+    @GuardedBy("lock") private final Map<Peer, Window> windows = new HashMap<>();
+    @GuardedBy("lock") private final Set<Peer> stalledPeers = new HashSet<>();
+    @GuardedBy("lock") private boolean finished;
+
+    private static class DownloadedBlock {
+        final Block block;
+        final Peer peer;
+
+        DownloadedBlock(Block block, Peer peer) {
+            this.block = block;
+            this.peer = peer;
+        }
+    }
+
+    // The blocks requested from one peer in a single getdata.
+    private static class Window {
+        final Peer peer;
+        final List<Sha256Hash> hashes;
+        final long requestTimeMillis = Utils.currentTimeMillis();
+        List<ListenableFuture<Block>> futures;
+        int remaining;
+
+        Window(Peer peer, List<Sha256Hash> hashes) {
+            this.peer = peer;
+            this.hashes = hashes;
+            this.remaining = hashes.size();
+        }
+    }
+
+    /**
+     * @param peers the connected peers. The list is read again every time work is handed out, so it should be a live,
+     *              thread safe view such as a {@link java.util.concurrent.CopyOnWriteArrayList}.
+     * @param fastCatchupTimeSecs blocks created before this time are added to the chain without their bodies.
+     * @param listener told about every block that is added to the chain, or null.
+     */
+    public HeadersFirstDownload(NetworkParameters params, AbstractBlockChain chain, List<Peer> peers,
+                                long fastCatchupTimeSecs, @Nullable BlocksDownloadedEventListener listener,
+                                Executor listenerExecutor) {
+        this.params = checkNotNull(params);
+        this.chain = checkNotNull(chain);
+        this.store = chain.getBlockStore();
+        this.peers = checkNotNull(peers);
+        this.fastCatchupTimeSecs = fastCatchupTimeSecs;
+        this.listener = listener;
+        this.listenerExecutor = checkNotNull(listenerExecutor);
+    }
+
+    /** Starts downloading headers from the given peer, beginning at the current chain head. */
+    public void start(Peer headerPeer) {
+        lock.lock();
+        try {
+            this.headerPeer = checkNotNull(headerPeer);
+            this.headersTip = chain.getChainHead();
+        } finally {
+            lock.unlock();
+        }
+        log.info("Starting headers first download from {} at height {}", headerPeer, chain.getBestChainHeight());
+        requestHeaders();
+    }
+
+    /** Returns a future that completes once the download has finished or was given up. */
+    public ListenableFuture<Void> getFuture() {
+        return future;
+    }
+
+    /** Continues downloading headers from the given peer, for example because the previous one went away. */
+    public void setHeaderPeer(Peer peer) {
+        lock.lock();
+        try {
+            if (peer == headerPeer)
+                return;
+            headerPeer = peer;
+            cancelHeadersRequest();
+        } finally {
+            lock.unlock();
+        }
+        requestHeaders();
+    }
+
+    /** Hands work to a newly connected peer. */
+    public void peerConnected(Peer peer) {
+        assignWindows();
+    }
+
+    /** Re-requests whatever the given peer still owed us from other peers. */
+    public void peerDisconnected(Peer peer) {
+        lock.lock();
+        try {
+            stalledPeers.remove(peer);
+            Window window = windows.get(peer);
+            if (window != null)
+                stall(window);
+            if (peer == headerPeer) {
+                headerPeer = null;
+                cancelHeadersRequest();
+            }
+        } finally {
+            lock.unlock();
+        }
+        assignWindows();
+    }
+
+    /** Re-assigns requests that took longer than {@link #STALL_TIMEOUT_MILLIS}. Should be called periodically. */
+    public void checkForStalls() {
+        boolean headersStalled = false;
+        lock.lock();
+        try {
+            if (finished)
+                return;
+            final long now = Utils.currentTimeMillis();
+            for (Window window : new ArrayList<>(windows.values())) {
+                if (now - window.requestTimeMillis > STALL_TIMEOUT_MILLIS) {
+                    log.info("{}: Stalled on {} blocks, requesting them from another peer", window.peer, window.remaining);
+                    stall(window);
+                }
+            }
+            if (headersRequest != null && now - headersRequestTimeMillis > STALL_TIMEOUT_MILLIS) {
+                log.info("{}: Stalled on headers, requesting them again", headerPeer);
+                cancelHeadersRequest();
+                headersStalled = true;
+            }
+        } finally {
+            lock.unlock();
+        }
+        assignWindows();
+        if (headersStalled)
+            requestHeaders();
+    }
+
+    @GuardedBy("lock")
+    private void cancelHeadersRequest() {
+        if (headersRequest != null) {
+            headersRequest.cancel(false);
+            headersRequest = null;
+        }
+    }
+
+    private void requestHeaders() {
+        final ListenableFuture<List<Block>> request;
+        lock.lock();
+        try {
+            if (finished || headersDone || headersRequest != null || headerPeer == null)
+                return;
+            // Don't run too far ahead of the bodies.
+            if (pending.size() + toConnect.size() >= MAX_BLOCKS_AHEAD)
+                return;
+            List<Sha256Hash> locator = new ArrayList<>(3);
+            locator.add(headersTip.getHeader().getHash());
+            Sha256Hash chainHeadHash = chain.getChainHead().getHeader().getHash();
+            if (!locator.contains(chainHeadHash))
+                locator.add(chainHeadHash);
+            if (!locator.contains(params.getGenesisBlock().getHash()))
+                locator.add(params.getGenesisBlock().getHash());
+            request = headerPeer.getBlockHeaders(locator, Sha256Hash.ZERO_HASH);
+            headersRequest = request;
+            headersRequestTimeMillis = Utils.currentTimeMillis();
+        } finally {
+            lock.unlock();
+        }
+        Futures.addCallback(request, new FutureCallback<List<Block>>() {
+            @Override
+            public void onSuccess(List<Block> headers) {
+                onHeaders(request, headers);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                if (!(t instanceof CancellationException))
+                    log.warn("Failed to download headers", t);
+            }
+        }, Threading.SAME_THREAD);
+    }
+
+    private void onHeaders(ListenableFuture<List<Block>> request, List<Block> headers) {
+        String abortReason = null;
+        lock.lock();
+        try {
+            if (finished || request != headersRequest)
+                return;
+            headersRequest = null;
+            for (Block header : headers) {
+                if (!header.getPrevBlockHash().equals(headersTip.getHeader().getHash())) {
+                    // The peer is on a different chain than we thought, let the regular download sort it out.
+                    abortReason = "Header " + header.getHashAsString() + " does not connect to " +
+                            headersTip.getHeader().getHashAsString();
+                    break;
+                }
+                header.verifyHeader();
+                params.checkDifficultyTransitions(headersTip, header, store);
+                StoredBlock stored = headersTip.build(header);
+                store.put(stored);
+                headersTip = stored;
+                if (header.getTimeSeconds() < fastCatchupTimeSecs) {
+                    // No need for the body: the header goes to the chain as soon as the blocks before it have.
+                    toConnect.add(header.getHash());
+                    downloaded.put(header.getHash(), new DownloadedBlock(header, headerPeer));
+                } else {
+                    pending.add(header.getHash());
+                }
+            }
+            if (headers.size() < HeadersMessage.MAX_HEADERS) {
+                headersDone = true;
+                log.info("Downloaded headers up to height {}", headersTip.getHeight());
+            }
+        } catch (VerificationException e) {
+            abortReason = "Header verification failed: " + e.getMessage();
+        } catch (BlockStoreException e) {
+            abortReason = "Could not store header: " + e.getMessage();
+        } finally {
+            lock.unlock();
+        }
+        if (abortReason != null) {
+            abort(abortReason);
+            return;
+        }
+        connectBlocks();
+        assignWindows();
+        requestHeaders();
+        maybeFinish();
+    }
+
+    private void assignWindows() {
+        List<Window> sent = new ArrayList<>();
+        lock.lock();
+        try {
+            if (finished)
+                return;
+            boolean havePeersThatDidNotStall = false;
+            for (Peer peer : peers)
+                havePeersThatDidNotStall |= !stalledPeers.contains(peer);
+            for (Peer peer : peers) {
+                if (downloaded.size() >= MAX_BLOCKS_AHEAD)
+                    break;
+                if (windows.containsKey(peer) || !peer.getPeerVersionMessage().hasBlockChain())
+                    continue;
+                if (havePeersThatDidNotStall && stalledPeers.contains(peer))
+                    continue;
+                List<Sha256Hash> hashes = new ArrayList<>(WINDOW_SIZE);
+                while (hashes.size() < WINDOW_SIZE && !retry.isEmpty())
+                    hashes.add(retry.poll());
+                while (hashes.size() < WINDOW_SIZE && !pending.isEmpty()) {
+                    Sha256Hash hash = pending.poll();
+                    toConnect.add(hash);
+                    hashes.add(hash);
+                }
+                if (hashes.isEmpty())
+                    break;
+                Window window = new Window(peer, hashes);
+                windows.put(peer, window);
+                window.futures = peer.getBlocks(hashes);
+                sent.add(window);
+            }
+        } finally {
+            lock.unlock();
+        }
+        // Outside the lock, as the callbacks run right away for futures that already completed.
+        for (final Window window : sent) {
+            for (int i = 0; i < window.hashes.size(); i++) {
+                final Sha256Hash hash = window.hashes.get(i);
+                Futures.addCallback(window.futures.get(i), new FutureCallback<Block>() {
+                    @Override
+                    public void onSuccess(Block block) {
+                        onBlock(window, hash, block);
+                    }
+
+                    @Override
+                    public void onFailure(Throwable t) {
+                        onBlockFailed(window);
+                    }
+                }, Threading.SAME_THREAD);
+            }
+        }
+    }
+
+    private void onBlock(Window window, Sha256Hash hash, Block block) {
+        lock.lock();
+        try {
+            if (finished || windows.get(window.peer) != window)
+                return;
+            downloaded.put(hash, new DownloadedBlock(block, window.peer));
+            if (--window.remaining == 0) {
+                windows.remove(window.peer);
+                stalledPeers.remove(window.peer);
+            }
+        } finally {
+            lock.unlock();
+        }
+        connectBlocks();
+        assignWindows();
+        requestHeaders();
+        maybeFinish();
+    }
+
+    private void onBlockFailed(Window window) {
+        lock.lock();
+        try {
+            // Either the peer doesn't have the block, or we cancelled the request ourselves.
+            if (finished || windows.get(window.peer) != window)
+                return;
+            log.info("{}: Could not download some blocks, requesting them from another peer", window.peer);
+            stall(window);
+        } finally {
+            lock.unlock();
+        }
+        assignWindows();
+    }
+
+    /** Puts the blocks the window's peer didn't deliver back in line for another peer, oldest first. */
+    @GuardedBy("lock")
+    private void stall(Window window) {
+        windows.remove(window.peer);
+        stalledPeers.add(window.peer);
+        for (int i = window.hashes.size() - 1; i >= 0; i--) {
+            if (!window.futures.get(i).isDone()) {
+                retry.addFirst(window.hashes.get(i));
+                window.futures.get(i).cancel(false);
+            }
+        }
+    }
+
+    /** Adds downloaded blocks to the chain for as long as the next one in chain order is available. */
+    private void connectBlocks() {
+        while (true) {
+            if (!connectLock.tryLock())
+                return;  // Whoever holds it will look again before giving up.
+            try {
+                while (true) {
+                    DownloadedBlock next;
+                    lock.lock();
+                    try {
+                        if (finished || toConnect.isEmpty() || !downloaded.containsKey(toConnect.peek()))
+                            break;
+                        next = downloaded.remove(toConnect.poll());
+                    } finally {
+                        lock.unlock();
+                    }
+                    try {
+                        if (!chain.add(next.block)) {
+                            abort("Block " + next.block.getHashAsString() + " does not connect to the chain");
+                            return;
+                        }
+                    } catch (VerificationException e) {
+                        abort("Block verification failed: " + e.getMessage());
+                        return;
+                    } catch (PrunedException e) {
+                        // Unreachable when in SPV mode.
+                        throw new RuntimeException(e);
+                    }
+                    invokeOnBlocksDownloaded(next);
+                }
+            } finally {
+                connectLock.unlock();
+            }
+            lock.lock();
+            try {
+                if (finished || toConnect.isEmpty() || !downloaded.containsKey(toConnect.peek()))
+                    return;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void invokeOnBlocksDownloaded(final DownloadedBlock downloadedBlock) {
+        if (listener == null)
+            return;
+        final int blocksLeft = Math.max(0, (int) downloadedBlock.peer.getBestHeight() - chain.getBestChainHeight());
+        listenerExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                listener.onBlocksDownloaded(downloadedBlock.peer, downloadedBlock.block, null, blocksLeft);
+            }
+        });
+    }
+
+    private void maybeFinish() {
+        lock.lock();
+        try {
+            if (finished || !headersDone || !pending.isEmpty() || !toConnect.isEmpty())
+                return;
+            finished = true;
+        } finally {
+            lock.unlock();
+        }
+        log.info("Headers first download finished at height {}", chain.getBestChainHeight());
+        future.set(null);
+    }
+
+    private void abort(String reason) {
+        lock.lock();
+        try {
+            if (finished)
+                return;
+            finished = true;
+            for (Window window : windows.values())
+                for (ListenableFuture<Block> blockFuture : window.futures)
+                    blockFuture.cancel(false);
+            windows.clear();
+            cancelHeadersRequest();
+        } finally {
+            lock.unlock();
+        }
+        log.warn("Giving up headers first download at height {}: {}", chain.getBestChainHeight(), reason);
+        future.set(null);
+    }
+}
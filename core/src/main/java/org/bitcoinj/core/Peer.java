@@ -145,6 +145,8 @@ public class Peer extends PeerSocketHandler {
     }
     // TODO: The types/locking should be rationalised a bit.
     private final CopyOnWriteArrayList<GetDataRequest> getDataFutures;
+    // Completed with the next headers message, when headers were requested through getBlockHeaders().
+    @GuardedBy("lock") @Nullable private SettableFuture<List<Block>> blockHeadersFuture;
     @GuardedBy("getAddrFutures") private final LinkedList<SettableFuture<AddressMessage>> getAddrFutures;
     @Nullable @GuardedBy("lock") private LinkedList<SettableFuture<UTXOsMessage>> getutxoFutures;
 
@@ -664,6 +666,21 @@ public class Peer extends PeerSocketHandler {
         // request the full blocks from that point on instead.
         boolean downloadBlockBodies;
         long fastCatchupTimeSecs;
+        SettableFuture<List<Block>> blockHeadersFuture;
+
+        lock.lock();
+        try {
+            // Headers requested explicitly via getBlockHeaders() go to the caller instead.
+            blockHeadersFuture = this.blockHeadersFuture;
+            this.blockHeadersFuture = null;
+        } finally {
+            lock.unlock();
+        }
+        // A cancelled request may still be answered, in which case the headers are handled as usual.
+        if (blockHeadersFuture != null && !blockHeadersFuture.isCancelled()) {
+            blockHeadersFuture.set(m.getBlockHeaders());
+            return;
+        }
 
         lock.lock();
         try {
@@ -1305,6 +1322,55 @@ public class Peer extends PeerSocketHandler {
         return sendSingleGetData(getdata);
     }
 
+    /**
+     * Asks the connected peer for the blocks of the given hashes with a single getdata message, and returns a future
+     * for each of them in the same order. Cancelling a future forgets about the request, so a block arriving later
+     * is treated as unrequested.
+     */
+    public List<ListenableFuture<Block>> getBlocks(List<Sha256Hash> blockHashes) {
+        // This does not need to be locked.
+        log.info("Request to fetch {} blocks", blockHashes.size());
+        GetDataMessage getdata = new GetDataMessage(params);
+        List<ListenableFuture<Block>> futures = new ArrayList<>(blockHashes.size());
+        for (Sha256Hash blockHash : blockHashes) {
+            getdata.addBlock(blockHash);
+            final SettableFuture<Block> future = SettableFuture.create();
+            final GetDataRequest req = new GetDataRequest(blockHash, future);
+            getDataFutures.add(req);
+            future.addListener(new Runnable() {
+                @Override
+                public void run() {
+                    if (future.isCancelled())
+                        getDataFutures.remove(req);
+                }
+            }, Threading.SAME_THREAD);
+            futures.add(future);
+        }
+        sendMessage(getdata);
+        return futures;
+    }
+
+    /**
+     * Asks the connected peer for the headers that follow the given block locator, up to the stop hash or
+     * {@link HeadersMessage#MAX_HEADERS} of them. The future completes with the contents of the next headers message.
+     * Only one such request can be outstanding; a new one cancels the previous future.
+     */
+    public ListenableFuture<List<Block>> getBlockHeaders(List<Sha256Hash> blockLocator, Sha256Hash stopHash) {
+        SettableFuture<List<Block>> future = SettableFuture.create();
+        SettableFuture<List<Block>> previous;
+        lock.lock();
+        try {
+            previous = blockHeadersFuture;
+            blockHeadersFuture = future;
+        } finally {
+            lock.unlock();
+        }
+        if (previous != null)
+            previous.cancel(false);
+        sendMessage(new GetHeadersMessage(params, blockLocator, stopHash));
+        return future;
+    }
+
     /**
      * Asks the connected peer for the given transaction from its memory pool. Transactions in the chain cannot be
      * retrieved this way because peers don't have a transaction ID to transaction-pos-on-disk index, and besides,
@@ -116,6 +116,8 @@ public class PeerGroup implements TransactionBroadcaster {
     @GuardedBy("lock") private Peer downloadPeer;
     // Callback for events related to chain download.
     @Nullable @GuardedBy("lock") private PeerDataEventListener downloadListener;
+    // The chain download running in headers first mode, if any.
+    @Nullable @GuardedBy("lock") private HeadersFirstDownload headersFirstDownload;
     private final CopyOnWriteArrayList<ListenerRegistration<BlocksDownloadedEventListener>> peersBlocksDownloadedEventListeners
         = new CopyOnWriteArrayList<>();
     private final CopyOnWriteArrayList<ListenerRegistration<ChainDownloadStartedEventListener>> peersChainDownloadStartedEventListeners
@@ -284,6 +286,9 @@ public class PeerGroup implements TransactionBroadcaster {
     /** Whether bloom filter support is enabled when using a non FullPrunedBlockchain*/
     private volatile boolean vBloomFilteringEnabled = true;
 
+    /** Whether the chain is downloaded headers first from all peers, see {@link #setHeadersFirstDownload(boolean)} */
+    private volatile boolean vHeadersFirstDownload = false;
+
     /** See {@link #PeerGroup(Context)} */
     public PeerGroup(NetworkParameters params) {
         this(params, null);
@@ -1538,6 +1543,8 @@ public class PeerGroup implements TransactionBroadcaster {
             // Make sure the peer knows how to upload transactions that are requested from us.
             peer.addBlocksDownloadedEventListener(Threading.SAME_THREAD, peerListener);
             peer.addGetDataEventListener(Threading.SAME_THREAD, peerListener);
+            if (headersFirstDownload != null)
+                headersFirstDownload.peerConnected(peer);
 
             // And set up event listeners for clients. This will allow them to find out about new transactions and blocks.
             for (ListenerRegistration<BlocksDownloadedEventListener> registration : peersBlocksDownloadedEventListeners)
@@ -1679,6 +1686,8 @@ public class PeerGroup implements TransactionBroadcaster {
             PeerAddress address = peer.getAddress();
 
             log.info("{}: Peer died      ({} connected, {} pending, {} max)", address, peers.size(), pendingPeers.size(), maxConnections);
+            if (headersFirstDownload != null)
+                headersFirstDownload.peerDisconnected(peer);
             if (peer == downloadPeer) {
                 log.info("Download peer died. Picking a new one.");
                 setDownloadPeer(null);
@@ -1896,6 +1905,16 @@ public class PeerGroup implements TransactionBroadcaster {
             }
             peer.addBlocksDownloadedEventListener(Threading.SAME_THREAD, chainDownloadSpeedCalculator);
 
+            if (vHeadersFirstDownload && chain != null) {
+                // Blocks are requested explicitly by the headers first download, so don't fetch announced ones.
+                peer.setDownloadData(false);
+                if (headersFirstDownload == null)
+                    startHeadersFirstDownload(peer);
+                else
+                    headersFirstDownload.setHeaderPeer(peer);
+                return;
+            }
+
             // startBlockChainDownload will setDownloadData(true) on itself automatically.
             peer.startBlockChainDownload();
         } finally {
@@ -1903,6 +1922,48 @@ public class PeerGroup implements TransactionBroadcaster {
         }
     }
 
+    @GuardedBy("lock")
+    private void startHeadersFirstDownload(final Peer peer) {
+        final HeadersFirstDownload download = new HeadersFirstDownload(params, chain, peers, fastCatchupTimeSecs,
+                downloadListener, Threading.USER_THREAD);
+        headersFirstDownload = download;
+        final ListenableScheduledFuture<?> stallChecker = executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                download.checkForStalls();
+            }
+        }, 1, 1, TimeUnit.SECONDS);
+        download.getFuture().addListener(new Runnable() {
+            @Override
+            public void run() {
+                stallChecker.cancel(false);
+                lock.lock();
+                try {
+                    if (headersFirstDownload != download)
+                        return;
+                    headersFirstDownload = null;
+                    // Hand over to the regular download, which picks up from the current chain head and keeps
+                    // following the chain from now on.
+                    if (downloadPeer != null && isRunning())
+                        downloadPeer.startBlockChainDownload();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }, executor);
+        final PeerDataEventListener listener = downloadListener;
+        if (listener != null) {
+            final int blocksLeft = peer.getPeerBlockHeightDifference();
+            Threading.USER_THREAD.execute(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onChainDownloadStarted(peer, blocksLeft);
+                }
+            });
+        }
+        download.start(peer);
+    }
+
     /**
      * Returns a future that is triggered when the number of connected peers is equal to the given number of
      * peers. By using this with {@link org.bitcoinj.core.PeerGroup#getMaxConnections()} you can wait until the
@@ -2297,4 +2358,20 @@ public class PeerGroup implements TransactionBroadcaster {
     public boolean isBloomFilteringEnabled() {
         return vBloomFilteringEnabled;
     }
+
+    /**
+     * If enabled, the block chain is downloaded by fetching the headers from the download peer first, and then
+     * fetching the blocks themselves in parallel from all connected peers, see {@link HeadersFirstDownload}. Once the
+     * download peer has no more headers to give, the regular download takes over. Full blocks are downloaded instead
+     * of filtered blocks, so this trades bandwidth for speed and is most useful when catching up with a long chain.
+     * Only takes effect for chain downloads started afterwards. Defaults to false.
+     */
+    public void setHeadersFirstDownload(boolean headersFirstDownload) {
+        this.vHeadersFirstDownload = headersFirstDownload;
+    }
+
+    /** Returns whether the chain is downloaded headers first, see {@link #setHeadersFirstDownload(boolean)}. */
+    public boolean isHeadersFirstDownload() {
+        return vHeadersFirstDownload;
+    }
 }
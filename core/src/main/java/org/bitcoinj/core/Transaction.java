@@ -32,6 +32,7 @@ import com.google.common.primitives.Ints;
 import com.google.common.primitives.Longs;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.spongycastle.crypto.digests.SHA256Digest;
 import org.spongycastle.crypto.params.KeyParameter;
 
 import javax.annotation.Nullable;
@@ -363,6 +364,10 @@ public class Transaction extends ChildMessage {
                 connected = input.getConnectedOutput(wallet.getTransactionPool(Pool.SPENT));
             if (connected == null)
                 connected = input.getConnectedOutput(wallet.getTransactionPool(Pool.PENDING));
+            // An input connected to an output without a transaction, such as one the wallet has archived, still has
+            // the output to go by.
+            if (connected == null && input.getConnectedTransaction() == null)
+                connected = input.getConnectedOutput();
             if (connected == null)
                 continue;
             // The connected output may be the change to the sender of a previous input sent to this wallet. In this
@@ -1092,6 +1097,76 @@ public class Transaction extends ChildMessage {
         }
     }
 
+    /**
+     * <p>Calculates the {@link SigHash#ALL} signature hashes of many inputs in one go. The results are the same as calling
+     * {@link #hashForSignature(int, byte[], SigHash, boolean)} for each input, but that method copies and re-serializes
+     * the whole transaction every time, which dominates the cost for transactions with hundreds of inputs.</p>
+     *
+     * <p>Here the transaction is serialized once. The SHA-256 state over everything preceding each input is carried
+     * along and copied, so that shared prefix is hashed only once.</p>
+     *
+     * @param connectedScripts for each input the bytes that should be in it during signing, or null to skip the input.
+     * @return the signature hash of each input, or null for skipped inputs.
+     */
+    public List<Sha256Hash> hashesForSignature(List<byte[]> connectedScripts) {
+        checkArgument(connectedScripts.size() == inputs.size(), "Need one script per input");
+        try {
+            final int numInputs = inputs.size();
+            // Inputs other than the signed one always have their scripts cleared.
+            byte[][] clearedInputs = new byte[numInputs][];
+            for (int i = 0; i < numInputs; i++) {
+                TransactionInput input = inputs.get(i);
+                UnsafeByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(TransactionOutPoint.MESSAGE_LENGTH + 5);
+                input.getOutpoint().bitcoinSerialize(bos);
+                bos.write(0);
+                uint32ToByteStreamLE(input.getSequenceNumber(), bos);
+                clearedInputs[i] = bos.toByteArray();
+            }
+            UnsafeByteArrayOutputStream bos = new UnsafeByteArrayOutputStream();
+            bos.write(new VarInt(outputs.size()).encode());
+            for (TransactionOutput output : outputs)
+                output.bitcoinSerialize(bos);
+            uint32ToByteStreamLE(lockTime, bos);
+            uint32ToByteStreamLE(SigHash.ALL.value, bos);
+            byte[] tail = bos.toByteArray();
+
+            SHA256Digest prefix = new SHA256Digest();
+            bos = new UnsafeByteArrayOutputStream();
+            uint32ToByteStreamLE(version, bos);
+            bos.write(new VarInt(numInputs).encode());
+            prefix.update(bos.toByteArray(), 0, bos.size());
+
+            List<Sha256Hash> hashes = new ArrayList<>(numInputs);
+            for (int i = 0; i < numInputs; i++) {
+                byte[] connectedScript = connectedScripts.get(i);
+                if (connectedScript == null) {
+                    hashes.add(null);
+                } else {
+                    // See hashForSignature for why OP_CODESEPARATOR is removed.
+                    connectedScript = Script.removeAllInstancesOfOp(connectedScript, ScriptOpCodes.OP_CODESEPARATOR);
+                    TransactionInput input = inputs.get(i);
+                    bos = new UnsafeByteArrayOutputStream(connectedScript.length + TransactionOutPoint.MESSAGE_LENGTH + 13);
+                    input.getOutpoint().bitcoinSerialize(bos);
+                    bos.write(new VarInt(connectedScript.length).encode());
+                    bos.write(connectedScript);
+                    uint32ToByteStreamLE(input.getSequenceNumber(), bos);
+                    SHA256Digest digest = new SHA256Digest(prefix);
+                    digest.update(bos.toByteArray(), 0, bos.size());
+                    for (int j = i + 1; j < numInputs; j++)
+                        digest.update(clearedInputs[j], 0, clearedInputs[j].length);
+                    digest.update(tail, 0, tail.length);
+                    byte[] hash = new byte[32];
+                    digest.doFinal(hash, 0);
+                    hashes.add(Sha256Hash.wrap(Sha256Hash.hash(hash)));
+                }
+                prefix.update(clearedInputs[i], 0, clearedInputs[i].length);
+            }
+            return hashes;
+        } catch (IOException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+    }
+
     @Override
     protected void bitcoinSerializeToStream(OutputStream stream) throws IOException {
         uint32ToByteStreamLE(version, stream);
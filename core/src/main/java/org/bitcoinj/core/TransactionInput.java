@@ -348,6 +348,8 @@ public class TransactionInput extends ChildMessage {
     /** Internal use only: connects this TransactionInput to the given output (updates pointers and spent flags) */
     public void connect(TransactionOutput out) {
         outpoint.fromTx = out.getParentTransaction();
+        // An output without a transaction can only be found through the outpoint.
+        outpoint.connectedOutput = outpoint.fromTx == null ? out : null;
         out.markAsSpent(this);
         value = out.getValue();
     }
@@ -31,47 +31,62 @@ import java.util.List;
 public class TransactionOutputChanges {
     public final List<UTXO> txOutsCreated;
     public final List<UTXO> txOutsSpent;
+
+    // Written in place of the first count by the compact format. The old format never had that many outputs.
+    private static final int COMPACT_MARKER = 0xFFFFFFFF;
     
     public TransactionOutputChanges(List<UTXO> txOutsCreated, List<UTXO> txOutsSpent) {
         this.txOutsCreated = txOutsCreated;
         this.txOutsSpent = txOutsSpent;
     }
     
+    /**
+     * Reads changes written by {@link #serializeToStream(OutputStream)}, or in the older format that stored each output
+     * with {@link UTXO#serializeToStream(OutputStream)}.
+     */
     public TransactionOutputChanges(InputStream in) throws IOException {
-        int numOutsCreated = (in.read() & 0xFF) |
-                             ((in.read() & 0xFF) << 8) |
-                             ((in.read() & 0xFF) << 16) |
-                             ((in.read() & 0xFF) << 24);
+        int numOutsCreated = readInt(in);
+        boolean compact = numOutsCreated == COMPACT_MARKER;
+        if (compact)
+            numOutsCreated = readInt(in);
         txOutsCreated = new LinkedList<>();
         for (int i = 0; i < numOutsCreated; i++)
-            txOutsCreated.add(new UTXO(in));
+            txOutsCreated.add(compact ? UTXO.deserializeCompactFromStream(in) : new UTXO(in));
         
-        int numOutsSpent = (in.read() & 0xFF) |
-                           ((in.read() & 0xFF) << 8) |
-                           ((in.read() & 0xFF) << 16) |
-                           ((in.read() & 0xFF) << 24);
+        int numOutsSpent = readInt(in);
         txOutsSpent = new LinkedList<>();
         for (int i = 0; i < numOutsSpent; i++)
-            txOutsSpent.add(new UTXO(in));
+            txOutsSpent.add(compact ? UTXO.deserializeCompactFromStream(in) : new UTXO(in));
     }
 
+    /**
+     * Writes the changes with the outputs in their compact encoding, see
+     * {@link UTXO#serializeCompactToStream(OutputStream)}.
+     */
     public void serializeToStream(OutputStream bos) throws IOException {
-        int numOutsCreated = txOutsCreated.size();
-        bos.write(0xFF & numOutsCreated);
-        bos.write(0xFF & (numOutsCreated >> 8));
-        bos.write(0xFF & (numOutsCreated >> 16));
-        bos.write(0xFF & (numOutsCreated >> 24));
+        writeInt(COMPACT_MARKER, bos);
+        writeInt(txOutsCreated.size(), bos);
         for (UTXO output : txOutsCreated) {
-            output.serializeToStream(bos);
+            output.serializeCompactToStream(bos);
         }
         
-        int numOutsSpent = txOutsSpent.size();
-        bos.write(0xFF & numOutsSpent);
-        bos.write(0xFF & (numOutsSpent >> 8));
-        bos.write(0xFF & (numOutsSpent >> 16));
-        bos.write(0xFF & (numOutsSpent >> 24));
+        writeInt(txOutsSpent.size(), bos);
         for (UTXO output : txOutsSpent) {
-            output.serializeToStream(bos);
+            output.serializeCompactToStream(bos);
         }
     }
+
+    private static int readInt(InputStream in) throws IOException {
+        return (in.read() & 0xFF) |
+               ((in.read() & 0xFF) << 8) |
+               ((in.read() & 0xFF) << 16) |
+               ((in.read() & 0xFF) << 24);
+    }
+
+    private static void writeInt(int value, OutputStream bos) throws IOException {
+        bos.write(0xFF & value);
+        bos.write(0xFF & (value >> 8));
+        bos.write(0xFF & (value >> 16));
+        bos.write(0xFF & (value >> 24));
+    }
 }
@@ -18,11 +18,15 @@ package org.bitcoinj.core;
 
 import org.bitcoinj.script.*;
 import com.google.common.base.Objects;
+import com.google.common.io.ByteStreams;
 
+import javax.annotation.Nullable;
 import java.io.*;
 import java.math.*;
 import java.util.Locale;
 
+import static org.bitcoinj.script.ScriptOpCodes.*;
+
 // TODO: Fix this class: should not talk about addresses, height should be optional/support mempool height etc
 
 /**
@@ -34,6 +38,34 @@ public class UTXO implements Serializable {
 
     private static final long serialVersionUID = 4736241649298988166L;
 
+    /** The version byte that starts the encoding written by {@link #serializeCompactToStream(OutputStream)}. */
+    public static final int COMPACT_VERSION = 1;
+
+    // Script templates of the compact encoding. Non negative entries are fixed bytes of the script and a negative
+    // entry -n stands for n bytes of payload, so a matching script is stored as its template number plus the payload.
+    private static final int SCRIPT_RAW = 0;
+    // Public keys of the curve in use are one prefix byte followed by one or both coordinates.
+    private static final int CURVE_FIELD_BYTES = (ECKey.CURVE.getCurve().getFieldSize() + 7) / 8;
+    private static final int[][] SCRIPT_TEMPLATES = {
+            // DUP HASH160 <pubkey hash> EQUALVERIFY CHECKSIG
+            { OP_DUP, OP_HASH160, 20, -20, OP_EQUALVERIFY, OP_CHECKSIG },
+            // The same followed by <asset quantities> DROP, as MultiChain sends assets to an address.
+            { OP_DUP, OP_HASH160, 20, -20, OP_EQUALVERIFY, OP_CHECKSIG, 28, -28, OP_DROP },
+            // HASH160 <script hash> EQUAL
+            { OP_HASH160, 20, -20, OP_EQUAL },
+            // <compressed pubkey> CHECKSIG
+            payToPubKeyTemplate(1 + CURVE_FIELD_BYTES),
+            // <uncompressed pubkey> CHECKSIG
+            payToPubKeyTemplate(1 + 2 * CURVE_FIELD_BYTES),
+    };
+
+    // The template of a minimally pushed public key of the given length followed by CHECKSIG.
+    private static int[] payToPubKeyTemplate(int keyLength) {
+        if (keyLength < OP_PUSHDATA1)
+            return new int[] { keyLength, -keyLength, OP_CHECKSIG };
+        return new int[] { OP_PUSHDATA1, keyLength, -keyLength, OP_CHECKSIG };
+    }
+
     private Coin value;
     private Script script;
     private Sha256Hash hash;
@@ -201,6 +233,109 @@ public class UTXO implements Serializable {
     }
     
     
+    /**
+     * Writes this output in the compact encoding: the {@link #COMPACT_VERSION} byte and the transaction hash, then the
+     * index, the height shifted left by one with the coinbase flag in the lowest bit and the value as variable length
+     * integers, and finally the script. Standard scripts are written as a template number followed by the bytes that
+     * differ between scripts of that template, others as a length and the raw bytes. The address is not written.
+     */
+    public void serializeCompactToStream(OutputStream bos) throws IOException {
+        bos.write(COMPACT_VERSION);
+        bos.write(hash.getBytes());
+        bos.write(new VarInt(index).encode());
+        bos.write(new VarInt(((long) height << 1) | (coinbase ? 1 : 0)).encode());
+        bos.write(new VarInt(value.value).encode());
+
+        byte[] scriptBytes = script.getProgram();
+        for (int i = 0; i < SCRIPT_TEMPLATES.length; i++) {
+            byte[] payload = matchTemplate(SCRIPT_TEMPLATES[i], scriptBytes);
+            if (payload != null) {
+                bos.write(i + 1);
+                bos.write(payload);
+                return;
+            }
+        }
+        bos.write(SCRIPT_RAW);
+        bos.write(new VarInt(scriptBytes.length).encode());
+        bos.write(scriptBytes);
+    }
+
+    /** Reads an output written by {@link #serializeCompactToStream(OutputStream)}. */
+    public static UTXO deserializeCompactFromStream(InputStream in) throws IOException {
+        int version = in.read();
+        if (version == -1)
+            throw new EOFException();
+        if (version != COMPACT_VERSION)
+            throw new IOException("Unknown UTXO encoding version " + version);
+        byte[] hashBytes = new byte[32];
+        ByteStreams.readFully(in, hashBytes);
+        long index = readVarInt(in);
+        long heightAndCoinbase = readVarInt(in);
+        Coin value = Coin.valueOf(readVarInt(in));
+
+        int template = in.read();
+        byte[] scriptBytes;
+        if (template == SCRIPT_RAW) {
+            scriptBytes = new byte[(int) readVarInt(in)];
+            ByteStreams.readFully(in, scriptBytes);
+        } else if (template > 0 && template <= SCRIPT_TEMPLATES.length) {
+            scriptBytes = fillTemplate(SCRIPT_TEMPLATES[template - 1], in);
+        } else {
+            throw template == -1 ? new EOFException() : new IOException("Unknown script template " + template);
+        }
+        return new UTXO(Sha256Hash.wrap(hashBytes), index, value, (int) (heightAndCoinbase >> 1),
+                (heightAndCoinbase & 1) == 1, new Script(scriptBytes));
+    }
+
+    // Returns the payload bytes if the script matches the template exactly, otherwise null.
+    @Nullable
+    private static byte[] matchTemplate(int[] template, byte[] scriptBytes) {
+        int scriptLength = 0, payloadLength = 0;
+        for (int entry : template) {
+            scriptLength += entry < 0 ? -entry : 1;
+            payloadLength += entry < 0 ? -entry : 0;
+        }
+        if (scriptBytes.length != scriptLength)
+            return null;
+        byte[] payload = new byte[payloadLength];
+        int pos = 0, payloadPos = 0;
+        for (int entry : template) {
+            if (entry < 0) {
+                System.arraycopy(scriptBytes, pos, payload, payloadPos, -entry);
+                pos -= entry;
+                payloadPos -= entry;
+            } else if ((scriptBytes[pos++] & 0xFF) != entry) {
+                return null;
+            }
+        }
+        return payload;
+    }
+
+    private static byte[] fillTemplate(int[] template, InputStream in) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        for (int entry : template) {
+            if (entry < 0) {
+                byte[] payload = new byte[-entry];
+                ByteStreams.readFully(in, payload);
+                bos.write(payload);
+            } else {
+                bos.write(entry);
+            }
+        }
+        return bos.toByteArray();
+    }
+
+    private static long readVarInt(InputStream in) throws IOException {
+        int first = in.read();
+        if (first == -1)
+            throw new EOFException();
+        int size = first < 253 ? 1 : first == 253 ? 3 : first == 254 ? 5 : 9;
+        byte[] buf = new byte[size];
+        buf[0] = (byte) first;
+        ByteStreams.readFully(in, buf, 1, size - 1);
+        return new VarInt(buf, 0).value;
+    }
+
     private void writeObject(ObjectOutputStream o) throws IOException {
         serializeToStream(o);
     }
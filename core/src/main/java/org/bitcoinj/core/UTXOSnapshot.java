@@ -0,0 +1,261 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.store.FullPrunedBlockStore;
+import org.bitcoinj.utils.ContextPropagatingThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.nio.ByteBuffer;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import static com.google.common.base.Preconditions.*;
+
+/**
+ * <p>Writes and loads snapshots of the unspent output set of a {@link FullPrunedBlockStore}, so that a new fully
+ * verifying node can start from a recent block instead of replaying the whole chain. Like checkpoints, a snapshot has
+ * to come from a party you trust: its outputs are not checked against the blocks that created them. What is checked is
+ * that the snapshot was signed by the expected key and has not been altered since.</p>
+ *
+ * <p>A snapshot starts with the magic bytes "UTXOSNAPSHOT 1" and the compact {@link StoredBlock} it was taken at,
+ * followed by the outputs in the encoding of {@link UTXO#serializeCompactToStream(OutputStream)} and a zero byte.
+ * Then comes the number of outputs as a long, and finally the length and DER encoding of an ECDSA signature over the
+ * SHA-256 hash of everything before it.</p>
+ */
+public class UTXOSnapshot {
+    private static final Logger log = LoggerFactory.getLogger(UTXOSnapshot.class);
+
+    private static final String MAGIC = "UTXOSNAPSHOT 1";
+    private static final int MAX_SIGNATURE_LENGTH = 256;
+    // Outputs are handed from the reading thread to the store in batches of this size, with at most
+    // QUEUED_BATCHES of them waiting, which bounds the memory an import needs however large the snapshot is.
+    private static final int BATCH_SIZE = 10000;
+    private static final int QUEUED_BATCHES = 4;
+    private static final List<UTXO> END_OF_OUTPUTS = Collections.emptyList();
+
+    /**
+     * Writes the unspent outputs of the store at its verified chain head to the given stream, signed with the given
+     * key. The store must not be written to while this runs.
+     *
+     * @return the hash that was signed
+     */
+    public static Sha256Hash write(FullPrunedBlockStore store, OutputStream outputStream, ECKey signingKey)
+            throws IOException, BlockStoreException {
+        checkArgument(signingKey.hasPrivKey(), "Need a private key to sign the snapshot");
+        StoredBlock head = store.getVerifiedChainHead();
+        MessageDigest digest = Sha256Hash.newDigest();
+        final DataOutputStream dos = new DataOutputStream(
+                new DigestOutputStream(new BufferedOutputStream(outputStream), digest));
+        dos.write(MAGIC.getBytes("US-ASCII"));
+        ByteBuffer buffer = ByteBuffer.allocate(StoredBlock.COMPACT_SERIALIZED_SIZE);
+        head.serializeCompact(buffer);
+        dos.write(buffer.array());
+        final long[] count = new long[1];
+        store.visitUnspentTransactionOutputs(new FullPrunedBlockStore.UTXOVisitor() {
+            @Override
+            public void visit(UTXO output) throws BlockStoreException {
+                try {
+                    output.serializeCompactToStream(dos);
+                } catch (IOException e) {
+                    throw new BlockStoreException(e);
+                }
+                count[0]++;
+            }
+        });
+        dos.write(0);
+        dos.writeLong(count[0]);
+        dos.flush();
+
+        Sha256Hash hash = Sha256Hash.wrap(digest.digest());
+        byte[] signature = signingKey.sign(hash).encodeToDER();
+        dos.writeInt(signature.length);
+        dos.write(signature);
+        dos.flush();
+        log.info("Wrote {} unspent outputs at height {}, hash {}", count[0], head.getHeight(), hash);
+        return hash;
+    }
+
+    /**
+     * Loads a snapshot into a store that has not connected any blocks past the genesis block yet, and makes the block
+     * the snapshot was taken at the chain head. Reading, hashing and decoding happen on a separate thread while the
+     * outputs are added to the store, in batch writes of a bounded size.
+     *
+     * <p>The hash and signature can only be checked once the whole snapshot has been read, so the outputs are already
+     * in the store by then. The chain head is only moved if they check out; if anything fails, the store is left with
+     * a partial output set and has to be deleted.</p>
+     *
+     * @param signingKey the public key the snapshot must be signed with
+     * @return the block the snapshot was taken at, now the chain head of the store
+     */
+    public static StoredBlock load(NetworkParameters params, InputStream inputStream, FullPrunedBlockStore store,
+            ECKey signingKey) throws IOException, BlockStoreException {
+        checkState(store.getVerifiedChainHead().getHeight() == 0, "Snapshots can only be loaded into a new store");
+        BlockingQueue<List<UTXO>> queue = new ArrayBlockingQueue<>(QUEUED_BATCHES);
+        FutureTask<StoredBlock> reader = new FutureTask<>(new Reader(params, inputStream, signingKey, queue));
+        new ContextPropagatingThreadFactory("UTXO snapshot reader").newThread(reader).start();
+        long count = 0;
+        try {
+            while (true) {
+                List<UTXO> batch = queue.take();
+                if (batch == END_OF_OUTPUTS)
+                    break;
+                store.beginDatabaseBatchWrite();
+                try {
+                    for (UTXO output : batch)
+                        store.addUnspentTransactionOutput(output);
+                    store.commitDatabaseBatchWrite();
+                } catch (BlockStoreException e) {
+                    store.abortDatabaseBatchWrite();
+                    throw e;
+                }
+                count += batch.size();
+            }
+            StoredBlock head = reader.get();
+            store.beginDatabaseBatchWrite();
+            // Stored like the genesis block of a new store: a full chain only builds on blocks it has undo data for,
+            // and there is nothing before the snapshot to undo to.
+            store.put(head, new StoredUndoableBlock(head.getHeader().getHash(), new ArrayList<Transaction>()));
+            store.setChainHead(head);
+            store.setVerifiedChainHead(head);
+            store.commitDatabaseBatchWrite();
+            log.info("Loaded {} unspent outputs at height {}", count, head.getHeight());
+            return head;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while loading the snapshot");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            throw new IOException(cause);
+        } finally {
+            // Unblocks the reader if we stopped taking its batches early.
+            reader.cancel(true);
+        }
+    }
+
+    private static class Reader implements Callable<StoredBlock> {
+        private final NetworkParameters params;
+        private final InputStream inputStream;
+        private final ECKey signingKey;
+        private final BlockingQueue<List<UTXO>> queue;
+
+        Reader(NetworkParameters params, InputStream inputStream, ECKey signingKey, BlockingQueue<List<UTXO>> queue) {
+            this.params = params;
+            this.inputStream = inputStream;
+            this.signingKey = signingKey;
+            this.queue = queue;
+        }
+
+        @Override
+        public StoredBlock call() throws Exception {
+            boolean ended = false;
+            try {
+                MessageDigest digest = Sha256Hash.newDigest();
+                DigestInputStream digestInputStream = new DigestInputStream(new BufferedInputStream(inputStream),
+                        digest);
+                // Peeking for the end of the outputs happens above the digest, so that each byte is hashed once.
+                PushbackInputStream pushbackInputStream = new PushbackInputStream(digestInputStream);
+                DataInputStream dis = new DataInputStream(pushbackInputStream);
+                byte[] header = new byte[MAGIC.length()];
+                dis.readFully(header);
+                if (!Arrays.equals(header, MAGIC.getBytes("US-ASCII")))
+                    throw new IOException("Header bytes did not match expected version");
+                byte[] headBytes = new byte[StoredBlock.COMPACT_SERIALIZED_SIZE];
+                dis.readFully(headBytes);
+                StoredBlock head = StoredBlock.deserializeCompact(params, ByteBuffer.wrap(headBytes));
+
+                long count = 0;
+                List<UTXO> batch = new ArrayList<>(BATCH_SIZE);
+                int next;
+                while ((next = pushbackInputStream.read()) != 0) {
+                    if (next == -1)
+                        throw new EOFException();
+                    pushbackInputStream.unread(next);
+                    batch.add(withAddress(UTXO.deserializeCompactFromStream(dis)));
+                    count++;
+                    if (batch.size() == BATCH_SIZE) {
+                        queue.put(batch);
+                        batch = new ArrayList<>(BATCH_SIZE);
+                    }
+                }
+                if (dis.readLong() != count)
+                    throw new IOException("Snapshot is truncated");
+
+                digestInputStream.on(false);
+                Sha256Hash hash = Sha256Hash.wrap(digest.digest());
+                int signatureLength = checkPositionIndex(dis.readInt(), MAX_SIGNATURE_LENGTH,
+                        "Signature length out of range");
+                byte[] signature = new byte[signatureLength];
+                dis.readFully(signature);
+                if (!signingKey.verify(hash.getBytes(), signature))
+                    throw new IOException("Snapshot signature does not match, hash " + hash);
+                // Only hand over the last outputs once the snapshot is known to be good.
+                if (!batch.isEmpty())
+                    queue.put(batch);
+                queue.put(END_OF_OUTPUTS);
+                ended = true;
+                return head;
+            } finally {
+                if (!ended) {
+                    // The loader may have stopped taking batches, so make room instead of waiting for it. What is
+                    // still queued is not wanted anyway, as the snapshot failed.
+                    queue.clear();
+                    queue.offer(END_OF_OUTPUTS);
+                }
+            }
+        }
+
+        // The compact encoding leaves out the address, which stores index outputs by for the UTXOProvider methods.
+        // It is worked out from the script the same way as for outputs of connected blocks.
+        private UTXO withAddress(UTXO output) {
+            String address = "";
+            try {
+                address = output.getScript().getToAddress(params, true).toString();
+            } catch (ScriptException e) {
+                // Not sent to an address, so not indexed.
+            } catch (IllegalArgumentException e) {
+                // Sent to a raw public key that is not a valid point.
+            }
+            return new UTXO(output.getHash(), output.getIndex(), output.getValue(), output.getHeight(),
+                    output.isCoinbase(), output.getScript(), address);
+        }
+    }
+}
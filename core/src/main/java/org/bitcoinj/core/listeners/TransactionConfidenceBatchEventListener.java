@@ -0,0 +1,37 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bitcoinj.core.listeners;
+
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.wallet.Wallet;
+
+import java.util.List;
+
+/**
+ * <p>Implementors are called with the transactions whose confidence changed since the last call, instead of once per
+ * change as for a {@link TransactionConfidenceEventListener}.</p>
+ */
+public interface TransactionConfidenceBatchEventListener {
+    /**
+     * <p>Called with the transactions whose confidence changed since the last call, each of them once and in the order
+     * they first changed. A transaction that changed several times in between, for example because its depth went up
+     * with every new block, is only there once, so look at its confidence as it is now.</p>
+     *
+     * <p>A batch grows for as long as the listener's executor is busy, so a slow listener is called less often with
+     * more transactions rather than falling further behind.</p>
+     */
+    void onTransactionConfidencesChanged(Wallet wallet, List<Transaction> txns);
+}
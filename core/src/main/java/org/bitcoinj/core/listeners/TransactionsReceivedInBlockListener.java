@@ -0,0 +1,51 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core.listeners;
+
+import org.bitcoinj.core.BlockChain;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.VerificationException;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A {@link TransactionReceivedInBlockListener} that takes all the relevant transactions of a block at once, for
+ * listeners that have work to do per block as well as per transaction.
+ */
+public interface TransactionsReceivedInBlockListener extends TransactionReceivedInBlockListener {
+    /**
+     * <p>Called by the {@link BlockChain} instead of
+     * {@link #receiveFromBlock(Transaction, StoredBlock, BlockChain.NewBlockType, int)} and
+     * {@link #notifyTransactionIsInBlock(Sha256Hash, StoredBlock, BlockChain.NewBlockType, int)} for each transaction
+     * of a new block, with the same meaning as calling those in order.</p>
+     *
+     * <p>The relativity offset of each transaction is its index in txHashes. Transactions that can't be processed
+     * because of a script that isn't understood are skipped, as the block chain does for the other methods.</p>
+     *
+     * @param txHashes the hashes of the transactions, in the order they appear in the block
+     * @param transactions the transactions that came with the block; those missing were sent loose before
+     * @return the hashes without a transaction that were known about, see
+     * {@link #notifyTransactionIsInBlock(Sha256Hash, StoredBlock, BlockChain.NewBlockType, int)}
+     */
+    Set<Sha256Hash> receiveFromBlock(List<Sha256Hash> txHashes, Map<Sha256Hash, Transaction> transactions,
+                                     StoredBlock block, BlockChain.NewBlockType blockType)
+            throws VerificationException;
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.crypto;
+
+import org.bitcoinj.utils.Threading;
+import org.spongycastle.crypto.params.KeyParameter;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Holds an AES key derived from a password for a limited amount of time. Deriving a key with scrypt is deliberately
+ * slow, so interactive applications usually want to ask for the password once and then re-use the key for a while,
+ * in the same way as the <tt>walletpassphrase</tt> RPC of Bitcoin Core.</p>
+ *
+ * <p>The cache owns its own copy of the key bytes. When the key expires, is replaced or {@link #clear()} is called the
+ * bytes are overwritten with zeros, so callers should never hold on to the internal key: {@link #get()} always hands
+ * out a fresh copy which the caller may wipe when done.</p>
+ */
+public class AesKeyCache {
+    private static ScheduledExecutorService wiper;
+
+    private final ReentrantLock lock = Threading.lock("aeskeycache");
+
+    @GuardedBy("lock") @Nullable private KeyParameter key;
+    @GuardedBy("lock") private long expiryTimeMillis;
+    @GuardedBy("lock") @Nullable private ScheduledFuture<?> scheduledWipe;
+
+    /**
+     * Stores a copy of the given key until the given amount of time has passed. Any previously cached key is wiped.
+     */
+    public void put(KeyParameter aesKey, long timeout, TimeUnit unit) {
+        checkNotNull(aesKey);
+        checkArgument(timeout > 0, "timeout must be positive");
+        lock.lock();
+        try {
+            clearLocked();
+            key = new KeyParameter(aesKey.getKey());
+            expiryTimeMillis = System.currentTimeMillis() + unit.toMillis(timeout);
+            scheduledWipe = getWiper().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    clearIfExpired();
+                }
+            }, timeout, unit);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns a copy of the cached key, or null if there is none or it has expired. The returned key is owned by the
+     * caller and is not affected by later wiping of the cache.
+     */
+    @Nullable
+    public KeyParameter get() {
+        lock.lock();
+        try {
+            if (key == null)
+                return null;
+            if (System.currentTimeMillis() >= expiryTimeMillis) {
+                clearLocked();
+                return null;
+            }
+            return new KeyParameter(key.getKey());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns true if a key is cached and has not expired yet. */
+    public boolean isCached() {
+        lock.lock();
+        try {
+            return key != null && System.currentTimeMillis() < expiryTimeMillis;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Wipes and forgets the cached key, if any. */
+    public void clear() {
+        lock.lock();
+        try {
+            clearLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void clearIfExpired() {
+        lock.lock();
+        try {
+            if (key != null && System.currentTimeMillis() >= expiryTimeMillis)
+                clearLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private void clearLocked() {
+        if (scheduledWipe != null) {
+            scheduledWipe.cancel(false);
+            scheduledWipe = null;
+        }
+        if (key != null) {
+            // KeyParameter hands out its internal array, so this zeroes the only copy we own.
+            wipe(key);
+            key = null;
+        }
+        expiryTimeMillis = 0;
+    }
+
+    /** Overwrites the bytes of the given key with zeros. The key must not be used afterwards. */
+    public static void wipe(@Nullable KeyParameter aesKey) {
+        if (aesKey != null)
+            Arrays.fill(aesKey.getKey(), (byte) 0);
+    }
+
+    private static synchronized ScheduledExecutorService getWiper() {
+        if (wiper == null) {
+            wiper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r);
+                    t.setName("AesKeyCache wiper");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return wiper;
+    }
+}
@@ -17,8 +17,11 @@
 package org.bitcoinj.crypto;
 
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.Maps;
 
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -26,7 +29,6 @@ import java.util.Map;
 import static com.google.common.base.Preconditions.checkArgument;
 
 // TODO: This whole API feels a bit object heavy. Do we really need ChildNumber and so many maps, etc?
-// TODO: Should we be representing this using an actual tree arrangement in memory instead of a bunch of hashmaps?
 
 /**
  * <p>A DeterministicHierarchy calculates and keeps a whole tree (hierarchy) of keys originating from a single
@@ -39,12 +41,15 @@ import static com.google.common.base.Preconditions.checkArgument;
  *
  * <p>The hierarchy is started from a single root key, and a location in the tree is given by a path which
  * is a list of {@link ChildNumber}s.</p>
+ *
+ * <p>Keys are held in an actual tree in memory. Looking a key up walks down from the top one path element at a time,
+ * so lookups neither build nor hash path lists.</p>
  */
 public class DeterministicHierarchy {
-    private final Map<ImmutableList<ChildNumber>, DeterministicKey> keys = Maps.newHashMap();
+    // The node for the empty path. Keys live at their absolute path, so nodes above the root key have no key.
+    private final Node tree = new Node();
     private final ImmutableList<ChildNumber> rootPath;
-    // Keep track of how many child keys each node has. This is kind of weak.
-    private final Map<ImmutableList<ChildNumber>, ChildNumber> lastChildNumbers = Maps.newHashMap();
+    private final Node rootNode;
 
     public static final int BIP32_STANDARDISATION_TIME_SECS = 1369267200;
 
@@ -55,6 +60,7 @@ public class DeterministicHierarchy {
     public DeterministicHierarchy(DeterministicKey rootKey) {
         putKey(rootKey);
         rootPath = rootKey.getPath();
+        rootNode = findNode(tree, rootPath);
     }
 
     /**
@@ -63,12 +69,15 @@ public class DeterministicHierarchy {
      */
     public final void putKey(DeterministicKey key) {
         ImmutableList<ChildNumber> path = key.getPath();
-        // Update our tracking of what the next child in each branch of the tree should be. Just assume that keys are
-        // inserted in order here.
-        final DeterministicKey parent = key.getParent();
-        if (parent != null)
-            lastChildNumbers.put(parent.getPath(), key.getChildNumber());
-        keys.put(path, key);
+        Node node = tree;
+        for (int i = 0; i < path.size(); i++) {
+            // Update our tracking of what the next child in each branch of the tree should be. Just assume that keys
+            // are inserted in order here.
+            if (i == path.size() - 1 && key.getParent() != null)
+                node.lastChildNumber = key.getChildNumber();
+            node = node.getOrCreateChild(path.get(i));
+        }
+        node.key = key;
     }
 
     /**
@@ -81,18 +90,36 @@ public class DeterministicHierarchy {
      * @throws IllegalArgumentException if create is false and the path was not found.
      */
     public DeterministicKey get(List<ChildNumber> path, boolean relativePath, boolean create) {
+        Node node = findNode(relativePath ? rootNode : tree, path);
+        if (node != null && node.key != null)
+            return node.key;
+        if (!create)
+            throw new IllegalArgumentException(String.format(Locale.US, "No key found for %s path %s.",
+                relativePath ? "relative" : "absolute", HDUtils.formatPath(path)));
         ImmutableList<ChildNumber> absolutePath = relativePath
                 ? ImmutableList.<ChildNumber>builder().addAll(rootPath).addAll(path).build()
                 : ImmutableList.copyOf(path);
-        if (!keys.containsKey(absolutePath)) {
-            if (!create)
-                throw new IllegalArgumentException(String.format(Locale.US, "No key found for %s path %s.",
-                    relativePath ? "relative" : "absolute", HDUtils.formatPath(path)));
-            checkArgument(absolutePath.size() > 0, "Can't derive the master key: nothing to derive from.");
-            DeterministicKey parent = get(absolutePath.subList(0, absolutePath.size() - 1), false, true);
-            putKey(HDKeyDerivation.deriveChildKey(parent, absolutePath.get(absolutePath.size() - 1)));
-        }
-        return keys.get(absolutePath);
+        checkArgument(absolutePath.size() > 0, "Can't derive the master key: nothing to derive from.");
+        DeterministicKey parent = get(absolutePath.subList(0, absolutePath.size() - 1), false, true);
+        DeterministicKey key = HDKeyDerivation.deriveChildKey(parent, absolutePath.get(absolutePath.size() - 1));
+        putKey(key);
+        return key;
+    }
+
+    /**
+     * Returns the already derived child of the key at the given absolute parent path. This is the same as calling
+     * {@link #get(List, boolean, boolean)} with the child appended to the path, but without building that path.
+     *
+     * @throws IllegalArgumentException if the child was not found.
+     */
+    public DeterministicKey getChild(List<ChildNumber> parentPath, ChildNumber childNumber) {
+        Node node = findNode(tree, parentPath);
+        if (node != null)
+            node = node.getChild(childNumber);
+        if (node == null || node.key == null)
+            throw new IllegalArgumentException(String.format(Locale.US, "No key found for absolute path %s/%s.",
+                    HDUtils.formatPath(parentPath), childNumber));
+        return node.key;
     }
 
     /**
@@ -119,18 +146,21 @@ public class DeterministicHierarchy {
     }
 
     private ChildNumber getNextChildNumberToDerive(ImmutableList<ChildNumber> path, boolean privateDerivation) {
-        ChildNumber lastChildNumber = lastChildNumbers.get(path);
+        Node node = tree;
+        for (int i = 0; i < path.size(); i++)
+            node = node.getOrCreateChild(path.get(i));
+        ChildNumber lastChildNumber = node.lastChildNumber;
         ChildNumber nextChildNumber = new ChildNumber(lastChildNumber != null ? lastChildNumber.num() + 1 : 0, privateDerivation);
-        lastChildNumbers.put(path, nextChildNumber);
+        node.lastChildNumber = nextChildNumber;
         return nextChildNumber;
     }
 
     public int getNumChildren(ImmutableList<ChildNumber> path) {
-        final ChildNumber cn = lastChildNumbers.get(path);
-        if (cn == null)
+        final Node node = findNode(tree, path);
+        if (node == null || node.lastChildNumber == null)
             return 0;
         else
-            return cn.num() + 1;   // children start with zero based childnumbers
+            return node.lastChildNumber.num() + 1;   // children start with zero based childnumbers
     }
 
     /**
@@ -159,4 +189,71 @@ public class DeterministicHierarchy {
     public DeterministicKey getRootKey() {
         return get(rootPath, false, false);
     }
+
+    @Nullable
+    private static Node findNode(Node start, List<ChildNumber> path) {
+        Node node = start;
+        for (int i = 0; i < path.size() && node != null; i++)
+            node = node.getChild(path.get(i));
+        return node;
+    }
+
+    /**
+     * One position in the key tree. Non-hardened children are normally derived in sequence, so they are kept in an
+     * array indexed by child number that grows as needed. Hardened children, and children far beyond the end of the
+     * array, go into a map instead so that a single huge child number can't blow up the array.
+     */
+    private static final class Node {
+        private static final int MIN_CAPACITY = 16;
+
+        @Nullable DeterministicKey key;
+        @Nullable ChildNumber lastChildNumber;
+        @Nullable private Node[] children;
+        @Nullable private Map<Integer, Node> sparseChildren;
+
+        @Nullable
+        Node getChild(ChildNumber childNumber) {
+            if (!childNumber.isHardened() && children != null && childNumber.num() < children.length)
+                return children[childNumber.num()];
+            return sparseChildren != null ? sparseChildren.get(childNumber.i()) : null;
+        }
+
+        Node getOrCreateChild(ChildNumber childNumber) {
+            Node child = getChild(childNumber);
+            if (child != null)
+                return child;
+            child = new Node();
+            int num = childNumber.num();
+            int capacity = children != null ? children.length : 0;
+            if (!childNumber.isHardened() && num < capacity * 2 + MIN_CAPACITY) {
+                if (num >= capacity)
+                    grow(Math.max(num + 1, Math.max(capacity * 2, MIN_CAPACITY)));
+                children[num] = child;
+            } else {
+                if (sparseChildren == null)
+                    sparseChildren = new HashMap<>();
+                sparseChildren.put(childNumber.i(), child);
+            }
+            return child;
+        }
+
+        // Grows the array to the given length, and moves the sparse children that now fit into it, as getChild only
+        // looks at the array for those.
+        private void grow(int length) {
+            children = Arrays.copyOf(children != null ? children : new Node[0], length);
+            if (sparseChildren == null)
+                return;
+            Iterator<Map.Entry<Integer, Node>> it = sparseChildren.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Integer, Node> entry = it.next();
+                ChildNumber childNumber = new ChildNumber(entry.getKey());
+                if (!childNumber.isHardened() && childNumber.num() < length) {
+                    children[childNumber.num()] = entry.getValue();
+                    it.remove();
+                }
+            }
+            if (sparseChildren.isEmpty())
+                sparseChildren = null;
+        }
+    }
 }
@@ -186,10 +186,11 @@ public final class HDKeyDerivation {
         checkState(i.length == 64, i.length);
         byte[] il = Arrays.copyOfRange(i, 0, 40);
         byte[] chainCode = Arrays.copyOfRange(i, 40, 80);
-        BigInteger ilInt = new BigInteger(1, il);
-        assertLessThanN(ilInt, "Illegal derived key: I_L >= n");
-
         final BigInteger N = ECKey.CURVE.getN();
+        // As in deriveChildKeyBytesFromPrivate, I_L is reduced mod n rather than rejected: with a 320 bit curve order
+        // below 2^320 a sizeable fraction of children would otherwise be derivable privately but not publicly.
+        BigInteger ilInt = new BigInteger(1, il).mod(N);
+
         ECPoint Ki;
         switch (mode) {
             case NORMAL:
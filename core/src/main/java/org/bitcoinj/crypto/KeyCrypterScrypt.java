@@ -19,9 +19,12 @@ package org.bitcoinj.crypto;
 
 import com.google.common.base.Objects;
 import com.google.common.base.Stopwatch;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.protobuf.ByteString;
 import com.lambdaworks.crypto.SCrypt;
 import org.bitcoinj.core.Utils;
+import org.bitcoinj.utils.Threading;
 import org.bitcoinj.wallet.Protos;
 import org.bitcoinj.wallet.Protos.ScryptParameters;
 import org.bitcoinj.wallet.Protos.Wallet.EncryptionType;
@@ -34,8 +37,10 @@ import org.spongycastle.crypto.paddings.PaddedBufferedBlockCipher;
 import org.spongycastle.crypto.params.KeyParameter;
 import org.spongycastle.crypto.params.ParametersWithIV;
 
+import java.nio.CharBuffer;
 import java.security.SecureRandom;
 import java.util.Arrays;
+import java.util.concurrent.Callable;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
@@ -170,6 +175,40 @@ public class KeyCrypterScrypt implements KeyCrypter {
         }
     }
 
+    /**
+     * Generate AES key on {@link Threading#THREAD_POOL} rather than on the calling thread. See
+     * {@link #deriveKeyAsync(CharSequence, ListeningExecutorService)}.
+     */
+    public ListenableFuture<KeyParameter> deriveKeyAsync(CharSequence password) {
+        return deriveKeyAsync(password, Threading.THREAD_POOL);
+    }
+
+    /**
+     * Generate AES key on the given executor, so that user interface and network threads stay responsive while scrypt
+     * is running. The password is copied before this method returns, so the caller may wipe its own copy straight
+     * away. If derivation fails the future fails with a {@link KeyCrypterException}.
+     *
+     * @param password    The password to use in key generation
+     * @param executor    The executor to run the key derivation on
+     * @return            A future for the KeyParameter containing the created AES key
+     */
+    public ListenableFuture<KeyParameter> deriveKeyAsync(CharSequence password, ListeningExecutorService executor) {
+        checkNotNull(password);
+        final char[] passwordChars = new char[password.length()];
+        for (int i = 0; i < passwordChars.length; i++)
+            passwordChars[i] = password.charAt(i);
+        return executor.submit(new Callable<KeyParameter>() {
+            @Override
+            public KeyParameter call() throws Exception {
+                try {
+                    return deriveKey(CharBuffer.wrap(passwordChars));
+                } finally {
+                    Arrays.fill(passwordChars, (char) 0);
+                }
+            }
+        });
+    }
+
     /**
      * Password based encryption using AES - CBC 256 bits.
      */
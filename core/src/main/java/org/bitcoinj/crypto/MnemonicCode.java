@@ -19,6 +19,8 @@ package org.bitcoinj.crypto;
 
 import org.bitcoinj.core.Sha256Hash;
 import org.bitcoinj.core.Utils;
+import org.bitcoinj.utils.ParallelBatches;
+import org.bitcoinj.utils.Threading;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -31,6 +33,7 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
@@ -54,6 +57,8 @@ public class MnemonicCode {
     public static long BIP39_STANDARDISATION_TIME_SECS = 1381276800;
 
     private static final int PBKDF2_ROUNDS = 2048;
+    // Every seed costs a full PBKDF2 run, so even a single mnemonic is worth a batch of its own.
+    private static final ParallelBatches SEED_BATCHES = new ParallelBatches(Threading.THREAD_POOL, 1);
 
     public static MnemonicCode INSTANCE;
 
@@ -127,16 +132,39 @@ public class MnemonicCode {
         // used as a pseudo-random function. Desired length of the
         // derived key is 512 bits (= 64 bytes).
         //
-        String pass = Utils.join(words);
-        String salt = "mnemonic" + passphrase;
-
         final Stopwatch watch = Stopwatch.createStarted();
-        byte[] seed = PBKDF2SHA512.derive(pass, salt, PBKDF2_ROUNDS, 64);
+        byte[] seed = deriveSeed(words, passphrase);
         watch.stop();
         log.info("PBKDF2 took {}", watch);
         return seed;
     }
 
+    /**
+     * Convert many mnemonic word lists to seeds at once, as needed when restoring or validating large numbers of
+     * wallets. The PBKDF2 work is split into one contiguous batch per CPU core on {@link Threading#THREAD_POOL}. The
+     * returned seeds are in the same order as the given mnemonics.
+     */
+    public static List<byte[]> toSeeds(final List<List<String>> mnemonics, final String passphrase) {
+        final byte[][] seeds = new byte[mnemonics.size()][];
+        final Stopwatch watch = Stopwatch.createStarted();
+        SEED_BATCHES.run(mnemonics.size(), new ParallelBatches.Batch() {
+            @Override
+            public void run(int from, int to) {
+                for (int i = from; i < to; i++)
+                    seeds[i] = deriveSeed(mnemonics.get(i), passphrase);
+            }
+        });
+        watch.stop();
+        log.info("PBKDF2 for {} mnemonics took {}", mnemonics.size(), watch);
+        return Arrays.asList(seeds);
+    }
+
+    private static byte[] deriveSeed(List<String> words, String passphrase) {
+        String pass = Utils.join(words);
+        String salt = "mnemonic" + passphrase;
+        return PBKDF2SHA512.derive(pass, salt, PBKDF2_ROUNDS, 64);
+    }
+
     /**
      * Convert mnemonic word list to original entropy value.
      */
@@ -16,18 +16,25 @@
 
 package org.bitcoinj.signers;
 
+import java.util.ArrayList;
 import java.util.EnumSet;
+import java.util.List;
 
+import com.google.common.util.concurrent.ListeningExecutorService;
 import org.bitcoinj.core.*;
 import org.bitcoinj.crypto.DeterministicKey;
 import org.bitcoinj.crypto.TransactionSignature;
 import org.bitcoinj.script.Script;
 import org.bitcoinj.script.Script.VerifyFlag;
+import org.bitcoinj.utils.ParallelBatches;
+import org.bitcoinj.utils.Threading;
 import org.bitcoinj.wallet.KeyBag;
 import org.bitcoinj.wallet.RedeemData;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import static com.google.common.base.Preconditions.checkNotNull;
+
 /**
  * <p>{@link TransactionSigner} implementation for signing inputs using keys from provided {@link org.bitcoinj.wallet.KeyBag}.</p>
  * <p>This signer doesn't create input scripts for tx inputs. Instead it expects inputs to contain scripts with
@@ -39,6 +46,9 @@ import org.slf4j.LoggerFactory;
  * signers to use correct signing key for P2SH inputs, because all the keys involved in a single P2SH address have
  * the same derivation path.</p>
  * <p>This signer always uses {@link org.bitcoinj.core.Transaction.SigHash#ALL} signing mode.</p>
+ * <p>Signature hashes for all inputs are calculated together with {@link Transaction#hashesForSignature(List)}. The
+ * signatures themselves are independent of each other, so for large transactions they are calculated in parallel on
+ * the executor given to the constructor. Signatures are always inserted in input order.</p>
  */
 public class LocalTransactionSigner extends StatelessTransactionSigner {
     private static final Logger log = LoggerFactory.getLogger(LocalTransactionSigner.class);
@@ -50,6 +60,32 @@ public class LocalTransactionSigner extends StatelessTransactionSigner {
     private static final EnumSet<VerifyFlag> MINIMUM_VERIFY_FLAGS = EnumSet.of(VerifyFlag.P2SH,
         VerifyFlag.NULLDUMMY);
 
+    /**
+     * The default smallest number of inputs worth handing to a separate signing task. Transactions with fewer than two
+     * times this many inputs are signed entirely on the calling thread.
+     */
+    private static final int MIN_INPUTS_PER_SIGNING_WORKER = 8;
+
+    private final ParallelBatches batches;
+
+    /** Creates a signer that signs large transactions in parallel on {@link Threading#THREAD_POOL}. */
+    public LocalTransactionSigner() {
+        this(Threading.THREAD_POOL);
+    }
+
+    /** Creates a signer that signs large transactions in parallel on the given executor. */
+    public LocalTransactionSigner(ListeningExecutorService executor) {
+        this(executor, MIN_INPUTS_PER_SIGNING_WORKER);
+    }
+
+    /**
+     * Creates a signer that signs transactions in parallel on the given executor, handing at least the given number of
+     * inputs to each signing task.
+     */
+    public LocalTransactionSigner(ListeningExecutorService executor, int minInputsPerWorker) {
+        this.batches = new ParallelBatches(checkNotNull(executor), minInputsPerWorker);
+    }
+
     @Override
     public boolean isReady() {
         return true;
@@ -59,7 +95,10 @@ public class LocalTransactionSigner extends StatelessTransactionSigner {
     public boolean signInputs(ProposedTransaction propTx, KeyBag keyBag) {
         Transaction tx = propTx.partialTx;
         int numInputs = tx.getInputs().size();
+        ECKey[] keys = new ECKey[numInputs];
+        List<byte[]> scripts = new ArrayList<>(numInputs);
         for (int i = 0; i < numInputs; i++) {
+            scripts.add(null);
             TransactionInput txIn = tx.getInput(i);
             if (txIn.getConnectedOutput() == null) {
                 log.warn("Missing connected output, assuming input {} is already signed.", i);
@@ -97,31 +136,63 @@ public class LocalTransactionSigner extends StatelessTransactionSigner {
                 continue;
             }
 
-            Script inputScript = txIn.getScriptSig();
             // script here would be either a standard CHECKSIG program for pay-to-address or pay-to-pubkey inputs or
             // a CHECKMULTISIG program for P2SH inputs
-            byte[] script = redeemData.redeemScript.getProgram();
+            keys[i] = key;
+            scripts.set(i, redeemData.redeemScript.getProgram());
+        }
+
+        // The signature hash of an input doesn't depend on the scripts of the other inputs, so all hashes can be
+        // calculated up front and the signatures inserted afterwards.
+        List<Sha256Hash> hashes = tx.hashesForSignature(scripts);
+        TransactionSignature[] signatures = sign(keys, hashes);
+
+        for (int i = 0; i < numInputs; i++) {
+            if (signatures[i] == null)
+                continue;
+            TransactionInput txIn = tx.getInput(i);
+            Script scriptPubKey = txIn.getConnectedOutput().getScriptPubKey();
+            // at this point we have incomplete inputScript with OP_0 in place of one or more signatures. We already
+            // have calculated the signature using the local key and now need to insert it in the correct place
+            // within inputScript. For pay-to-address and pay-to-key script there is only one signature and it always
+            // goes first in an inputScript (sigIndex = 0). In P2SH input scripts we need to figure out our relative
+            // position relative to other signers.  Since we don't have that information at this point, and since
+            // we always run first, we have to depend on the other signers rearranging the signatures as needed.
+            // Therefore, always place as first signature.
+            int sigIndex = 0;
+            Script inputScript = scriptPubKey.getScriptSigWithSignature(txIn.getScriptSig(), signatures[i].encodeToBitcoin(), sigIndex);
+            txIn.setScriptSig(inputScript);
+        }
+        return true;
+    }
+
+    /**
+     * Signs every hash that has a key. Large transactions are split into contiguous batches of inputs which are signed
+     * in parallel; the result is indexed by input either way.
+     */
+    private TransactionSignature[] sign(final ECKey[] keys, final List<Sha256Hash> hashes) {
+        final TransactionSignature[] signatures = new TransactionSignature[keys.length];
+        batches.run(keys.length, new ParallelBatches.Batch() {
+            @Override
+            public void run(int from, int to) {
+                sign(keys, hashes, signatures, from, to);
+            }
+        });
+        return signatures;
+    }
+
+    private static void sign(ECKey[] keys, List<Sha256Hash> hashes, TransactionSignature[] signatures, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (keys[i] == null)
+                continue;
             try {
-                TransactionSignature signature = tx.calculateSignature(i, key, script, Transaction.SigHash.ALL, false);
-
-                // at this point we have incomplete inputScript with OP_0 in place of one or more signatures. We already
-                // have calculated the signature using the local key and now need to insert it in the correct place
-                // within inputScript. For pay-to-address and pay-to-key script there is only one signature and it always
-                // goes first in an inputScript (sigIndex = 0). In P2SH input scripts we need to figure out our relative
-                // position relative to other signers.  Since we don't have that information at this point, and since
-                // we always run first, we have to depend on the other signers rearranging the signatures as needed.
-                // Therefore, always place as first signature.
-                int sigIndex = 0;
-                inputScript = scriptPubKey.getScriptSigWithSignature(inputScript, signature.encodeToBitcoin(), sigIndex);
-                txIn.setScriptSig(inputScript);
+                signatures[i] = new TransactionSignature(keys[i].sign(hashes.get(i)), Transaction.SigHash.ALL, false);
             } catch (ECKey.KeyIsEncryptedException e) {
                 throw e;
             } catch (ECKey.MissingPrivateKeyException e) {
                 log.warn("No private key in keypair for input {}", i);
             }
-
         }
-        return true;
     }
 
 }
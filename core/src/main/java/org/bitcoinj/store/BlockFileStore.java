@@ -0,0 +1,373 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.utils.Threading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.jcip.annotations.GuardedBy;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Append-only storage for raw block and undo data, kept in numbered segment files in the style of Bitcoin Core's
+ * {@code blk*.dat} and {@code rev*.dat}. Segments are memory mapped, so reading a record back gives a read-only slice
+ * of the mapping instead of a copy. The store keeps no index of its own: callers keep the {@link Location} returned by
+ * {@link #append(byte[])} in theirs.</p>
+ *
+ * <p>Records are never rewritten. Space is reclaimed a whole segment at a time with {@link #deleteSegmentsBefore(int)}
+ * once the caller no longer references anything in those segments.</p>
+ */
+public class BlockFileStore {
+    private static final Logger log = LoggerFactory.getLogger(BlockFileStore.class);
+
+    /** The default size of a segment file. Every record has to fit into a single segment. */
+    public static final int DEFAULT_SEGMENT_SIZE = 128 * 1024 * 1024;
+
+    // Every record is a four byte length followed by the data. Segments are created at their full size, so the zero
+    // length after the last record marks where the next one goes.
+    private static final int RECORD_HEADER_SIZE = 4;
+
+    private final File directory;
+    private final String prefix;
+    private final int segmentSize;
+    private final Pattern segmentNamePattern;
+
+    private final ReentrantLock lock = Threading.lock("BlockFileStore");
+    // Segment files on disk, and the ones of them that are currently mapped.
+    @GuardedBy("lock") private final TreeSet<Integer> segments = new TreeSet<>();
+    @GuardedBy("lock") private final Map<Integer, MappedByteBuffer> mappings = new HashMap<>();
+    @GuardedBy("lock") private int currentSegment;
+    @GuardedBy("lock") private int writePosition;
+    // Whether records were appended to the current segment since it was last forced to disk.
+    @GuardedBy("lock") private boolean unflushed;
+    @GuardedBy("lock") private boolean closed;
+
+    /**
+     * The place a record was written to: segment number, offset of the data within the segment, and its length.
+     * This is what an index keeps instead of the bytes themselves.
+     */
+    public static final class Location {
+        public static final int SERIALIZED_SIZE = 12;
+
+        private final int segment;
+        private final int offset;
+        private final int length;
+
+        public Location(int segment, int offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        public int getSegment() {
+            return segment;
+        }
+
+        public int getOffset() {
+            return offset;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        public byte[] serialize() {
+            return ByteBuffer.allocate(SERIALIZED_SIZE).putInt(segment).putInt(offset).putInt(length).array();
+        }
+
+        public static Location deserialize(byte[] bytes) {
+            checkArgument(bytes.length == SERIALIZED_SIZE, "Not a serialized location: %s bytes", bytes.length);
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            return new Location(buffer.getInt(), buffer.getInt(), buffer.getInt());
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Location other = (Location) o;
+            return segment == other.segment && offset == other.offset && length == other.length;
+        }
+
+        @Override
+        public int hashCode() {
+            return (segment * 31 + offset) * 31 + length;
+        }
+
+        @Override
+        public String toString() {
+            return segment + ":" + offset + "+" + length;
+        }
+    }
+
+    /**
+     * Opens the segment files with the given name prefix in the given directory, creating the directory and the first
+     * segment if needed, with segments of {@link #DEFAULT_SEGMENT_SIZE}.
+     */
+    public BlockFileStore(File directory, String prefix) throws BlockStoreException {
+        this(directory, prefix, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Opens the segment files with the given name prefix in the given directory, creating the directory and the first
+     * segment if needed. An existing store has to be opened with the segment size it was created with.
+     */
+    public BlockFileStore(File directory, String prefix, int segmentSize) throws BlockStoreException {
+        this.directory = checkNotNull(directory);
+        this.prefix = checkNotNull(prefix);
+        checkArgument(segmentSize > RECORD_HEADER_SIZE, "Segment size too small: %s", segmentSize);
+        this.segmentSize = segmentSize;
+        this.segmentNamePattern = Pattern.compile(Pattern.quote(prefix) + "(\\d{5})\\.dat");
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new BlockStoreException("Could not create directory " + directory);
+        lock.lock();
+        try {
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    Matcher matcher = segmentNamePattern.matcher(file.getName());
+                    if (matcher.matches())
+                        segments.add(Integer.parseInt(matcher.group(1)));
+                }
+            }
+            if (segments.isEmpty()) {
+                startSegment(0);
+            } else {
+                currentSegment = segments.last();
+                writePosition = findEndOfRecords(getMapping(currentSegment));
+                log.info("Opened {} segments of {}, appending to {} at {}", segments.size(), prefix, currentSegment,
+                        writePosition);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Appends a record and returns where it was written. Starts a new segment if the current one is full. */
+    public Location append(byte[] data) throws BlockStoreException {
+        checkArgument(data.length > 0, "Cannot append an empty record");
+        checkArgument(data.length <= segmentSize - RECORD_HEADER_SIZE, "Record of %s bytes does not fit a segment",
+                data.length);
+        lock.lock();
+        try {
+            checkOpen();
+            if (writePosition + RECORD_HEADER_SIZE + data.length > segmentSize)
+                startSegment(currentSegment + 1);
+            MappedByteBuffer mapping = getMapping(currentSegment);
+            ByteBuffer buffer = mapping.duplicate();
+            buffer.position(writePosition + RECORD_HEADER_SIZE);
+            buffer.put(data);
+            // The length goes in last, so a record that was only partly written is not found when reopening.
+            mapping.putInt(writePosition, data.length);
+            Location location = new Location(currentSegment, writePosition + RECORD_HEADER_SIZE, data.length);
+            writePosition += RECORD_HEADER_SIZE + data.length;
+            unflushed = true;
+            return location;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns a read-only view of a record previously written by {@link #append(byte[])}. No bytes are copied. The view
+     * must not be used after its segment was deleted or the store was closed.
+     */
+    public ByteBuffer read(Location location) throws BlockStoreException {
+        if (location.getOffset() < RECORD_HEADER_SIZE || location.getLength() <= 0
+                || location.getOffset() + location.getLength() > segmentSize)
+            throw new BlockStoreException("Invalid location " + location);
+        ByteBuffer buffer;
+        lock.lock();
+        try {
+            checkOpen();
+            if (!segments.contains(location.getSegment()))
+                throw new BlockStoreException("Segment of " + location + " does not exist");
+            buffer = getMapping(location.getSegment()).duplicate();
+        } finally {
+            lock.unlock();
+        }
+        if (buffer.getInt(location.getOffset() - RECORD_HEADER_SIZE) != location.getLength())
+            throw new BlockStoreException("No record at " + location);
+        buffer.position(location.getOffset());
+        buffer.limit(location.getOffset() + location.getLength());
+        return buffer.slice().asReadOnlyBuffer();
+    }
+
+    /** Returns the number of the segment new records are appended to. */
+    public int getCurrentSegment() {
+        lock.lock();
+        try {
+            return currentSegment;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Deletes all segments numbered lower than the given one. The segment currently appended to is always kept.
+     * Locations pointing into deleted segments become invalid.
+     */
+    public void deleteSegmentsBefore(int segment) throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            while (!segments.isEmpty() && segments.first() < segment && segments.first() != currentSegment) {
+                int oldest = segments.pollFirst();
+                release(mappings.remove(oldest));
+                File file = getSegmentFile(oldest);
+                if (!file.delete())
+                    throw new BlockStoreException("Could not delete " + file);
+                log.info("Deleted {}", file);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Forces everything appended so far out to disk. An index that refers to the records should only be committed
+     * after this, so that after a crash it never points at data that was not written. Earlier segments were forced
+     * when they filled up, so only the current one is, and only if something was appended since the last flush.
+     */
+    public void flush() {
+        lock.lock();
+        try {
+            if (closed || !unflushed)
+                return;
+            MappedByteBuffer mapping = mappings.get(currentSegment);
+            if (mapping != null)
+                mapping.force();
+            unflushed = false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Flushes and unmaps all segments. The store cannot be used afterwards. */
+    public void close() {
+        lock.lock();
+        try {
+            if (closed)
+                return;
+            for (MappedByteBuffer mapping : mappings.values()) {
+                mapping.force();
+                release(mapping);
+            }
+            mappings.clear();
+            closed = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Closes the store and deletes all of its segment files. */
+    public void delete() throws BlockStoreException {
+        lock.lock();
+        try {
+            close();
+            for (int segment : segments) {
+                File file = getSegmentFile(segment);
+                if (!file.delete())
+                    throw new BlockStoreException("Could not delete " + file);
+            }
+            segments.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void checkOpen() throws BlockStoreException {
+        if (closed)
+            throw new BlockStoreException("BlockFileStore is closed");
+    }
+
+    @GuardedBy("lock")
+    private void startSegment(int segment) throws BlockStoreException {
+        File file = getSegmentFile(segment);
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            randomAccessFile.setLength(segmentSize);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+        // The previous segment is complete, make sure it has reached the disk.
+        MappedByteBuffer previous = mappings.get(currentSegment);
+        if (previous != null)
+            previous.force();
+        segments.add(segment);
+        currentSegment = segment;
+        writePosition = 0;
+        log.info("Started {}", file);
+    }
+
+    @GuardedBy("lock")
+    private MappedByteBuffer getMapping(int segment) throws BlockStoreException {
+        MappedByteBuffer mapping = mappings.get(segment);
+        if (mapping != null)
+            return mapping;
+        File file = getSegmentFile(segment);
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            if (randomAccessFile.length() != segmentSize)
+                throw new BlockStoreException("Segment " + file + " is " + randomAccessFile.length()
+                        + " bytes, expected " + segmentSize);
+            // The mapping stays valid after the file is closed.
+            mapping = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+        mappings.put(segment, mapping);
+        return mapping;
+    }
+
+    private int findEndOfRecords(MappedByteBuffer mapping) {
+        int position = 0;
+        while (position + RECORD_HEADER_SIZE <= segmentSize) {
+            int length = mapping.getInt(position);
+            if (length <= 0 || position + RECORD_HEADER_SIZE + length > segmentSize)
+                break;
+            position += RECORD_HEADER_SIZE + length;
+        }
+        return position;
+    }
+
+    private File getSegmentFile(int segment) {
+        return new File(directory, String.format(Locale.US, "%s%05d.dat", prefix, segment));
+    }
+
+    private static void release(MappedByteBuffer mapping) {
+        if (mapping != null && System.getProperty("os.name").toLowerCase().contains("win")) {
+            // Otherwise the file cannot be deleted until the mapping is garbage collected.
+            WindowsMMapHack.forceRelease(mapping);
+        }
+    }
+}
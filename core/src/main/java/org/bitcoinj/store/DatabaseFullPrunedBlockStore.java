@@ -114,6 +114,8 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
     private static final String DELETE_UNDOABLEBLOCKS_SQL                       = "DELETE FROM undoableblocks WHERE height <= ?";
 
     private static final String SELECT_OPENOUTPUTS_SQL                          = "SELECT height, value, scriptbytes, coinbase, toaddress, addresstargetable FROM openoutputs WHERE hash = ? AND index = ?";
+    private static final String SELECT_OPENOUTPUTS_BY_HASHES_SQL                = "SELECT hash, index, height, value, scriptbytes, coinbase, toaddress FROM openoutputs WHERE hash IN ";
+    private static final String SELECT_ALL_OPENOUTPUTS_SQL                      = "SELECT hash, index, height, value, scriptbytes, coinbase, toaddress FROM openoutputs";
     private static final String SELECT_OPENOUTPUTS_COUNT_SQL                    = "SELECT COUNT(*) FROM openoutputs WHERE hash = ?";
     private static final String INSERT_OPENOUTPUTS_SQL                          = "INSERT INTO openoutputs (hash, index, height, value, scriptbytes, toaddress, addresstargetable, coinbase) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
     private static final String DELETE_OPENOUTPUTS_SQL                          = "DELETE FROM openoutputs WHERE hash = ? AND index = ?";
@@ -135,6 +137,11 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
     // Compatibility SQL.
     private static final String SELECT_COMPATIBILITY_COINBASE_SQL               = "SELECT coinbase FROM openoutputs WHERE 1 = 2";
 
+    // Upper bound on the number of hash parameters in one batched openoutputs lookup.
+    private static final int MAX_HASHES_PER_QUERY = 500;
+    // Rows fetched per round trip when visiting all openoutputs.
+    private static final int VISIT_FETCH_SIZE = 1000;
+
     protected Sha256Hash chainHeadHash;
     protected StoredBlock chainHeadBlock;
     protected Sha256Hash verifiedChainHeadHash;
@@ -148,6 +155,17 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
     protected String password;
     protected String schemaName;
 
+    // UTXO changes made inside the open batch write of each thread. They are sent as JDBC batches on commit.
+    private ThreadLocal<PendingOutputs> pendingOutputs;
+    // Prepared statements for the frequent openoutputs queries, kept for the life of each thread's connection.
+    private ThreadLocal<Map<String, PreparedStatement>> statementCache;
+
+    /** Unspent outputs added and removed by the current batch write that have not reached the database yet. */
+    private static class PendingOutputs {
+        final Map<StoredTransactionOutPoint, UTXO> added = new LinkedHashMap<>();
+        final Set<StoredTransactionOutPoint> removed = new LinkedHashSet<>();
+    }
+
     /**
      * <p>Create a new DatabaseFullPrunedBlockStore, using the full connection URL instead of a hostname and password,
      * and optionally allowing a schema to be specified.</p>
@@ -170,6 +188,8 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         this.password = password;
         this.conn = new ThreadLocal<>();
         this.allConnections = new LinkedList<>();
+        this.pendingOutputs = new ThreadLocal<>();
+        this.statementCache = new ThreadLocal<>();
 
         try {
             Class.forName(getDatabaseDriverClass());
@@ -360,6 +380,23 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         return SELECT_OPENOUTPUTS_SQL;
     }
 
+    /**
+     * Get the SQL prefix to select the openoutputs records of several transactions at once. The caller appends a
+     * parenthesised list of hash parameters.
+     * @return The SQL select statement, without its IN list.
+     */
+    protected String getSelectOpenoutputsByHashesSQL() {
+        return SELECT_OPENOUTPUTS_BY_HASHES_SQL;
+    }
+
+    /**
+     * Get the SQL to select all openoutputs records.
+     * @return The SQL select statement.
+     */
+    protected String getSelectAllOpenoutputsSQL() {
+        return SELECT_ALL_OPENOUTPUTS_SQL;
+    }
+
     /**
      * Get the SQL to select count of openoutputs.
      * @return The SQL select statement.
@@ -435,6 +472,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
                 conn.set(DriverManager.getConnection(connectionURL, props));
             }
             allConnections.add(conn.get());
+            statementCache.set(new HashMap<String, PreparedStatement>());
             Connection connection = conn.get();
             // set the schema if one is needed
             if (schemaName != null) {
@@ -465,6 +503,40 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
             }
         }
         allConnections.clear();
+        statementCache.remove();
+        pendingOutputs.remove();
+    }
+
+    /**
+     * Returns a prepared statement for the given SQL on this thread's connection, preparing it on first use. Cached
+     * statements are closed together with their connection, so callers must not close them.
+     */
+    private PreparedStatement getCachedStatement(String sql) throws SQLException {
+        Map<String, PreparedStatement> cache = statementCache.get();
+        if (cache == null) {
+            cache = new HashMap<>();
+            statementCache.set(cache);
+        }
+        PreparedStatement s = cache.get(sql);
+        if (s == null) {
+            s = conn.get().prepareStatement(sql);
+            cache.put(sql, s);
+        }
+        return s;
+    }
+
+    private void clearStatementCache() {
+        Map<String, PreparedStatement> cache = statementCache.get();
+        if (cache == null)
+            return;
+        for (PreparedStatement s : cache.values()) {
+            try {
+                s.close();
+            } catch (SQLException e) {
+                log.warn("Failed to close cached PreparedStatement", e);
+            }
+        }
+        cache.clear();
     }
 
     /**
@@ -913,11 +985,18 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
 
     @Override
     public UTXO getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
+        PendingOutputs pending = pendingOutputs.get();
+        if (pending != null) {
+            StoredTransactionOutPoint key = new StoredTransactionOutPoint(hash, index);
+            UTXO out = pending.added.get(key);
+            if (out != null)
+                return out;
+            if (pending.removed.contains(key))
+                return null;
+        }
         maybeConnect();
-        PreparedStatement s = null;
         try {
-            s = conn.get()
-                    .prepareStatement(getSelectOpenoutputsSQL());
+            PreparedStatement s = getCachedStatement(getSelectOpenoutputsSQL());
             s.setBytes(1, hash.getBytes());
             // index is actually an unsigned int
             s.setInt(2, (int) index);
@@ -941,6 +1020,102 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
             return txout;
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
+        }
+    }
+
+    @Override
+    public Map<TransactionOutPoint, UTXO> getTransactionOutputs(Collection<TransactionOutPoint> outPoints) throws BlockStoreException {
+        Map<TransactionOutPoint, UTXO> result = new HashMap<TransactionOutPoint, UTXO>(outPoints.size());
+        PendingOutputs pending = pendingOutputs.get();
+        // Group the wanted indexes by transaction, then fetch the transactions with IN queries of bounded size.
+        Map<Sha256Hash, Map<Long, TransactionOutPoint>> wanted = new LinkedHashMap<Sha256Hash, Map<Long, TransactionOutPoint>>();
+        for (TransactionOutPoint outPoint : outPoints) {
+            if (pending != null) {
+                StoredTransactionOutPoint key = new StoredTransactionOutPoint(outPoint.getHash(), outPoint.getIndex());
+                UTXO out = pending.added.get(key);
+                if (out != null) {
+                    result.put(outPoint, out);
+                    continue;
+                }
+                if (pending.removed.contains(key))
+                    continue;
+            }
+            Map<Long, TransactionOutPoint> indexes = wanted.get(outPoint.getHash());
+            if (indexes == null) {
+                indexes = new HashMap<Long, TransactionOutPoint>();
+                wanted.put(outPoint.getHash(), indexes);
+            }
+            indexes.put(outPoint.getIndex(), outPoint);
+        }
+        if (wanted.isEmpty())
+            return result;
+        maybeConnect();
+        for (List<Sha256Hash> hashes : Lists.partition(new ArrayList<Sha256Hash>(wanted.keySet()), MAX_HASHES_PER_QUERY)) {
+            StringBuilder sql = new StringBuilder(getSelectOpenoutputsByHashesSQL()).append('(');
+            for (int i = 0; i < hashes.size(); i++)
+                sql.append(i == 0 ? "?" : ", ?");
+            sql.append(')');
+            PreparedStatement s = null;
+            try {
+                s = conn.get().prepareStatement(sql.toString());
+                for (int i = 0; i < hashes.size(); i++)
+                    s.setBytes(i + 1, hashes.get(i).getBytes());
+                ResultSet results = s.executeQuery();
+                while (results.next()) {
+                    Sha256Hash hash = Sha256Hash.wrap(results.getBytes(1));
+                    // index is actually an unsigned int
+                    long index = results.getInt(2) & 0xFFFFFFFFL;
+                    TransactionOutPoint outPoint = wanted.get(hash).get(index);
+                    if (outPoint == null)
+                        continue;
+                    UTXO txout = new UTXO(hash,
+                            index,
+                            Coin.valueOf(results.getLong(4)),
+                            results.getInt(3),
+                            results.getBoolean(6),
+                            new Script(results.getBytes(5)),
+                            results.getString(7));
+                    result.put(outPoint, txout);
+                }
+            } catch (SQLException ex) {
+                throw new BlockStoreException(ex);
+            } finally {
+                if (s != null) {
+                    try {
+                        s.close();
+                    } catch (SQLException e) {
+                        throw new BlockStoreException("Failed to close PreparedStatement");
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void visitUnspentTransactionOutputs(UTXOVisitor visitor) throws BlockStoreException {
+        maybeConnect();
+        flushPendingOutputs();
+        PreparedStatement s = null;
+        try {
+            s = conn.get().prepareStatement(getSelectAllOpenoutputsSQL());
+            // Only a hint: drivers that honour it read the table in chunks instead of all at once.
+            s.setFetchSize(VISIT_FETCH_SIZE);
+            ResultSet results = s.executeQuery();
+            while (results.next()) {
+                UTXO txout = new UTXO(Sha256Hash.wrap(results.getBytes(1)),
+                        // index is actually an unsigned int
+                        results.getInt(2) & 0xFFFFFFFFL,
+                        Coin.valueOf(results.getLong(4)),
+                        results.getInt(3),
+                        results.getBoolean(6),
+                        new Script(results.getBytes(5)),
+                        results.getString(7));
+                visitor.visit(txout);
+            }
+            results.close();
+        } catch (SQLException ex) {
+            throw new BlockStoreException(ex);
         } finally {
             if (s != null) {
                 try {
@@ -954,19 +1129,20 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
 
     @Override
     public void addUnspentTransactionOutput(UTXO out) throws BlockStoreException {
+        PendingOutputs pending = pendingOutputs.get();
+        if (pending != null) {
+            pending.added.put(new StoredTransactionOutPoint(out), out);
+            return;
+        }
+        insertUnspentTransactionOutput(out);
+    }
+
+    private void insertUnspentTransactionOutput(UTXO out) throws BlockStoreException {
         maybeConnect();
         PreparedStatement s = null;
         try {
             s = conn.get().prepareStatement(getInsertOpenoutputsSQL());
-            s.setBytes(1, out.getHash().getBytes());
-            // index is actually an unsigned int
-            s.setInt(2, (int) out.getIndex());
-            s.setInt(3, out.getHeight());
-            s.setLong(4, out.getValue().value);
-            s.setBytes(5, out.getScript().getProgram());
-            s.setString(6, out.getAddress());
-            s.setInt(7, out.getScript().getScriptType().ordinal());
-            s.setBoolean(8, out.isCoinbase());
+            setInsertOpenoutputsParameters(s, out);
             s.executeUpdate();
             s.close();
         } catch (SQLException e) {
@@ -985,6 +1161,16 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
 
     @Override
     public void removeUnspentTransactionOutput(UTXO out) throws BlockStoreException {
+        PendingOutputs pending = pendingOutputs.get();
+        if (pending != null) {
+            StoredTransactionOutPoint key = new StoredTransactionOutPoint(out);
+            if (pending.added.remove(key) == null) {
+                if (!pending.removed.add(key))
+                    throw new BlockStoreException("Tried to remove a UTXO from DatabaseFullPrunedBlockStore that it didn't have!");
+                // Whether the database actually has the row is checked from the update counts on flush.
+            }
+            return;
+        }
         maybeConnect();
         // TODO: This should only need one query (maybe a stored procedure)
         if (getTransactionOutput(out.getHash(), out.getIndex()) == null)
@@ -1012,6 +1198,9 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         } catch (SQLException e) {
             throw new BlockStoreException(e);
         }
+        // Batch writes may be begun again before being committed, keep what is already pending.
+        if (pendingOutputs.get() == null)
+            pendingOutputs.set(new PendingOutputs());
     }
 
     @Override
@@ -1019,6 +1208,8 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         maybeConnect();
         if (log.isDebugEnabled())
             log.debug("Committing database batch write with connection: " + conn.get().toString());
+        flushPendingOutputs();
+        pendingOutputs.remove();
         try {
             conn.get().commit();
             conn.get().setAutoCommit(true);
@@ -1032,6 +1223,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         maybeConnect();
         if (log.isDebugEnabled())
             log.debug("Rollback database batch write with connection: " + conn.get().toString());
+        pendingOutputs.remove();
         try {
             if (!conn.get().getAutoCommit()) {
                 conn.get().rollback();
@@ -1044,29 +1236,89 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         }
     }
 
+    /**
+     * Sends the UTXO changes buffered by the current batch write to the database: first the deletes, then the inserts,
+     * each as a single JDBC batch.
+     */
+    private void flushPendingOutputs() throws BlockStoreException {
+        PendingOutputs pending = pendingOutputs.get();
+        if (pending == null || (pending.added.isEmpty() && pending.removed.isEmpty()))
+            return;
+        try {
+            if (!pending.removed.isEmpty()) {
+                PreparedStatement s = getCachedStatement(getDeleteOpenoutputsSQL());
+                for (StoredTransactionOutPoint out : pending.removed) {
+                    s.setBytes(1, out.getHash().getBytes());
+                    // index is actually an unsigned int
+                    s.setInt(2, (int) out.getIndex());
+                    s.addBatch();
+                }
+                for (int count : s.executeBatch()) {
+                    if (count == 0)
+                        throw new BlockStoreException("Tried to remove a UTXO from DatabaseFullPrunedBlockStore that it didn't have!");
+                }
+            }
+            if (!pending.added.isEmpty()) {
+                PreparedStatement s = getCachedStatement(getInsertOpenoutputsSQL());
+                for (UTXO out : pending.added.values()) {
+                    setInsertOpenoutputsParameters(s, out);
+                    s.addBatch();
+                }
+                try {
+                    s.executeBatch();
+                } catch (BatchUpdateException e) {
+                    if (!getDuplicateKeyErrorCode().equals(e.getSQLState()))
+                        throw e;
+                    // Go row by row, skipping duplicates like addUnspentTransactionOutput does.
+                    s.clearBatch();
+                    for (UTXO out : pending.added.values())
+                        insertUnspentTransactionOutput(out);
+                }
+            }
+            pending.added.clear();
+            pending.removed.clear();
+        } catch (SQLException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    private void setInsertOpenoutputsParameters(PreparedStatement s, UTXO out) throws SQLException {
+        s.setBytes(1, out.getHash().getBytes());
+        // index is actually an unsigned int
+        s.setInt(2, (int) out.getIndex());
+        s.setInt(3, out.getHeight());
+        s.setLong(4, out.getValue().value);
+        s.setBytes(5, out.getScript().getProgram());
+        s.setString(6, out.getAddress());
+        s.setInt(7, out.getScript().getScriptType().ordinal());
+        s.setBoolean(8, out.isCoinbase());
+    }
+
     @Override
     public boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
+        PendingOutputs pending = pendingOutputs.get();
+        int pendingRemoved = 0;
+        if (pending != null) {
+            for (int i = 0; i < numOutputs; i++) {
+                StoredTransactionOutPoint key = new StoredTransactionOutPoint(hash, i);
+                if (pending.added.containsKey(key))
+                    return true;
+                if (pending.removed.contains(key))
+                    pendingRemoved++;
+            }
+        }
         maybeConnect();
-        PreparedStatement s = null;
         try {
-            s = conn.get().prepareStatement(getSelectOpenoutputsCountSQL());
+            PreparedStatement s = getCachedStatement(getSelectOpenoutputsCountSQL());
             s.setBytes(1, hash.getBytes());
             ResultSet results = s.executeQuery();
             if (!results.next()) {
                 throw new BlockStoreException("Got no results from a COUNT(*) query");
             }
             int count = results.getInt(1);
-            return count != 0;
+            return count > pendingRemoved;
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
-        } finally {
-            if (s != null) {
-                try {
-                    s.close();
-                } catch (SQLException e) {
-                    throw new BlockStoreException("Failed to close PreparedStatement");
-                }
-            }
         }
     }
 
@@ -1105,6 +1357,8 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
      */
     public void deleteStore() throws BlockStoreException {
         maybeConnect();
+        pendingOutputs.remove();
+        clearStatementCache();
         try {
             Statement s = conn.get().createStatement();
             for(String sql : getDropTablesSQL()) {
@@ -1132,6 +1386,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
      */
     public BigInteger calculateBalanceForAddress(Address address) throws BlockStoreException {
         maybeConnect();
+        flushPendingOutputs();
         PreparedStatement s = null;
         try {
             s = conn.get().prepareStatement(getBalanceSelectSQL());
@@ -1161,6 +1416,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         List<UTXO> outputs = new ArrayList<>();
         try {
             maybeConnect();
+            flushPendingOutputs();
             s = conn.get().prepareStatement(getTransactionOutputSelectSQL());
             for (Address address : addresses) {
                 s.setString(1, address.toString());
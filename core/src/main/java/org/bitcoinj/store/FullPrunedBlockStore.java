@@ -18,6 +18,8 @@ package org.bitcoinj.store;
 
 import org.bitcoinj.core.*;
 
+import java.util.Collection;
+import java.util.Map;
 
 /**
  * <p>An implementor of FullPrunedBlockStore saves StoredBlock objects to some storage mechanism.</p>
@@ -47,6 +49,11 @@ import org.bitcoinj.core.*;
  * <p>FullPrunedBlockStores are thread safe.</p>
  */
 public interface FullPrunedBlockStore extends BlockStore, UTXOProvider {
+    /** Receives the outputs enumerated by {@link #visitUnspentTransactionOutputs(UTXOVisitor)}. */
+    interface UTXOVisitor {
+        void visit(UTXO output) throws BlockStoreException;
+    }
+
     /**
      * <p>Saves the given {@link StoredUndoableBlock} and {@link StoredBlock}. Calculates keys from the {@link StoredBlock}</p>
      * 
@@ -75,6 +82,13 @@ public interface FullPrunedBlockStore extends BlockStore, UTXOProvider {
      * Gets a {@link org.bitcoinj.core.UTXO} with the given hash and index, or null if none is found
      */
     UTXO getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException;
+
+    /**
+     * Gets the {@link org.bitcoinj.core.UTXO}s for all of the given outpoints in one go. Outpoints that have no unspent
+     * output are simply left out of the returned map. Stores should implement this with a single round trip (or as
+     * few as possible) so that the inputs of a whole block can be fetched before it is connected.
+     */
+    Map<TransactionOutPoint, UTXO> getTransactionOutputs(Collection<TransactionOutPoint> outPoints) throws BlockStoreException;
     
     /**
      * Adds a {@link org.bitcoinj.core.UTXO} to the list of unspent TransactionOutputs
@@ -93,6 +107,13 @@ public interface FullPrunedBlockStore extends BlockStore, UTXOProvider {
      * @param numOutputs the number of outputs the given transaction has
      */
     boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException;
+
+    /**
+     * Passes every unspent output in this store to the visitor, in no particular order. Stores should stream the
+     * outputs rather than load them all at once, as the set can be much larger than memory. Must not be called inside
+     * a batch write, or while other threads are writing.
+     */
+    void visitUnspentTransactionOutputs(UTXOVisitor visitor) throws BlockStoreException;
     
     /**
      * Returns the {@link StoredBlock} that represents the top of the chain of greatest total work that has
@@ -17,6 +17,7 @@
 package org.bitcoinj.store;
 
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
@@ -24,10 +25,13 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.TimeUnit;
 import java.io.*;
 import java.nio.ByteBuffer;
 
+import javax.annotation.Nullable;
+
 import org.bitcoinj.core.Address;
 import org.bitcoinj.core.AddressFormatException;
 import org.bitcoinj.core.NetworkParameters;
@@ -36,6 +40,7 @@ import org.bitcoinj.core.Sha256Hash;
 import org.bitcoinj.core.StoredBlock;
 import org.bitcoinj.core.StoredUndoableBlock;
 import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionOutPoint;
 import org.bitcoinj.core.TransactionOutputChanges;
 import org.bitcoinj.core.UTXO;
 import org.bitcoinj.core.UTXOProviderException;
@@ -45,10 +50,12 @@ import org.iq80.leveldb.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import static com.google.common.base.Preconditions.checkState;
 import static org.fusesource.leveldbjni.JniDBFactory.*;
 
 import com.google.common.base.Stopwatch;
 import com.google.common.collect.Lists;
+import com.google.common.primitives.UnsignedBytes;
 
 /**
  * <p>
@@ -88,8 +95,12 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
                    // block!
     // ONLY used for performance benchmarking.
 
-    // LRU Cache for getTransactionOutput
-    protected Map<ByteBuffer, UTXO> utxoCache;
+    // Sharded LRU cache for getTransactionOutput, holding only committed outputs.
+    protected UTXOCache utxoCache;
+    // Size of the above in bytes.
+    protected long utxoCacheBytes;
+    // Whether outputs stay in the cache until evicted, flushed or spent instead of being written with their block.
+    protected boolean utxoWriteBack = false;
     // Additional cache to cope with case when transactions are rolled back
     // e.g. when block fails to verify.
     protected Map<ByteBuffer, UTXO> utxoUncommittedCache;
@@ -98,6 +109,10 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
     // Database folder
     protected String filename;
 
+    // Folder for undo data kept in flat files, or null to keep undo data in leveldb.
+    protected File undoFilesDirectory;
+    protected BlockFileStore undoFiles;
+
     // Do we auto commit transactions.
     protected boolean autoCommit = true;
 
@@ -121,21 +136,11 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
     static final int LEVELDB_WRITE_CACHE_DEFAULT = 10 * 1048576; // 10 meg
     static final int OPENOUT_CACHE_DEFAULT = 100000;
 
-    // LRUCache
-    public class LRUCache extends LinkedHashMap<ByteBuffer, UTXO> {
-        private static final long serialVersionUID = 1L;
-        private int capacity;
-
-        public LRUCache(int capacity, float loadFactor) {
-            super(capacity, loadFactor, true);
-            this.capacity = capacity;
-        }
-
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<ByteBuffer, UTXO> eldest) {
-            return size() > this.capacity;
-        }
-    }
+    // Version of the stored data, kept under KeyType.VERSION_SETTING. Stores without it keep their open outputs in
+    // the original UTXO encoding and are upgraded when opened. 2: open outputs in the compact UTXO encoding.
+    static final int STORE_VERSION = 2;
+    // How many open outputs are rewritten per write batch while upgrading.
+    private static final int UPGRADE_BATCH_SIZE = 10000;
 
     // Simple bloomfilter. We take advantage of fact that a Transaction Hash
     // can be split into 3 30bit numbers that are all random and uncorrelated
@@ -255,7 +260,20 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
 
     public LevelDBFullPrunedBlockStore(NetworkParameters params, String filename, int blockCount, long leveldbReadCache,
             int leveldbWriteCache, int openOutCache, boolean instrument, int exitBlock) {
+        this(params, filename, blockCount, leveldbReadCache, leveldbWriteCache, openOutCache, instrument, exitBlock,
+                null);
+    }
+
+    /**
+     * Like the other constructors, but if undoFilesDirectory is given the undo data of each block is appended to
+     * memory mapped rev*.dat files there (see {@link BlockFileStore}) and leveldb only keeps where it was written.
+     * A store has to be opened the same way it was created.
+     */
+    public LevelDBFullPrunedBlockStore(NetworkParameters params, String filename, int blockCount, long leveldbReadCache,
+            int leveldbWriteCache, int openOutCache, boolean instrument, int exitBlock,
+            @Nullable File undoFilesDirectory) {
         this.params = params;
+        this.undoFilesDirectory = undoFilesDirectory;
         fullStoreDepth = blockCount;
         this.instrument = instrument;
         this.exitBlock = exitBlock;
@@ -267,6 +285,7 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         this.leveldbReadCache = leveldbReadCache;
         this.leveldbWriteCache = leveldbWriteCache;
         this.openOutCache = openOutCache;
+        this.utxoCacheBytes = (long) openOutCache * UTXOCache.TYPICAL_ENTRY_SIZE;
         bloom = new BloomFilter();
         totalStopwatch = Stopwatch.createStarted();
         openDB();
@@ -289,8 +308,15 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         } catch (IOException e) {
             throw new RuntimeException("Can not open DB", e);
         }
+        if (undoFilesDirectory != null) {
+            try {
+                undoFiles = new BlockFileStore(undoFilesDirectory, "rev");
+            } catch (BlockStoreException e) {
+                throw new RuntimeException("Can not open undo files", e);
+            }
+        }
 
-        utxoCache = new LRUCache(openOutCache, 0.75f);
+        utxoCache = createUTXOCache();
         try {
             if (batchGet(getKey(KeyType.CREATED)) == null) {
                 createNewStore(params);
@@ -298,11 +324,68 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
                 initFromDb();
             }
         } catch (BlockStoreException e) {
+            if (undoFiles != null)
+                undoFiles.close();
+            try {
+                db.close();
+            } catch (IOException e1) {
+                log.error("Could not close db", e1);
+            }
             throw new RuntimeException("Can not init/load db", e);
         }
     }
 
+    private UTXOCache createUTXOCache() {
+        return new UTXOCache(utxoCacheBytes, UTXOCache.DEFAULT_CONCURRENCY, new UTXOCache.Writer() {
+            @Override
+            public void write(ByteBuffer key, byte[] serializedOutput) {
+                // Only committed outputs are in the cache, so they go straight to the database.
+                db.put(key.array(), serializedOutput);
+            }
+        });
+    }
+
+    /**
+     * Sets how many bytes of unspent outputs to keep in memory. The default is derived from the openOutCache entry
+     * count given to the constructor. Must not be called inside a batch write.
+     */
+    public void setUTXOCacheSize(long bytes) {
+        checkState(autoCommit, "Cannot resize the UTXO cache inside a batch write");
+        utxoCache.flush();
+        utxoCacheBytes = bytes;
+        utxoCache = createUTXOCache();
+    }
+
+    /**
+     * <p>With write-back on, new unspent outputs are kept only in the cache when their block is committed. They are
+     * written to the database when evicted, on {@link #flushUTXOCache()} or on close, and outputs spent before that
+     * are never written at all, which saves most of the writes during initial sync.</p>
+     *
+     * <p>The price is durability: if the process dies without closing the store, the database is left with a chain
+     * head that is ahead of its unspent outputs and has to be rebuilt. Off by default.</p>
+     */
+    public void setUTXOWriteBack(boolean writeBack) {
+        checkState(autoCommit, "Cannot change write-back inside a batch write");
+        if (!writeBack)
+            utxoCache.flush();
+        utxoWriteBack = writeBack;
+    }
+
+    /** Writes the unspent outputs held back by {@link #setUTXOWriteBack(boolean)} to the database. */
+    public void flushUTXOCache() {
+        utxoCache.flush();
+    }
+
     private void initFromDb() throws BlockStoreException {
+        boolean createdWithUndoFiles = batchGet(getKey(KeyType.UNDO_FILES_SETTING)) != null;
+        if (createdWithUndoFiles != (undoFiles != null))
+            throw new BlockStoreException("Store was created " + (createdWithUndoFiles ? "with" : "without")
+                    + " undo files and must be opened the same way");
+        byte[] version = batchGet(getKey(KeyType.VERSION_SETTING));
+        if (version == null)
+            upgradeOpenOutputs();
+        else if (ByteBuffer.wrap(version).getInt() > STORE_VERSION)
+            throw new BlockStoreException("Store was written by a newer version: " + ByteBuffer.wrap(version).getInt());
         Sha256Hash hash = Sha256Hash.wrap(batchGet(getKey(KeyType.CHAIN_HEAD_SETTING)));
         this.chainHeadBlock = get(hash);
         this.chainHeadHash = hash;
@@ -318,6 +401,61 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         }
     }
 
+    // Rewrites the open outputs of a store created before the compact UTXO encoding. Undo data needs no upgrade as
+    // TransactionOutputChanges reads both formats. Each batch of rewritten outputs is written together with the key of
+    // the last one, so that an upgrade which was interrupted carries on after it instead of decoding compact outputs
+    // as old ones.
+    private void upgradeOpenOutputs() throws BlockStoreException {
+        byte[] prefix = getKey(KeyType.OPENOUT_ALL);
+        byte[] progressKey = getKey(KeyType.UPGRADE_PROGRESS_SETTING);
+        byte[] lastUpgraded = batchGet(progressKey);
+        if (lastUpgraded == null)
+            log.info("Upgrading open outputs to the compact encoding");
+        else
+            log.info("Resuming the upgrade of open outputs to the compact encoding");
+        DBIterator iterator = db.iterator();
+        WriteBatch upgrade = db.createWriteBatch();
+        int count = 0;
+        try {
+            if (lastUpgraded == null) {
+                iterator.seek(prefix);
+            } else {
+                iterator.seek(lastUpgraded);
+                if (iterator.hasNext() && Arrays.equals(iterator.peekNext().getKey(), lastUpgraded))
+                    iterator.next();
+            }
+            for (; iterator.hasNext(); iterator.next()) {
+                Map.Entry<byte[], byte[]> entry = iterator.peekNext();
+                if (entry.getKey()[0] != prefix[0])
+                    break;
+                ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                new UTXO(new ByteArrayInputStream(entry.getValue())).serializeCompactToStream(bos);
+                upgrade.put(entry.getKey(), bos.toByteArray());
+                if (++count % UPGRADE_BATCH_SIZE == 0) {
+                    upgrade.put(progressKey, entry.getKey());
+                    db.write(upgrade);
+                    upgrade.close();
+                    upgrade = db.createWriteBatch();
+                }
+            }
+            upgrade.put(getKey(KeyType.VERSION_SETTING), ByteBuffer.allocate(4).putInt(STORE_VERSION).array());
+            upgrade.delete(progressKey);
+            db.write(upgrade);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } catch (DBException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            try {
+                upgrade.close();
+                iterator.close();
+            } catch (IOException e) {
+                log.error("Error closing iterator", e);
+            }
+        }
+        log.info("Upgraded {} open outputs", count);
+    }
+
     private void createNewStore(NetworkParameters params) throws BlockStoreException {
         try {
             // Set up the genesis block. When we start out fresh, it is by
@@ -335,6 +473,9 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
             put(storedGenesisHeader, storedGenesis);
             setChainHead(storedGenesisHeader);
             setVerifiedChainHead(storedGenesisHeader);
+            if (undoFiles != null)
+                batchPut(getKey(KeyType.UNDO_FILES_SETTING), bytes("rev"));
+            batchPut(getKey(KeyType.VERSION_SETTING), ByteBuffer.allocate(4).putInt(STORE_VERSION).array());
             batchPut(getKey(KeyType.CREATED), bytes("done"));
             commitDatabaseBatchWrite();
         } catch (VerificationException e) {
@@ -406,6 +547,9 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
 
     @Override
     public void close() throws BlockStoreException {
+        utxoCache.flush();
+        if (undoFiles != null)
+            undoFiles.close();
         try {
             db.close();
         } catch (IOException e) {
@@ -540,14 +684,14 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
             undoBuf.putInt(txOutChanges.length);
             undoBuf.put(txOutChanges);
             undoBuf.putInt(0);
-            batchPut(getKey(KeyType.UNDOABLEBLOCKS_ALL, hash), undoBuf.array());
+            batchPut(getKey(KeyType.UNDOABLEBLOCKS_ALL, hash), storeUndoData(undoBuf.array()));
         } else {
             ByteBuffer undoBuf = ByteBuffer.allocate(4 + 4 + 0 + 4 + transactions.length);
             undoBuf.putInt(height);
             undoBuf.putInt(0);
             undoBuf.putInt(transactions.length);
             undoBuf.put(transactions);
-            batchPut(getKey(KeyType.UNDOABLEBLOCKS_ALL, hash), undoBuf.array());
+            batchPut(getKey(KeyType.UNDOABLEBLOCKS_ALL, hash), storeUndoData(undoBuf.array()));
         }
         if (instrument)
             endMethod("put");
@@ -559,7 +703,54 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
     // in.
     // Do wonder if grouping each "table" like this is efficient or not...
     enum KeyType {
-        CREATED, CHAIN_HEAD_SETTING, VERIFIED_CHAIN_HEAD_SETTING, VERSION_SETTING, HEADERS_ALL, UNDOABLEBLOCKS_ALL, HEIGHT_UNDOABLEBLOCKS, OPENOUT_ALL, ADDRESS_HASHINDEX
+        CREATED, CHAIN_HEAD_SETTING, VERIFIED_CHAIN_HEAD_SETTING, VERSION_SETTING, HEADERS_ALL, UNDOABLEBLOCKS_ALL, HEIGHT_UNDOABLEBLOCKS, OPENOUT_ALL, ADDRESS_HASHINDEX, UNDO_FILES_SETTING, UPGRADE_PROGRESS_SETTING
+    }
+
+    // Returns what to keep in leveldb for the given undo data: the data itself, or with undo files where it was
+    // appended.
+    private byte[] storeUndoData(byte[] undoData) throws BlockStoreException {
+        if (undoFiles == null)
+            return undoData;
+        int segment = undoFiles.getCurrentSegment();
+        BlockFileStore.Location location = undoFiles.append(undoData);
+        if (location.getSegment() != segment)
+            pruneUndoFiles();
+        // Outside a batch the location goes into leveldb right away, so the data has to be on disk first. Inside one
+        // it is flushed when the batch commits.
+        if (autoCommit)
+            undoFiles.flush();
+        return location.serialize();
+    }
+
+    private ByteBuffer readUndoData(byte[] stored) throws BlockStoreException {
+        if (undoFiles == null)
+            return ByteBuffer.wrap(stored);
+        return undoFiles.read(BlockFileStore.Location.deserialize(stored));
+    }
+
+    // Undo data of pruned blocks stays in the flat files. Each time a new segment is started, segments older than
+    // anything still referenced are deleted. Uncommitted undo data is always newer than the committed data, so looking
+    // at the committed entries is enough.
+    private void pruneUndoFiles() throws BlockStoreException {
+        byte[] prefix = getKey(KeyType.UNDOABLEBLOCKS_ALL);
+        int oldest = Integer.MAX_VALUE;
+        DBIterator iterator = db.iterator();
+        try {
+            for (iterator.seek(prefix); iterator.hasNext(); iterator.next()) {
+                Map.Entry<byte[], byte[]> entry = iterator.peekNext();
+                if (entry.getKey()[0] != prefix[0])
+                    break;
+                oldest = Math.min(oldest, BlockFileStore.Location.deserialize(entry.getValue()).getSegment());
+            }
+        } finally {
+            try {
+                iterator.close();
+            } catch (IOException e) {
+                log.error("Error closing iterator", e);
+            }
+        }
+        if (oldest != Integer.MAX_VALUE)
+            undoFiles.deleteSegmentsBefore(oldest);
     }
 
     // These helpers just get the key for an input
@@ -661,7 +852,7 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
                     endMethod("getUndoBlock");
                 return null;
             }
-            ByteBuffer bb = ByteBuffer.wrap(result);
+            ByteBuffer bb = readUndoData(result);
             bb.getInt();// TODO Read height - but seems to be unused - maybe can
                         // skip storing it but only 4 bytes!
             int txOutSize = bb.getInt();
@@ -743,7 +934,7 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
                 return null;
             }
             ByteArrayInputStream bis = new ByteArrayInputStream(inbytes);
-            UTXO txout = new UTXO(bis);
+            UTXO txout = UTXO.deserializeCompactFromStream(bis);
 
             if (instrument)
                 endMethod("getTransactionOutput");
@@ -760,6 +951,118 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         throw new BlockStoreException("problem");
     }
 
+    @Override
+    public Map<TransactionOutPoint, UTXO> getTransactionOutputs(Collection<TransactionOutPoint> outPoints)
+            throws BlockStoreException {
+        if (instrument)
+            beginMethod("getTransactionOutputs");
+
+        Map<TransactionOutPoint, UTXO> results = new HashMap<TransactionOutPoint, UTXO>(outPoints.size());
+        // Anything not answered by the caches is read from the database in key order, so the
+        // iterator walks forward through the table instead of doing a random get per output.
+        TreeMap<byte[], TransactionOutPoint> misses = new TreeMap<byte[], TransactionOutPoint>(
+                UnsignedBytes.lexicographicalComparator());
+        for (TransactionOutPoint outPoint : outPoints) {
+            byte[] key = getTxKey(KeyType.OPENOUT_ALL, outPoint.getHash(), (int) outPoint.getIndex());
+            ByteBuffer bbKey = ByteBuffer.wrap(key);
+            UTXO result;
+            if (autoCommit) {
+                result = utxoCache.get(bbKey);
+            } else {
+                if (utxoUncommittedDeletedCache.contains(bbKey)) {
+                    hit++;
+                    continue;
+                }
+                result = utxoUncommittedCache.get(bbKey);
+                if (result == null)
+                    result = utxoCache.get(bbKey);
+            }
+            if (result != null) {
+                hit++;
+                results.put(outPoint, result);
+            } else {
+                miss++;
+                misses.put(key, outPoint);
+            }
+        }
+        if (misses.isEmpty()) {
+            if (instrument)
+                endMethod("getTransactionOutputs");
+            return results;
+        }
+
+        DBIterator iterator = null;
+        try {
+            iterator = db.iterator();
+            for (Map.Entry<byte[], TransactionOutPoint> entry : misses.entrySet()) {
+                byte[] key = entry.getKey();
+                ByteBuffer bbKey = ByteBuffer.wrap(key);
+                byte[] inbytes = null;
+                // The iterator only sees committed data, so look at the open batch first as batchGet does.
+                if (!autoCommit && uncommitedDeletes != null && uncommitedDeletes.contains(bbKey))
+                    continue;
+                if (!autoCommit && uncommited != null)
+                    inbytes = uncommited.get(bbKey);
+                if (inbytes == null) {
+                    iterator.seek(key);
+                    if (iterator.hasNext()) {
+                        Map.Entry<byte[], byte[]> next = iterator.peekNext();
+                        if (Arrays.equals(key, next.getKey()))
+                            inbytes = next.getValue();
+                    }
+                }
+                if (inbytes != null)
+                    results.put(entry.getValue(),
+                            UTXO.deserializeCompactFromStream(new ByteArrayInputStream(inbytes)));
+            }
+            if (instrument)
+                endMethod("getTransactionOutputs");
+            return results;
+        } catch (DBException e) {
+            log.error("Exception in getTransactionOutputs.", e);
+        } catch (IOException e) {
+            log.error("Exception in getTransactionOutputs.", e);
+        } finally {
+            if (iterator != null) {
+                try {
+                    iterator.close();
+                } catch (IOException e) {
+                    log.error("Error closing iterator", e);
+                }
+            }
+        }
+        if (instrument)
+            endMethod("getTransactionOutputs");
+        throw new BlockStoreException("problem");
+    }
+
+    @Override
+    public void visitUnspentTransactionOutputs(UTXOVisitor visitor) throws BlockStoreException {
+        checkState(autoCommit, "Cannot visit outputs inside a batch write");
+        // Outputs held back in the cache have to be in the database for the iterator to see them.
+        utxoCache.flush();
+        byte[] prefix = getKey(KeyType.OPENOUT_ALL);
+        DBIterator iterator = db.iterator();
+        try {
+            for (iterator.seek(prefix); iterator.hasNext(); iterator.next()) {
+                Map.Entry<byte[], byte[]> entry = iterator.peekNext();
+                if (entry.getKey()[0] != prefix[0])
+                    break;
+                visitor.visit(UTXO.deserializeCompactFromStream(new ByteArrayInputStream(entry.getValue())));
+            }
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } catch (DBException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            try {
+                iterator.close();
+            } catch (IOException e) {
+                log.error("Error closing iterator", e);
+            }
+        }
+    }
+
     @Override
     public void addUnspentTransactionOutput(UTXO out) throws BlockStoreException {
 
@@ -770,17 +1073,23 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         bloom.add(out.getHash());
         ByteArrayOutputStream bos = new ByteArrayOutputStream();
         try {
-            out.serializeToStream(bos);
+            out.serializeCompactToStream(bos);
         } catch (IOException e) {
             throw new BlockStoreException("problem serialising utxo", e);
         }
 
         byte[] key = getTxKey(KeyType.OPENOUT_ALL, out.getHash(), (int) out.getIndex());
-        batchPut(key, bos.toByteArray());
-
         if (autoCommit) {
-            utxoCache.put(ByteBuffer.wrap(key), out);
+            if (utxoWriteBack) {
+                utxoCache.putDirty(ByteBuffer.wrap(key), out);
+            } else {
+                batchPut(key, bos.toByteArray());
+                utxoCache.put(ByteBuffer.wrap(key), out);
+            }
         } else {
+            // With write-back the output goes into the cache on commit rather than into the batch.
+            if (!utxoWriteBack)
+                batchPut(key, bos.toByteArray());
             utxoUncommittedCache.put(ByteBuffer.wrap(key), out);
             // leveldb just stores the last key/value added.
             // So if we do an add must remove any previous deletes.
@@ -932,6 +1241,20 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
             hasFalse++;
             return false;
         }
+        if (utxoWriteBack) {
+            // Outputs held back in the cache are not in the database yet.
+            for (int i = 0; i < numOutputs; i++) {
+                ByteBuffer key = ByteBuffer.wrap(getTxKey(KeyType.OPENOUT_ALL, hash, i));
+                if (!autoCommit && utxoUncommittedDeletedCache.contains(key))
+                    continue;
+                if ((!autoCommit && utxoUncommittedCache.containsKey(key)) || utxoCache.isDirty(key)) {
+                    hasTrue++;
+                    if (instrument)
+                        endMethod("hasUnspentOutputs");
+                    return true;
+                }
+            }
+        }
         // no index is fine as will find any entry with any index...
         // TODO should I be checking uncommitted inserts/deletes???
         byte[] key = getTxKey(KeyType.OPENOUT_ALL, hash);
@@ -1055,19 +1378,24 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         if (instrument)
             beginMethod("commitDatabaseBatchWrite");
 
+        // The batch refers to undo data appended during it, which must reach the disk before the references do.
+        if (undoFiles != null)
+            undoFiles.flush();
         db.write(batch);
-        // order of these is not important as we only allow entry to be in one
-        // or the other.
-        // must update cache with uncommitted adds/deletes.
-        for (Map.Entry<ByteBuffer, UTXO> entry : utxoUncommittedCache.entrySet()) {
-
-            utxoCache.put(entry.getKey(), entry.getValue());
-        }
-        utxoUncommittedCache = null;
+        // must update cache with uncommitted adds/deletes. The deletes go first: with write-back an output spent in
+        // this batch may still be dirty in the cache, and the adds could evict it and write it to the database after
+        // the batch has deleted it.
         for (ByteBuffer entry : utxoUncommittedDeletedCache) {
             utxoCache.remove(entry);
         }
         utxoUncommittedDeletedCache = null;
+        for (Map.Entry<ByteBuffer, UTXO> entry : utxoUncommittedCache.entrySet()) {
+            if (utxoWriteBack)
+                utxoCache.putDirty(entry.getKey(), entry.getValue());
+            else
+                utxoCache.put(entry.getKey(), entry.getValue());
+        }
+        utxoUncommittedCache = null;
 
         autoCommit = true;
 
@@ -1118,7 +1446,7 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
             uncommitedDeletes = null;
             autoCommit = true;
             bloom = new BloomFilter();
-            utxoCache = new LRUCache(openOutCache, 0.75f);
+            utxoCache = createUTXOCache();
         } catch (IOException e) {
             log.error("Exception in resetStore.", e);
         }
@@ -1128,6 +1456,13 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
             for (File c : f.listFiles())
                 c.delete();
         }
+        if (undoFiles != null) {
+            try {
+                undoFiles.delete();
+            } catch (BlockStoreException e) {
+                log.error("Exception in resetStore.", e);
+            }
+        }
         openDB();
     }
 }
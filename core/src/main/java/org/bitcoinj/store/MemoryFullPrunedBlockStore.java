@@ -355,6 +355,18 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
         return transactionOutputMap.get(new StoredTransactionOutPoint(hash, index));
     }
 
+    @Override
+    public synchronized Map<TransactionOutPoint, UTXO> getTransactionOutputs(Collection<TransactionOutPoint> outPoints) throws BlockStoreException {
+        Preconditions.checkNotNull(transactionOutputMap, "MemoryFullPrunedBlockStore is closed");
+        Map<TransactionOutPoint, UTXO> result = new HashMap<TransactionOutPoint, UTXO>(outPoints.size());
+        for (TransactionOutPoint outPoint : outPoints) {
+            UTXO out = transactionOutputMap.get(new StoredTransactionOutPoint(outPoint.getHash(), outPoint.getIndex()));
+            if (out != null)
+                result.put(outPoint, out);
+        }
+        return result;
+    }
+
     @Override
     public synchronized void addUnspentTransactionOutput(UTXO out) throws BlockStoreException {
         Preconditions.checkNotNull(transactionOutputMap, "MemoryFullPrunedBlockStore is closed");
@@ -389,6 +401,13 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
         transactionOutputMap.abortDatabaseBatchWrite();
     }
 
+    @Override
+    public synchronized void visitUnspentTransactionOutputs(UTXOVisitor visitor) throws BlockStoreException {
+        Preconditions.checkNotNull(transactionOutputMap, "MemoryFullPrunedBlockStore is closed");
+        for (UTXO output : transactionOutputMap.values())
+            visitor.visit(output);
+    }
+
     @Override
     public synchronized boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
         for (int i = 0; i < numOutputs; i++)
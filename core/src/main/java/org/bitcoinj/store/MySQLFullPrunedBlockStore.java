@@ -77,6 +77,8 @@ public class MySQLFullPrunedBlockStore extends DatabaseFullPrunedBlockStore {
 
     // SQL involving index column (table openOutputs) overridden as it is a reserved word and must be back ticked in MySQL.
     private static final String SELECT_OPENOUTPUTS_SQL                          = "SELECT height, value, scriptbytes, coinbase, toaddress, addresstargetable FROM openoutputs WHERE hash = ? AND `index` = ?";
+    private static final String SELECT_ALL_OPENOUTPUTS_SQL                      = "SELECT hash, `index`, height, value, scriptbytes, coinbase, toaddress FROM openoutputs";
+    private static final String SELECT_OPENOUTPUTS_BY_HASHES_SQL                = "SELECT hash, `index`, height, value, scriptbytes, coinbase, toaddress FROM openoutputs WHERE hash IN ";
     private static final String INSERT_OPENOUTPUTS_SQL                          = "INSERT INTO openoutputs (hash, `index`, height, value, scriptbytes, toaddress, addresstargetable, coinbase) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
     private static final String DELETE_OPENOUTPUTS_SQL                          = "DELETE FROM openoutputs WHERE hash = ? AND `index`= ?";
 
@@ -108,6 +110,16 @@ public class MySQLFullPrunedBlockStore extends DatabaseFullPrunedBlockStore {
         return SELECT_OPENOUTPUTS_SQL;
     }
 
+    @Override
+    protected String getSelectOpenoutputsByHashesSQL() {
+        return SELECT_OPENOUTPUTS_BY_HASHES_SQL;
+    }
+
+    @Override
+    protected String getSelectAllOpenoutputsSQL() {
+        return SELECT_ALL_OPENOUTPUTS_SQL;
+    }
+
     @Override
     protected String getInsertOpenoutputsSQL() {
         return INSERT_OPENOUTPUTS_SQL;
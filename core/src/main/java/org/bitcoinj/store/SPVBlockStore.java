@@ -21,6 +21,7 @@ import org.bitcoinj.utils.*;
 import org.slf4j.*;
 
 import com.google.common.base.Charsets;
+import com.google.common.primitives.Ints;
 
 import javax.annotation.*;
 import java.io.*;
@@ -37,19 +38,28 @@ import static com.google.common.base.Preconditions.*;
  * An SPVBlockStore holds a limited number of block headers in a memory mapped ring buffer. With such a store, you
  * may not be able to process very deep re-orgs and could be disconnected from the chain (requiring a replay),
  * but as they are virtually unheard of this is not a significant risk.
+ *
+ * <p>Next to the ring the file holds an open addressing hash index, so looking up any stored header costs a couple
+ * of reads instead of a scan of the ring. Lookups only share a read lock and can run concurrently. Files in the older
+ * format without an index are upgraded in place when opened.</p>
  */
 public class SPVBlockStore implements BlockStore {
     private static final Logger log = LoggerFactory.getLogger(SPVBlockStore.class);
 
     /** The default number of headers that will be stored in the ring buffer. */
     public static final int DEFAULT_CAPACITY = 5000;
-    public static final String HEADER_MAGIC = "SPVB";
+    public static final String HEADER_MAGIC = "SPVI";
+    /** Header of the older file format without an index. Such files are upgraded when opened. */
+    public static final String LEGACY_HEADER_MAGIC = "SPVB";
 
     protected volatile MappedByteBuffer buffer;
     protected final int capacity;
     protected final NetworkParameters params;
 
+    // Guards the caches and the chain head. Never held while acquiring indexLock.
     protected ReentrantLock lock = Threading.lock("SPVBlockStore");
+    // Guards the ring and the index: get() takes the read lock, put() the write lock.
+    protected final ReentrantReadWriteLock indexLock = Threading.readWriteLock("SPVBlockStore-index");
 
     // The entire ring-buffer is mmapped and accessing it should be as fast as accessing regular memory once it's
     // faulted in. Unfortunately, in theory practice and theory are the same. In practice they aren't.
@@ -93,7 +103,7 @@ public class SPVBlockStore implements BlockStore {
 
     /**
      * Creates and initializes an SPV block store that can hold a given amount of blocks. Will create the given file if
-     * it's missing. This operation will block on disk.
+     * it's missing. A file in the older format without an index is upgraded. This operation will block on disk.
      * @param file file to use for the block store
      * @param capacity custom capacity
      * @throws BlockStoreException if something goes wrong
@@ -111,7 +121,7 @@ public class SPVBlockStore implements BlockStore {
             if (!exists) {
                 log.info("Creating new SPV block chain file " + file);
                 randomAccessFile.setLength(fileSize);
-            } else if (randomAccessFile.length() != fileSize) {
+            } else if (randomAccessFile.length() != fileSize && randomAccessFile.length() != getIndexOffset(capacity)) {
                 throw new BlockStoreException("File size on disk does not match expected size: " +
                         randomAccessFile.length() + " vs " + fileSize);
             }
@@ -121,6 +131,10 @@ public class SPVBlockStore implements BlockStore {
             if (fileLock == null)
                 throw new ChainFileLockedException("Store file is already locked by another process");
 
+            // A file in the legacy format is only as long as its ring. Make room for the index; it is built below.
+            if (randomAccessFile.length() != fileSize)
+                randomAccessFile.setLength(fileSize);
+
             // Map it into memory read/write. The kernel will take care of flushing writes to disk at the most
             // efficient times, which may mean that until the map is deallocated the data on disk is randomly
             // inconsistent. However the only process accessing it is us, via this mapping, so our own view will
@@ -133,7 +147,10 @@ public class SPVBlockStore implements BlockStore {
             if (exists) {
                 header = new byte[4];
                 buffer.get(header);
-                if (!new String(header, Charsets.US_ASCII).equals(HEADER_MAGIC))
+                String magic = new String(header, Charsets.US_ASCII);
+                if (magic.equals(LEGACY_HEADER_MAGIC))
+                    upgradeLegacyStore(file);
+                else if (!magic.equals(HEADER_MAGIC))
                     throw new BlockStoreException("Header bytes do not equal " + HEADER_MAGIC);
             } else {
                 initNewStore(params);
@@ -153,11 +170,11 @@ public class SPVBlockStore implements BlockStore {
         header = HEADER_MAGIC.getBytes("US-ASCII");
         buffer.put(header);
         // Insert the genesis block.
-        lock.lock();
+        indexLock.writeLock().lock();
         try {
             setRingCursor(buffer, FILE_PROLOGUE_BYTES);
         } finally {
-            lock.unlock();
+            indexLock.writeLock().unlock();
         }
         Block genesis = params.getGenesisBlock().cloneAsHeader();
         StoredBlock storedGenesis = new StoredBlock(genesis, genesis.getWork(), 0);
@@ -165,29 +182,84 @@ public class SPVBlockStore implements BlockStore {
         setChainHead(storedGenesis);
     }
 
+    /**
+     * Builds the index for a file in the legacy format. The header is only rewritten once the index is on disk, so if
+     * we crash half way the file is still recognized as legacy and the index is simply built again next time.
+     */
+    private void upgradeLegacyStore(File file) throws Exception {
+        log.info("Adding an index to SPV block chain file " + file);
+        final ByteBuffer buffer = this.buffer.duplicate();
+        indexLock.writeLock().lock();
+        try {
+            final int indexOffset = getIndexOffset(capacity);
+            for (int pos = indexOffset; pos < getFileSize(capacity); pos += INDEX_SLOT_SIZE)
+                buffer.putLong(pos, 0);
+            // Walk the ring from oldest to newest so that if a header was stored twice, the newest copy wins.
+            int cursor = getRingCursor(buffer);
+            byte[] hashBytes = new byte[32];
+            for (int i = 0; i < capacity; i++) {
+                if (cursor == indexOffset)
+                    cursor = FILE_PROLOGUE_BYTES;
+                buffer.position(cursor);
+                buffer.get(hashBytes);
+                if (!isEmptyRecord(hashBytes))
+                    indexInsert(buffer, hashBytes, getRecordNumber(cursor));
+                cursor += RECORD_SIZE;
+            }
+            this.buffer.force();
+            buffer.position(0);
+            buffer.put(HEADER_MAGIC.getBytes("US-ASCII"));
+        } finally {
+            indexLock.writeLock().unlock();
+        }
+    }
+
     /** Returns the size in bytes of the file that is used to store the chain with the current parameters. */
     public static final int getFileSize(int capacity) {
+        return getIndexOffset(capacity) + getIndexSlots(capacity) * INDEX_SLOT_SIZE;
+    }
+
+    // The ring ends and the index starts here. This is also the size of a legacy file without an index.
+    private static int getIndexOffset(int capacity) {
         return RECORD_SIZE * capacity + FILE_PROLOGUE_BYTES /* extra kilobyte for stuff */;
     }
 
+    // A power of two of at least twice the capacity, which keeps the index at most half full and the probes short.
+    private static int getIndexSlots(int capacity) {
+        return Integer.highestOneBit(capacity * 2 - 1) << 1;
+    }
+
     @Override
     public void put(StoredBlock block) throws BlockStoreException {
-        final MappedByteBuffer buffer = this.buffer;
-        if (buffer == null) throw new BlockStoreException("Store closed");
+        final MappedByteBuffer mappedBuffer = this.buffer;
+        if (mappedBuffer == null) throw new BlockStoreException("Store closed");
+        final ByteBuffer buffer = mappedBuffer.duplicate();
 
-        lock.lock();
+        Sha256Hash hash = block.getHeader().getHash();
+        indexLock.writeLock().lock();
         try {
             int cursor = getRingCursor(buffer);
-            if (cursor == getFileSize(capacity)) {
+            if (cursor == getIndexOffset(capacity)) {
                 // Wrapped around.
                 cursor = FILE_PROLOGUE_BYTES;
             }
+            int record = getRecordNumber(cursor);
+            // Once the ring has wrapped we overwrite the oldest header, which then must leave the index.
+            byte[] oldHashBytes = new byte[32];
+            buffer.position(cursor);
+            buffer.get(oldHashBytes);
+            if (!isEmptyRecord(oldHashBytes))
+                indexRemove(buffer, oldHashBytes, record);
             buffer.position(cursor);
-            Sha256Hash hash = block.getHeader().getHash();
-            notFoundCache.remove(hash);
             buffer.put(hash.getBytes());
             block.serializeCompact(buffer);
             setRingCursor(buffer, buffer.position());
+            indexInsert(buffer, hash.getBytes(), record);
+        } finally { indexLock.writeLock().unlock(); }
+
+        lock.lock();
+        try {
+            notFoundCache.remove(hash);
             blockCache.put(hash, block);
         } finally { lock.unlock(); }
     }
@@ -195,8 +267,8 @@ public class SPVBlockStore implements BlockStore {
     @Override
     @Nullable
     public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
-        final MappedByteBuffer buffer = this.buffer;
-        if (buffer == null) throw new BlockStoreException("Store closed");
+        final MappedByteBuffer mappedBuffer = this.buffer;
+        if (mappedBuffer == null) throw new BlockStoreException("Store closed");
 
         lock.lock();
         try {
@@ -205,70 +277,71 @@ public class SPVBlockStore implements BlockStore {
                 return cacheHit;
             if (notFoundCache.get(hash) != null)
                 return null;
+        } finally { lock.unlock(); }
 
-            // Starting from the current tip of the ring work backwards until we have either found the block or
-            // wrapped around.
-            int cursor = getRingCursor(buffer);
-            final int startingPoint = cursor;
-            final int fileSize = getFileSize(capacity);
-            final byte[] targetHashBytes = hash.getBytes();
-            byte[] scratch = new byte[32];
-            do {
-                cursor -= RECORD_SIZE;
-                if (cursor < FILE_PROLOGUE_BYTES) {
-                    // We hit the start, so wrap around.
-                    cursor = fileSize - RECORD_SIZE;
-                }
-                // Cursor is now at the start of the next record to check, so read the hash and compare it.
-                buffer.position(cursor);
-                buffer.get(scratch);
-                if (Arrays.equals(scratch, targetHashBytes)) {
-                    // Found the target.
-                    StoredBlock storedBlock = StoredBlock.deserializeCompact(params, buffer);
+        final ByteBuffer buffer = mappedBuffer.duplicate();
+        indexLock.readLock().lock();
+        try {
+            int record = indexLookup(buffer, hash.getBytes());
+            StoredBlock storedBlock = null;
+            if (record >= 0) {
+                buffer.position(getRecordOffset(record) + 32);
+                storedBlock = StoredBlock.deserializeCompact(params, buffer);
+            }
+            // Update the caches before letting a writer in, so a miss can't hide a header put in the meantime.
+            lock.lock();
+            try {
+                if (storedBlock != null)
                     blockCache.put(hash, storedBlock);
-                    return storedBlock;
-                }
-            } while (cursor != startingPoint);
-            // Not found.
-            notFoundCache.put(hash, NOT_FOUND_MARKER);
-            return null;
+                else
+                    notFoundCache.put(hash, NOT_FOUND_MARKER);
+            } finally { lock.unlock(); }
+            return storedBlock;
         } catch (ProtocolException e) {
             throw new RuntimeException(e);  // Cannot happen.
-        } finally { lock.unlock(); }
+        } finally { indexLock.readLock().unlock(); }
     }
 
-    protected StoredBlock lastChainHead = null;
+    protected volatile StoredBlock lastChainHead = null;
 
     @Override
     public StoredBlock getChainHead() throws BlockStoreException {
-        final MappedByteBuffer buffer = this.buffer;
-        if (buffer == null) throw new BlockStoreException("Store closed");
+        final MappedByteBuffer mappedBuffer = this.buffer;
+        if (mappedBuffer == null) throw new BlockStoreException("Store closed");
 
+        StoredBlock chainHead = lastChainHead;
+        if (chainHead != null)
+            return chainHead;
+        byte[] headHash = new byte[32];
         lock.lock();
         try {
-            if (lastChainHead == null) {
-                byte[] headHash = new byte[32];
-                buffer.position(8);
-                buffer.get(headHash);
-                Sha256Hash hash = Sha256Hash.wrap(headHash);
-                StoredBlock block = get(hash);
-                if (block == null)
-                    throw new BlockStoreException("Corrupted block store: could not find chain head: " + hash);
+            ByteBuffer buffer = mappedBuffer.duplicate();
+            buffer.position(8);
+            buffer.get(headHash);
+        } finally { lock.unlock(); }
+        // get() takes the index lock, which must not be acquired while holding the cache lock.
+        Sha256Hash hash = Sha256Hash.wrap(headHash);
+        StoredBlock block = get(hash);
+        if (block == null)
+            throw new BlockStoreException("Corrupted block store: could not find chain head: " + hash);
+        lock.lock();
+        try {
+            if (lastChainHead == null)
                 lastChainHead = block;
-            }
             return lastChainHead;
         } finally { lock.unlock(); }
     }
 
     @Override
     public void setChainHead(StoredBlock chainHead) throws BlockStoreException {
-        final MappedByteBuffer buffer = this.buffer;
-        if (buffer == null) throw new BlockStoreException("Store closed");
+        final MappedByteBuffer mappedBuffer = this.buffer;
+        if (mappedBuffer == null) throw new BlockStoreException("Store closed");
 
         lock.lock();
         try {
             lastChainHead = chainHead;
             byte[] headHash = chainHead.getHeader().getHash().getBytes();
+            ByteBuffer buffer = mappedBuffer.duplicate();
             buffer.position(8);
             buffer.put(headHash);
         } finally { lock.unlock(); }
@@ -297,7 +370,7 @@ public class SPVBlockStore implements BlockStore {
     protected static final int RECORD_SIZE = 32 /* hash */ + StoredBlock.COMPACT_SERIALIZED_SIZE;
 
     // File format:
-    //   4 header bytes = "SPVB"
+    //   4 header bytes = "SPVI" ("SPVB" for the legacy format, which ends after the ring)
     //   4 cursor bytes, which indicate the offset from the first kb where the next block header should be written.
     //   32 bytes for the hash of the chain head
     //
@@ -306,8 +379,14 @@ public class SPVBlockStore implements BlockStore {
     //   12 bytes of chain work
     //    4 bytes of height
     //   80 bytes of block header data
+    //
+    // After the ring, an open addressing hash table with linear probing. For each slot (8 bytes)
+    //   4 bytes taken from the hash of the header, to skip most non-matching slots without touching the ring
+    //   4 bytes record number in the ring plus one, or zero for an empty slot
     protected static final int FILE_PROLOGUE_BYTES = 1024;
 
+    protected static final int INDEX_SLOT_SIZE = 8;
+
     /** Returns the offset from the file start where the latest block should be written (end of prev block). */
     private int getRingCursor(ByteBuffer buffer) {
         int c = buffer.getInt(4);
@@ -319,4 +398,113 @@ public class SPVBlockStore implements BlockStore {
         checkArgument(newCursor >= 0);
         buffer.putInt(4, newCursor);
     }
+
+    private static int getRecordNumber(int offset) {
+        return (offset - FILE_PROLOGUE_BYTES) / RECORD_SIZE;
+    }
+
+    private static int getRecordOffset(int record) {
+        return FILE_PROLOGUE_BYTES + record * RECORD_SIZE;
+    }
+
+    // A record that was never written is all zeros, and no real header hashes to zero.
+    private static boolean isEmptyRecord(byte[] hashBytes) {
+        for (byte b : hashBytes)
+            if (b != 0)
+                return false;
+        return true;
+    }
+
+    // Block hashes are stored with their leading zeros first, so the random bits are at the end.
+    private int getHomeSlot(int hashTail) {
+        return hashTail & (getIndexSlots(capacity) - 1);
+    }
+
+    private static int getHashTail(byte[] hashBytes) {
+        return Ints.fromBytes(hashBytes[28], hashBytes[29], hashBytes[30], hashBytes[31]);
+    }
+
+    private static int getFingerprint(byte[] hashBytes) {
+        return Ints.fromBytes(hashBytes[24], hashBytes[25], hashBytes[26], hashBytes[27]);
+    }
+
+    private int getSlotOffset(int slot) {
+        return getIndexOffset(capacity) + slot * INDEX_SLOT_SIZE;
+    }
+
+    private static boolean recordHasHash(ByteBuffer buffer, int record, byte[] hashBytes) {
+        final int offset = getRecordOffset(record);
+        for (int i = 0; i < hashBytes.length; i++)
+            if (buffer.get(offset + i) != hashBytes[i])
+                return false;
+        return true;
+    }
+
+    /** Returns the record number of the header with the given hash, or -1. */
+    private int indexLookup(ByteBuffer buffer, byte[] hashBytes) {
+        final int mask = getIndexSlots(capacity) - 1;
+        final int fingerprint = getFingerprint(hashBytes);
+        // The index is never more than half full, so there is always an empty slot to stop at.
+        for (int slot = getHomeSlot(getHashTail(hashBytes)); ; slot = (slot + 1) & mask) {
+            int offset = getSlotOffset(slot);
+            int record = buffer.getInt(offset + 4) - 1;
+            if (record < 0)
+                return -1;
+            if (buffer.getInt(offset) == fingerprint && recordHasHash(buffer, record, hashBytes))
+                return record;
+        }
+    }
+
+    /** Points the index at the given record for the given hash, replacing any older record for the same hash. */
+    private void indexInsert(ByteBuffer buffer, byte[] hashBytes, int record) {
+        final int mask = getIndexSlots(capacity) - 1;
+        final int fingerprint = getFingerprint(hashBytes);
+        int slot = getHomeSlot(getHashTail(hashBytes));
+        while (true) {
+            int offset = getSlotOffset(slot);
+            int existing = buffer.getInt(offset + 4) - 1;
+            if (existing < 0 || existing == record ||
+                    (buffer.getInt(offset) == fingerprint && recordHasHash(buffer, existing, hashBytes))) {
+                buffer.putInt(offset, fingerprint);
+                buffer.putInt(offset + 4, record + 1);
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * Removes the entry for the given record, if the index still points there for that hash. Entries further along
+     * the probe sequence are shifted back into the gap, so lookups never need tombstones.
+     */
+    private void indexRemove(ByteBuffer buffer, byte[] hashBytes, int record) {
+        final int mask = getIndexSlots(capacity) - 1;
+        int hole = getHomeSlot(getHashTail(hashBytes));
+        while (true) {
+            int existing = buffer.getInt(getSlotOffset(hole) + 4) - 1;
+            if (existing < 0)
+                return;  // A newer copy of the header took over the entry, or it was never indexed.
+            if (existing == record)
+                break;
+            hole = (hole + 1) & mask;
+        }
+        int slot = hole;
+        while (true) {
+            slot = (slot + 1) & mask;
+            int offset = getSlotOffset(slot);
+            int existing = buffer.getInt(offset + 4) - 1;
+            if (existing < 0)
+                break;
+            int home = getHomeSlot(buffer.getInt(getRecordOffset(existing) + 28));
+            // The entry may move into the hole unless its home lies cyclically after the hole, up to its slot.
+            boolean homeBetween = hole <= slot ? (hole < home && home <= slot) : (hole < home || home <= slot);
+            if (!homeBetween) {
+                int holeOffset = getSlotOffset(hole);
+                buffer.putInt(holeOffset, buffer.getInt(offset));
+                buffer.putInt(holeOffset + 4, existing + 1);
+                hole = slot;
+            }
+        }
+        buffer.putLong(getSlotOffset(hole), 0);
+    }
 }
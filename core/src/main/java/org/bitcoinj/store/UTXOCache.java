@@ -0,0 +1,251 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.UTXO;
+import org.bitcoinj.utils.Threading;
+
+import net.jcip.annotations.GuardedBy;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>A cache of unspent outputs keyed by their store key, split into shards that are locked independently so that
+ * readers on different threads rarely wait for each other. Outputs are kept in their compact serialized form rather
+ * than as object graphs, and each shard evicts its least recently used entries once it holds more than its share of
+ * the configured number of bytes.</p>
+ *
+ * <p>An entry can be put as dirty, meaning it has not been written to the backing store yet. Dirty entries are handed
+ * to the {@link Writer} when they are evicted or when {@link #flush()} is called, so that outputs which are spent while
+ * still cached never have to be written at all.</p>
+ */
+public class UTXOCache {
+    /** Rough size of a cached output including map overhead, for converting entry counts to a byte budget. */
+    public static final int TYPICAL_ENTRY_SIZE = 200;
+    /** The default number of shards. */
+    public static final int DEFAULT_CONCURRENCY = 16;
+
+    // Map entry, key buffer and value array headers.
+    private static final int ENTRY_OVERHEAD = 96;
+
+    /** Receives dirty entries that leave the cache or are flushed. Called while a shard lock is held. */
+    public interface Writer {
+        void write(ByteBuffer key, byte[] serializedOutput);
+    }
+
+    private static class Entry {
+        final byte[] serializedOutput;
+        boolean dirty;
+
+        Entry(byte[] serializedOutput, boolean dirty) {
+            this.serializedOutput = serializedOutput;
+            this.dirty = dirty;
+        }
+    }
+
+    private class Shard {
+        final ReentrantLock lock = Threading.lock("UTXOCache");
+        @GuardedBy("lock") final LinkedHashMap<ByteBuffer, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+        @GuardedBy("lock") long bytes;
+
+        @GuardedBy("lock")
+        void evict() {
+            Iterator<Map.Entry<ByteBuffer, Entry>> it = entries.entrySet().iterator();
+            while (bytes > maxBytesPerShard && it.hasNext()) {
+                Map.Entry<ByteBuffer, Entry> eldest = it.next();
+                if (eldest.getValue().dirty)
+                    writeBack(eldest.getKey(), eldest.getValue());
+                bytes -= sizeOf(eldest.getKey(), eldest.getValue());
+                it.remove();
+            }
+        }
+    }
+
+    private final Shard[] shards;
+    private final long maxBytesPerShard;
+    @Nullable private final Writer writer;
+
+    /**
+     * Creates a cache holding up to about maxBytes of outputs in the given number of shards, which is rounded up to a
+     * power of two. The writer is only needed if dirty entries are put.
+     */
+    public UTXOCache(long maxBytes, int concurrency, @Nullable Writer writer) {
+        checkArgument(maxBytes >= 0, "Negative cache size: %s", maxBytes);
+        checkArgument(concurrency > 0, "Need at least one shard: %s", concurrency);
+        int shardCount = 1;
+        while (shardCount < concurrency)
+            shardCount <<= 1;
+        this.shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++)
+            shards[i] = new Shard();
+        this.maxBytesPerShard = maxBytes / shardCount;
+        this.writer = writer;
+    }
+
+    /** Returns the cached output for the given key, or null if it is not cached. */
+    @Nullable
+    public UTXO get(ByteBuffer key) {
+        Shard shard = shardFor(key);
+        byte[] serializedOutput;
+        shard.lock.lock();
+        try {
+            Entry entry = shard.entries.get(key);
+            if (entry == null)
+                return null;
+            serializedOutput = entry.serializedOutput;
+        } finally {
+            shard.lock.unlock();
+        }
+        try {
+            return UTXO.deserializeCompactFromStream(new ByteArrayInputStream(serializedOutput));
+        } catch (IOException e) {
+            throw new RuntimeException(e);  // Cannot happen, we serialized it ourselves.
+        }
+    }
+
+    /** Caches an output that the backing store already has. */
+    public void put(ByteBuffer key, UTXO output) {
+        put(key, output, false);
+    }
+
+    /** Caches an output that is not in the backing store yet. It is written out when evicted or flushed. */
+    public void putDirty(ByteBuffer key, UTXO output) {
+        checkArgument(writer != null, "Dirty entries need a writer");
+        put(key, output, true);
+    }
+
+    private void put(ByteBuffer key, UTXO output, boolean dirty) {
+        Entry entry = new Entry(serialize(output), dirty);
+        Shard shard = shardFor(key);
+        shard.lock.lock();
+        try {
+            Entry previous = shard.entries.put(key, entry);
+            if (previous != null) {
+                shard.bytes -= sizeOf(key, previous);
+                // Overwriting a dirty entry with a clean one would lose the write.
+                entry.dirty |= previous.dirty;
+            }
+            shard.bytes += sizeOf(key, entry);
+            shard.evict();
+        } finally {
+            shard.lock.unlock();
+        }
+    }
+
+    /** Returns true if the output for the given key is cached and has not been written to the backing store. */
+    public boolean isDirty(ByteBuffer key) {
+        Shard shard = shardFor(key);
+        shard.lock.lock();
+        try {
+            Entry entry = shard.entries.get(key);
+            return entry != null && entry.dirty;
+        } finally {
+            shard.lock.unlock();
+        }
+    }
+
+    /** Drops the output for the given key. A dirty entry is dropped without being written. */
+    public void remove(ByteBuffer key) {
+        Shard shard = shardFor(key);
+        shard.lock.lock();
+        try {
+            Entry entry = shard.entries.remove(key);
+            if (entry != null)
+                shard.bytes -= sizeOf(key, entry);
+        } finally {
+            shard.lock.unlock();
+        }
+    }
+
+    /** Writes all dirty entries to the writer. They stay cached, now clean. */
+    public void flush() {
+        for (Shard shard : shards) {
+            shard.lock.lock();
+            try {
+                for (Map.Entry<ByteBuffer, Entry> entry : shard.entries.entrySet()) {
+                    if (entry.getValue().dirty)
+                        writeBack(entry.getKey(), entry.getValue());
+                }
+            } finally {
+                shard.lock.unlock();
+            }
+        }
+    }
+
+    /** Returns the number of cached outputs. */
+    public int size() {
+        int size = 0;
+        for (Shard shard : shards) {
+            shard.lock.lock();
+            try {
+                size += shard.entries.size();
+            } finally {
+                shard.lock.unlock();
+            }
+        }
+        return size;
+    }
+
+    /** Returns the approximate number of bytes the cached outputs take up. */
+    public long getSizeInBytes() {
+        long bytes = 0;
+        for (Shard shard : shards) {
+            shard.lock.lock();
+            try {
+                bytes += shard.bytes;
+            } finally {
+                shard.lock.unlock();
+            }
+        }
+        return bytes;
+    }
+
+    private void writeBack(ByteBuffer key, Entry entry) {
+        writer.write(key, entry.serializedOutput);
+        entry.dirty = false;
+    }
+
+    private Shard shardFor(ByteBuffer key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return shards[h & (shards.length - 1)];
+    }
+
+    private static long sizeOf(ByteBuffer key, Entry entry) {
+        return ENTRY_OVERHEAD + key.capacity() + entry.serializedOutput.length;
+    }
+
+    private static byte[] serialize(UTXO output) {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try {
+            output.serializeCompactToStream(bos);
+        } catch (IOException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+        return bos.toByteArray();
+    }
+}
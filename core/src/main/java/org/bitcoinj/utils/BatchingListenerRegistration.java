@@ -0,0 +1,98 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.utils;
+
+import javax.annotation.concurrent.GuardedBy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>A listener registration that hands events to its listener in batches. Events that are added while a batch is
+ * waiting for the executor join that batch, so there is never more than one task per listener in the executor's
+ * queue however fast events come in, and the listener is called as often as the executor gets round to it.</p>
+ *
+ * <p>If the registration coalesces, an event that is equal to one already waiting is dropped, for events that only
+ * say that something changed and where the listener looks at its current state.</p>
+ */
+public abstract class BatchingListenerRegistration<T, E> extends ListenerRegistration<T> {
+    private final boolean coalesce;
+
+    @GuardedBy("this") private Collection<E> events;
+    // Whether a task to dispatch the waiting events is in the executor's queue, and since when.
+    @GuardedBy("this") private boolean scheduled;
+    @GuardedBy("this") private long scheduledNanos;
+    @GuardedBy("this") private long dispatches, dispatchedEvents, coalescedEvents, maxLatencyNanos;
+
+    private final Runnable dispatcher = new Runnable() {
+        @Override
+        public void run() {
+            List<E> batch;
+            synchronized (BatchingListenerRegistration.this) {
+                batch = new ArrayList<>(events);
+                events = newEvents();
+                scheduled = false;
+                dispatches++;
+                dispatchedEvents += batch.size();
+                maxLatencyNanos = Math.max(maxLatencyNanos, System.nanoTime() - scheduledNanos);
+            }
+            if (!batch.isEmpty())
+                dispatch(listener, batch);
+        }
+    };
+
+    /**
+     * @param coalesce whether to drop an event that is equal to one already waiting to be dispatched
+     */
+    public BatchingListenerRegistration(T listener, Executor executor, boolean coalesce) {
+        super(listener, executor);
+        this.coalesce = coalesce;
+        this.events = newEvents();
+    }
+
+    /** Calls the listener with a batch of events, in the order they were added. Runs on the executor. */
+    protected abstract void dispatch(T listener, List<E> events);
+
+    /** Adds an event to the next batch, and schedules the batch with the executor if it isn't already. */
+    public void add(E event) {
+        synchronized (this) {
+            if (!events.add(event)) {
+                coalescedEvents++;
+                return;
+            }
+            if (scheduled)
+                return;
+            scheduled = true;
+            scheduledNanos = System.nanoTime();
+        }
+        // Outside the lock, as a same thread executor dispatches right away.
+        executor.execute(dispatcher);
+    }
+
+    /** Returns the figures of this registration so far. */
+    public synchronized EventDispatchStats getStats() {
+        return new EventDispatchStats(events.size(), dispatches, dispatchedEvents, coalescedEvents,
+                TimeUnit.NANOSECONDS.toMillis(maxLatencyNanos));
+    }
+
+    private Collection<E> newEvents() {
+        return coalesce ? new LinkedHashSet<E>() : new ArrayList<E>();
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.utils;
+
+import com.google.common.base.MoreObjects;
+
+/**
+ * How far behind batched event listeners are, and how much batching saves, see
+ * {@link BatchingListenerRegistration}. Instances are immutable.
+ */
+public final class EventDispatchStats {
+    public static final EventDispatchStats EMPTY = new EventDispatchStats(0, 0, 0, 0, 0);
+
+    /** The number of events waiting to be dispatched. */
+    public final int queuedEvents;
+    /** The number of times listeners were called, each with a batch of events. */
+    public final long dispatches;
+    /** The number of events listeners were called with. */
+    public final long dispatchedEvents;
+    /** The number of events that were dropped because an equal one was already waiting. */
+    public final long coalescedEvents;
+    /** The longest time from a batch being scheduled to it being dispatched, in milliseconds. */
+    public final long maxLatencyMillis;
+
+    public EventDispatchStats(int queuedEvents, long dispatches, long dispatchedEvents, long coalescedEvents,
+                              long maxLatencyMillis) {
+        this.queuedEvents = queuedEvents;
+        this.dispatches = dispatches;
+        this.dispatchedEvents = dispatchedEvents;
+        this.coalescedEvents = coalescedEvents;
+        this.maxLatencyMillis = maxLatencyMillis;
+    }
+
+    /** Returns the figures of this and the other combined. */
+    public EventDispatchStats add(EventDispatchStats other) {
+        return new EventDispatchStats(queuedEvents + other.queuedEvents, dispatches + other.dispatches,
+                dispatchedEvents + other.dispatchedEvents, coalescedEvents + other.coalescedEvents,
+                Math.max(maxLatencyMillis, other.maxLatencyMillis));
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("queuedEvents", queuedEvents)
+                .add("dispatches", dispatches)
+                .add("dispatchedEvents", dispatchedEvents)
+                .add("coalescedEvents", coalescedEvents)
+                .add("maxLatencyMillis", maxLatencyMillis)
+                .toString();
+    }
+}
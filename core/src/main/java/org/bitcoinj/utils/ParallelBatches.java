@@ -0,0 +1,100 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.utils;
+
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Splits work over the indices {@code 0} to {@code size - 1} into contiguous batches which run in parallel on an
+ * executor, and waits for all of them. Each batch writes its results by index, so the outcome is in input order no
+ * matter how the batches are scheduled.</p>
+ *
+ * <p>A batch is only worth its scheduling overhead if it holds enough items, so work with fewer than two batches of
+ * the configured minimum runs on the calling thread.</p>
+ */
+public class ParallelBatches {
+    /** The work for one contiguous range of indices. */
+    public interface Batch {
+        /** Processes the indices from {@code from} inclusive to {@code to} exclusive. */
+        void run(int from, int to);
+    }
+
+    private final ListeningExecutorService executor;
+    private final int minPerWorker;
+    private final int maxWorkers;
+
+    /** Creates batches of at least the given size, with at most one worker per CPU core. */
+    public ParallelBatches(ListeningExecutorService executor, int minPerWorker) {
+        this(executor, minPerWorker, Runtime.getRuntime().availableProcessors());
+    }
+
+    /** Creates batches of at least the given size, with at most the given number of workers. */
+    public ParallelBatches(ListeningExecutorService executor, int minPerWorker, int maxWorkers) {
+        checkArgument(minPerWorker > 0, "Need at least one item per worker: %s", minPerWorker);
+        checkArgument(maxWorkers > 0, "Need at least one worker: %s", maxWorkers);
+        this.executor = executor;
+        this.minPerWorker = minPerWorker;
+        this.maxWorkers = maxWorkers;
+    }
+
+    /** Returns how many batches the given number of items is split into. One means it runs on the calling thread. */
+    public int numWorkers(int size) {
+        return Math.max(1, Math.min(maxWorkers, size / minPerWorker));
+    }
+
+    /**
+     * Runs the given work over {@code size} items and returns once all of it is done. An exception thrown by a batch
+     * is rethrown here; if the calling thread is interrupted while waiting, its interrupt flag is set again and a
+     * RuntimeException is thrown.
+     */
+    public void run(int size, final Batch batch) {
+        final int numWorkers = numWorkers(size);
+        if (numWorkers <= 1) {
+            batch.run(0, size);
+            return;
+        }
+        final int batchSize = (size + numWorkers - 1) / numWorkers;
+        List<ListenableFuture<?>> futures = new ArrayList<>(numWorkers);
+        for (int start = 0; start < size; start += batchSize) {
+            final int from = start;
+            final int to = Math.min(start + batchSize, size);
+            futures.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    batch.run(from, to);
+                }
+            }));
+        }
+        try {
+            Futures.allAsList(futures).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+}
@@ -20,9 +20,11 @@ import org.bitcoinj.core.BloomFilter;
 import org.bitcoinj.core.ECKey;
 import org.bitcoinj.crypto.*;
 import org.bitcoinj.utils.ListenerRegistration;
+import org.bitcoinj.utils.ParallelBatches;
 import org.bitcoinj.utils.Threading;
 import org.bitcoinj.wallet.listeners.KeyChainEventListener;
 
+import com.google.common.base.Function;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.protobuf.ByteString;
@@ -42,6 +44,12 @@ import static com.google.common.base.Preconditions.*;
  * it will automatically add one to itself if it's empty or if encryption is requested.
  */
 public class BasicKeyChain implements EncryptableKeyChain {
+    // Encrypting or decrypting a key chain is split across the thread pool with at least this many keys per worker.
+    // Smaller chains are processed on the calling thread.
+    private static final int MIN_KEYS_PER_CRYPTO_WORKER = 500;
+    private static final ParallelBatches CRYPTO_BATCHES = new ParallelBatches(Threading.THREAD_POOL,
+            MIN_KEYS_PER_CRYPTO_WORKER);
+
     private final ReentrantLock lock = Threading.lock("BasicKeyChain");
 
     // Maps used to let us quickly look up a key given data we find in transcations or the block chain.
@@ -457,23 +465,28 @@ public class BasicKeyChain implements EncryptableKeyChain {
      * @throws KeyCrypterException Thrown if the wallet encryption fails. If so, the wallet state is unchanged.
      */
     @Override
-    public BasicKeyChain toEncrypted(KeyCrypter keyCrypter, KeyParameter aesKey) {
+    public BasicKeyChain toEncrypted(final KeyCrypter keyCrypter, final KeyParameter aesKey) {
         lock.lock();
         try {
             checkNotNull(keyCrypter);
             checkState(this.keyCrypter == null, "Key chain is already encrypted");
             BasicKeyChain encrypted = new BasicKeyChain(keyCrypter);
-            for (ECKey key : hashToKeys.values()) {
-                ECKey encryptedKey = key.encrypt(keyCrypter, aesKey);
-                // Check that the encrypted key can be successfully decrypted.
-                // This is done as it is a critical failure if the private key cannot be decrypted successfully
-                // (all bitcoin controlled by that private key is lost forever).
-                // For a correctly constructed keyCrypter the encryption should always be reversible so it is just
-                // being as cautious as possible.
-                if (!ECKey.encryptionIsReversible(key, encryptedKey, keyCrypter, aesKey))
-                    throw new KeyCrypterException("The key " + key.toString() + " cannot be successfully decrypted after encryption so aborting wallet encryption.");
+            List<ECKey> encryptedKeys = transformKeys(new ArrayList<>(hashToKeys.values()), new Function<ECKey, ECKey>() {
+                @Override
+                public ECKey apply(ECKey key) {
+                    ECKey encryptedKey = key.encrypt(keyCrypter, aesKey);
+                    // Check that the encrypted key can be successfully decrypted.
+                    // This is done as it is a critical failure if the private key cannot be decrypted successfully
+                    // (all bitcoin controlled by that private key is lost forever).
+                    // For a correctly constructed keyCrypter the encryption should always be reversible so it is just
+                    // being as cautious as possible.
+                    if (!ECKey.encryptionIsReversible(key, encryptedKey, keyCrypter, aesKey))
+                        throw new KeyCrypterException("The key " + key.toString() + " cannot be successfully decrypted after encryption so aborting wallet encryption.");
+                    return encryptedKey;
+                }
+            });
+            for (ECKey encryptedKey : encryptedKeys)
                 encrypted.importKeyLocked(encryptedKey);
-            }
             return encrypted;
         } finally {
             lock.unlock();
@@ -488,7 +501,7 @@ public class BasicKeyChain implements EncryptableKeyChain {
     }
 
     @Override
-    public BasicKeyChain toDecrypted(KeyParameter aesKey) {
+    public BasicKeyChain toDecrypted(final KeyParameter aesKey) {
         lock.lock();
         try {
             checkState(keyCrypter != null, "Wallet is already decrypted");
@@ -496,15 +509,37 @@ public class BasicKeyChain implements EncryptableKeyChain {
             if (numKeys() > 0 && !checkAESKey(aesKey))
                 throw new KeyCrypterException("Password/key was incorrect.");
             BasicKeyChain decrypted = new BasicKeyChain();
-            for (ECKey key : hashToKeys.values()) {
-                decrypted.importKeyLocked(key.decrypt(aesKey));
-            }
+            List<ECKey> decryptedKeys = transformKeys(new ArrayList<>(hashToKeys.values()), new Function<ECKey, ECKey>() {
+                @Override
+                public ECKey apply(ECKey key) {
+                    return key.decrypt(aesKey);
+                }
+            });
+            for (ECKey decryptedKey : decryptedKeys)
+                decrypted.importKeyLocked(decryptedKey);
             return decrypted;
         } finally {
             lock.unlock();
         }
     }
 
+    /**
+     * Applies the given function to every key. Large chains are split into contiguous batches which run in parallel on
+     * {@link Threading#THREAD_POOL}; the order of the result always matches the order of the input, so the new chain
+     * serializes the same way as the old one.
+     */
+    private static List<ECKey> transformKeys(final List<ECKey> keys, final Function<ECKey, ECKey> function) {
+        final ECKey[] results = new ECKey[keys.size()];
+        CRYPTO_BATCHES.run(keys.size(), new ParallelBatches.Batch() {
+            @Override
+            public void run(int from, int to) {
+                for (int i = from; i < to; i++)
+                    results[i] = function.apply(keys.get(i));
+            }
+        });
+        return Arrays.asList(results);
+    }
+
     /**
      * Returns whether the given password is correct for this key chain.
      * @throws IllegalStateException if the chain is not encrypted at all.
@@ -0,0 +1,218 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionOutput;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>A {@link CoinSelector} that avoids change outputs where it can. It first searches for a set of outputs whose value
+ * is at least the target and exceeds it by no more than the cost of change, using depth first branch and bound with a
+ * limit on the number of tries and on the time taken. Such a set needs no change output. The default cost of change is
+ * just below {@link Transaction#MIN_NONDUST_OUTPUT}, so that the wallet adds what is left over to the fee. If there is
+ * no such set or the search runs out of time, it falls back to the smallest single output that covers the target, and
+ * otherwise to the largest outputs first.</p>
+ *
+ * <p>Which transactions can be spent from is decided by {@link #shouldSelect(Transaction)}, as in the default
+ * selector. A {@link Wallet} that uses this selector keeps the outputs it would pick in value order as they come and
+ * go, and hands them over as such, so that they aren't filtered and sorted again on every send.</p>
+ */
+public class BranchAndBoundCoinSelector extends DefaultCoinSelector {
+    /** The default cost of change, the largest excess that is dust. */
+    public static final Coin DEFAULT_COST_OF_CHANGE = Transaction.MIN_NONDUST_OUTPUT.subtract(Coin.SATOSHI);
+    /** The default time the search for a set without change may take. */
+    public static final long DEFAULT_TIME_BUDGET_MILLIS = 50;
+
+    private static final int MAX_TRIES = 100000;
+    // How often the search looks at the clock.
+    private static final int TRIES_PER_CLOCK_CHECK = 1024;
+
+    // Largest value first, then by outpoint so that distinct outputs never compare as equal.
+    static final Comparator<TransactionOutput> BY_VALUE = new Comparator<TransactionOutput>() {
+        @Override
+        public int compare(TransactionOutput a, TransactionOutput b) {
+            int c = b.getValue().compareTo(a.getValue());
+            if (c != 0)
+                return c;
+            c = a.getParentTransactionHash().compareTo(b.getParentTransactionHash());
+            if (c != 0)
+                return c;
+            return Integer.compare(a.getIndex(), b.getIndex());
+        }
+    };
+
+    /** Candidates that {@link #shouldSelect(Transaction)} all accepts, in {@link #BY_VALUE} order. */
+    static final class ValueOrderedCandidates extends ArrayList<TransactionOutput> {
+        ValueOrderedCandidates(int initialCapacity) {
+            super(initialCapacity);
+        }
+    }
+
+    private final long costOfChange;
+    private final long timeBudgetNanos;
+
+    public BranchAndBoundCoinSelector() {
+        this(DEFAULT_COST_OF_CHANGE, DEFAULT_TIME_BUDGET_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param costOfChange how much a selection may exceed the target by and still be used without change
+     * @param timeBudget how long the search for such a selection may take before falling back
+     */
+    public BranchAndBoundCoinSelector(Coin costOfChange, long timeBudget, TimeUnit unit) {
+        checkArgument(costOfChange.signum() >= 0, "costOfChange must not be negative");
+        this.costOfChange = costOfChange.value;
+        this.timeBudgetNanos = unit.toNanos(timeBudget);
+    }
+
+    @Override
+    public CoinSelection select(Coin target, List<TransactionOutput> candidates) {
+        List<TransactionOutput> selectable;
+        if (candidates instanceof ValueOrderedCandidates) {
+            selectable = candidates;
+        } else {
+            selectable = new ArrayList<>(candidates.size());
+            for (TransactionOutput output : candidates) {
+                if (shouldSelect(output.getParentTransaction()))
+                    selectable.add(output);
+            }
+            Collections.sort(selectable, BY_VALUE);
+        }
+        int size = selectable.size();
+        TransactionOutput[] outputs = selectable.toArray(new TransactionOutput[size]);
+        long[] values = new long[size];
+        for (int i = 0; i < size; i++)
+            values[i] = outputs[i].getValue().value;
+
+        if (target.equals(NetworkParameters.MAX_MONEY)) {
+            // Asked for everything, to work out the balance.
+            return selection(outputs, values, allOf(size));
+        }
+        boolean[] selected = branchAndBound(values, target.value);
+        if (selected == null)
+            selected = fallback(values, target.value);
+        return selection(outputs, values, selected);
+    }
+
+    /**
+     * Searches for the selection that exceeds the target by the least, and by no more than the cost of change.
+     * Returns null if there is none, or none was found in time.
+     */
+    private boolean[] branchAndBound(long[] values, long target) {
+        int size = values.length;
+        long available = 0;
+        for (long value : values)
+            available += value;
+        if (available < target)
+            return null;
+        long deadline = System.nanoTime() + timeBudgetNanos;
+
+        boolean[] selection = new boolean[size];
+        int depth = 0;
+        long value = 0;
+        boolean[] best = null;
+        long bestWaste = Long.MAX_VALUE;
+        for (int tries = 0; tries < MAX_TRIES; tries++) {
+            if (tries % TRIES_PER_CLOCK_CHECK == 0 && tries > 0 && System.nanoTime() > deadline)
+                break;
+            boolean backtrack = false;
+            if (value + available < target || value > target + costOfChange) {
+                // Can't reach the target on this branch, or overshot it.
+                backtrack = true;
+            } else if (value >= target) {
+                long waste = value - target;
+                if (waste < bestWaste) {
+                    best = Arrays.copyOf(selection, size);
+                    bestWaste = waste;
+                    if (waste == 0)
+                        break;
+                }
+                backtrack = true;
+            }
+            if (backtrack) {
+                // Walk back to the last output that was included, and try excluding it instead.
+                while (depth > 0 && !selection[depth - 1]) {
+                    depth--;
+                    available += values[depth];
+                }
+                if (depth == 0)
+                    break;  // Searched everything.
+                selection[depth - 1] = false;
+                value -= values[depth - 1];
+            } else {
+                available -= values[depth];
+                // Including this output after excluding one of the same value would only repeat that branch.
+                if (depth > 0 && !selection[depth - 1] && values[depth] == values[depth - 1]) {
+                    selection[depth] = false;
+                } else {
+                    selection[depth] = true;
+                    value += values[depth];
+                }
+                depth++;
+            }
+        }
+        return best;
+    }
+
+    // The smallest output that covers the target on its own, or else the largest outputs until the target is covered.
+    private static boolean[] fallback(long[] values, long target) {
+        boolean[] selection = new boolean[values.length];
+        // Values are in descending order, so the last one that covers the target is the smallest such.
+        int single = -1;
+        for (int i = 0; i < values.length && values[i] >= target; i++)
+            single = i;
+        if (single >= 0) {
+            selection[single] = true;
+            return selection;
+        }
+        long total = 0;
+        for (int i = 0; i < values.length && total < target; i++) {
+            selection[i] = true;
+            total += values[i];
+        }
+        return selection;
+    }
+
+    private static boolean[] allOf(int size) {
+        boolean[] selection = new boolean[size];
+        Arrays.fill(selection, true);
+        return selection;
+    }
+
+    private static CoinSelection selection(TransactionOutput[] outputs, long[] values, boolean[] selected) {
+        List<TransactionOutput> gathered = new ArrayList<>();
+        long total = 0;
+        for (int i = 0; i < outputs.length; i++) {
+            if (selected[i]) {
+                gathered.add(outputs[i]);
+                total += values[i];
+            }
+        }
+        return new CoinSelection(Coin.valueOf(total), gathered);
+    }
+}
@@ -22,6 +22,7 @@ import org.bitcoinj.core.NetworkParameters;
 import org.bitcoinj.core.Utils;
 import org.bitcoinj.crypto.*;
 import org.bitcoinj.script.Script;
+import org.bitcoinj.utils.ParallelBatches;
 import org.bitcoinj.utils.Threading;
 import org.bitcoinj.wallet.listeners.KeyChainEventListener;
 
@@ -100,6 +101,12 @@ public class DeterministicKeyChain implements EncryptableKeyChain {
     private static final Logger log = LoggerFactory.getLogger(DeterministicKeyChain.class);
     public static final String DEFAULT_PASSPHRASE_FOR_MNEMONIC = "";
 
+    // Deriving keys in bulk (for lookahead or bulk issuance) is split across the thread pool with at least this many
+    // keys per worker, as every key costs an EC point multiplication.
+    private static final int MIN_KEYS_PER_DERIVATION_WORKER = 50;
+    private static final ParallelBatches DERIVATION_BATCHES = new ParallelBatches(Threading.THREAD_POOL,
+            MIN_KEYS_PER_DERIVATION_WORKER);
+
     protected final ReentrantLock lock = Threading.lock("DeterministicKeyChain");
 
     private DeterministicHierarchy hierarchy;
@@ -490,23 +497,31 @@ public class DeterministicKeyChain implements EncryptableKeyChain {
             List<DeterministicKey> lookahead = maybeLookAhead(parentKey, index, 0, 0);
             basicKeyChain.importKeys(lookahead);
             List<DeterministicKey> keys = new ArrayList<>(numberOfKeys);
-            for (int i = 0; i < numberOfKeys; i++) {
-                ImmutableList<ChildNumber> path = HDUtils.append(parentKey.getPath(), new ChildNumber(index - numberOfKeys + i, false));
-                DeterministicKey k = hierarchy.get(path, false, false);
-                // Just a last minute sanity check before we hand the key out to the app for usage. This isn't inspired
-                // by any real problem reports from bitcoinj users, but I've heard of cases via the grapevine of
-                // places that lost money due to bitflips causing addresses to not match keys. Of course in an
-                // environment with flaky RAM there's no real way to always win: bitflips could be introduced at any
-                // other layer. But as we're potentially retrieving from long term storage here, check anyway.
-                checkForBitFlip(k);
-                keys.add(k);
-            }
+            ImmutableList<ChildNumber> parentPath = parentKey.getPath();
+            for (int i = 0; i < numberOfKeys; i++)
+                keys.add(hierarchy.getChild(parentPath, new ChildNumber(index - numberOfKeys + i, false)));
+            // Just a last minute sanity check before we hand the key out to the app for usage. This isn't inspired
+            // by any real problem reports from bitcoinj users, but I've heard of cases via the grapevine of
+            // places that lost money due to bitflips causing addresses to not match keys. Of course in an
+            // environment with flaky RAM there's no real way to always win: bitflips could be introduced at any
+            // other layer. But as we're potentially retrieving from long term storage here, check anyway.
+            checkForBitFlips(keys);
             return keys;
         } finally {
             lock.unlock();
         }
     }
 
+    private void checkForBitFlips(final List<DeterministicKey> keys) {
+        DERIVATION_BATCHES.run(keys.size(), new ParallelBatches.Batch() {
+            @Override
+            public void run(int from, int to) {
+                for (int i = from; i < to; i++)
+                    checkForBitFlip(keys.get(i));
+            }
+        });
+    }
+
     private void checkForBitFlip(DeterministicKey k) {
         DeterministicKey parent = checkNotNull(k.getParent());
         byte[] rederived = HDKeyDerivation.deriveChildKeyBytesFromPublic(parent, k.getChildNumber(), HDKeyDerivation.PublicDeriveMode.WITH_INVERSION).keyBytes;
@@ -1161,7 +1176,16 @@ public class DeterministicKeyChain implements EncryptableKeyChain {
         List<DeterministicKey> result  = new ArrayList<>(needed);
         final Stopwatch watch = Stopwatch.createStarted();
         int nextChild = numChildren;
-        for (int i = 0; i < needed; i++) {
+        if (DERIVATION_BATCHES.numWorkers(needed) > 1) {
+            for (DeterministicKey key : deriveChildrenInParallel(parent, nextChild, needed)) {
+                hierarchy.putKey(key);
+                result.add(key);
+            }
+            nextChild += needed;
+        }
+        // Derive whatever is left serially. This is everything for small batches, or the replacements for the rare
+        // children that turned out to be invalid in a parallel batch.
+        while (result.size() < needed) {
             DeterministicKey key = HDKeyDerivation.deriveThisOrNextChildKey(parent, nextChild);
             key = key.dropPrivateBytes();
             hierarchy.putKey(key);
@@ -1173,6 +1197,32 @@ public class DeterministicKeyChain implements EncryptableKeyChain {
         return result;
     }
 
+    /**
+     * Derives the children {@code firstChild} to {@code firstChild + count - 1} of the given parent on
+     * {@link Threading#THREAD_POOL}, without private key bytes. Children which are invalid according to BIP 32 are
+     * skipped, so the result can be shorter than {@code count}; it is always in child number order.
+     */
+    private static List<DeterministicKey> deriveChildrenInParallel(final DeterministicKey parent, final int firstChild, int count) {
+        final DeterministicKey[] derived = new DeterministicKey[count];
+        DERIVATION_BATCHES.run(count, new ParallelBatches.Batch() {
+            @Override
+            public void run(int from, int to) {
+                for (int i = from; i < to; i++) {
+                    try {
+                        derived[i] = HDKeyDerivation.deriveChildKey(parent, new ChildNumber(firstChild + i, false)).dropPrivateBytes();
+                    } catch (HDDerivationException e) {
+                        // Leave a gap, exactly as deriveThisOrNextChildKey would skip this child.
+                    }
+                }
+            }
+        });
+        List<DeterministicKey> result = new ArrayList<>(count);
+        for (DeterministicKey key : derived)
+            if (key != null)
+                result.add(key);
+        return result;
+    }
+
     /** Housekeeping call to call when lookahead might be needed.  Normally called automatically by KeychainGroup. */
     public void maybeLookAheadScripts() {
     }
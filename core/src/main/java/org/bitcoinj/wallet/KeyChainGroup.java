@@ -31,6 +31,7 @@ import javax.annotation.*;
 import java.security.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static com.google.common.base.Preconditions.*;
 
@@ -73,6 +74,20 @@ public class KeyChainGroup implements KeyBag {
     @Nullable private KeyCrypter keyCrypter;
     private int lookaheadSize = -1;
     private int lookaheadThreshold = -1;
+    // Counts changes to the keys, so that copies of them kept elsewhere can tell they are out of date without locking.
+    // Keys added to the chains are also passed on to the key observers, so such copies can be kept up to date instead.
+    // Chains that are added or replaced can bring any keys, which only the chain change count tells.
+    private final AtomicLong keyChanges = new AtomicLong();
+    private final AtomicLong chainChanges = new AtomicLong();
+    private final CopyOnWriteArrayList<KeyChainEventListener> keyObservers = new CopyOnWriteArrayList<>();
+    private final KeyChainEventListener keyChangeCounter = new KeyChainEventListener() {
+        @Override
+        public void onKeysAdded(List<ECKey> keys) {
+            keyChanges.incrementAndGet();
+            for (KeyChainEventListener observer : keyObservers)
+                observer.onKeysAdded(keys);
+        }
+    };
 
     /** Creates a keychain group with no basic chain, and a single, lazily created HD chain. */
     public KeyChainGroup(NetworkParameters params) {
@@ -103,6 +118,7 @@ public class KeyChainGroup implements KeyBag {
                 ? new EnumMap<KeyChain.KeyPurpose, DeterministicKey>(KeyChain.KeyPurpose.class)
                 : currentKeys;
         this.currentAddresses = new EnumMap<>(KeyChain.KeyPurpose.class);
+        countKeyChanges();
         maybeLookaheadScripts();
 
         if (isMarried()) {
@@ -140,6 +156,8 @@ public class KeyChainGroup implements KeyBag {
         if (lookaheadThreshold >= 0)
             chain.setLookaheadThreshold(lookaheadThreshold);
         chains.add(chain);
+        // The chain may hold keys already, which no event announces.
+        countChainChange();
     }
 
     /**
@@ -238,6 +256,25 @@ public class KeyChainGroup implements KeyBag {
         }
     }
 
+    /**
+     * Returns addresses for {@code numberOfAddresses} fresh keys in one go. For normal chains the keys are reserved
+     * with a single {@link DeterministicKeyChain#getKeys(KeyChain.KeyPurpose, int)} call, so lookahead runs once and
+     * listeners see a single batch of new keys. Married chains hand out one P2SH script at a time.
+     */
+    public List<Address> freshAddresses(KeyChain.KeyPurpose purpose, int numberOfAddresses) {
+        checkArgument(numberOfAddresses > 0);
+        DeterministicKeyChain chain = getActiveKeyChain();
+        List<Address> addresses = new ArrayList<>(numberOfAddresses);
+        if (chain.isMarried()) {
+            for (int i = 0; i < numberOfAddresses; i++)
+                addresses.add(freshAddress(purpose));
+        } else {
+            for (DeterministicKey key : freshKeys(purpose, numberOfAddresses))
+                addresses.add(key.toAddress(params));
+        }
+        return addresses;
+    }
+
     /** Returns the key chain that's used for generation of fresh/current keys. This is always the newest HD chain. */
     public final DeterministicKeyChain getActiveKeyChain() {
         if (chains.isEmpty()) {
@@ -503,6 +540,7 @@ public class KeyChainGroup implements KeyBag {
         basic = newBasic;
         chains.clear();
         chains.addAll(newChains);
+        countKeyChanges();
     }
 
     /**
@@ -523,6 +561,7 @@ public class KeyChainGroup implements KeyBag {
         basic = newBasic;
         chains.clear();
         chains.addAll(newChains);
+        countKeyChanges();
     }
 
     /** Returns true if the group is encrypted. */
@@ -734,7 +773,9 @@ public class KeyChainGroup implements KeyBag {
         if (aesKey != null) {
             chain = chain.toEncrypted(checkNotNull(basic.getKeyCrypter()), aesKey);
         }
+        chain.addEventListener(keyChangeCounter, Threading.SAME_THREAD);
         chains.add(chain);
+        countChainChange();
         return chain;
     }
 
@@ -813,4 +854,46 @@ public class KeyChainGroup implements KeyBag {
             epoch += chain.getKeyLookaheadEpoch();
         return epoch;
     }
+
+    /**
+     * Returns a number that goes up whenever keys are added to the group, so that anything worked out from the keys
+     * can tell it is out of date without taking a lock. Keys that are removed don't count.
+     */
+    public long getKeyChangeCount() {
+        return keyChanges.get();
+    }
+
+    /**
+     * Returns a number that goes up whenever chains are added to the group or replaced, which is when keys can appear
+     * without being passed to the observers added with {@link #addKeyObserver(KeyChainEventListener)}.
+     */
+    long getChainChangeCount() {
+        return chainChanges.get();
+    }
+
+    /**
+     * Passes the keys added to the chains of the group from now on to the given observer, on the thread that adds
+     * them and without locking the group, until it is removed again.
+     */
+    void addKeyObserver(KeyChainEventListener observer) {
+        keyObservers.add(observer);
+    }
+
+    void removeKeyObserver(KeyChainEventListener observer) {
+        keyObservers.remove(observer);
+    }
+
+    // Counts the keys added to the chains from now on. Chains added with addAndActivateHDChain() get the listener
+    // from the basic chain.
+    private void countKeyChanges() {
+        basic.addEventListener(keyChangeCounter, Threading.SAME_THREAD);
+        for (DeterministicKeyChain chain : chains)
+            chain.addEventListener(keyChangeCounter, Threading.SAME_THREAD);
+        countChainChange();
+    }
+
+    private void countChainChange() {
+        chainChanges.incrementAndGet();
+        keyChanges.incrementAndGet();
+    }
 }
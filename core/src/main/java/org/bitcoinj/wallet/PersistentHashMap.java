@@ -0,0 +1,440 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import javax.annotation.Nullable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayDeque;
+import java.util.ConcurrentModificationException;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * <p>A hash map that can hand out a copy of itself in constant time, which is how a {@link Wallet} publishes a
+ * {@link WalletSnapshot} of its pools after every change without copying them.</p>
+ *
+ * <p>The entries are kept in a trie of the key hashes, 32 ways per level, whose nodes never change once built. A
+ * change builds new nodes along the path to the key and shares the rest of the trie with the copies handed out
+ * before, so it takes time and memory in the order of the depth of the trie, which is about log32 of the size.</p>
+ *
+ * <p>Not thread safe, but the copies returned by {@link #snapshot()} never change and can be read from any
+ * thread.</p>
+ */
+class PersistentHashMap<K, V> extends AbstractMap<K, V> {
+    private static final int BITS = 5;
+    private static final Node EMPTY = new Node(0, new Object[0]);
+
+    // One level of the trie. Each slot holds a Node, a Leaf, or a Collision, for the keys whose hashes have the slot's
+    // bits at this level. Only the slots that are used are there, in the order of their bits in the bitmap.
+    private static final class Node {
+        final int bitmap;
+        final Object[] slots;
+
+        Node(int bitmap, Object[] slots) {
+            this.bitmap = bitmap;
+            this.slots = slots;
+        }
+    }
+
+    private static final class Leaf<K, V> extends SimpleImmutableEntry<K, V> {
+        final int hash;
+
+        Leaf(int hash, K key, V value) {
+            super(key, value);
+            this.hash = hash;
+        }
+    }
+
+    // Leaves for different keys that have the same hash.
+    private static final class Collision {
+        final int hash;
+        final Leaf[] leaves;
+
+        Collision(int hash, Leaf[] leaves) {
+            this.hash = hash;
+            this.leaves = leaves;
+        }
+    }
+
+    private Node root;
+    private int size;
+    private final boolean frozen;
+    // Counts changes, so that iterators notice the map changing under them.
+    private int modCount;
+
+    PersistentHashMap() {
+        this(EMPTY, 0, false);
+    }
+
+    private PersistentHashMap(Node root, int size, boolean frozen) {
+        this.root = root;
+        this.size = size;
+        this.frozen = frozen;
+    }
+
+    /** Returns an unmodifiable copy of the current entries, which later changes to this map don't affect. */
+    Map<K, V> snapshot() {
+        if (frozen)
+            return this;
+        return new PersistentHashMap<>(root, size, true);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return find(key) != null;
+    }
+
+    @Override
+    public V get(Object key) {
+        Leaf<K, V> leaf = find(key);
+        return leaf != null ? leaf.getValue() : null;
+    }
+
+    @Override
+    public V put(K key, V value) {
+        checkModifiable();
+        Leaf[] previous = new Leaf[1];
+        Node newRoot = put(root, 0, new Leaf<>(hash(key), key, value), previous);
+        if (newRoot != root) {
+            root = newRoot;
+            modCount++;
+        }
+        if (previous[0] == null)
+            size++;
+        return previous[0] != null ? (V) previous[0].getValue() : null;
+    }
+
+    @Override
+    public V remove(Object key) {
+        checkModifiable();
+        Leaf[] previous = new Leaf[1];
+        Node newRoot = remove(root, 0, hash(key), key, previous);
+        if (previous[0] == null)
+            return null;
+        root = newRoot;
+        size--;
+        modCount++;
+        return (V) previous[0].getValue();
+    }
+
+    @Override
+    public void clear() {
+        checkModifiable();
+        root = EMPTY;
+        size = 0;
+        modCount++;
+    }
+
+    @Override
+    public Set<Entry<K, V>> entrySet() {
+        return new AbstractSet<Entry<K, V>>() {
+            @Override
+            public Iterator<Entry<K, V>> iterator() {
+                return new EntryIterator();
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                if (!(o instanceof Entry))
+                    return false;
+                Entry<?, ?> entry = (Entry<?, ?>) o;
+                Leaf<K, V> leaf = find(entry.getKey());
+                return leaf != null && leaf.equals(entry);
+            }
+
+            @Override
+            public boolean remove(Object o) {
+                if (!contains(o))
+                    return false;
+                PersistentHashMap.this.remove(((Entry<?, ?>) o).getKey());
+                return true;
+            }
+
+            @Override
+            public void clear() {
+                PersistentHashMap.this.clear();
+            }
+        };
+    }
+
+    private void checkModifiable() {
+        if (frozen)
+            throw new UnsupportedOperationException("Snapshots can't be changed");
+    }
+
+    private static int hash(Object key) {
+        int h = key != null ? key.hashCode() : 0;
+        // Spread the high bits down, as the lower levels of the trie only look at the low bits.
+        return h ^ (h >>> 16);
+    }
+
+    private static int bit(int hash, int shift) {
+        return 1 << ((hash >>> shift) & ((1 << BITS) - 1));
+    }
+
+    private static int index(int bitmap, int bit) {
+        return Integer.bitCount(bitmap & (bit - 1));
+    }
+
+    private static boolean keysEqual(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    @Nullable
+    private Leaf<K, V> find(Object key) {
+        int hash = hash(key);
+        Node node = root;
+        for (int shift = 0; ; shift += BITS) {
+            int bit = bit(hash, shift);
+            if ((node.bitmap & bit) == 0)
+                return null;
+            Object slot = node.slots[index(node.bitmap, bit)];
+            if (slot instanceof Node) {
+                node = (Node) slot;
+            } else if (slot instanceof Leaf) {
+                Leaf<K, V> leaf = (Leaf<K, V>) slot;
+                return leaf.hash == hash && keysEqual(leaf.getKey(), key) ? leaf : null;
+            } else {
+                Collision collision = (Collision) slot;
+                if (collision.hash != hash)
+                    return null;
+                for (Leaf leaf : collision.leaves)
+                    if (keysEqual(leaf.getKey(), key))
+                        return leaf;
+                return null;
+            }
+        }
+    }
+
+    // Returns the node with the leaf added, or replacing the one for the same key, which goes to previous[0].
+    private static Node put(Node node, int shift, Leaf leaf, Leaf[] previous) {
+        int bit = bit(leaf.hash, shift);
+        int index = index(node.bitmap, bit);
+        if ((node.bitmap & bit) == 0) {
+            Object[] slots = new Object[node.slots.length + 1];
+            System.arraycopy(node.slots, 0, slots, 0, index);
+            slots[index] = leaf;
+            System.arraycopy(node.slots, index, slots, index + 1, node.slots.length - index);
+            return new Node(node.bitmap | bit, slots);
+        }
+        Object slot = node.slots[index];
+        Object replacement;
+        if (slot instanceof Node) {
+            replacement = put((Node) slot, shift + BITS, leaf, previous);
+        } else if (slot instanceof Leaf) {
+            Leaf existing = (Leaf) slot;
+            if (existing.hash == leaf.hash && keysEqual(existing.getKey(), leaf.getKey())) {
+                previous[0] = existing;
+                if (existing.getValue() == leaf.getValue())
+                    return node;
+                replacement = leaf;
+            } else if (existing.hash == leaf.hash) {
+                replacement = new Collision(leaf.hash, new Leaf[] { existing, leaf });
+            } else {
+                replacement = pair(shift + BITS, existing, existing.hash, leaf, leaf.hash);
+            }
+        } else {
+            Collision collision = (Collision) slot;
+            if (collision.hash == leaf.hash)
+                replacement = put(collision, leaf, previous);
+            else
+                replacement = pair(shift + BITS, collision, collision.hash, leaf, leaf.hash);
+        }
+        if (replacement == slot)
+            return node;
+        Object[] slots = node.slots.clone();
+        slots[index] = replacement;
+        return new Node(node.bitmap, slots);
+    }
+
+    private static Collision put(Collision collision, Leaf leaf, Leaf[] previous) {
+        Leaf[] leaves = collision.leaves;
+        for (int i = 0; i < leaves.length; i++) {
+            if (keysEqual(leaves[i].getKey(), leaf.getKey())) {
+                previous[0] = leaves[i];
+                if (leaves[i].getValue() == leaf.getValue())
+                    return collision;
+                leaves = leaves.clone();
+                leaves[i] = leaf;
+                return new Collision(collision.hash, leaves);
+            }
+        }
+        Leaf[] added = new Leaf[leaves.length + 1];
+        System.arraycopy(leaves, 0, added, 0, leaves.length);
+        added[leaves.length] = leaf;
+        return new Collision(collision.hash, added);
+    }
+
+    // Returns a node holding the two slots, whose hashes differ but may share the bits of this level.
+    private static Node pair(int shift, Object a, int hashA, Object b, int hashB) {
+        int bitA = bit(hashA, shift);
+        int bitB = bit(hashB, shift);
+        if (bitA == bitB)
+            return new Node(bitA, new Object[] { pair(shift + BITS, a, hashA, b, hashB) });
+        // The slots go in the order of their bits.
+        boolean aFirst = index(bitA, bitB) == 1;
+        return new Node(bitA | bitB, aFirst ? new Object[] { a, b } : new Object[] { b, a });
+    }
+
+    // Returns the node without the key, whose leaf goes to previous[0], or the same node if the key isn't there.
+    private static Node remove(Node node, int shift, int hash, Object key, Leaf[] previous) {
+        int bit = bit(hash, shift);
+        if ((node.bitmap & bit) == 0)
+            return node;
+        int index = index(node.bitmap, bit);
+        Object slot = node.slots[index];
+        Object replacement;
+        if (slot instanceof Node) {
+            Node child = remove((Node) slot, shift + BITS, hash, key, previous);
+            if (child == slot)
+                return node;
+            // A node left with a single leaf or collision is replaced by it, so that the trie stays as shallow as if
+            // the removed key had never been there.
+            if (child.slots.length == 1 && !(child.slots[0] instanceof Node))
+                replacement = child.slots[0];
+            else
+                replacement = child.slots.length == 0 ? null : child;
+        } else if (slot instanceof Leaf) {
+            Leaf leaf = (Leaf) slot;
+            if (leaf.hash != hash || !keysEqual(leaf.getKey(), key))
+                return node;
+            previous[0] = leaf;
+            replacement = null;
+        } else {
+            Collision collision = (Collision) slot;
+            if (collision.hash != hash)
+                return node;
+            replacement = remove(collision, key, previous);
+            if (replacement == collision)
+                return node;
+        }
+        if (replacement != null) {
+            Object[] slots = node.slots.clone();
+            slots[index] = replacement;
+            return new Node(node.bitmap, slots);
+        }
+        if (node.slots.length == 1)
+            return EMPTY;
+        Object[] slots = new Object[node.slots.length - 1];
+        System.arraycopy(node.slots, 0, slots, 0, index);
+        System.arraycopy(node.slots, index + 1, slots, index, slots.length - index);
+        return new Node(node.bitmap & ~bit, slots);
+    }
+
+    // Returns the collision without the key, or the single leaf left.
+    private static Object remove(Collision collision, Object key, Leaf[] previous) {
+        Leaf[] leaves = collision.leaves;
+        for (int i = 0; i < leaves.length; i++) {
+            if (keysEqual(leaves[i].getKey(), key)) {
+                previous[0] = leaves[i];
+                if (leaves.length == 2)
+                    return leaves[1 - i];
+                Leaf[] remaining = new Leaf[leaves.length - 1];
+                System.arraycopy(leaves, 0, remaining, 0, i);
+                System.arraycopy(leaves, i + 1, remaining, i, remaining.length - i);
+                return new Collision(collision.hash, remaining);
+            }
+        }
+        return collision;
+    }
+
+    // Walks the trie as it was when the iterator was made. Removing through the iterator changes the map, and the
+    // iterator carries on over the trie it started with.
+    private class EntryIterator implements Iterator<Entry<K, V>> {
+        private final Deque<Object[]> slotStack = new ArrayDeque<>();
+        private final Deque<Integer> indexStack = new ArrayDeque<>();
+        private Object[] leaves = new Object[0];
+        private int leafIndex;
+        @Nullable private Leaf<K, V> next;
+        @Nullable private Leaf<K, V> last;
+        private int expectedModCount = modCount;
+
+        EntryIterator() {
+            slotStack.push(root.slots);
+            indexStack.push(0);
+            next = advance();
+        }
+
+        @Nullable
+        private Leaf<K, V> advance() {
+            if (leafIndex < leaves.length)
+                return (Leaf<K, V>) leaves[leafIndex++];
+            while (!slotStack.isEmpty()) {
+                Object[] slots = slotStack.peek();
+                int index = indexStack.pop();
+                if (index == slots.length) {
+                    slotStack.pop();
+                    continue;
+                }
+                indexStack.push(index + 1);
+                Object slot = slots[index];
+                if (slot instanceof Node) {
+                    slotStack.push(((Node) slot).slots);
+                    indexStack.push(0);
+                } else if (slot instanceof Leaf) {
+                    return (Leaf<K, V>) slot;
+                } else {
+                    leaves = ((Collision) slot).leaves;
+                    leafIndex = 1;
+                    return (Leaf<K, V>) leaves[0];
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Entry<K, V> next() {
+            if (modCount != expectedModCount)
+                throw new ConcurrentModificationException();
+            if (next == null)
+                throw new NoSuchElementException();
+            last = next;
+            next = advance();
+            return last;
+        }
+
+        @Override
+        public void remove() {
+            if (last == null)
+                throw new IllegalStateException();
+            if (modCount != expectedModCount)
+                throw new ConcurrentModificationException();
+            PersistentHashMap.this.remove(last.getKey());
+            expectedModCount = modCount;
+            last = null;
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.ScriptException;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.wallet.listeners.KeyChainEventListener;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.protobuf.ByteString;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>A copy of the keys and watched scripts of a {@link Wallet}, for telling without any lock that a transaction
+ * can't be relevant to it. It answers the question of {@link Wallet#isTransactionRelevant(Transaction)} with either
+ * "no" or "maybe": an output can only be ours if it pays to one of the keys or scripts, and an input can only spend
+ * from the wallet or double spend one of its transactions if its outpoint is in the wallet's latest
+ * {@link WalletSnapshot}.</p>
+ *
+ * <p>Keys added to the chains of the group later are added to the filter as they come, by a key observer on the
+ * group. The watched scripts never change. The wallet makes a new filter when
+ * {@link KeyChainGroup#getChainChangeCount()} shows that chains were added or replaced, or when the watched scripts
+ * change, and must {@link #close()} the old one.</p>
+ */
+final class RelevanceFilter {
+    private final KeyChainGroup keyChainGroup;
+    private final long chainChangeCount;
+    private final Set<ByteString> pubKeys = Collections.newSetFromMap(new ConcurrentHashMap<ByteString, Boolean>());
+    private final Set<ByteString> pubKeyHashes = Collections.newSetFromMap(new ConcurrentHashMap<ByteString, Boolean>());
+    private final Set<Script> watchedScripts;
+    // Married chains have pay to script hash outputs of their own, which are all let through.
+    private final boolean married;
+    private final KeyChainEventListener keyObserver = new KeyChainEventListener() {
+        @Override
+        public void onKeysAdded(List<ECKey> keys) {
+            addKeys(keys);
+        }
+    };
+
+    private RelevanceFilter(KeyChainGroup keyChainGroup, long chainChangeCount, Set<Script> watchedScripts,
+                            boolean married) {
+        this.keyChainGroup = keyChainGroup;
+        this.chainChangeCount = chainChangeCount;
+        this.watchedScripts = watchedScripts;
+        this.married = married;
+    }
+
+    /**
+     * Copies the keys of the group, including lookahead keys, and the given watched scripts, and keeps adding the keys
+     * added to the group until {@link #close()}d. Must be called with the key chain group locked.
+     */
+    static RelevanceFilter of(KeyChainGroup keyChainGroup, Collection<Script> watchedScripts) {
+        // Read first, so that chains replaced while copying make the copy out of date.
+        long chainChangeCount = keyChainGroup.getChainChangeCount();
+        boolean married = false;
+        for (DeterministicKeyChain chain : keyChainGroup.getDeterministicKeyChains())
+            married |= chain.isMarried();
+        RelevanceFilter filter = new RelevanceFilter(keyChainGroup, chainChangeCount,
+                ImmutableSet.copyOf(watchedScripts), married);
+        // Observe first, so that no key added while copying is missed. Keys seen twice are only added once.
+        keyChainGroup.addKeyObserver(filter.keyObserver);
+        filter.addKeys(keyChainGroup.getImportedKeys());
+        for (DeterministicKeyChain chain : keyChainGroup.getDeterministicKeyChains())
+            filter.addKeys(chain.getKeys(true, true));
+        return filter;
+    }
+
+    private void addKeys(Collection<? extends ECKey> keys) {
+        for (ECKey key : keys) {
+            pubKeys.add(ByteString.copyFrom(key.getPubKey()));
+            pubKeyHashes.add(ByteString.copyFrom(key.getPubKeyHash()));
+        }
+    }
+
+    /** Returns true if chains were added to the group or replaced since this filter was made. Doesn't lock. */
+    boolean isOutOfDate() {
+        return keyChainGroup.getChainChangeCount() != chainChangeCount;
+    }
+
+    /** Stops adding the keys added to the group. The filter may miss keys from then on. */
+    void close() {
+        keyChainGroup.removeKeyObserver(keyObserver);
+    }
+
+    /**
+     * Returns false if the transaction can't be relevant to the wallet the filter was made from, given the wallet's
+     * transactions in the snapshot.
+     */
+    boolean mayBeRelevant(Transaction tx, WalletSnapshot snapshot) {
+        for (TransactionOutput output : tx.getOutputs()) {
+            if (mayBeMineOrWatched(output))
+                return true;
+        }
+        if (tx.isCoinBase())
+            return false;
+        for (TransactionInput input : tx.getInputs()) {
+            TransactionOutPoint outpoint = input.getOutpoint();
+            if (snapshot.getTransaction(outpoint.getHash()) != null)
+                return true;
+            if (snapshot.isSpent(outpoint))
+                return true;
+        }
+        return false;
+    }
+
+    // As TransactionOutput.isMineOrWatched(), against the copies.
+    private boolean mayBeMineOrWatched(TransactionOutput output) {
+        Script script;
+        try {
+            script = output.getScriptPubKey();
+        } catch (ScriptException e) {
+            return false;
+        }
+        if (watchedScripts.contains(script))
+            return true;
+        try {
+            if (script.isSentToRawPubKey())
+                return pubKeys.contains(ByteString.copyFrom(script.getPubKey()));
+            if (script.isPayToScriptHash())
+                return married;
+            return pubKeyHashes.contains(ByteString.copyFrom(script.getPubKeyHash()));
+        } catch (ScriptException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionOutput;
+
+import javax.annotation.Nullable;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * The outputs a {@link Wallet} could spend, as kept in {@link Wallet#myUnspents}, together with the running totals
+ * that {@link Wallet#getBalance(Wallet.BalanceType)} returns for {@link Wallet.BalanceType#ESTIMATED} and
+ * {@link Wallet.BalanceType#AVAILABLE}. The totals follow every output that is added or removed; the wallet tells it
+ * when a transaction's confidence or maturity may have changed, and when it gets a different coin selector.
+ *
+ * <p>The available total is what the coin selector would gather if asked for everything. That can be worked out one
+ * output at a time for a {@link DefaultCoinSelector} that only customizes
+ * {@link DefaultCoinSelector#shouldSelect(Transaction)}; for other selectors there is no available total, and the
+ * wallet asks the selector instead. A {@link BranchAndBoundCoinSelector} that only customizes
+ * {@link DefaultCoinSelector#shouldSelect(Transaction)} is predictable in the same way, and the available outputs are
+ * kept largest value first for it to walk.</p>
+ *
+ * <p>Not thread safe, it is guarded by the wallet lock. The totals last {@link #publish()}ed can be read without it.</p>
+ */
+class SpendableOutputs extends HashSet<TransactionOutput> {
+    /** The totals at one point in time. */
+    static class Totals {
+        final Coin estimated;
+        // Null if the coin selector can't be predicted output by output.
+        @Nullable final Coin available;
+        // The coin selector the available total is for.
+        @Nullable final CoinSelector coinSelector;
+
+        Totals(Coin estimated, @Nullable Coin available, @Nullable CoinSelector coinSelector) {
+            this.estimated = estimated;
+            this.available = available;
+            this.coinSelector = coinSelector;
+        }
+
+        /** Returns the available total if it is for the given coin selector, or null. */
+        @Nullable
+        Coin getAvailable(CoinSelector coinSelector) {
+            return coinSelector == this.coinSelector ? available : null;
+        }
+    }
+
+    // The same outputs, in a map that hands out copies for wallet snapshots without copying.
+    private final PersistentHashMap<TransactionOutput, Boolean> shared = new PersistentHashMap<>();
+    // The outputs the coin selector would pick, and which are mature, largest value first.
+    private final NavigableSet<TransactionOutput> available = new TreeSet<>(BranchAndBoundCoinSelector.BY_VALUE);
+    private long estimatedValue;
+    private long availableValue;
+    @Nullable private CoinSelector coinSelector;
+    // The coin selector if it is predictable, otherwise null.
+    @Nullable private DefaultCoinSelector selector;
+    private volatile Totals published = new Totals(Coin.ZERO, null, null);
+
+    @Override
+    public boolean add(TransactionOutput output) {
+        if (!super.add(output))
+            return false;
+        shared.put(output, Boolean.TRUE);
+        estimatedValue += output.getValue().value;
+        if (isAvailable(output)) {
+            available.add(output);
+            availableValue += output.getValue().value;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (!super.remove(o))
+            return false;
+        removed((TransactionOutput) o);
+        return true;
+    }
+
+    @Override
+    public void clear() {
+        super.clear();
+        shared.clear();
+        available.clear();
+        estimatedValue = 0;
+        availableValue = 0;
+    }
+
+    @Override
+    public Iterator<TransactionOutput> iterator() {
+        final Iterator<TransactionOutput> iterator = super.iterator();
+        return new Iterator<TransactionOutput>() {
+            private TransactionOutput last;
+
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public TransactionOutput next() {
+                return last = iterator.next();
+            }
+
+            @Override
+            public void remove() {
+                iterator.remove();
+                removed(last);
+            }
+        };
+    }
+
+    private void removed(TransactionOutput output) {
+        shared.remove(output);
+        estimatedValue -= output.getValue().value;
+        if (available.remove(output))
+            availableValue -= output.getValue().value;
+    }
+
+    /** Re-evaluates the outputs of the given transaction after its confidence or depth changed. */
+    void update(Transaction tx) {
+        for (TransactionOutput output : tx.getOutputs()) {
+            if (!contains(output))
+                continue;
+            boolean wasAvailable = available.contains(output);
+            if (isAvailable(output) != wasAvailable) {
+                if (wasAvailable) {
+                    available.remove(output);
+                    availableValue -= output.getValue().value;
+                } else {
+                    available.add(output);
+                    availableValue += output.getValue().value;
+                }
+            }
+        }
+    }
+
+    /** Sets the coin selector the available total is for, and works it out again. */
+    void setCoinSelector(CoinSelector coinSelector) {
+        this.coinSelector = coinSelector;
+        selector = isPredictable(coinSelector) ? (DefaultCoinSelector) coinSelector : null;
+        recount();
+    }
+
+    /** Works out the available total from scratch, for when confidences changed without the wallet telling. */
+    void recount() {
+        available.clear();
+        availableValue = 0;
+        for (TransactionOutput output : this) {
+            if (isAvailable(output)) {
+                available.add(output);
+                availableValue += output.getValue().value;
+            }
+        }
+    }
+
+    /**
+     * Returns the outputs the given coin selector would pick and which are mature, largest value first, or null if
+     * they aren't tracked for it. The set is live and must only be read with the wallet lock held.
+     */
+    @Nullable
+    Set<TransactionOutput> getAvailable(CoinSelector coinSelector) {
+        if (selector == null || coinSelector != this.coinSelector)
+            return null;
+        return Collections.unmodifiableSet(available);
+    }
+
+    /** Returns the current totals. */
+    Totals getTotals() {
+        return new Totals(Coin.valueOf(estimatedValue), selector != null ? Coin.valueOf(availableValue) : null,
+                coinSelector);
+    }
+
+    /** Returns an unmodifiable copy of the outputs, which later changes don't affect. Takes constant time. */
+    Set<TransactionOutput> snapshot() {
+        return shared.snapshot().keySet();
+    }
+
+    /** Makes the current totals the ones {@link #getPublishedTotals()} returns. */
+    void publish() {
+        published = getTotals();
+    }
+
+    /** Returns the totals as of the last call to {@link #publish()}. Doesn't need the wallet lock. */
+    Totals getPublishedTotals() {
+        return published;
+    }
+
+    private boolean isAvailable(TransactionOutput output) {
+        if (selector == null)
+            return false;
+        Transaction tx = output.getParentTransaction();
+        return selector.shouldSelect(tx) && (tx == null || tx.isMature());
+    }
+
+    private static boolean isPredictable(CoinSelector coinSelector) {
+        if (!(coinSelector instanceof DefaultCoinSelector))
+            return false;
+        try {
+            Class<?> selectDeclaredBy =
+                    coinSelector.getClass().getMethod("select", Coin.class, List.class).getDeclaringClass();
+            // Branch and bound selects everything selectable when asked for everything, as the default selector does.
+            return selectDeclaredBy == DefaultCoinSelector.class
+                    || selectDeclaredBy == BranchAndBoundCoinSelector.class;
+        } catch (NoSuchMethodException e) {
+            throw new RuntimeException(e);  // Can't happen.
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionInput;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>The inputs of the transactions in a {@link Wallet}, by the hash of the transaction whose output they spend. It
+ * tells which wallet transactions spend an outpoint without going through every transaction of a pool, which is what
+ * finding double spends and connecting pending transactions to a new one come down to.</p>
+ *
+ * <p>Inputs are kept per transaction hash rather than per outpoint, so a lookup needs no key of its own and the
+ * output index is compared as a number. A transaction rarely has more than a few of its outputs spent by the
+ * wallet.</p>
+ *
+ * <p>Not thread safe, it is guarded by the wallet lock. The copies returned by {@link #snapshot()} can be read from any
+ * thread.</p>
+ */
+class SpentOutPointIndex {
+    // The lists are never changed once in the map, but replaced, so that snapshots of the map can share them.
+    private final PersistentHashMap<Sha256Hash, List<TransactionInput>> inputs = new PersistentHashMap<>();
+
+    /** Adds the inputs of the given transaction. Coinbase transactions have none to add. */
+    void add(Transaction tx) {
+        if (tx.isCoinBase())
+            return;
+        for (TransactionInput input : tx.getInputs()) {
+            Sha256Hash hash = input.getOutpoint().getHash();
+            List<TransactionInput> spending = inputs.get(hash);
+            if (spending == null) {
+                inputs.put(hash, Collections.singletonList(input));
+            } else {
+                List<TransactionInput> added = new ArrayList<>(spending.size() + 1);
+                added.addAll(spending);
+                added.add(input);
+                inputs.put(hash, Collections.unmodifiableList(added));
+            }
+        }
+    }
+
+    /** Removes the inputs of the given transaction, as added by {@link #add(Transaction)}. */
+    void remove(Transaction tx) {
+        if (tx.isCoinBase())
+            return;
+        for (TransactionInput input : tx.getInputs()) {
+            Sha256Hash hash = input.getOutpoint().getHash();
+            List<TransactionInput> spending = inputs.get(hash);
+            if (spending == null)
+                continue;
+            List<TransactionInput> remaining = new ArrayList<>(spending.size());
+            for (TransactionInput other : spending) {
+                if (other != input)
+                    remaining.add(other);
+            }
+            if (remaining.isEmpty())
+                inputs.remove(hash);
+            else if (remaining.size() < spending.size())
+                inputs.put(hash, Collections.unmodifiableList(remaining));
+        }
+    }
+
+    void clear() {
+        inputs.clear();
+    }
+
+    /**
+     * Returns the inputs that spend an output of the transaction with the given hash, in the order they were added.
+     * The list must not be modified.
+     */
+    List<TransactionInput> getInputsSpending(Sha256Hash txHash) {
+        List<TransactionInput> spending = inputs.get(txHash);
+        return spending != null ? spending : Collections.<TransactionInput>emptyList();
+    }
+
+    /**
+     * Returns an unmodifiable copy of the inputs by the hash of the transaction they spend from, which later changes
+     * don't affect. Takes constant time.
+     */
+    Map<Sha256Hash, List<TransactionInput>> snapshot() {
+        return inputs.snapshot();
+    }
+
+    /** Returns the number of transactions that have outputs spent by the indexed inputs. */
+    int size() {
+        return inputs.size();
+    }
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.utils.ContextPropagatingThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.WireFormat;
+
+import javax.annotation.Nullable;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Loads large wallet files in two steps, so that the wallet can be used long before all of it has been read, and
+ * without holding both the parsed file and the wallet in memory at once as
+ * {@link Wallet#loadFromFile(File, WalletExtension...)} does.</p>
+ *
+ * <p>The first step streams through the file one transaction at a time. It keeps the keys, the unspent and pending
+ * transactions and the spent transactions that spend their outputs, and only notes where the rest of the spent and
+ * dead transactions are. The wallet it returns has its full balance and can spend, but its history is incomplete until
+ * {@link Wallet#isHistoryLoaded()} returns true. The second step adds the rest of the transactions in batches of up to
+ * a configurable number of bytes of the file, either on an executor or whenever the wallet needs them: saving the
+ * wallet and re-organizing first load whatever is left, on the calling thread. Each batch holds the wallet lock while
+ * it is read, so the budget bounds the pauses as well as the memory.</p>
+ *
+ * <p>The file must not be replaced until the history is loaded, which the wallet itself ensures when it saves. A
+ * journal written by {@link WalletFiles} is not replayed; use {@link WalletJournal#loadFromFile(File,
+ * WalletExtension...)} for wallets saved with journaling.</p>
+ */
+public class StreamingWalletLoader {
+    private static final Logger log = LoggerFactory.getLogger(StreamingWalletLoader.class);
+
+    /** The default number of bytes of deferred transactions that are read at a time. */
+    public static final int DEFAULT_HISTORY_BUDGET = 4 * 1024 * 1024;
+
+    private static final int TRANSACTION_TAG =
+            Protos.Wallet.TRANSACTION_FIELD_NUMBER << 3 | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+
+    private final Wallet wallet;
+    private final NetworkParameters params;
+    private final WalletProtobufSerializer serializer;
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final int historyBudget;
+    // Where the deferred transactions are in the file, in file order, and how many were added. Guarded by the
+    // wallet lock.
+    private final List<Extent> deferred;
+    private int next;
+
+    private static class Extent {
+        final int offset;
+        final int length;
+
+        Extent(int offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private StreamingWalletLoader(Wallet wallet, WalletProtobufSerializer serializer, RandomAccessFile file,
+                                  Map<ByteString, Extent> deferred, int historyBudget) {
+        this.wallet = wallet;
+        this.params = wallet.getParams();
+        this.serializer = serializer;
+        this.file = file;
+        this.channel = file.getChannel();
+        this.historyBudget = historyBudget;
+        this.deferred = new ArrayList<>(deferred.values());
+        // The transactions the loaded ones may spend from or be spent by.
+        for (Transaction tx : wallet.getTransactions(true))
+            serializer.txMap.put(WalletProtobufSerializer.hashToByteString(tx.getHash()), tx);
+    }
+
+    /**
+     * Loads the given wallet file with the {@link #DEFAULT_HISTORY_BUDGET}, adding the deferred transactions on a new
+     * background thread.
+     */
+    public static Wallet load(File walletFile, @Nullable WalletExtension... walletExtensions)
+            throws UnreadableWalletException {
+        Executor executor = new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                new ContextPropagatingThreadFactory("Wallet history loader").newThread(runnable).start();
+            }
+        };
+        return load(walletFile, DEFAULT_HISTORY_BUDGET, executor, walletExtensions);
+    }
+
+    /**
+     * Loads the given wallet file and returns as soon as the wallet is usable.
+     *
+     * @param historyBudget the number of bytes of deferred transactions to read at a time; at least the largest one is
+     *                      always read
+     * @param executor where to add the deferred transactions, or null to only add them once the wallet needs them or
+     *                 {@link Wallet#loadDeferredHistory()} is called
+     */
+    public static Wallet load(File walletFile, int historyBudget, @Nullable Executor executor,
+                              @Nullable WalletExtension... walletExtensions) throws UnreadableWalletException {
+        checkArgument(historyBudget > 0, "historyBudget must be positive");
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(walletFile, "r");
+            Map<ByteString, Extent> deferred = new LinkedHashMap<>();
+            Protos.Wallet walletProto = readWithoutHistory(walletFile, file.getChannel(), deferred);
+            String paramsID = walletProto.getNetworkIdentifier();
+            NetworkParameters params = NetworkParameters.fromID(paramsID);
+            if (params == null)
+                throw new UnreadableWalletException("Unknown network parameters ID " + paramsID);
+
+            WalletProtobufSerializer serializer = new WalletProtobufSerializer();
+            serializer.deferredSpends = new HashMap<>();
+            Wallet wallet = serializer.readWallet(params, walletExtensions, walletProto);
+            if (deferred.isEmpty()) {
+                file.close();
+                return wallet;
+            }
+            log.info("Loaded {} transactions, deferring {}", walletProto.getTransactionCount(), deferred.size());
+            final StreamingWalletLoader loader = new StreamingWalletLoader(wallet, serializer, file, deferred,
+                    historyBudget);
+            file = null;
+            wallet.setDeferredHistory(loader);
+            if (executor != null) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            while (loader.wallet.loadDeferredHistoryBatch()) ;
+                        } catch (IOException e) {
+                            log.error("Failed to load wallet history, it will be retried when the wallet is saved", e);
+                        }
+                    }
+                });
+            }
+            return wallet;
+        } catch (IOException e) {
+            throw new UnreadableWalletException("Could not parse wallet file", e);
+        } catch (IllegalStateException e) {
+            throw new UnreadableWalletException("Could not parse wallet file", e);
+        } catch (IllegalArgumentException e) {
+            throw new UnreadableWalletException("Could not parse wallet file", e);
+        } finally {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    log.warn("Failed to close wallet file", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Streams through the wallet file and returns all of it except the spent and dead transactions that are not needed
+     * right away, whose extents are put into the given map instead.
+     */
+    private static Protos.Wallet readWithoutHistory(File walletFile, FileChannel channel,
+                                                    Map<ByteString, Extent> deferred) throws IOException {
+        ByteString.Output rest = ByteString.newOutput();
+        CodedOutputStream restOutput = CodedOutputStream.newInstance(rest);
+        List<Protos.Transaction> loaded = new ArrayList<>();
+        Set<ByteString> loadedHashes = new HashSet<>();
+        Set<ByteString> spenders = new HashSet<>();
+
+        InputStream input = new BufferedInputStream(new FileInputStream(walletFile));
+        try {
+            CodedInputStream codedInput = CodedInputStream.newInstance(input);
+            codedInput.setSizeLimit(WalletProtobufSerializer.WALLET_SIZE_LIMIT);
+            int tag;
+            while ((tag = codedInput.readTag()) != 0) {
+                if (tag != TRANSACTION_TAG) {
+                    codedInput.skipField(tag, restOutput);
+                    continue;
+                }
+                int length = codedInput.readRawVarint32();
+                int offset = codedInput.getTotalBytesRead();
+                int oldLimit = codedInput.pushLimit(length);
+                Protos.Transaction txProto = Protos.Transaction.parseFrom(codedInput);
+                codedInput.popLimit(oldLimit);
+                Protos.Transaction.Pool pool = txProto.getPool();
+                if (pool == Protos.Transaction.Pool.SPENT || pool == Protos.Transaction.Pool.DEAD) {
+                    deferred.put(txProto.getHash(), new Extent(offset, length));
+                } else {
+                    loaded.add(txProto);
+                    loadedHashes.add(txProto.getHash());
+                    addSpenders(txProto, spenders);
+                }
+            }
+        } finally {
+            input.close();
+        }
+
+        // Outputs of the unspent and pending transactions must be connected to what spends them, or they would look
+        // spendable.
+        for (ByteString hash : spenders) {
+            Extent extent = loadedHashes.contains(hash) ? null : deferred.remove(hash);
+            if (extent != null)
+                loaded.add(Protos.Transaction.parseFrom(read(channel, extent.offset, extent.length)));
+        }
+
+        restOutput.flush();
+        return Protos.Wallet.newBuilder().mergeFrom(rest.toByteString()).addAllTransaction(loaded).build();
+    }
+
+    private static void addSpenders(Protos.Transaction txProto, Set<ByteString> spenders) {
+        for (Protos.TransactionOutput output : txProto.getTransactionOutputList())
+            if (output.hasSpentByTransactionHash())
+                spenders.add(output.getSpentByTransactionHash());
+    }
+
+    /**
+     * Adds the next batch of deferred transactions to the wallet, which must be locked. Returns false if there were
+     * none left.
+     */
+    boolean loadBatch() throws IOException {
+        if (next == deferred.size())
+            return false;
+        List<Protos.Transaction> batch = new ArrayList<>();
+        long bytes = 0;
+        while (next + batch.size() < deferred.size() && (batch.isEmpty() || bytes < historyBudget)) {
+            Extent extent = deferred.get(next + batch.size());
+            batch.add(Protos.Transaction.parseFrom(read(channel, extent.offset, extent.length)));
+            bytes += extent.length;
+        }
+        try {
+            for (Protos.Transaction txProto : batch) {
+                // The wallet may have received it again since it was loaded.
+                Transaction tx = wallet.getTransaction(WalletProtobufSerializer.byteStringToHash(txProto.getHash()));
+                if (tx != null) {
+                    serializer.txMap.put(txProto.getHash(), tx);
+                } else {
+                    serializer.readTransaction(txProto, params);
+                    tx = serializer.txMap.get(txProto.getHash());
+                }
+                List<WalletProtobufSerializer.DeferredSpend> spends = serializer.deferredSpends.remove(txProto.getHash());
+                if (spends != null)
+                    for (WalletProtobufSerializer.DeferredSpend spend : spends)
+                        spend.connect(tx);
+            }
+            for (Protos.Transaction txProto : batch) {
+                if (wallet.getTransaction(WalletProtobufSerializer.byteStringToHash(txProto.getHash())) == null)
+                    wallet.addWalletTransaction(serializer.connectTransactionOutputs(params, txProto));
+            }
+        } catch (UnreadableWalletException e) {
+            throw new IOException(e);
+        }
+        next += batch.size();
+        return true;
+    }
+
+    void close() {
+        if (!serializer.deferredSpends.isEmpty())
+            log.warn("{} transactions spending wallet outputs were missing from the wallet file",
+                    serializer.deferredSpends.size());
+        serializer.txMap.clear();
+        try {
+            file.close();
+        } catch (IOException e) {
+            log.warn("Failed to close wallet file", e);
+        }
+    }
+
+    private static byte[] read(FileChannel channel, int offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0)
+                throw new IOException("Wallet file is truncated");
+        }
+        return buffer.array();
+    }
+}
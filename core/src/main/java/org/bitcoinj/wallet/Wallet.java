@@ -69,7 +69,9 @@ import org.bitcoinj.wallet.WalletTransaction.*;
 import org.bitcoinj.wallet.listeners.KeyChainEventListener;
 import org.bitcoinj.wallet.listeners.ScriptsChangeEventListener;
 import org.bitcoinj.wallet.listeners.WalletChangeEventListener;
+import org.bitcoinj.wallet.listeners.WalletCoinsReceivedBatchEventListener;
 import org.bitcoinj.wallet.listeners.WalletCoinsReceivedEventListener;
+import org.bitcoinj.wallet.listeners.WalletCoinsSentBatchEventListener;
 import org.bitcoinj.wallet.listeners.WalletCoinsSentEventListener;
 import org.bitcoinj.wallet.listeners.WalletEventListener;
 import org.bitcoinj.wallet.listeners.WalletReorganizeEventListener;
@@ -125,7 +127,7 @@ import static com.google.common.base.Preconditions.*;
  * for more information about this.</p>
  */
 public class Wallet extends BaseTaggableObject
-    implements NewBestBlockListener, TransactionReceivedInBlockListener, PeerFilterProvider, KeyBag, TransactionBag, ReorganizeListener {
+    implements NewBestBlockListener, TransactionsReceivedInBlockListener, PeerFilterProvider, KeyBag, TransactionBag, ReorganizeListener {
     private static final Logger log = LoggerFactory.getLogger(Wallet.class);
     private static final int MINIMUM_BLOOM_DATA_LENGTH = 8;
 
@@ -160,10 +162,28 @@ public class Wallet extends BaseTaggableObject
 
     // All transactions together.
     protected final Map<Sha256Hash, Transaction> transactions;
+    // The inputs of all transactions, to find the ones spending an outpoint. Follows the transactions map.
+    private final SpentOutPointIndex spentOutPoints = new SpentOutPointIndex();
 
     // All the TransactionOutput objects that we could spend (ignoring whether we have the private key or not).
-    // Used to speed up various calculations.
-    protected final HashSet<TransactionOutput> myUnspents = Sets.newHashSet();
+    // Used to speed up various calculations. Keeps the ESTIMATED and AVAILABLE balances up to date as it changes.
+    private final SpendableOutputs spendableOutputs = new SpendableOutputs();
+    protected final HashSet<TransactionOutput> myUnspents = spendableOutputs;
+
+    // A copy of the pools and myUnspents, published whenever a change to them is complete so that read-only queries
+    // don't need the lock. The pools are PersistentHashMaps so that a copy takes constant time. Null if the pools were changed without publishing, then the next reader publishes it.
+    @Nullable private volatile WalletSnapshot vSnapshot;
+    @GuardedBy("lock") private long snapshotVersion;
+
+    // The spent and dead transactions of the wallet file that a StreamingWalletLoader has not added yet, if any.
+    @GuardedBy("lock") @Nullable private StreamingWalletLoader deferredHistory;
+
+    // Where old spent transactions are moved out of memory to, if pruning is enabled. Only changed with the lock held,
+    // read without it by queries for transactions that are no longer in the pools.
+    @Nullable private volatile WalletArchive vArchive;
+    // What peer threads check incoming pending transactions against before locking the wallet, see
+    // getRelevanceFilter(). Null until needed, and again once the watched scripts change.
+    @Nullable private volatile RelevanceFilter vRelevanceFilter;
 
     // Transactions that were dropped by the risk analysis system. These are not in any pools and not serialized
     // to disk. We have to keep them around because if we ignore a tx because we think it will never confirm, but
@@ -205,6 +225,12 @@ public class Wallet extends BaseTaggableObject
         = new CopyOnWriteArrayList<>();
     private final CopyOnWriteArrayList<ListenerRegistration<TransactionConfidenceEventListener>> transactionConfidenceListeners
         = new CopyOnWriteArrayList<>();
+    private final CopyOnWriteArrayList<BatchingListenerRegistration<WalletCoinsReceivedBatchEventListener, CoinsEvent>>
+        coinsReceivedBatchListeners = new CopyOnWriteArrayList<>();
+    private final CopyOnWriteArrayList<BatchingListenerRegistration<WalletCoinsSentBatchEventListener, CoinsEvent>>
+        coinsSentBatchListeners = new CopyOnWriteArrayList<>();
+    private final CopyOnWriteArrayList<BatchingListenerRegistration<TransactionConfidenceBatchEventListener, Transaction>>
+        transactionConfidenceBatchListeners = new CopyOnWriteArrayList<>();
 
     // A listener that relays confidence changes from the transaction confidence object to the wallet event listener,
     // as a convenience to API users so they don't have to register on every transaction themselves.
@@ -225,15 +251,27 @@ public class Wallet extends BaseTaggableObject
     // side effect of how the code is written (e.g. during re-orgs confidence data gets adjusted multiple times).
     private int onWalletChangedSuppressions;
     private boolean insideReorg;
+    // Set while receiving all the transactions of a block, so that the work that only depends on the end result is
+    // done once for the block.
+    private boolean insideBlock;
     private Map<Transaction, TransactionConfidence.Listener.ChangeReason> confidenceChanged;
     protected volatile WalletFiles vFileManager;
+    // Transactions changed since the last save, so that a journaling WalletFiles can append just those. Only tracked
+    // while journaling. Anything else that changes is written by a full save, which saveLater() and saveNow() ask for.
+    @GuardedBy("lock") private final Set<Sha256Hash> changedSinceSave = new HashSet<>();
+    // Counts the requests for a full save. A full save records the requests up to the count it read before writing,
+    // so a request made while it is under way is left for the next save.
+    @GuardedBy("lock") private long saveGeneration = 1;
+    @GuardedBy("lock") private long savedGeneration;
     // Object that is used to send transactions asynchronously when the wallet requires it.
     protected volatile TransactionBroadcaster vTransactionBroadcaster;
     // UNIX time in seconds. Money controlled by keys created before this time will be automatically respent to a key
     // that was created after it. Useful when you believe some keys have been compromised.
     private volatile long vKeyRotationTimestamp;
+    // AES key derived by unlockAsync, used for signing when a SendRequest doesn't carry its own key.
+    private final AesKeyCache aesKeyCache = new AesKeyCache();
 
-    protected CoinSelector coinSelector = new DefaultCoinSelector();
+    protected volatile CoinSelector coinSelector = new DefaultCoinSelector();
 
     // The wallet version. This is an int that can be used to track breaking changes in the wallet format.
     // You can also use it to detect wallets that come from the future (ie they contain features you
@@ -321,16 +359,17 @@ public class Wallet extends BaseTaggableObject
         if (this.keyChainGroup.numKeys() == 0)
             this.keyChainGroup.createAndActivateNewHDChain();
         watchedScripts = Sets.newHashSet();
-        unspent = new HashMap<>();
-        spent = new HashMap<>();
-        pending = new HashMap<>();
-        dead = new HashMap<>();
-        transactions = new HashMap<>();
+        unspent = new PersistentHashMap<>();
+        spent = new PersistentHashMap<>();
+        pending = new PersistentHashMap<>();
+        dead = new PersistentHashMap<>();
+        transactions = new PersistentHashMap<>();
         extensions = new HashMap<>();
         // Use a linked hash map to ensure ordering of event listeners is correct.
         confidenceChanged = new LinkedHashMap<>();
         signers = new ArrayList<>();
         addTransactionSigner(new LocalTransactionSigner());
+        spendableOutputs.setCoinSelector(coinSelector);
         createTransientState();
     }
 
@@ -348,8 +387,14 @@ public class Wallet extends BaseTaggableObject
                 if (reason == ChangeReason.SEEN_PEERS) {
                     lock.lock();
                     try {
+                        Transaction tx = readView().getTransaction(confidence.getTransactionHash());
+                        if (tx != null) {
+                            // Our own pending transactions become available once peers announce them.
+                            spendableOutputs.update(tx);
+                            spendableOutputs.publish();
+                        }
                         checkBalanceFuturesLocked(null);
-                        Transaction tx = getTransaction(confidence.getTransactionHash());
+                        markChanged(tx);
                         queueOnTransactionConfidenceChanged(tx);
                         maybeQueueOnWalletChanged();
                     } finally {
@@ -515,6 +560,36 @@ public class Wallet extends BaseTaggableObject
         return freshAddress(KeyChain.KeyPurpose.RECEIVE_FUNDS);
     }
 
+    /**
+     * <p>Returns {@code numberOfAddresses} addresses for fresh keys, like calling
+     * {@link #freshAddress(org.bitcoinj.wallet.KeyChain.KeyPurpose)} that many times, but suitable for provisioning
+     * large numbers of addresses up front.</p>
+     *
+     * <p>All keys are reserved under a single acquisition of the key chain lock, derived in parallel and announced to
+     * {@link KeyChainEventListener}s as one batch, so a connected {@link PeerGroup} recalculates its Bloom filter once
+     * rather than once per address. The wallet is saved once at the end.</p>
+     */
+    public List<Address> freshAddresses(KeyChain.KeyPurpose purpose, int numberOfAddresses) {
+        List<Address> addresses;
+        keyChainGroupLock.lock();
+        try {
+            maybeUpgradeToHD();
+            addresses = keyChainGroup.freshAddresses(purpose, numberOfAddresses);
+        } finally {
+            keyChainGroupLock.unlock();
+        }
+        saveNow();
+        return addresses;
+    }
+
+    /**
+     * An alias for calling {@link #freshAddresses(org.bitcoinj.wallet.KeyChain.KeyPurpose, int)} with
+     * {@link org.bitcoinj.wallet.KeyChain.KeyPurpose#RECEIVE_FUNDS} as the first parameter.
+     */
+    public List<Address> freshReceiveAddresses(int numberOfAddresses) {
+        return freshAddresses(KeyChain.KeyPurpose.RECEIVE_FUNDS, numberOfAddresses);
+    }
+
     /**
      * Returns only the keys that have been issued by {@link #freshReceiveKey()}, {@link #freshReceiveAddress()},
      * {@link #currentReceiveKey()} or {@link #currentReceiveAddress()}.
@@ -899,6 +974,7 @@ public class Wallet extends BaseTaggableObject
                 watchedScripts.add(script);
                 added++;
             }
+            dropRelevanceFilter();
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -948,6 +1024,7 @@ public class Wallet extends BaseTaggableObject
 
                 watchedScripts.remove(script);
             }
+            dropRelevanceFilter();
 
             queueOnScriptsChanged(scripts, false);
             saveNow();
@@ -1064,8 +1141,10 @@ public class Wallet extends BaseTaggableObject
      * See {@link org.bitcoinj.wallet.DeterministicKeyChain#markKeyAsUsed(DeterministicKey)} for more info on this.
      */
     private void markKeysAsUsed(Transaction tx) {
+        boolean keysChanged;
         keyChainGroupLock.lock();
         try {
+            int keysBefore = countKeysAndIssuedKeys();
             for (TransactionOutput o : tx.getOutputs()) {
                 try {
                     Script script = o.getScriptPubKey();
@@ -1084,9 +1163,22 @@ public class Wallet extends BaseTaggableObject
                     log.warn("Could not parse tx output script: {}", e.toString());
                 }
             }
+            keysChanged = countKeysAndIssuedKeys() != keysBefore;
         } finally {
             keyChainGroupLock.unlock();
         }
+        // Key chains are only ever written as a whole.
+        if (keysChanged)
+            requestFullSave();
+    }
+
+    // Both only ever grow, so any change to the key chains that needs saving changes the sum.
+    private int countKeysAndIssuedKeys() {
+        checkState(keyChainGroupLock.isHeldByCurrentThread());
+        int count = keyChainGroup.numKeys();
+        for (DeterministicKeyChain chain : keyChainGroup.getDeterministicKeyChains())
+            count += chain.numLeafKeysIssued();
+        return count;
     }
 
     /**
@@ -1129,6 +1221,7 @@ public class Wallet extends BaseTaggableObject
         try {
             final KeyCrypterScrypt scrypt = new KeyCrypterScrypt();
             keyChainGroup.encrypt(scrypt, scrypt.deriveKey(password));
+            aesKeyCache.clear();
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -1137,7 +1230,8 @@ public class Wallet extends BaseTaggableObject
 
     /**
      * Encrypt the wallet using the KeyCrypter and the AES key. A good default KeyCrypter to use is
-     * {@link org.bitcoinj.crypto.KeyCrypterScrypt}.
+     * {@link org.bitcoinj.crypto.KeyCrypterScrypt}. Any AES key cached by
+     * {@link #unlockAsync(CharSequence, long, TimeUnit)} is wiped on success.
      *
      * @param keyCrypter The KeyCrypter that specifies how to encrypt/ decrypt a key
      * @param aesKey AES key to use (normally created using KeyCrypter#deriveKey and cached as it is time consuming to create from a password)
@@ -1147,6 +1241,7 @@ public class Wallet extends BaseTaggableObject
         keyChainGroupLock.lock();
         try {
             keyChainGroup.encrypt(keyCrypter, aesKey);
+            aesKeyCache.clear();
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -1154,7 +1249,8 @@ public class Wallet extends BaseTaggableObject
     }
 
     /**
-     * Decrypt the wallet with the wallets keyCrypter and password.
+     * Decrypt the wallet with the wallets keyCrypter and password. Any AES key cached by
+     * {@link #unlockAsync(CharSequence, long, TimeUnit)} is wiped on success.
      * @throws KeyCrypterException Thrown if the wallet decryption fails. If so, the wallet state is unchanged.
      */
     public void decrypt(CharSequence password) {
@@ -1163,6 +1259,7 @@ public class Wallet extends BaseTaggableObject
             final KeyCrypter crypter = keyChainGroup.getKeyCrypter();
             checkState(crypter != null, "Not encrypted");
             keyChainGroup.decrypt(crypter.deriveKey(password));
+            aesKeyCache.clear();
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -1170,7 +1267,8 @@ public class Wallet extends BaseTaggableObject
     }
 
     /**
-     * Decrypt the wallet with the wallets keyCrypter and AES key.
+     * Decrypt the wallet with the wallets keyCrypter and AES key. Any AES key cached by
+     * {@link #unlockAsync(CharSequence, long, TimeUnit)} is wiped on success.
      *
      * @param aesKey AES key to use (normally created using KeyCrypter#deriveKey and cached as it is time consuming to create from a password)
      * @throws KeyCrypterException Thrown if the wallet decryption fails. If so, the wallet state is unchanged.
@@ -1179,6 +1277,7 @@ public class Wallet extends BaseTaggableObject
         keyChainGroupLock.lock();
         try {
             keyChainGroup.decrypt(aesKey);
+            aesKeyCache.clear();
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -1252,7 +1351,10 @@ public class Wallet extends BaseTaggableObject
         return getEncryptionType() != EncryptionType.UNENCRYPTED;
     }
 
-    /** Changes wallet encryption password, this is atomic operation. */
+    /**
+     * Changes wallet encryption password, this is atomic operation. Any AES key cached by
+     * {@link #unlockAsync(CharSequence, long, TimeUnit)} is wiped on success.
+     */
     public void changeEncryptionPassword(CharSequence currentPassword, CharSequence newPassword){
         keyChainGroupLock.lock();
         try {
@@ -1263,7 +1365,10 @@ public class Wallet extends BaseTaggableObject
         }
     }
 
-    /** Changes wallet AES encryption key, this is atomic operation. */
+    /**
+     * Changes wallet AES encryption key, this is atomic operation. Any AES key cached by
+     * {@link #unlockAsync(CharSequence, long, TimeUnit)} is wiped on success.
+     */
     public void changeEncryptionKey(KeyCrypter keyCrypter, KeyParameter currentAesKey, KeyParameter newAesKey){
         keyChainGroupLock.lock();
         try {
@@ -1274,6 +1379,137 @@ public class Wallet extends BaseTaggableObject
         }
     }
 
+    /**
+     * Like {@link #encrypt(CharSequence)}, but the slow scrypt key derivation and the encryption itself happen on
+     * {@link Threading#THREAD_POOL}, so the calling thread returns immediately. The derived key is wiped once the
+     * wallet has been encrypted. The future fails with a {@link KeyCrypterException} if encryption fails, in which
+     * case the wallet state is unchanged.
+     */
+    public ListenableFuture<Void> encryptAsync(CharSequence password) {
+        final KeyCrypterScrypt scrypt = new KeyCrypterScrypt();
+        return Futures.transform(scrypt.deriveKeyAsync(password), new Function<KeyParameter, Void>() {
+            @Override
+            public Void apply(KeyParameter aesKey) {
+                try {
+                    encrypt(scrypt, aesKey);
+                } finally {
+                    AesKeyCache.wipe(aesKey);
+                }
+                return null;
+            }
+        }, Threading.THREAD_POOL);
+    }
+
+    /**
+     * Like {@link #decrypt(CharSequence)}, but runs key derivation and decryption on {@link Threading#THREAD_POOL}.
+     * Any AES key cached by {@link #unlockAsync(CharSequence, long, TimeUnit)} is wiped on success.
+     */
+    public ListenableFuture<Void> decryptAsync(CharSequence password) {
+        final KeyCrypter crypter = getKeyCrypter();
+        checkState(crypter instanceof KeyCrypterScrypt, "Not encrypted with scrypt");
+        return Futures.transform(((KeyCrypterScrypt) crypter).deriveKeyAsync(password), new Function<KeyParameter, Void>() {
+            @Override
+            public Void apply(KeyParameter aesKey) {
+                try {
+                    decrypt(aesKey);
+                } finally {
+                    AesKeyCache.wipe(aesKey);
+                }
+                return null;
+            }
+        }, Threading.THREAD_POOL);
+    }
+
+    /**
+     * Like {@link #changeEncryptionPassword(CharSequence, CharSequence)}, but derives both keys concurrently on
+     * {@link Threading#THREAD_POOL} and only takes the key chain lock for the re-encryption itself. Any AES key cached
+     * by {@link #unlockAsync(CharSequence, long, TimeUnit)} is wiped on success. If one of the derivations fails, the
+     * key from the other is wiped as soon as it is done.
+     */
+    public ListenableFuture<Void> changeEncryptionPasswordAsync(CharSequence currentPassword, CharSequence newPassword) {
+        final KeyCrypter currentCrypter = getKeyCrypter();
+        checkState(currentCrypter instanceof KeyCrypterScrypt, "Not encrypted with scrypt");
+        final KeyCrypterScrypt newCrypter = new KeyCrypterScrypt();
+        final ListenableFuture<KeyParameter> currentKey = ((KeyCrypterScrypt) currentCrypter).deriveKeyAsync(currentPassword);
+        final ListenableFuture<KeyParameter> newKey = newCrypter.deriveKeyAsync(newPassword);
+        ListenableFuture<List<KeyParameter>> keys = Futures.allAsList(currentKey, newKey);
+        Futures.addCallback(keys, new FutureCallback<List<KeyParameter>>() {
+            @Override
+            public void onSuccess(List<KeyParameter> aesKeys) {
+                // Wiped once the wallet has been re-encrypted.
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                Futures.addCallback(currentKey, WIPE_AES_KEY);
+                Futures.addCallback(newKey, WIPE_AES_KEY);
+            }
+        });
+        return Futures.transform(keys, new Function<List<KeyParameter>, Void>() {
+            @Override
+            public Void apply(List<KeyParameter> aesKeys) {
+                try {
+                    changeEncryptionKey(newCrypter, aesKeys.get(0), aesKeys.get(1));
+                } finally {
+                    AesKeyCache.wipe(aesKeys.get(0));
+                    AesKeyCache.wipe(aesKeys.get(1));
+                }
+                return null;
+            }
+        }, Threading.THREAD_POOL);
+    }
+
+    private static final FutureCallback<KeyParameter> WIPE_AES_KEY = new FutureCallback<KeyParameter>() {
+        @Override
+        public void onSuccess(KeyParameter aesKey) {
+            AesKeyCache.wipe(aesKey);
+        }
+
+        @Override
+        public void onFailure(Throwable t) {
+        }
+    };
+
+    /**
+     * Derives the AES key for the given password on {@link Threading#THREAD_POOL}, checks it against the wallet and
+     * then keeps it in memory for the given amount of time. While the key is cached, {@link #signTransaction(SendRequest)}
+     * and {@link #completeTx(SendRequest)} use it for requests that don't specify an {@link SendRequest#aesKey}, so
+     * interactive applications only pay for scrypt once per session. When the time runs out, or
+     * {@link #clearCachedAesKey()} is called, the key bytes are overwritten with zeros.
+     *
+     * @return a future that completes with a copy of the derived key, or fails with a {@link KeyCrypterException} if
+     *         the password is wrong.
+     */
+    public ListenableFuture<KeyParameter> unlockAsync(CharSequence password, final long timeout, final TimeUnit unit) {
+        final KeyCrypter crypter = getKeyCrypter();
+        checkState(crypter instanceof KeyCrypterScrypt, "Not encrypted with scrypt");
+        return Futures.transform(((KeyCrypterScrypt) crypter).deriveKeyAsync(password), new Function<KeyParameter, KeyParameter>() {
+            @Override
+            public KeyParameter apply(KeyParameter aesKey) {
+                if (!checkAESKey(aesKey)) {
+                    AesKeyCache.wipe(aesKey);
+                    throw new KeyCrypterException("Password/key was incorrect.");
+                }
+                aesKeyCache.put(aesKey, timeout, unit);
+                return aesKey;
+            }
+        }, Threading.THREAD_POOL);
+    }
+
+    /**
+     * Returns a copy of the AES key cached by {@link #unlockAsync(CharSequence, long, TimeUnit)}, or null if there is
+     * none or it has expired.
+     */
+    @Nullable
+    public KeyParameter getCachedAesKey() {
+        return aesKeyCache.get();
+    }
+
+    /** Wipes the AES key cached by {@link #unlockAsync(CharSequence, long, TimeUnit)}, if any. */
+    public void clearCachedAesKey() {
+        aesKeyCache.clear();
+    }
+
     //endregion
 
     /******************************************************************************************************************/
@@ -1455,13 +1691,37 @@ public class Wallet extends BaseTaggableObject
 
     /** Requests an asynchronous save on a background thread */
     protected void saveLater() {
+        requestFullSave();
+        saveChangesLater();
+    }
+
+    /** If auto saving is enabled, do an immediate sync write to disk ignoring any delays. */
+    protected void saveNow() {
+        requestFullSave();
+        saveChangesNow();
+    }
+
+    // Asks for the next save to be a full one. Takes the lock that saves are written under, so that a save either
+    // includes the change that led to the request or knows it doesn't.
+    private void requestFullSave() {
+        lock.lock();
+        try {
+            saveGeneration++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Like saveLater(), for changes that are fully described by the transactions passed to markChanged() and the last
+    // seen block, which a journaling WalletFiles can append instead of rewriting the whole file.
+    private void saveChangesLater() {
         WalletFiles files = vFileManager;
         if (files != null)
             files.saveLater();
     }
 
-    /** If auto saving is enabled, do an immediate sync write to disk ignoring any delays. */
-    protected void saveNow() {
+    // Like saveNow(), see saveChangesLater().
+    private void saveChangesNow() {
         WalletFiles files = vFileManager;
         if (files != null) {
             try {
@@ -1476,6 +1736,59 @@ public class Wallet extends BaseTaggableObject
         }
     }
 
+    private void markChanged(Transaction tx) {
+        checkState(lock.isHeldByCurrentThread());
+        WalletFiles files = vFileManager;
+        if (files != null && files.isJournaling())
+            changedSinceSave.add(tx.getHash());
+    }
+
+    /**
+     * Returns the transactions that changed since the last save, in their current pools, and forgets about them.
+     * Returns null if the wallet changed in a way that only a full save records. Used by {@link WalletFiles} to
+     * journal changes.
+     */
+    @Nullable
+    List<WalletTransaction> takeJournalChanges() {
+        checkState(lock.isHeldByCurrentThread());
+        try {
+            if (savedGeneration != saveGeneration)
+                return null;
+            List<WalletTransaction> changes = new ArrayList<>(changedSinceSave.size());
+            for (Sha256Hash hash : changedSinceSave) {
+                Transaction tx = transactions.get(hash);
+                if (tx == null)
+                    return null;
+                EnumSet<Pool> pools = getContainingPools(tx);
+                if (pools.size() != 1)
+                    return null;
+                changes.add(new WalletTransaction(pools.iterator().next(), tx));
+            }
+            return changes;
+        } finally {
+            changedSinceSave.clear();
+        }
+    }
+
+    /**
+     * Returns the number of full saves requested so far. {@link WalletFiles} reads it with the wallet locked before a
+     * full save, and passes it to {@link #markSaved(long)} afterwards.
+     */
+    long getSaveGeneration() {
+        checkState(lock.isHeldByCurrentThread());
+        return saveGeneration;
+    }
+
+    /**
+     * Called by {@link WalletFiles} after a full save, with the wallet still locked, with what
+     * {@link #getSaveGeneration()} returned before it.
+     */
+    void markSaved(long generation) {
+        checkState(lock.isHeldByCurrentThread());
+        changedSinceSave.clear();
+        savedGeneration = Math.max(savedGeneration, generation);
+    }
+
     /**
      * Uses protobuf serialization to save the wallet to the given file stream. To learn more about this file format, see
      * {@link WalletProtobufSerializer}.
@@ -1546,7 +1859,7 @@ public class Wallet extends BaseTaggableObject
     public void isConsistentOrThrow() throws IllegalStateException {
         lock.lock();
         try {
-            Set<Transaction> transactions = getTransactions(true);
+            Set<Transaction> transactions = readView().getTransactions(true);
 
             Set<Sha256Hash> hashes = new HashSet<>();
             for (Transaction tx : transactions) {
@@ -1613,6 +1926,222 @@ public class Wallet extends BaseTaggableObject
         return wallet;
     }
 
+    /**
+     * Returns false while some spent or dead transactions of a wallet loaded by {@link StreamingWalletLoader} have not
+     * been added yet. Balances and spending work before then, the transaction history is incomplete.
+     */
+    public boolean isHistoryLoaded() {
+        lock.lock();
+        try {
+            return deferredHistory == null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adds whatever the {@link StreamingWalletLoader} this wallet came from has not added yet, on the calling thread.
+     * Does nothing once the history is complete. This happens before the wallet is saved and before a re-org.
+     *
+     * @throws IOException if the wallet file could not be read, in which case the wallet cannot be saved either
+     */
+    public void loadDeferredHistory() throws IOException {
+        lock.lock();
+        try {
+            while (loadDeferredHistoryBatch()) ;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Adds the next batch of deferred transactions. Returns false once there are no more. */
+    boolean loadDeferredHistoryBatch() throws IOException {
+        lock.lock();
+        try {
+            if (deferredHistory == null)
+                return false;
+            if (!deferredHistory.loadBatch()) {
+                deferredHistory.close();
+                deferredHistory = null;
+                // Nothing was published for the deferred transactions, leave it to the next reader.
+                vSnapshot = null;
+                return false;
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void setDeferredHistory(@Nullable StreamingWalletLoader history) {
+        lock.lock();
+        try {
+            checkState(deferredHistory == null);
+            deferredHistory = history;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * <p>Enables pruning: from now on, transactions whose outputs of ours are all spent, and that are buried at least
+     * {@link WalletArchive#getMinDepth()} blocks deep, are moved out of memory into the given archive as new blocks
+     * arrive, leaving only their hash and position in memory. Saving the wallet copies them from the archive into the
+     * wallet file, and a re-organization puts them back into the wallet first. Pruning waits until the history of a wallet loaded by
+     * {@link StreamingWalletLoader} is complete.</p>
+     *
+     * <p>A transaction is only pruned together with the wallet transactions it spends from. Inputs of the transactions
+     * that stay which spend a pruned one are connected to a copy of the output they spend instead, which has no parent
+     * transaction, so that their value is still known. Passing null, or another archive, puts the pruned transactions
+     * back first.</p>
+     *
+     * <p>{@link #getTransaction(Sha256Hash)} and {@link #getTransactions(boolean)} read pruned transactions back from
+     * the archive as copies, which are connected to copies of the archived transactions they spend from but not to
+     * the transactions in memory. Changes to the copies are not seen by the wallet. The other methods that return
+     * transactions, such as {@link #getWalletTransactions()} and {@link #getRecentTransactions(int, boolean)}, only
+     * return those in memory.</p>
+     */
+    public void setArchive(@Nullable WalletArchive archive) throws IOException {
+        lock.lock();
+        try {
+            restoreArchive();
+            vArchive = archive;
+            pruneHistory();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the archive set by {@link #setArchive(WalletArchive)}, or null if pruning is not enabled. */
+    @Nullable
+    public WalletArchive getArchive() {
+        return vArchive;
+    }
+
+    private boolean isArchived(Sha256Hash hash) {
+        WalletArchive archive = vArchive;
+        return archive != null && archive.contains(hash);
+    }
+
+    /**
+     * Returns a copy of the transaction with the given hash read back from the archive, or null if it isn't there. The
+     * copy is connected to copies of the archived transactions it spends from, but not to the transactions in memory,
+     * and changes to it are not seen by the wallet.
+     */
+    @Nullable
+    public Transaction getArchivedTransaction(Sha256Hash hash) {
+        WalletArchive archive = vArchive;
+        if (archive == null || !archive.contains(hash))
+            return null;
+        try {
+            return archive.getTransaction(params, hash, getLastBlockSeenHeight());
+        } catch (IOException e) {
+            throw new RuntimeException("Could not read the wallet archive", e);
+        }
+    }
+
+    /**
+     * Copies the archived transactions from the archive into the given wallet file output, as the given field of the
+     * wallet message, one at a time. Must be called with the wallet locked, while it is saved.
+     */
+    void writeArchivedTransactions(CodedOutputStream output, int fieldNumber) throws IOException {
+        checkState(lock.isHeldByCurrentThread());
+        WalletArchive archive = vArchive;
+        if (archive != null)
+            archive.writeTransactions(output, fieldNumber, lastBlockSeenHeight);
+    }
+
+    // Moves spent transactions that are deep enough into the archive, if there is one.
+    private void pruneHistory() {
+        checkState(lock.isHeldByCurrentThread());
+        WalletArchive archive = vArchive;
+        if (archive == null || deferredHistory != null || insideReorg)
+            return;
+        // Transactions without outputs of ours stay in the unspent pool, so look there too.
+        Map<Sha256Hash, Transaction> pruned = new HashMap<>();
+        for (Transaction tx : Iterables.concat(spent.values(), unspent.values())) {
+            TransactionConfidence confidence = tx.getConfidence();
+            if (confidence.getConfidenceType() == ConfidenceType.BUILDING
+                    && confidence.getDepthInBlocks() >= archive.getMinDepth() && tx.isEveryOwnedOutputSpent(this)
+                    && !isSpentByPending(tx))
+                pruned.put(tx.getHash(), tx);
+        }
+        if (pruned.isEmpty())
+            return;
+        // A transaction that stays keeps what spends from it, or the outputs it spent would look unspent. That in turn
+        // keeps what spends from those, and so on.
+        ArrayListMultimap<Sha256Hash, Transaction> spendersOf = ArrayListMultimap.create();
+        LinkedList<Transaction> kept = new LinkedList<>();
+        for (Transaction tx : pruned.values()) {
+            for (TransactionInput input : tx.getInputs()) {
+                Sha256Hash from = input.getOutpoint().getHash();
+                if (!transactions.containsKey(from))
+                    continue;
+                spendersOf.put(from, tx);
+                if (!pruned.containsKey(from))
+                    kept.add(tx);
+            }
+        }
+        while (!kept.isEmpty()) {
+            Transaction tx = kept.removeFirst();
+            if (pruned.remove(tx.getHash()) != null)
+                kept.addAll(spendersOf.get(tx.getHash()));
+        }
+        if (pruned.isEmpty())
+            return;
+
+        List<Protos.Transaction> txProtos = new ArrayList<>(pruned.size());
+        for (Transaction tx : pruned.values()) {
+            Pool pool = spent.containsKey(tx.getHash()) ? Pool.SPENT : Pool.UNSPENT;
+            txProtos.add(WalletProtobufSerializer.makeTxProto(new WalletTransaction(pool, tx)));
+        }
+        try {
+            archive.add(txProtos, lastBlockSeenHeight);
+        } catch (IOException e) {
+            log.error("Failed to archive transactions, keeping them in memory", e);
+            return;
+        }
+        for (Transaction tx : pruned.values()) {
+            for (TransactionOutput output : tx.getOutputs()) {
+                TransactionInput spentBy = output.getSpentBy();
+                if (spentBy != null && !pruned.containsKey(spentBy.getParentTransaction().getHash())) {
+                    // The transaction that stays keeps a copy of the output, to work out what it sent from us.
+                    spentBy.disconnect();
+                    spentBy.connect(new TransactionOutput(params, null, output.getValue(), output.getScriptBytes()));
+                }
+            }
+            spent.remove(tx.getHash());
+            unspent.remove(tx.getHash());
+            transactions.remove(tx.getHash());
+            spentOutPoints.remove(tx);
+            tx.getConfidence().removeEventListener(txConfidenceListener);
+        }
+        log.info("Archived {} transactions, {} in the archive", pruned.size(), archive.size());
+        publishSnapshot();
+    }
+
+    private static boolean isSpentByPending(Transaction tx) {
+        for (TransactionOutput output : tx.getOutputs()) {
+            TransactionInput spentBy = output.getSpentBy();
+            if (spentBy != null && spentBy.getParentTransaction().getConfidence().getConfidenceType()
+                    != ConfidenceType.BUILDING)
+                return true;
+        }
+        return false;
+    }
+
+    // Puts the archived transactions back into the wallet.
+    private void restoreArchive() throws IOException {
+        checkState(lock.isHeldByCurrentThread());
+        WalletArchive archive = vArchive;
+        if (archive == null || archive.size() == 0)
+            return;
+        for (WalletTransaction wtx : archive.restore(params, transactions, lastBlockSeenHeight))
+            addWalletTransaction(wtx.getPool(), wtx.getTransaction());
+        publishSnapshot();
+        archive.clear();
+    }
+
     //endregion
 
     /******************************************************************************************************************/
@@ -1684,7 +2213,7 @@ public class Wallet extends BaseTaggableObject
             // Ignore it if we already know about this transaction. Receiving a pending transaction never moves it
             // between pools.
             EnumSet<Pool> containingPools = getContainingPools(tx);
-            if (!containingPools.equals(EnumSet.noneOf(Pool.class))) {
+            if (!containingPools.equals(EnumSet.noneOf(Pool.class)) || isArchived(tx.getHash())) {
                 log.debug("Received tx we already saw in a block or created ourselves: " + tx.getHashAsString());
                 return;
             }
@@ -1765,12 +2294,18 @@ public class Wallet extends BaseTaggableObject
      * will soon be called with the transactions dependencies as well.
      */
     public boolean isPendingTransactionRelevant(Transaction tx) throws ScriptException {
+        // Most transactions peers announce have nothing to do with us. Turn those away without waiting for the locks,
+        // which block processing may be holding. A thread holding the lock may have changes that aren't published yet.
+        if (!lock.isHeldByCurrentThread() && !getRelevanceFilter().mayBeRelevant(tx, getSnapshot())) {
+            log.debug("Received tx that isn't relevant to this wallet, discarding.");
+            return false;
+        }
         lock.lock();
         try {
             // Ignore it if we already know about this transaction. Receiving a pending transaction never moves it
             // between pools.
             EnumSet<Pool> containingPools = getContainingPools(tx);
-            if (!containingPools.equals(EnumSet.noneOf(Pool.class))) {
+            if (!containingPools.equals(EnumSet.noneOf(Pool.class)) || isArchived(tx.getHash())) {
                 log.debug("Received tx we already saw in a block or created ourselves: " + tx.getHashAsString());
                 return false;
             }
@@ -1807,6 +2342,36 @@ public class Wallet extends BaseTaggableObject
         }
     }
 
+    // Returns the relevance filter, making a new one if chains were replaced or watched scripts changed since the
+    // last. Keys added to the chains meanwhile are already in it.
+    private RelevanceFilter getRelevanceFilter() {
+        RelevanceFilter filter = vRelevanceFilter;
+        if (filter != null && !filter.isOutOfDate())
+            return filter;
+        keyChainGroupLock.lock();
+        try {
+            // Another thread may have made a new one while we waited for the lock.
+            filter = vRelevanceFilter;
+            if (filter != null && !filter.isOutOfDate())
+                return filter;
+            if (filter != null)
+                filter.close();
+            filter = RelevanceFilter.of(keyChainGroup, watchedScripts);
+            vRelevanceFilter = filter;
+            return filter;
+        } finally {
+            keyChainGroupLock.unlock();
+        }
+    }
+
+    // Drops the relevance filter once the watched scripts changed, so that the next one copies them again.
+    private void dropRelevanceFilter() {
+        RelevanceFilter filter = vRelevanceFilter;
+        vRelevanceFilter = null;
+        if (filter != null)
+            filter.close();
+    }
+
     /**
      * Finds transactions in the specified candidates that double spend "tx". Not a general check, but it can work even if
      * the double spent inputs are not ours.
@@ -1815,20 +2380,17 @@ public class Wallet extends BaseTaggableObject
     private Set<Transaction> findDoubleSpendsAgainst(Transaction tx, Map<Sha256Hash, Transaction> candidates) {
         checkState(lock.isHeldByCurrentThread());
         if (tx.isCoinBase()) return Sets.newHashSet();
-        // Compile a set of outpoints that are spent by tx.
-        HashSet<TransactionOutPoint> outpoints = new HashSet<>();
-        for (TransactionInput input : tx.getInputs()) {
-            outpoints.add(input.getOutpoint());
-        }
-        // Now for each pending transaction, see if it shares any outpoints with this tx.
+        // For each outpoint spent by tx, see which of the candidates spend it too. The candidates are all in the
+        // transactions map, so the index has their inputs.
         Set<Transaction> doubleSpendTxns = Sets.newHashSet();
-        for (Transaction p : candidates.values()) {
-            for (TransactionInput input : p.getInputs()) {
-                // This relies on the fact that TransactionOutPoint equality is defined at the protocol not object
-                // level - outpoints from two different inputs that point to the same output compare the same.
-                TransactionOutPoint outpoint = input.getOutpoint();
-                if (outpoints.contains(outpoint)) {
-                    // It does, it's a double spend against the candidates, which makes it relevant.
+        for (TransactionInput input : tx.getInputs()) {
+            TransactionOutPoint outpoint = input.getOutpoint();
+            for (TransactionInput other : spentOutPoints.getInputsSpending(outpoint.getHash())) {
+                if (other.getOutpoint().getIndex() != outpoint.getIndex())
+                    continue;
+                Transaction p = candidates.get(other.getParentTransaction().getHash());
+                if (p != null) {
+                    // It's a double spend against the candidates, which makes it relevant.
                     doubleSpendTxns.add(p);
                 }
             }
@@ -1891,6 +2453,51 @@ public class Wallet extends BaseTaggableObject
         }
     }
 
+    /**
+     * Called by the {@link BlockChain} with all the transactions of a new block that sends coins to or spends coins from
+     * this wallet, or that contains transactions it was told about before. Equivalent to calling
+     * {@link #receiveFromBlock(Transaction, StoredBlock, BlockChain.NewBlockType, int)} and
+     * {@link #notifyTransactionIsInBlock(Sha256Hash, StoredBlock, BlockChain.NewBlockType, int)} for each of them in
+     * order, but checks consistency, publishes the new state, informs confidence listeners and schedules a save once
+     * for the block rather than once per transaction.
+     */
+    @Override
+    public Set<Sha256Hash> receiveFromBlock(List<Sha256Hash> txHashes, Map<Sha256Hash, Transaction> txns,
+                                            StoredBlock block, BlockChain.NewBlockType blockType)
+            throws VerificationException {
+        lock.lock();
+        try {
+            Set<Sha256Hash> known = new HashSet<>();
+            checkState(!insideBlock);
+            insideBlock = true;
+            try {
+                int relativityOffset = 0;
+                for (Sha256Hash hash : txHashes) {
+                    Transaction tx = txns.get(hash);
+                    try {
+                        // Through the methods for single transactions, which subclasses may override.
+                        if (tx != null)
+                            receiveFromBlock(tx, block, blockType, relativityOffset);
+                        else if (notifyTransactionIsInBlock(hash, block, blockType, relativityOffset))
+                            known.add(hash);
+                    } catch (ScriptException e) {
+                        // As the block chain does for single transactions: note that this tx was not scanned and
+                        // continue.
+                        log.warn("Failed to parse a script: " + e.toString());
+                    }
+                    relativityOffset++;
+                }
+            } finally {
+                insideBlock = false;
+            }
+            if (!txns.isEmpty() || !known.isEmpty())
+                receivedBlock();
+            return known;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     // Whether to do a saveNow or saveLater when we are notified of the next best block.
     private boolean hardSaveOnNextBlock = false;
 
@@ -1925,6 +2532,7 @@ public class Wallet extends BaseTaggableObject
             if (tmp != null)
                 tx = tmp;
         }
+        markChanged(tx);
 
         boolean wasPending = pending.remove(txHash) != null;
         if (wasPending)
@@ -1981,7 +2589,9 @@ public class Wallet extends BaseTaggableObject
                 // change its confidence to PENDING (Unless they are also spending other txns IN_CONFLICT).
                 // Consider dependency chains.
                 Set<Transaction> currentTxDependencies = Sets.newHashSet(tx);
-                addTransactionsDependingOn(currentTxDependencies, getTransactions(true));
+                // Only pending transactions can be in conflict, so there is nothing to do without any.
+                if (isAnyPendingInConflict())
+                    addTransactionsDependingOn(currentTxDependencies, readView().getTransactions(true));
                 currentTxDependencies.remove(tx);
                 List<Transaction> currentTxDependenciesSorted = sortTxnsByDependency(currentTxDependencies);
                 for (Transaction txDependency : currentTxDependenciesSorted) {
@@ -2028,17 +2638,33 @@ public class Wallet extends BaseTaggableObject
             checkBalanceFuturesLocked(newBalance);
         }
 
+        if (!insideBlock)
+            receivedBlock();
+    }
+
+    // What receive() leaves to the end of the block when receiving all its transactions at once.
+    private void receivedBlock() {
         informConfidenceListenersIfNotReorganizing();
         isConsistentOrThrow();
+        if (!insideReorg)
+            publishSnapshot();
         // Optimization for the case where a block has tons of relevant transactions.
-        saveLater();
+        saveChangesLater();
         hardSaveOnNextBlock = true;
     }
 
+    private boolean isAnyPendingInConflict() {
+        for (Transaction tx : pending.values()) {
+            if (tx.getConfidence().getConfidenceType() == ConfidenceType.IN_CONFLICT)
+                return true;
+        }
+        return false;
+    }
+
     /** Finds if tx is NOT spending other txns which are in the specified confidence type */
     private boolean isNotSpendingTxnsInConfidenceType(Transaction tx, ConfidenceType confidenceType) {
         for (TransactionInput txInput : tx.getInputs()) {
-            Transaction connectedTx = this.getTransaction(txInput.getOutpoint().getHash());
+            Transaction connectedTx = readView().getTransaction(txInput.getOutpoint().getHash());
             if (connectedTx != null && connectedTx.getConfidence().getConfidenceType().equals(confidenceType)) {
                 return false;
             }
@@ -2087,10 +2713,17 @@ public class Wallet extends BaseTaggableObject
             return;
         for (Map.Entry<Transaction, TransactionConfidence.Listener.ChangeReason> entry : confidenceChanged.entrySet()) {
             final Transaction tx = entry.getKey();
+            // Depth changes are not journaled, loading works them out from the last seen block.
+            if (entry.getValue() != TransactionConfidence.Listener.ChangeReason.DEPTH)
+                markChanged(tx);
+            // Only coinbases are made available by depth, as they mature.
+            if (entry.getValue() != TransactionConfidence.Listener.ChangeReason.DEPTH || tx.isCoinBase())
+                spendableOutputs.update(tx);
             tx.getConfidence().queueListeners(entry.getValue());
             queueOnTransactionConfidenceChanged(tx);
         }
         confidenceChanged.clear();
+        spendableOutputs.publish();
     }
 
     /**
@@ -2116,7 +2749,7 @@ public class Wallet extends BaseTaggableObject
             setLastBlockSeenTimeSecs(block.getHeader().getTimeSeconds());
             // Notify all the BUILDING transactions of the new block.
             // This is so that they can update their depth.
-            Set<Transaction> transactions = getTransactions(true);
+            Set<Transaction> transactions = readView().getTransactions(true);
             for (Transaction tx : transactions) {
                 if (ignoreNextNewBlock.contains(tx.getHash())) {
                     // tx was already processed in receive() due to it appearing in this block, so we don't want to
@@ -2132,22 +2765,26 @@ public class Wallet extends BaseTaggableObject
                         // included once again. We could have a separate was-in-chain-and-now-isn't confidence type
                         // but this way is backwards compatible with existing software, and the new state probably
                         // wouldn't mean anything different to just remembering peers anyway.
-                        if (confidence.incrementDepthInBlocks() > context.getEventHorizon())
+                        if (confidence.incrementDepthInBlocks() > context.getEventHorizon()) {
+                            if (confidence.numBroadcastPeers() > 0)
+                                markChanged(tx);
                             confidence.clearBroadcastBy();
+                        }
                         confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
                     }
                 }
             }
 
             informConfidenceListenersIfNotReorganizing();
+            pruneHistory();
             maybeQueueOnWalletChanged();
 
             if (hardSaveOnNextBlock) {
-                saveNow();
+                saveChangesNow();
                 hardSaveOnNextBlock = false;
             } else {
                 // Coalesce writes to avoid throttling on disk access when catching up with the chain.
-                saveLater();
+                saveChangesLater();
             }
         } finally {
             lock.unlock();
@@ -2287,23 +2924,24 @@ public class Wallet extends BaseTaggableObject
         // when we receive a pending transaction from the mempool that is relevant to us, which spends coins that we
         // didn't see arrive on the best chain yet. For instance, because of a chain replay or because of our keys were
         // used by another wallet somewhere else. Also, unconfirmed transactions can arrive from the mempool in more or
-        // less random order.
-        for (Transaction pendingTx : pending.values()) {
-            for (TransactionInput input : pendingTx.getInputs()) {
-                TransactionInput.ConnectionResult result = input.connect(tx, TransactionInput.ConnectMode.ABORT_ON_CONFLICT);
-                if (fromChain) {
-                    // This TX is supposed to have just appeared on the best chain, so its outputs should not be marked
-                    // as spent yet. If they are, it means something is happening out of order.
-                    checkState(result != TransactionInput.ConnectionResult.ALREADY_SPENT);
-                }
-                if (result == TransactionInput.ConnectionResult.SUCCESS) {
-                    log.info("Connected pending tx input {}:{}",
-                            pendingTx.getHashAsString(), pendingTx.getInputs().indexOf(input));
-                    // The unspents map might not have it if we never saw this tx until it was included in the chain
-                    // and thus becomes spent the moment we become aware of it.
-                    if (myUnspents.remove(input.getConnectedOutput()))
-                        log.info("Removed from UNSPENTS: {}", input.getConnectedOutput());
-                }
+        // less random order. The index has the inputs spending this tx, of which those of pending transactions count.
+        for (TransactionInput input : spentOutPoints.getInputsSpending(tx.getHash())) {
+            Transaction pendingTx = input.getParentTransaction();
+            if (pending.get(pendingTx.getHash()) != pendingTx)
+                continue;
+            TransactionInput.ConnectionResult result = input.connect(tx, TransactionInput.ConnectMode.ABORT_ON_CONFLICT);
+            if (fromChain) {
+                // This TX is supposed to have just appeared on the best chain, so its outputs should not be marked
+                // as spent yet. If they are, it means something is happening out of order.
+                checkState(result != TransactionInput.ConnectionResult.ALREADY_SPENT);
+            }
+            if (result == TransactionInput.ConnectionResult.SUCCESS) {
+                log.info("Connected pending tx input {}:{}",
+                        pendingTx.getHashAsString(), pendingTx.getInputs().indexOf(input));
+                // The unspents map might not have it if we never saw this tx until it was included in the chain
+                // and thus becomes spent the moment we become aware of it.
+                if (myUnspents.remove(input.getConnectedOutput()))
+                    log.info("Removed from UNSPENTS: {}", input.getConnectedOutput());
             }
         }
         if (!fromChain) {
@@ -2376,6 +3014,8 @@ public class Wallet extends BaseTaggableObject
      */
     private void maybeMovePool(Transaction tx, String context) {
         checkState(lock.isHeldByCurrentThread());
+        // Called whenever the spent flags of tx's outputs may have changed, even if it stays in its pool.
+        markChanged(tx);
         if (tx.isEveryOwnedOutputSpent(this)) {
             // There's nothing left I can spend in this transaction.
             if (unspent.remove(tx.getHash()) != null) {
@@ -2440,7 +3080,7 @@ public class Wallet extends BaseTaggableObject
                 log.info("->pending (IN_CONFLICT): {}", tx.getHashAsString());
                 addWalletTransaction(Pool.PENDING, tx);
                 doubleSpendPendingTxns.add(tx);
-                addTransactionsDependingOn(doubleSpendPendingTxns, getTransactions(true));
+                addTransactionsDependingOn(doubleSpendPendingTxns, readView().getTransactions(true));
                 for (Transaction doubleSpendTx : doubleSpendPendingTxns) {
                     doubleSpendTx.getConfidence().setConfidenceType(ConfidenceType.IN_CONFLICT);
                     confidenceChanged.put(doubleSpendTx, TransactionConfidence.Listener.ChangeReason.TYPE);
@@ -2476,8 +3116,9 @@ public class Wallet extends BaseTaggableObject
             }
 
             isConsistentOrThrow();
+            publishSnapshot();
             informConfidenceListenersIfNotReorganizing();
-            saveNow();
+            saveChangesNow();
         } finally {
             lock.unlock();
         }
@@ -2649,6 +3290,80 @@ public class Wallet extends BaseTaggableObject
         transactionConfidenceListeners.add(new ListenerRegistration<>(listener, executor));
     }
 
+    /**
+     * Adds an event listener object called with the transactions that sent coins to the wallet, in batches.
+     * Runs the listener methods in the user thread.
+     */
+    public void addCoinsReceivedBatchEventListener(WalletCoinsReceivedBatchEventListener listener) {
+        addCoinsReceivedBatchEventListener(Threading.USER_THREAD, listener);
+    }
+
+    /**
+     * Adds an event listener object called with the transactions that sent coins to the wallet, in batches.
+     * The listener is executed by the given executor.
+     */
+    public void addCoinsReceivedBatchEventListener(Executor executor, WalletCoinsReceivedBatchEventListener listener) {
+        // This is thread safe, so we don't need to take the lock.
+        coinsReceivedBatchListeners.add(
+                new BatchingListenerRegistration<WalletCoinsReceivedBatchEventListener, CoinsEvent>(listener, executor, false) {
+            @Override
+            protected void dispatch(WalletCoinsReceivedBatchEventListener listener, List<CoinsEvent> events) {
+                listener.onCoinsReceived(Wallet.this, CoinsEvent.transactions(events), events.get(0).prevBalance,
+                        events.get(events.size() - 1).newBalance);
+            }
+        });
+    }
+
+    /**
+     * Adds an event listener object called with the transactions that sent coins from the wallet, in batches.
+     * Runs the listener methods in the user thread.
+     */
+    public void addCoinsSentBatchEventListener(WalletCoinsSentBatchEventListener listener) {
+        addCoinsSentBatchEventListener(Threading.USER_THREAD, listener);
+    }
+
+    /**
+     * Adds an event listener object called with the transactions that sent coins from the wallet, in batches.
+     * The listener is executed by the given executor.
+     */
+    public void addCoinsSentBatchEventListener(Executor executor, WalletCoinsSentBatchEventListener listener) {
+        // This is thread safe, so we don't need to take the lock.
+        coinsSentBatchListeners.add(
+                new BatchingListenerRegistration<WalletCoinsSentBatchEventListener, CoinsEvent>(listener, executor, false) {
+            @Override
+            protected void dispatch(WalletCoinsSentBatchEventListener listener, List<CoinsEvent> events) {
+                listener.onCoinsSent(Wallet.this, CoinsEvent.transactions(events), events.get(0).prevBalance,
+                        events.get(events.size() - 1).newBalance);
+            }
+        });
+    }
+
+    /**
+     * Adds an event listener object called with the transactions whose confidence changed, in batches where each
+     * transaction is only once. Prefer this to {@link #addTransactionConfidenceEventListener(TransactionConfidenceEventListener)}
+     * for large wallets, as the depth of every transaction changes with every block. Runs the listener methods in the
+     * user thread.
+     */
+    public void addTransactionConfidenceBatchEventListener(TransactionConfidenceBatchEventListener listener) {
+        addTransactionConfidenceBatchEventListener(Threading.USER_THREAD, listener);
+    }
+
+    /**
+     * Adds an event listener object called with the transactions whose confidence changed, in batches where each
+     * transaction is only once. The listener is executed by the given executor.
+     */
+    public void addTransactionConfidenceBatchEventListener(Executor executor,
+                                                           TransactionConfidenceBatchEventListener listener) {
+        // This is thread safe, so we don't need to take the lock.
+        transactionConfidenceBatchListeners.add(
+                new BatchingListenerRegistration<TransactionConfidenceBatchEventListener, Transaction>(listener, executor, true) {
+            @Override
+            protected void dispatch(TransactionConfidenceBatchEventListener listener, List<Transaction> txns) {
+                listener.onTransactionConfidencesChanged(Wallet.this, txns);
+            }
+        });
+    }
+
     /**
      * Removes the given event listener object. Returns true if the listener was removed, false if that listener
      * was never added.
@@ -2720,6 +3435,46 @@ public class Wallet extends BaseTaggableObject
         return ListenerRegistration.removeFromList(listener, transactionConfidenceListeners);
     }
 
+    /**
+     * Removes the given event listener object. Returns true if the listener was removed, false if that listener
+     * was never added.
+     */
+    public boolean removeCoinsReceivedBatchEventListener(WalletCoinsReceivedBatchEventListener listener) {
+        return ListenerRegistration.removeFromList(listener, coinsReceivedBatchListeners);
+    }
+
+    /**
+     * Removes the given event listener object. Returns true if the listener was removed, false if that listener
+     * was never added.
+     */
+    public boolean removeCoinsSentBatchEventListener(WalletCoinsSentBatchEventListener listener) {
+        return ListenerRegistration.removeFromList(listener, coinsSentBatchListeners);
+    }
+
+    /**
+     * Removes the given event listener object. Returns true if the listener was removed, false if that listener
+     * was never added.
+     */
+    public boolean removeTransactionConfidenceBatchEventListener(TransactionConfidenceBatchEventListener listener) {
+        return ListenerRegistration.removeFromList(listener, transactionConfidenceBatchListeners);
+    }
+
+    /**
+     * Returns how many events are waiting for the batch event listeners of this wallet, and how long they have had to
+     * wait at most, along with how many were coalesced. For listeners of single events see
+     * {@link Threading.UserThread#getQueueSize()}.
+     */
+    public EventDispatchStats getBatchEventDispatchStats() {
+        EventDispatchStats stats = EventDispatchStats.EMPTY;
+        for (BatchingListenerRegistration<?, ?> registration : coinsReceivedBatchListeners)
+            stats = stats.add(registration.getStats());
+        for (BatchingListenerRegistration<?, ?> registration : coinsSentBatchListeners)
+            stats = stats.add(registration.getStats());
+        for (BatchingListenerRegistration<?, ?> registration : transactionConfidenceBatchListeners)
+            stats = stats.add(registration.getStats());
+        return stats;
+    }
+
     private void queueOnTransactionConfidenceChanged(final Transaction tx) {
         checkState(lock.isHeldByCurrentThread());
         for (final ListenerRegistration<TransactionConfidenceEventListener> registration : transactionConfidenceListeners) {
@@ -2734,6 +3489,9 @@ public class Wallet extends BaseTaggableObject
                 });
             }
         }
+        for (BatchingListenerRegistration<TransactionConfidenceBatchEventListener, Transaction> registration
+                : transactionConfidenceBatchListeners)
+            registration.add(tx);
     }
 
     protected void maybeQueueOnWalletChanged() {
@@ -2762,6 +3520,12 @@ public class Wallet extends BaseTaggableObject
                 }
             });
         }
+        if (!coinsReceivedBatchListeners.isEmpty()) {
+            CoinsEvent event = new CoinsEvent(tx, balance, newBalance);
+            for (BatchingListenerRegistration<WalletCoinsReceivedBatchEventListener, CoinsEvent> registration
+                    : coinsReceivedBatchListeners)
+                registration.add(event);
+        }
     }
 
     protected void queueOnCoinsSent(final Transaction tx, final Coin prevBalance, final Coin newBalance) {
@@ -2774,6 +3538,31 @@ public class Wallet extends BaseTaggableObject
                 }
             });
         }
+        if (!coinsSentBatchListeners.isEmpty()) {
+            CoinsEvent event = new CoinsEvent(tx, prevBalance, newBalance);
+            for (BatchingListenerRegistration<WalletCoinsSentBatchEventListener, CoinsEvent> registration
+                    : coinsSentBatchListeners)
+                registration.add(event);
+        }
+    }
+
+    // A coins received or sent event, waiting for the batch listeners.
+    private static class CoinsEvent {
+        final Transaction tx;
+        final Coin prevBalance, newBalance;
+
+        CoinsEvent(Transaction tx, Coin prevBalance, Coin newBalance) {
+            this.tx = tx;
+            this.prevBalance = prevBalance;
+            this.newBalance = newBalance;
+        }
+
+        static List<Transaction> transactions(List<CoinsEvent> events) {
+            List<Transaction> txns = new ArrayList<>(events.size());
+            for (CoinsEvent event : events)
+                txns.add(event.tx);
+            return txns;
+        }
     }
 
     protected void queueOnReorganize() {
@@ -2807,46 +3596,72 @@ public class Wallet extends BaseTaggableObject
     //region Vending transactions and other internal state
 
     /**
-     * Returns a set of all transactions in the wallet.
-     * @param includeDead     If true, transactions that were overridden by a double spend are included.
+     * Returns the latest published snapshot of the wallet's pools and unspent outputs. This doesn't wait for the
+     * wallet lock, unless the wallet has just been loaded. A thread that is changing the wallet gets the snapshot from
+     * before the change.
      */
-    public Set<Transaction> getTransactions(boolean includeDead) {
+    public WalletSnapshot getSnapshot() {
+        WalletSnapshot snapshot = vSnapshot;
+        if (snapshot != null)
+            return snapshot;
         lock.lock();
         try {
-            Set<Transaction> all = new HashSet<>();
-            all.addAll(unspent.values());
-            all.addAll(spent.values());
-            all.addAll(pending.values());
-            if (includeDead)
-                all.addAll(dead.values());
-            return all;
+            if (vSnapshot == null)
+                publishSnapshot();
+            return vSnapshot;
         } finally {
             lock.unlock();
         }
     }
 
+    private void publishSnapshot() {
+        checkState(lock.isHeldByCurrentThread());
+        vSnapshot = WalletSnapshot.copyOf(++snapshotVersion, unspent, spent, pending, dead, transactions, spentOutPoints,
+                spendableOutputs);
+        spendableOutputs.publish();
+    }
+
+    // What read-only queries work on: the live pools for the thread holding the lock, which may be half way through
+    // changing them and has to see its own changes, and the published snapshot for everybody else.
+    private WalletSnapshot readView() {
+        if (lock.isHeldByCurrentThread())
+            return WalletSnapshot.liveView(unspent, spent, pending, dead, transactions, myUnspents);
+        return getSnapshot();
+    }
+
+    // The balance totals to go with readView().
+    private SpendableOutputs.Totals readTotals() {
+        if (lock.isHeldByCurrentThread())
+            return spendableOutputs.getTotals();
+        // Publishes the totals along with the snapshot if the wallet was changed without publishing.
+        getSnapshot();
+        return spendableOutputs.getPublishedTotals();
+    }
+
     /**
-     * Returns a set of all WalletTransactions in the wallet.
+     * Returns a set of all transactions in the wallet. Transactions that were pruned to the {@link WalletArchive} are
+     * read back from it as copies, see {@link #setArchive(WalletArchive)}.
+     * @param includeDead     If true, transactions that were overridden by a double spend are included.
      */
-    public Iterable<WalletTransaction> getWalletTransactions() {
-        lock.lock();
-        try {
-            Set<WalletTransaction> all = new HashSet<>();
-            addWalletTransactionsToSet(all, Pool.UNSPENT, unspent.values());
-            addWalletTransactionsToSet(all, Pool.SPENT, spent.values());
-            addWalletTransactionsToSet(all, Pool.DEAD, dead.values());
-            addWalletTransactionsToSet(all, Pool.PENDING, pending.values());
-            return all;
-        } finally {
-            lock.unlock();
+    public Set<Transaction> getTransactions(boolean includeDead) {
+        WalletArchive archive = vArchive;
+        Set<Transaction> transactions = readView().getTransactions(includeDead);
+        if (archive != null && archive.size() > 0) {
+            try {
+                transactions.addAll(archive.getTransactions(params, getLastBlockSeenHeight()));
+            } catch (IOException e) {
+                throw new RuntimeException("Could not read the wallet archive", e);
+            }
         }
+        return transactions;
     }
 
-    private static void addWalletTransactionsToSet(Set<WalletTransaction> txns,
-                                                   Pool poolType, Collection<Transaction> pool) {
-        for (Transaction tx : pool) {
-            txns.add(new WalletTransaction(poolType, tx));
-        }
+    /**
+     * Returns a set of all WalletTransactions in the wallet. Transactions that were pruned to the
+     * {@link WalletArchive} are not included, see {@link #setArchive(WalletArchive)}.
+     */
+    public Iterable<WalletTransaction> getWalletTransactions() {
+        return readView().getWalletTransactions();
     }
 
     /**
@@ -2858,6 +3673,8 @@ public class Wallet extends BaseTaggableObject
         lock.lock();
         try {
             addWalletTransaction(wtx.getPool(), wtx.getTransaction());
+            // Wallets are loaded one transaction at a time, so leave it to the next reader.
+            vSnapshot = null;
         } finally {
             lock.unlock();
         }
@@ -2868,7 +3685,13 @@ public class Wallet extends BaseTaggableObject
      */
     private void addWalletTransaction(Pool pool, Transaction tx) {
         checkState(lock.isHeldByCurrentThread());
-        transactions.put(tx.getHash(), tx);
+        markChanged(tx);
+        Transaction previous = transactions.put(tx.getHash(), tx);
+        if (previous != tx) {
+            if (previous != null)
+                spentOutPoints.remove(previous);
+            spentOutPoints.add(tx);
+        }
         switch (pool) {
         case UNSPENT:
             unspent.put(tx.getHash(), tx);
@@ -2909,42 +3732,38 @@ public class Wallet extends BaseTaggableObject
      * <p/>
      * Note: the current implementation is O(num transactions in wallet). Regardless of how many transactions are
      * requested, the cost is always the same. In future, requesting smaller numbers of transactions may be faster
-     * depending on how the wallet is implemented (eg if backed by a database).
+     * depending on how the wallet is implemented (eg if backed by a database). Transactions that were pruned to the
+     * {@link WalletArchive} are not included, see {@link #setArchive(WalletArchive)}.
      */
     public List<Transaction> getRecentTransactions(int numTransactions, boolean includeDead) {
-        lock.lock();
-        try {
-            checkArgument(numTransactions >= 0);
-            // Firstly, put all transactions into an array.
-            int size = unspent.size() + spent.size() + pending.size();
-            if (numTransactions > size || numTransactions == 0) {
-                numTransactions = size;
-            }
-            ArrayList<Transaction> all = new ArrayList<>(getTransactions(includeDead));
-            // Order by update time.
-            Collections.sort(all, Transaction.SORT_TX_BY_UPDATE_TIME);
-            if (numTransactions == all.size()) {
-                return all;
-            } else {
-                all.subList(numTransactions, all.size()).clear();
-                return all;
-            }
-        } finally {
-            lock.unlock();
+        checkArgument(numTransactions >= 0);
+        WalletSnapshot snapshot = readView();
+        // Firstly, put all transactions into an array.
+        int size = snapshot.getPool(Pool.UNSPENT).size() + snapshot.getPool(Pool.SPENT).size()
+                + snapshot.getPool(Pool.PENDING).size();
+        if (numTransactions > size || numTransactions == 0) {
+            numTransactions = size;
+        }
+        ArrayList<Transaction> all = new ArrayList<>(snapshot.getTransactions(includeDead));
+        // Order by update time.
+        Collections.sort(all, Transaction.SORT_TX_BY_UPDATE_TIME);
+        if (numTransactions == all.size()) {
+            return all;
+        } else {
+            all.subList(numTransactions, all.size()).clear();
+            return all;
         }
     }
 
     /**
-     * Returns a transaction object given its hash, if it exists in this wallet, or null otherwise.
+     * Returns a transaction object given its hash, if it exists in this wallet, or null otherwise. A transaction that
+     * was pruned to the {@link WalletArchive} is read back from it as a copy, see
+     * {@link #getArchivedTransaction(Sha256Hash)}.
      */
     @Nullable
     public Transaction getTransaction(Sha256Hash hash) {
-        lock.lock();
-        try {
-            return transactions.get(hash);
-        } finally {
-            lock.unlock();
-        }
+        Transaction tx = readView().getTransaction(hash);
+        return tx != null ? tx : getArchivedTransaction(hash);
     }
 
     /** {@inheritDoc} */
@@ -3008,12 +3827,26 @@ public class Wallet extends BaseTaggableObject
     }
 
     private void clearTransactions() {
+        if (deferredHistory != null) {
+            deferredHistory.close();
+            deferredHistory = null;
+        }
+        WalletArchive archive = vArchive;
+        if (archive != null) {
+            try {
+                archive.clear();
+            } catch (IOException e) {
+                log.warn("Failed to empty the wallet archive", e);
+            }
+        }
         unspent.clear();
         spent.clear();
         pending.clear();
         dead.clear();
         transactions.clear();
+        spentOutPoints.clear();
         myUnspents.clear();
+        publishSnapshot();
     }
 
     /**
@@ -3072,6 +3905,7 @@ public class Wallet extends BaseTaggableObject
 
                         i.remove();
                         transactions.remove(tx.getHash());
+                        spentOutPoints.remove(tx);
                         dirty = true;
                         log.info("Removed transaction {} from pending pool during cleanup.", tx.getHashAsString());
                     } else {
@@ -3083,6 +3917,7 @@ public class Wallet extends BaseTaggableObject
             }
             if (dirty) {
                 isConsistentOrThrow();
+                publishSnapshot();
                 saveLater();
                 if (log.isInfoEnabled())
                     log.info("Estimated balance is now: {}", getBalance(BalanceType.ESTIMATED).toFriendlyString());
@@ -3117,52 +3952,17 @@ public class Wallet extends BaseTaggableObject
 
     @VisibleForTesting
     public int getPoolSize(WalletTransaction.Pool pool) {
-        lock.lock();
-        try {
-            switch (pool) {
-                case UNSPENT:
-                    return unspent.size();
-                case SPENT:
-                    return spent.size();
-                case PENDING:
-                    return pending.size();
-                case DEAD:
-                    return dead.size();
-            }
-            throw new RuntimeException("Unreachable");
-        } finally {
-            lock.unlock();
-        }
+        return readView().getPool(pool).size();
     }
 
     @VisibleForTesting
     public boolean poolContainsTxHash(final WalletTransaction.Pool pool, final Sha256Hash txHash) {
-        lock.lock();
-        try {
-            switch (pool) {
-                case UNSPENT:
-                    return unspent.containsKey(txHash);
-                case SPENT:
-                    return spent.containsKey(txHash);
-                case PENDING:
-                    return pending.containsKey(txHash);
-                case DEAD:
-                    return dead.containsKey(txHash);
-            }
-            throw new RuntimeException("Unreachable");
-        } finally {
-            lock.unlock();
-        }
+        return readView().getPool(pool).containsKey(txHash);
     }
 
     /** Returns a copy of the internal unspent outputs list */
     public List<TransactionOutput> getUnspents() {
-        lock.lock();
-        try {
-            return new ArrayList<>(myUnspents);
-        } finally {
-            lock.unlock();
-        }
+        return new ArrayList<>(readView().getUnspentOutputs());
     }
 
     @Override
@@ -3504,7 +4304,7 @@ public class Wallet extends BaseTaggableObject
         AssetBalance balance = new AssetBalance(assetFilter, address);
 
         // Iterate over all known transactions
-        for (Transaction tx : transactions.values()) {
+        for (Transaction tx : readView().getTransactions(true)) {
 
             // Get outputs of these transactions
             for (TransactionOutput txo : tx.getOutputs()) {
@@ -3539,7 +4339,7 @@ public class Wallet extends BaseTaggableObject
 
     public ArrayList<Asset> getAvailableAssets() {
         ArrayList<Asset> assets = new ArrayList<Asset>();
-        for (Transaction tx : transactions.values()) {
+        for (Transaction tx : readView().getTransactions(true)) {
             for (TransactionOutput txo : tx.getOutputs()) {
                 if (txo.getScriptPubKey().isMetadata()) {
                     byte[] metaData = txo.getScriptPubKey().getChunks().get(0).data;
@@ -3561,22 +4361,24 @@ public class Wallet extends BaseTaggableObject
      * Returns the balance of this wallet as calculated by the provided balanceType.
      */
     public Coin getBalance(BalanceType balanceType) {
-        lock.lock();
-        try {
-            if (balanceType == BalanceType.AVAILABLE || balanceType == BalanceType.AVAILABLE_SPENDABLE) {
-                List<TransactionOutput> candidates = calculateAllSpendCandidates(true, balanceType == BalanceType.AVAILABLE_SPENDABLE);
-                CoinSelection selection = coinSelector.select(NetworkParameters.MAX_MONEY, candidates);
-                return selection.valueGathered;
-            } else if (balanceType == BalanceType.ESTIMATED || balanceType == BalanceType.ESTIMATED_SPENDABLE) {
-                List<TransactionOutput> all = calculateAllSpendCandidates(false, balanceType == BalanceType.ESTIMATED_SPENDABLE);
-                Coin value = Coin.ZERO;
-                for (TransactionOutput out : all) value = value.add(out.getValue());
-                return value;
-            } else {
-                throw new AssertionError("Unknown balance type");  // Unreachable.
-            }
-        } finally {
-            lock.unlock();
+        if (balanceType == BalanceType.AVAILABLE && vUTXOProvider == null) {
+            Coin available = readTotals().getAvailable(coinSelector);
+            if (available != null)
+                return available;
+        }
+        if (balanceType == BalanceType.AVAILABLE || balanceType == BalanceType.AVAILABLE_SPENDABLE) {
+            List<TransactionOutput> candidates = calculateAllSpendCandidates(true, balanceType == BalanceType.AVAILABLE_SPENDABLE);
+            CoinSelection selection = coinSelector.select(NetworkParameters.MAX_MONEY, candidates);
+            return selection.valueGathered;
+        } else if (balanceType == BalanceType.ESTIMATED && vUTXOProvider == null) {
+            return readTotals().estimated;
+        } else if (balanceType == BalanceType.ESTIMATED || balanceType == BalanceType.ESTIMATED_SPENDABLE) {
+            List<TransactionOutput> all = calculateAllSpendCandidates(false, balanceType == BalanceType.ESTIMATED_SPENDABLE);
+            Coin value = Coin.ZERO;
+            for (TransactionOutput out : all) value = value.add(out.getValue());
+            return value;
+        } else {
+            throw new AssertionError("Unknown balance type");  // Unreachable.
         }
     }
 
@@ -3586,15 +4388,10 @@ public class Wallet extends BaseTaggableObject
      * possible and returns the total.
      */
     public Coin getBalance(CoinSelector selector) {
-        lock.lock();
-        try {
-            checkNotNull(selector);
-            List<TransactionOutput> candidates = calculateAllSpendCandidates(true, false);
-            CoinSelection selection = selector.select(params.getMaxMoney(), candidates);
-            return selection.valueGathered;
-        } finally {
-            lock.unlock();
-        }
+        checkNotNull(selector);
+        List<TransactionOutput> candidates = calculateAllSpendCandidates(true, false);
+        CoinSelection selection = selector.select(params.getMaxMoney(), candidates);
+        return selection.valueGathered;
     }
 
     private static class BalanceFutureRequest {
@@ -4025,7 +4822,9 @@ public class Wallet extends BaseTaggableObject
             // with the actual outputs that'll be used to gather the required amount of value. In this way, users
             // can customize coin selection policies. The call below will ignore immature coinbases and outputs
             // we don't have the keys for.
-            List<TransactionOutput> candidates = calculateAllSpendCandidates(true, req.missingSigsMode == MissingSigsMode.THROW);
+            List<TransactionOutput> candidates = calculateSpendCandidates(
+                    req.coinSelector == null ? coinSelector : req.coinSelector,
+                    req.missingSigsMode == MissingSigsMode.THROW);
 
             CoinSelection bestCoinSelection;
             TransactionOutput bestChangeOutput = null;
@@ -4105,6 +4904,8 @@ public class Wallet extends BaseTaggableObject
      * transaction will be complete in the end.</p>
      */
     public void signTransaction(SendRequest req) {
+        // A copy of the cached key that is ours to wipe, the key of the request belongs to the caller.
+        KeyParameter cachedAesKey = null;
         lock.lock();
         try {
             Transaction tx = req.tx;
@@ -4113,7 +4914,10 @@ public class Wallet extends BaseTaggableObject
             checkState(inputs.size() > 0);
             checkState(outputs.size() > 0);
 
-            KeyBag maybeDecryptingKeyBag = new DecryptingKeyBag(this, req.aesKey);
+            if (req.aesKey == null)
+                cachedAesKey = aesKeyCache.get();
+            KeyParameter aesKey = req.aesKey != null ? req.aesKey : cachedAesKey;
+            KeyBag maybeDecryptingKeyBag = new DecryptingKeyBag(this, aesKey);
 
             int numInputs = tx.getInputs().size();
             for (int i = 0; i < numInputs; i++) {
@@ -4150,6 +4954,7 @@ public class Wallet extends BaseTaggableObject
             // resolve missing sigs if any
             new MissingSigResolutionSigner(req.missingSigsMode).signInputs(proposal, maybeDecryptingKeyBag);
         } finally {
+            AesKeyCache.wipe(cachedAesKey);
             lock.unlock();
         }
     }
@@ -4189,25 +4994,54 @@ public class Wallet extends BaseTaggableObject
      * @param excludeUnsignable Whether to ignore outputs that we are tracking but don't have the keys to sign for.
      */
     public List<TransactionOutput> calculateAllSpendCandidates(boolean excludeImmatureCoinbases, boolean excludeUnsignable) {
+        if (vUTXOProvider == null) {
+            Collection<TransactionOutput> unspents = readView().getUnspentOutputs();
+            List<TransactionOutput> candidates = new ArrayList<>(unspents.size());
+            for (TransactionOutput output : unspents) {
+                if (excludeUnsignable && !canSignFor(output.getScriptPubKey())) continue;
+                Transaction transaction = checkNotNull(output.getParentTransaction());
+                if (excludeImmatureCoinbases && !transaction.isMature())
+                    continue;
+                candidates.add(output);
+            }
+            return candidates;
+        }
         lock.lock();
         try {
-            List<TransactionOutput> candidates;
-            if (vUTXOProvider == null) {
-                candidates = new ArrayList<>(myUnspents.size());
-                for (TransactionOutput output : myUnspents) {
+            return calculateAllSpendCandidatesFromUTXOProvider(excludeImmatureCoinbases);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // As calculateAllSpendCandidates(true, excludeUnsignable), for the given selector. A branch and bound selector that
+    // the available outputs are tracked for gets those, already filtered and in value order, so that it doesn't sort
+    // the whole wallet on every send.
+    private List<TransactionOutput> calculateSpendCandidates(CoinSelector selector, boolean excludeUnsignable) {
+        checkState(lock.isHeldByCurrentThread());
+        if (vUTXOProvider == null && selector instanceof BranchAndBoundCoinSelector) {
+            Set<TransactionOutput> available = spendableOutputs.getAvailable(selector);
+            if (available != null) {
+                BranchAndBoundCoinSelector.ValueOrderedCandidates candidates =
+                        new BranchAndBoundCoinSelector.ValueOrderedCandidates(available.size());
+                for (TransactionOutput output : available) {
                     if (excludeUnsignable && !canSignFor(output.getScriptPubKey())) continue;
-                    Transaction transaction = checkNotNull(output.getParentTransaction());
-                    if (excludeImmatureCoinbases && !transaction.isMature())
-                        continue;
                     candidates.add(output);
                 }
-            } else {
-                candidates = calculateAllSpendCandidatesFromUTXOProvider(excludeImmatureCoinbases);
+                return candidates;
             }
-            return candidates;
-        } finally {
-            lock.unlock();
         }
+        return calculateAllSpendCandidates(true, excludeUnsignable);
+    }
+
+    // A copy of the candidates for a selector to own, which keeps them marked as in value order if they are.
+    private static List<TransactionOutput> copyCandidates(List<TransactionOutput> candidates) {
+        if (!(candidates instanceof BranchAndBoundCoinSelector.ValueOrderedCandidates))
+            return new LinkedList<>(candidates);
+        BranchAndBoundCoinSelector.ValueOrderedCandidates copy =
+                new BranchAndBoundCoinSelector.ValueOrderedCandidates(candidates.size());
+        copy.addAll(candidates);
+        return copy;
     }
 
     /**
@@ -4328,6 +5162,8 @@ public class Wallet extends BaseTaggableObject
         lock.lock();
         try {
             this.coinSelector = checkNotNull(coinSelector);
+            spendableOutputs.setCoinSelector(coinSelector);
+            spendableOutputs.publish();
         } finally {
             lock.unlock();
         }
@@ -4475,17 +5311,27 @@ public class Wallet extends BaseTaggableObject
             // to try and corrupt the internal data structures. We should try harder to avoid this but it's tricky
             // because there are so many ways the block can be invalid.
 
+            // Transactions in the old blocks have to be in the pools to be moved out of them.
+            try {
+                loadDeferredHistory();
+                restoreArchive();
+            } catch (IOException e) {
+                log.error("Re-organizing without the rest of the transaction history", e);
+            }
+
             // Avoid spuriously informing the user of wallet/tx confidence changes whilst we're re-organizing.
             checkState(confidenceChanged.size() == 0);
             checkState(!insideReorg);
             insideReorg = true;
+            // Depths and pools change all over the place, so this is not worth journaling.
+            saveGeneration++;
             checkState(onWalletChangedSuppressions == 0);
             onWalletChangedSuppressions++;
 
             // Map block hash to transactions that appear in it. We ensure that the map values are sorted according
             // to their relative position within those blocks.
             ArrayListMultimap<Sha256Hash, TxOffsetPair> mapBlockTx = ArrayListMultimap.create();
-            for (Transaction tx : getTransactions(true)) {
+            for (Transaction tx : readView().getTransactions(true)) {
                 Map<Sha256Hash, Integer> appearsIn = tx.getAppearsInHashes();
                 if (appearsIn == null) continue;  // Pending.
                 for (Map.Entry<Sha256Hash, Integer> block : appearsIn.entrySet())
@@ -4590,11 +5436,14 @@ public class Wallet extends BaseTaggableObject
                 notifyNewBestBlock(block);
             }
             isConsistentOrThrow();
+            // Confidence changes are held back during a re-org, so the balance totals were not told about them.
+            spendableOutputs.recount();
             final Coin balance = getBalance();
             log.info("post-reorg balance is {}", balance.toFriendlyString());
             // Inform event listeners that a re-org took place.
             queueOnReorganize();
             insideReorg = false;
+            publishSnapshot();
             onWalletChangedSuppressions--;
             maybeQueueOnWalletChanged();
             checkBalanceFuturesLocked(balance);
@@ -4927,7 +5776,7 @@ public class Wallet extends BaseTaggableObject
             }
             CoinSelector selector = req.coinSelector == null ? coinSelector : req.coinSelector;
             // selector is allowed to modify candidates list.
-            CoinSelection selection = selector.select(valueNeeded, new LinkedList<>(candidates));
+            CoinSelection selection = selector.select(valueNeeded, copyCandidates(candidates));
             result.bestCoinSelection = selection;
             // Can we afford this?
             if (selection.valueGathered.compareTo(valueNeeded) < 0) {
@@ -0,0 +1,260 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Where a {@link Wallet} keeps the transactions it has pruned from memory, see
+ * {@link Wallet#setArchive(WalletArchive)}. Only transactions whose outputs of the wallet are all spent, that are at
+ * least {@link #getMinDepth()} blocks deep, and whose outputs are not spent by pending transactions, are pruned. For
+ * each one the archive keeps the hash and where it is in the file, so that the heap a wallet needs depends on its
+ * recent activity rather than on how long it has been in use.</p>
+ *
+ * <p>The file is a scratch file that is emptied when the archive is created. The wallet file remains complete, as
+ * saving the wallet copies the archived transactions into it one at a time, after the others.</p>
+ */
+public class WalletArchive implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(WalletArchive.class);
+
+    /** The default number of blocks a transaction must be buried under before it is archived. */
+    public static final int DEFAULT_MIN_DEPTH = 1000;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final int minDepth;
+    // Where each archived transaction is, in the order they were archived.
+    private final LinkedHashMap<Sha256Hash, Entry> entries = new LinkedHashMap<>();
+    private long end;
+
+    private static class Entry {
+        final long offset;
+        final int length;
+        // The last seen block height of the wallet when the transaction was archived, to bring its depth up to date.
+        final int height;
+
+        Entry(long offset, int length, int height) {
+            this.offset = offset;
+            this.length = length;
+            this.height = height;
+        }
+    }
+
+    /** Creates an archive in the given file with the {@link #DEFAULT_MIN_DEPTH}. */
+    public WalletArchive(File file) throws IOException {
+        this(file, DEFAULT_MIN_DEPTH);
+    }
+
+    /**
+     * Creates an archive in the given file, replacing what was in it.
+     *
+     * @param minDepth how many blocks deep a transaction must be to be archived; re-organizations deeper than that
+     *                 have to read the archive back first
+     */
+    public WalletArchive(File file, int minDepth) throws IOException {
+        checkArgument(minDepth > 0, "minDepth must be positive");
+        this.file = new RandomAccessFile(file, "rw");
+        this.file.setLength(0);
+        this.channel = this.file.getChannel();
+        this.minDepth = minDepth;
+    }
+
+    /** Returns how many blocks deep a transaction must be to be archived. */
+    public int getMinDepth() {
+        return minDepth;
+    }
+
+    /** Returns the number of transactions in the archive. */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /** Returns true if the archive has the transaction with the given hash. */
+    public synchronized boolean contains(Sha256Hash hash) {
+        return entries.containsKey(hash);
+    }
+
+    /** Appends the given transactions, archived at the given height. Either all of them are added or none. */
+    synchronized void add(Collection<Protos.Transaction> txProtos, int height) throws IOException {
+        long start = end;
+        Map<Sha256Hash, Entry> added = new LinkedHashMap<>();
+        try {
+            for (Protos.Transaction txProto : txProtos) {
+                byte[] bytes = txProto.toByteArray();
+                ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                while (buffer.hasRemaining())
+                    channel.write(buffer, end + buffer.position());
+                added.put(WalletProtobufSerializer.byteStringToHash(txProto.getHash()),
+                        new Entry(end, bytes.length, height));
+                end += bytes.length;
+            }
+        } catch (IOException e) {
+            end = start;
+            try {
+                file.setLength(start);
+            } catch (IOException e2) {
+                log.warn("Failed to truncate wallet archive", e2);
+            }
+            throw e;
+        }
+        entries.putAll(added);
+    }
+
+    /**
+     * Writes all archived transactions to the given output as the given field of a message, in wallet file format
+     * with their depths brought up to the given last seen block height. They are read from the file one at a time.
+     */
+    synchronized void writeTransactions(CodedOutputStream output, int fieldNumber, int height) throws IOException {
+        for (Entry entry : entries.values())
+            output.writeMessage(fieldNumber, read(entry, height));
+    }
+
+    /**
+     * Returns a copy of the archived transaction with the given hash, or null if there is none. The copy is connected
+     * to copies of the archived transactions it spends from, but not to anything in the wallet.
+     */
+    @Nullable
+    synchronized Transaction getTransaction(NetworkParameters params, Sha256Hash hash, int height)
+            throws IOException {
+        Entry entry = entries.get(hash);
+        if (entry == null)
+            return null;
+        List<Protos.Transaction> txProtos = new ArrayList<>();
+        Protos.Transaction txProto = read(entry, height);
+        txProtos.add(txProto);
+        Set<Sha256Hash> seen = new HashSet<>();
+        seen.add(hash);
+        for (Protos.TransactionInput input : txProto.getTransactionInputList()) {
+            Sha256Hash from = WalletProtobufSerializer.byteStringToHash(input.getTransactionOutPointHash());
+            Entry fromEntry = entries.get(from);
+            if (fromEntry != null && seen.add(from))
+                txProtos.add(read(fromEntry, height));
+        }
+        return copies(params, txProtos).get(0).getTransaction();
+    }
+
+    /** Returns copies of all archived transactions, connected to each other but not to anything in the wallet. */
+    synchronized List<Transaction> getTransactions(NetworkParameters params, int height) throws IOException {
+        List<Transaction> transactions = new ArrayList<>(entries.size());
+        for (WalletTransaction wtx : readAll(new WalletProtobufSerializer(), params, height))
+            transactions.add(wtx.getTransaction());
+        return transactions;
+    }
+
+    /**
+     * Reads all archived transactions and connects them to each other and to the given transactions of the wallet,
+     * to be put back into the wallet, which must be locked. The archive stays as it is until {@link #clear()}.
+     */
+    synchronized List<WalletTransaction> restore(NetworkParameters params, Map<Sha256Hash, Transaction> walletTxs,
+                                                 int height) throws IOException {
+        WalletProtobufSerializer serializer = new WalletProtobufSerializer();
+        for (Transaction tx : walletTxs.values())
+            serializer.txMap.put(WalletProtobufSerializer.hashToByteString(tx.getHash()), tx);
+        return readAll(serializer, params, height);
+    }
+
+    /** Empties the archive, once what was in it is back in the wallet. */
+    synchronized void clear() throws IOException {
+        entries.clear();
+        end = 0;
+        file.setLength(0);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        file.close();
+    }
+
+    private List<WalletTransaction> copies(NetworkParameters params, List<Protos.Transaction> txProtos)
+            throws IOException {
+        return read(new WalletProtobufSerializer(), params, txProtos);
+    }
+
+    private static List<WalletTransaction> read(WalletProtobufSerializer serializer, NetworkParameters params,
+                                                List<Protos.Transaction> txProtos) throws IOException {
+        // Outputs spent by transactions that were not read stay unconnected.
+        serializer.deferredSpends = new HashMap<>();
+        List<WalletTransaction> wtxs = new ArrayList<>(txProtos.size());
+        try {
+            for (Protos.Transaction txProto : txProtos)
+                serializer.readTransaction(txProto, params);
+            for (Protos.Transaction txProto : txProtos)
+                wtxs.add(serializer.connectTransactionOutputs(params, txProto));
+        } catch (UnreadableWalletException e) {
+            throw new IOException(e);
+        }
+        return wtxs;
+    }
+
+    // Like read(serializer, params, txProtos) for the whole archive, but reads the file once per pass, one transaction at
+    // a time, so that only the transactions themselves are held in memory and not their records as well.
+    private List<WalletTransaction> readAll(WalletProtobufSerializer serializer, NetworkParameters params, int height)
+            throws IOException {
+        serializer.deferredSpends = new HashMap<>();
+        List<WalletTransaction> wtxs = new ArrayList<>(entries.size());
+        try {
+            for (Entry entry : entries.values())
+                serializer.readTransaction(read(entry, height), params);
+            for (Entry entry : entries.values())
+                wtxs.add(serializer.connectTransactionOutputs(params, read(entry, height)));
+        } catch (UnreadableWalletException e) {
+            throw new IOException(e);
+        }
+        return wtxs;
+    }
+
+    private Protos.Transaction read(Entry entry, int height) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(entry.length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, entry.offset + buffer.position()) < 0)
+                throw new IOException("Wallet archive is truncated");
+        }
+        Protos.Transaction txProto = Protos.Transaction.parseFrom(ByteString.copyFrom(buffer.array()));
+        int blocksSince = height - entry.height;
+        if (blocksSince > 0 && txProto.hasConfidence() && txProto.getConfidence().hasDepth()) {
+            Protos.TransactionConfidence.Builder confidence = txProto.getConfidence().toBuilder();
+            confidence.setDepth(confidence.getDepth() + blocksSince);
+            txProto = txProto.toBuilder().setConfidence(confidence).build();
+        }
+        return txProto;
+    }
+}
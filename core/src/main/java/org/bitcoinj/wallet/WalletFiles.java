@@ -26,6 +26,7 @@ import com.google.common.base.Stopwatch;
 import javax.annotation.*;
 import java.io.*;
 import java.util.Date;
+import java.util.List;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.*;
 
@@ -49,6 +50,9 @@ public class WalletFiles {
     private final Callable<Void> saver;
 
     private volatile Listener vListener;
+    private volatile boolean journaling;
+    // Only used with the wallet locked, which also keeps appends in the order the changes were made.
+    @Nullable private WalletJournal journal;
 
     /**
      * Implementors can do pre/post treatment of the wallet file. Useful for adjusting permissions and other things.
@@ -109,6 +113,31 @@ public class WalletFiles {
         this.vListener = checkNotNull(listener);
     }
 
+    /**
+     * Enables or disables journaling. While enabled, a save that follows a new block, a received transaction or a
+     * committed one only appends the changed transactions to a {@link WalletJournal} next to the wallet file, instead
+     * of rewriting the file. Any other change, and a journal that has grown too large, still gets a full save, which
+     * starts a new journal. The first save after enabling journaling is always a full one.
+     *
+     * <p>A journaled wallet file has to be loaded with {@link WalletJournal#loadFromFile(File, WalletExtension...)},
+     * and should not be saved to by anything else while this is autosaving it, as that would orphan the journal.</p>
+     */
+    public void setJournaling(boolean journaling) {
+        wallet.lock.lock();
+        try {
+            this.journaling = journaling;
+            if (!journaling)
+                closeJournal();
+        } finally {
+            wallet.lock.unlock();
+        }
+    }
+
+    /** Returns true if saves are journaled, see {@link #setJournaling(boolean)}. */
+    public boolean isJournaling() {
+        return journaling;
+    }
+
     /** Actually write the wallet file to disk, using an atomic rename when possible. Runs on the current thread. */
     public void saveNow() throws IOException {
         // Can be called by any thread. However the wallet is locked whilst saving, so we can have two saves in flight
@@ -121,6 +150,51 @@ public class WalletFiles {
     }
 
     private void saveNowInternal() throws IOException {
+        if (!journaling) {
+            saveFile();
+            return;
+        }
+        wallet.lock.lock();
+        try {
+            if (journal != null && !journal.needsCompaction()) {
+                List<WalletTransaction> changes = wallet.takeJournalChanges();
+                if (changes != null) {
+                    final Stopwatch watch = Stopwatch.createStarted();
+                    try {
+                        journal.append(wallet, changes);
+                    } catch (IOException e) {
+                        // The journal may end in a partial record now, so start over with a full save next time.
+                        closeJournal();
+                        throw e;
+                    }
+                    watch.stop();
+                    log.info("Journaled {} changed transactions in {}", changes.size(), watch);
+                    return;
+                }
+            }
+            closeJournal();
+            // Read before writing, as requests made after this are not covered by the save.
+            long generation = wallet.getSaveGeneration();
+            saveFile();
+            wallet.markSaved(generation);
+            journal = WalletJournal.create(file);
+        } finally {
+            wallet.lock.unlock();
+        }
+    }
+
+    private void closeJournal() {
+        if (journal == null)
+            return;
+        try {
+            journal.close();
+        } catch (IOException e) {
+            log.warn("Failed to close wallet journal", e);
+        }
+        journal = null;
+    }
+
+    private void saveFile() throws IOException {
         final Stopwatch watch = Stopwatch.createStarted();
         File directory = file.getAbsoluteFile().getParentFile();
         File temp = File.createTempFile("wallet", null, directory);
@@ -149,5 +223,11 @@ public class WalletFiles {
         } catch (InterruptedException x) {
             throw new RuntimeException(x);
         }
+        wallet.lock.lock();
+        try {
+            closeJournal();
+        } finally {
+            wallet.lock.unlock();
+        }
     }
 }
@@ -0,0 +1,279 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.io.Files;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import javax.annotation.Nullable;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PushbackInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * <p>An append-only journal of wallet changes that sits next to a wallet file, so that saving a wallet after a block or
+ * a new transaction costs about as much as the change instead of a rewrite of the whole file. It is written by
+ * {@link WalletFiles} when journaling is enabled, and read by {@link #loadFromFile(File, WalletExtension...)}.</p>
+ *
+ * <p>The journal for "foo.wallet" is "foo.wallet.journal". It starts with the magic bytes "WALLETJOURNAL 1" and the
+ * SHA-256 hash of the wallet file it extends; a journal whose hash does not match is left over from an older wallet
+ * file and ignored. Then come records of a length, a partial {@link Protos.Wallet} holding the changed transactions
+ * and the last seen block, and a CRC32 checksum of the message. Each record is one save, so a save is either replayed
+ * completely or not at all, and replay stops at the first record that is incomplete or does not check out, as left by
+ * a crash while appending.</p>
+ *
+ * <p>Depth changes are not journaled, as every block would change every confirmed transaction. On replay, each
+ * confirmed transaction is taken to be one block deeper for each block seen since its state was recorded.</p>
+ */
+public class WalletJournal {
+    private static final Logger log = LoggerFactory.getLogger(WalletJournal.class);
+
+    private static final String MAGIC = "WALLETJOURNAL 1";
+    private static final int HEADER_SIZE = MAGIC.length() + 32;
+    // A journal that grows past the size of the wallet file (or this, for small wallets) is folded back into it.
+    private static final long MIN_COMPACTION_SIZE = 1024 * 1024;
+
+    private final FileOutputStream stream;
+    private final FileChannel channel;
+    private final long walletFileSize;
+    private long size;
+
+    private WalletJournal(File journalFile, long walletFileSize) throws IOException {
+        this.stream = new FileOutputStream(journalFile, true);
+        this.channel = stream.getChannel();
+        this.walletFileSize = walletFileSize;
+        this.size = channel.size();
+    }
+
+    /** Returns the journal file that goes with the given wallet file. */
+    public static File journalFileFor(File walletFile) {
+        return new File(walletFile.getPath() + ".journal");
+    }
+
+    /**
+     * Starts a new, empty journal for the given wallet file, which must have just been written. Replaces any old
+     * journal atomically where the platform allows it.
+     */
+    static WalletJournal create(File walletFile) throws IOException {
+        File journalFile = journalFileFor(walletFile);
+        File temp = File.createTempFile("journal", null, journalFile.getAbsoluteFile().getParentFile());
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(header(Sha256Hash.of(walletFile)));
+            out.flush();
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (Utils.isWindows()) {
+            // Work around an issue on Windows whereby you can't rename over existing files.
+            File canonical = journalFile.getCanonicalFile();
+            if (canonical.exists() && !canonical.delete())
+                throw new IOException("Failed to delete old journal " + canonical);
+            journalFile = canonical;
+        }
+        if (!temp.renameTo(journalFile))
+            throw new IOException("Failed to rename " + temp + " to " + journalFile);
+        return new WalletJournal(journalFile, walletFile.length());
+    }
+
+    /** Appends the given changes and forces them to disk. */
+    void append(Wallet wallet, List<WalletTransaction> changes) throws IOException {
+        Protos.Wallet.Builder record = Protos.Wallet.newBuilder();
+        record.setNetworkIdentifier(wallet.getNetworkParameters().getId());
+        for (WalletTransaction wtx : changes)
+            record.addTransaction(WalletProtobufSerializer.makeTxProto(wtx));
+        Sha256Hash lastSeenBlockHash = wallet.getLastBlockSeenHash();
+        if (lastSeenBlockHash != null) {
+            record.setLastSeenBlockHash(WalletProtobufSerializer.hashToByteString(lastSeenBlockHash));
+            record.setLastSeenBlockHeight(wallet.getLastBlockSeenHeight());
+        }
+        if (wallet.getLastBlockSeenTimeSecs() > 0)
+            record.setLastSeenBlockTimeSecs(wallet.getLastBlockSeenTimeSecs());
+
+        byte[] payload = record.build().toByteArray();
+        CRC32 checksum = new CRC32();
+        checksum.update(payload);
+        ByteBuffer buffer = ByteBuffer.allocate(payload.length + 8);
+        buffer.putInt(payload.length).put(payload).putInt((int) checksum.getValue());
+        buffer.flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        channel.force(false);
+        size += buffer.limit();
+    }
+
+    /** Returns true once the journal has grown enough that it should be folded into a full save. */
+    boolean needsCompaction() {
+        return size > Math.max(MIN_COMPACTION_SIZE, walletFileSize);
+    }
+
+    void close() throws IOException {
+        stream.close();
+    }
+
+    /**
+     * Loads a wallet from the given file, like {@link Wallet#loadFromFile(File, WalletExtension...)}, and replays the
+     * journal next to it if there is one that extends this file.
+     */
+    public static Wallet loadFromFile(File walletFile, @Nullable WalletExtension... walletExtensions)
+            throws UnreadableWalletException {
+        try {
+            byte[] bytes = Files.toByteArray(walletFile);
+            Protos.Wallet walletProto = WalletProtobufSerializer.parseToProto(new ByteArrayInputStream(bytes));
+            File journalFile = journalFileFor(walletFile);
+            if (journalFile.exists())
+                walletProto = replay(walletProto, Sha256Hash.of(bytes), journalFile);
+            String paramsID = walletProto.getNetworkIdentifier();
+            NetworkParameters params = NetworkParameters.fromID(paramsID);
+            if (params == null)
+                throw new UnreadableWalletException("Unknown network parameters ID " + paramsID);
+            Wallet wallet = new WalletProtobufSerializer().readWallet(params, walletExtensions, walletProto);
+            if (!wallet.isConsistent()) {
+                log.error("Loaded an inconsistent wallet");
+            }
+            return wallet;
+        } catch (IOException e) {
+            throw new UnreadableWalletException("Could not open file", e);
+        }
+    }
+
+    private static Protos.Wallet replay(Protos.Wallet walletProto, Sha256Hash walletHash, File journalFile)
+            throws IOException {
+        PushbackInputStream in = new PushbackInputStream(new BufferedInputStream(new FileInputStream(journalFile)));
+        try {
+            DataInputStream dis = new DataInputStream(in);
+            byte[] header = new byte[HEADER_SIZE];
+            try {
+                dis.readFully(header);
+            } catch (EOFException e) {
+                log.warn("Ignoring truncated wallet journal {}", journalFile);
+                return walletProto;
+            }
+            if (!Arrays.equals(header, header(walletHash))) {
+                log.info("Ignoring wallet journal {}, it belongs to an older wallet file", journalFile);
+                return walletProto;
+            }
+
+            Protos.Wallet.Builder builder = walletProto.toBuilder();
+            // For each transaction, its position and the height of the last seen block when its state was recorded.
+            Map<ByteString, Integer> positions = new HashMap<>();
+            List<Integer> recordedAtHeights = new ArrayList<>();
+            for (int i = 0; i < builder.getTransactionCount(); i++) {
+                positions.put(builder.getTransaction(i).getHash(), i);
+                recordedAtHeights.add(builder.getLastSeenBlockHeight());
+            }
+            long limit = journalFile.length();
+            int records = 0;
+            Protos.Wallet record;
+            while ((record = readRecord(in, dis, limit)) != null) {
+                if (record.hasLastSeenBlockHash()) {
+                    builder.setLastSeenBlockHash(record.getLastSeenBlockHash());
+                    builder.setLastSeenBlockHeight(record.getLastSeenBlockHeight());
+                }
+                if (record.hasLastSeenBlockTimeSecs())
+                    builder.setLastSeenBlockTimeSecs(record.getLastSeenBlockTimeSecs());
+                for (Protos.Transaction tx : record.getTransactionList()) {
+                    Integer position = positions.get(tx.getHash());
+                    if (position == null) {
+                        positions.put(tx.getHash(), builder.getTransactionCount());
+                        builder.addTransaction(tx);
+                        recordedAtHeights.add(builder.getLastSeenBlockHeight());
+                    } else {
+                        builder.setTransaction(position, tx);
+                        recordedAtHeights.set(position, builder.getLastSeenBlockHeight());
+                    }
+                }
+                records++;
+            }
+            if (records == 0)
+                return walletProto;
+
+            int height = builder.getLastSeenBlockHeight();
+            for (int i = 0; i < builder.getTransactionCount(); i++) {
+                Protos.Transaction tx = builder.getTransaction(i);
+                int blocksSince = height - recordedAtHeights.get(i);
+                if (blocksSince > 0 && tx.hasConfidence() && tx.getConfidence().hasDepth()) {
+                    Protos.TransactionConfidence.Builder confidence = tx.getConfidence().toBuilder();
+                    confidence.setDepth(confidence.getDepth() + blocksSince);
+                    builder.setTransaction(i, tx.toBuilder().setConfidence(confidence).build());
+                }
+            }
+            log.info("Replayed {} records from wallet journal {}", records, journalFile);
+            return builder.build();
+        } finally {
+            in.close();
+        }
+    }
+
+    // Returns null at the end of the journal, or at a record that is incomplete or corrupt.
+    @Nullable
+    private static Protos.Wallet readRecord(PushbackInputStream in, DataInputStream dis, long limit)
+            throws IOException {
+        int next = in.read();
+        if (next == -1)
+            return null;
+        in.unread(next);
+        try {
+            int length = dis.readInt();
+            if (length < 0 || length > limit) {
+                log.warn("Wallet journal record has a bad length, ignoring the rest of the journal");
+                return null;
+            }
+            byte[] payload = new byte[length];
+            dis.readFully(payload);
+            CRC32 checksum = new CRC32();
+            checksum.update(payload);
+            if (dis.readInt() != (int) checksum.getValue()) {
+                log.warn("Wallet journal record has a bad checksum, ignoring the rest of the journal");
+                return null;
+            }
+            return Protos.Wallet.parseFrom(payload);
+        } catch (EOFException e) {
+            log.warn("Wallet journal ends in an incomplete record, ignoring it");
+            return null;
+        } catch (InvalidProtocolBufferException e) {
+            log.warn("Wallet journal record could not be parsed, ignoring the rest of the journal", e);
+            return null;
+        }
+    }
+
+    private static byte[] header(Sha256Hash walletHash) throws IOException {
+        return ByteBuffer.allocate(HEADER_SIZE).put(MAGIC.getBytes("US-ASCII")).put(walletHash.getBytes()).array();
+    }
+}
@@ -74,9 +74,12 @@ public class WalletProtobufSerializer {
     /** Current version used for serializing wallets. A version higher than this is considered from the future. */
     public static final int CURRENT_WALLET_VERSION = Protos.Wallet.getDefaultInstance().getVersion();
     // 512 MB
-    private static final int WALLET_SIZE_LIMIT = 512 * 1024 * 1024;
+    static final int WALLET_SIZE_LIMIT = 512 * 1024 * 1024;
     // Used for de-serialization
     protected Map<ByteString, Transaction> txMap;
+    // When set, outputs spent by transactions that are not loaded yet are collected here, keyed by the hash of the
+    // spending transaction, instead of failing the load. Used by StreamingWalletLoader.
+    @Nullable Map<ByteString, List<DeferredSpend>> deferredSpends;
 
     private boolean requireMandatoryExtensions = true;
     private boolean requireAllExtensionsKnown = false;
@@ -138,10 +141,20 @@ public class WalletProtobufSerializer {
      * Equivalent to <tt>walletToProto(wallet).writeTo(output);</tt>
      */
     public void writeWallet(Wallet wallet, OutputStream output) throws IOException {
-        Protos.Wallet walletProto = walletToProto(wallet);
-        final CodedOutputStream codedOutput = CodedOutputStream.newInstance(output, this.walletWriteBufferSize);
-        walletProto.writeTo(codedOutput);
-        codedOutput.flush();
+        // Writing a wallet that is missing part of its history would lose it from the file.
+        wallet.loadDeferredHistory();
+        wallet.lock.lock();
+        try {
+            Protos.Wallet walletProto = walletToProto(wallet, false);
+            final CodedOutputStream codedOutput = CodedOutputStream.newInstance(output, this.walletWriteBufferSize);
+            walletProto.writeTo(codedOutput);
+            // Transactions pruned from memory are copied from the archive rather than read into the message first.
+            // Repeated fields may come in any order, so they can follow the rest.
+            wallet.writeArchivedTransactions(codedOutput, Protos.Wallet.TRANSACTION_FIELD_NUMBER);
+            codedOutput.flush();
+        } finally {
+            wallet.lock.unlock();
+        }
     }
 
     /**
@@ -158,9 +171,19 @@ public class WalletProtobufSerializer {
 
     /**
      * Converts the given wallet to the object representation of the protocol buffers. This can be modified, or
-     * additional data fields set, before serialization takes place.
+     * additional data fields set, before serialization takes place. Transactions that were pruned to the
+     * {@link WalletArchive} are read back from it into the message.
      */
     public Protos.Wallet walletToProto(Wallet wallet) {
+        wallet.lock.lock();
+        try {
+            return walletToProto(wallet, true);
+        } finally {
+            wallet.lock.unlock();
+        }
+    }
+
+    private Protos.Wallet walletToProto(Wallet wallet, boolean withArchive) {
         Protos.Wallet.Builder walletBuilder = Protos.Wallet.newBuilder();
         walletBuilder.setNetworkIdentifier(wallet.getNetworkParameters().getId());
         if (wallet.getDescription() != null) {
@@ -171,6 +194,18 @@ public class WalletProtobufSerializer {
             Protos.Transaction txProto = makeTxProto(wtx);
             walletBuilder.addTransaction(txProto);
         }
+        // Transactions pruned from memory are still part of the wallet.
+        if (withArchive) {
+            try {
+                ByteString.Output archived = ByteString.newOutput();
+                CodedOutputStream archivedOutput = CodedOutputStream.newInstance(archived);
+                wallet.writeArchivedTransactions(archivedOutput, Protos.Wallet.TRANSACTION_FIELD_NUMBER);
+                archivedOutput.flush();
+                walletBuilder.mergeFrom(archived.toByteString());
+            } catch (IOException e) {
+                throw new RuntimeException("Could not read the wallet archive", e);
+            }
+        }
 
         walletBuilder.addAllKey(wallet.serializeKeyChainGroupToProtobuf());
 
@@ -248,7 +283,7 @@ public class WalletProtobufSerializer {
         }
     }
 
-    private static Protos.Transaction makeTxProto(WalletTransaction wtx) {
+    static Protos.Transaction makeTxProto(WalletTransaction wtx) {
         Transaction tx = wtx.getTransaction();
         Protos.Transaction.Builder txBuilder = Protos.Transaction.newBuilder();
 
@@ -625,7 +660,7 @@ public class WalletProtobufSerializer {
         return Protos.Wallet.parseFrom(codedInput);
     }
 
-    private void readTransaction(Protos.Transaction txProto, NetworkParameters params) throws UnreadableWalletException {
+    void readTransaction(Protos.Transaction txProto, NetworkParameters params) throws UnreadableWalletException {
         Transaction tx = new Transaction(params);
 
         tx.setVersion(txProto.getVersion());
@@ -700,7 +735,7 @@ public class WalletProtobufSerializer {
         txMap.put(txProto.getHash(), tx);
     }
 
-    private WalletTransaction connectTransactionOutputs(final NetworkParameters params,
+    WalletTransaction connectTransactionOutputs(final NetworkParameters params,
                                                         final org.bitcoinj.wallet.Protos.Transaction txProto) throws UnreadableWalletException {
         Transaction tx = txMap.get(txProto.getHash());
         final WalletTransaction.Pool pool;
@@ -726,6 +761,15 @@ public class WalletProtobufSerializer {
             if (transactionOutput.hasSpentByTransactionHash()) {
                 final ByteString spentByTransactionHash = transactionOutput.getSpentByTransactionHash();
                 Transaction spendingTx = txMap.get(spentByTransactionHash);
+                if (spendingTx == null && deferredSpends != null) {
+                    List<DeferredSpend> spends = deferredSpends.get(spentByTransactionHash);
+                    if (spends == null) {
+                        spends = new ArrayList<>(1);
+                        deferredSpends.put(spentByTransactionHash, spends);
+                    }
+                    spends.add(new DeferredSpend(output, transactionOutput.getSpentByTransactionIndex()));
+                    continue;
+                }
                 if (spendingTx == null) {
                     throw new UnreadableWalletException(String.format(Locale.US, "Could not connect %s to %s",
                             tx.getHashAsString(), byteStringToHash(spentByTransactionHash)));
@@ -745,6 +789,22 @@ public class WalletProtobufSerializer {
         return new WalletTransaction(pool, tx);
     }
 
+    /** An output whose spending transaction was not loaded yet, see {@link #deferredSpends}. */
+    static class DeferredSpend {
+        final TransactionOutput output;
+        final int inputIndex;
+
+        DeferredSpend(TransactionOutput output, int inputIndex) {
+            this.output = output;
+            this.inputIndex = inputIndex;
+        }
+
+        /** Connects the output to the input that spends it, now that the spending transaction is loaded. */
+        void connect(Transaction spendingTx) {
+            checkNotNull(spendingTx.getInput(inputIndex)).connect(output);
+        }
+    }
+
     private void readConfidence(final NetworkParameters params, final Transaction tx,
                                 final Protos.TransactionConfidence confidenceProto,
                                 final TransactionConfidence confidence) throws UnreadableWalletException {
@@ -0,0 +1,220 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.wallet.WalletTransaction.Pool;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+import javax.annotation.Nullable;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * <p>The pools and unspent outputs of a {@link Wallet} as they were after one change, as returned by
+ * {@link Wallet#getSnapshot()}. The wallet publishes a new snapshot each time it has finished changing its pools, so
+ * that read-only queries can work on the latest one without waiting for the wallet lock, and thus without waiting for
+ * block processing. Snapshots share the parts of the pools that didn't change, so publishing one doesn't copy the
+ * wallet.</p>
+ *
+ * <p>A snapshot never changes, but the transactions in it are the wallet's own objects, whose confidence keeps being
+ * updated. Snapshots are numbered in the order they were published.</p>
+ */
+public class WalletSnapshot {
+    private final long version;
+    private final Map<Sha256Hash, Transaction> unspent;
+    private final Map<Sha256Hash, Transaction> spent;
+    private final Map<Sha256Hash, Transaction> pending;
+    private final Map<Sha256Hash, Transaction> dead;
+    private final Map<Sha256Hash, Transaction> transactions;
+    // The inputs of all transactions by the hash of the transaction they spend from, or null for a live view.
+    @Nullable private final Map<Sha256Hash, List<TransactionInput>> spendingInputs;
+    private final Collection<TransactionOutput> unspentOutputs;
+    private final boolean immutable;
+    @Nullable private volatile Coin estimatedBalance;
+    @Nullable private volatile Set<TransactionOutPoint> spentOutPoints;
+
+    private WalletSnapshot(long version, Map<Sha256Hash, Transaction> unspent, Map<Sha256Hash, Transaction> spent,
+                           Map<Sha256Hash, Transaction> pending, Map<Sha256Hash, Transaction> dead,
+                           Map<Sha256Hash, Transaction> transactions,
+                           @Nullable Map<Sha256Hash, List<TransactionInput>> spendingInputs,
+                           Collection<TransactionOutput> unspentOutputs, boolean immutable) {
+        this.version = version;
+        this.unspent = unspent;
+        this.spent = spent;
+        this.pending = pending;
+        this.dead = dead;
+        this.transactions = transactions;
+        this.spendingInputs = spendingInputs;
+        this.unspentOutputs = unspentOutputs;
+        this.immutable = immutable;
+    }
+
+    /**
+     * Copies the given pools, spent outpoint index and unspent outputs. The pools are shared rather than copied when
+     * they are {@link PersistentHashMap}s, as the wallet's are, so this takes constant time. Must be called with the
+     * wallet locked.
+     */
+    static WalletSnapshot copyOf(long version, Map<Sha256Hash, Transaction> unspent,
+                                 Map<Sha256Hash, Transaction> spent, Map<Sha256Hash, Transaction> pending,
+                                 Map<Sha256Hash, Transaction> dead, Map<Sha256Hash, Transaction> transactions,
+                                 SpentOutPointIndex spentOutPointIndex, SpendableOutputs unspentOutputs) {
+        return new WalletSnapshot(version, copyOf(unspent), copyOf(spent), copyOf(pending), copyOf(dead),
+                copyOf(transactions), spentOutPointIndex.snapshot(), unspentOutputs.snapshot(), true);
+    }
+
+    private static Map<Sha256Hash, Transaction> copyOf(Map<Sha256Hash, Transaction> pool) {
+        if (pool instanceof PersistentHashMap)
+            return ((PersistentHashMap<Sha256Hash, Transaction>) pool).snapshot();
+        return ImmutableMap.copyOf(pool);
+    }
+
+    /**
+     * Wraps the given pools without copying them, for the thread that holds the wallet lock and may be in the middle
+     * of changing them.
+     */
+    static WalletSnapshot liveView(Map<Sha256Hash, Transaction> unspent, Map<Sha256Hash, Transaction> spent,
+                                   Map<Sha256Hash, Transaction> pending, Map<Sha256Hash, Transaction> dead,
+                                   Map<Sha256Hash, Transaction> transactions,
+                                   Collection<TransactionOutput> unspentOutputs) {
+        return new WalletSnapshot(-1, unspent, spent, pending, dead, transactions, null, unspentOutputs, false);
+    }
+
+    /** Returns the number of this snapshot. Later snapshots of the same wallet have higher numbers. */
+    public long getVersion() {
+        return version;
+    }
+
+    /** Returns the transactions in the given pool, keyed by hash. */
+    public Map<Sha256Hash, Transaction> getPool(Pool pool) {
+        switch (pool) {
+            case UNSPENT:
+                return unspent;
+            case SPENT:
+                return spent;
+            case PENDING:
+                return pending;
+            case DEAD:
+                return dead;
+            default:
+                throw new RuntimeException("Unknown wallet transaction type " + pool);
+        }
+    }
+
+    /** Returns the transaction with the given hash, in any pool, or null if there is none. */
+    @Nullable
+    public Transaction getTransaction(Sha256Hash hash) {
+        return transactions.get(hash);
+    }
+
+    /**
+     * Returns a new set of all transactions.
+     * @param includeDead     If true, transactions that were overridden by a double spend are included.
+     */
+    public Set<Transaction> getTransactions(boolean includeDead) {
+        Set<Transaction> all = new HashSet<>();
+        all.addAll(unspent.values());
+        all.addAll(spent.values());
+        all.addAll(pending.values());
+        if (includeDead)
+            all.addAll(dead.values());
+        return all;
+    }
+
+    /** Returns a new set of all transactions, along with their pools. */
+    public Set<WalletTransaction> getWalletTransactions() {
+        Set<WalletTransaction> all = new HashSet<>();
+        addWalletTransactionsToSet(all, Pool.UNSPENT, unspent.values());
+        addWalletTransactionsToSet(all, Pool.SPENT, spent.values());
+        addWalletTransactionsToSet(all, Pool.DEAD, dead.values());
+        addWalletTransactionsToSet(all, Pool.PENDING, pending.values());
+        return all;
+    }
+
+    private static void addWalletTransactionsToSet(Set<WalletTransaction> txns,
+                                                   Pool poolType, Collection<Transaction> pool) {
+        for (Transaction tx : pool) {
+            txns.add(new WalletTransaction(poolType, tx));
+        }
+    }
+
+    /**
+     * Returns the outpoints spent by the transactions in all pools, including dead ones. Worked out on first use, and
+     * kept from then on.
+     */
+    public Set<TransactionOutPoint> getSpentOutPoints() {
+        Set<TransactionOutPoint> outPoints = spentOutPoints;
+        if (outPoints == null) {
+            ImmutableSet.Builder<TransactionOutPoint> builder = ImmutableSet.builder();
+            for (Transaction tx : transactions.values()) {
+                if (tx.isCoinBase())
+                    continue;
+                for (TransactionInput input : tx.getInputs())
+                    builder.add(input.getOutpoint());
+            }
+            outPoints = builder.build();
+            if (immutable)
+                spentOutPoints = outPoints;
+        }
+        return outPoints;
+    }
+
+    /** Returns true if a transaction in any pool, including dead ones, spends the given outpoint. */
+    boolean isSpent(TransactionOutPoint outpoint) {
+        if (spendingInputs == null)
+            return getSpentOutPoints().contains(outpoint);
+        List<TransactionInput> inputs = spendingInputs.get(outpoint.getHash());
+        if (inputs == null)
+            return false;
+        for (TransactionInput input : inputs) {
+            if (input.getOutpoint().getIndex() == outpoint.getIndex())
+                return true;
+        }
+        return false;
+    }
+
+    /** Returns the outputs that are ours or watched and not spent by any transaction in the wallet. */
+    public Collection<TransactionOutput> getUnspentOutputs() {
+        return unspentOutputs;
+    }
+
+    /**
+     * Returns the total value of {@link #getUnspentOutputs()}, which is the {@link Wallet.BalanceType#ESTIMATED}
+     * balance unless the wallet gets its outputs from a {@link org.bitcoinj.core.UTXOProvider}.
+     */
+    public Coin getEstimatedBalance() {
+        Coin balance = estimatedBalance;
+        if (balance == null) {
+            balance = Coin.ZERO;
+            for (TransactionOutput output : unspentOutputs)
+                balance = balance.add(output.getValue());
+            if (immutable)
+                estimatedBalance = balance;
+        }
+        return balance;
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bitcoinj.wallet.listeners;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.wallet.Wallet;
+
+import java.util.List;
+
+/**
+ * <p>Implementors are called with the transactions that sent coins to the wallet since the last call, instead of once
+ * per transaction as for a {@link WalletCoinsReceivedEventListener}.</p>
+ */
+public interface WalletCoinsReceivedBatchEventListener {
+    /**
+     * Called with the transactions that sent coins <b>to</b> this wallet since the last call, in the order they were
+     * seen, see {@link WalletCoinsReceivedEventListener#onCoinsReceived(Wallet, Transaction, Coin, Coin)}.
+     *
+     * @param wallet      The wallet object that received the coins
+     * @param txns        The transactions which sent us the coins.
+     * @param prevBalance Balance before the first of them was received.
+     * @param newBalance  Balance after the last of them was received. This is the 'estimated' balance.
+     */
+    void onCoinsReceived(Wallet wallet, List<Transaction> txns, Coin prevBalance, Coin newBalance);
+}
@@ -21,6 +21,7 @@ import com.google.common.collect.Lists;
 import org.bitcoinj.params.MainNetParams;
 import org.bitcoinj.params.UnitTestParams;
 import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
 import org.bitcoinj.store.BlockStoreException;
 import org.bitcoinj.store.FullPrunedBlockStore;
 import org.bitcoinj.utils.BlockFileLoader;
@@ -37,6 +38,8 @@ import java.io.File;
 import java.lang.ref.WeakReference;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import static org.bitcoinj.core.Coin.FIFTY_COINS;
 import static org.junit.Assert.*;
@@ -159,6 +162,191 @@ public abstract class AbstractFullPrunedBlockChainTest {
         } catch (Exception e) {}
     }
 
+    @Test
+    public void addAllPipelined() throws Exception {
+        store = createStore(PARAMS, 10);
+        resetStore(store);
+        chain = new FullPrunedBlockChain(PARAMS, store);
+        chain.setPipelineDepth(3);
+
+        ECKey outKey = new ECKey();
+        int height = 1;
+        List<Block> blocks = Lists.newArrayList();
+        Block rollingBlock = PARAMS.getGenesisBlock();
+        for (int i = 0; i < PARAMS.getSpendableCoinbaseDepth(); i++) {
+            rollingBlock = rollingBlock.createNextBlockWithCoinbase(Block.BLOCK_VERSION_GENESIS, outKey.getPubKey(), height++);
+            blocks.add(rollingBlock);
+        }
+        assertTrue(chain.addAll(blocks));
+        assertEquals(rollingBlock.getHash(), chain.getChainHead().getHeader().getHash());
+        assertEquals(rollingBlock.getHash(), store.getVerifiedChainHead().getHeader().getHash());
+        StoredBlock committedHead = chain.getChainHead();
+
+        // A block with an invalid script, between valid ones.
+        Block good1 = rollingBlock.createNextBlockWithCoinbase(Block.BLOCK_VERSION_GENESIS, outKey.getPubKey(), height++);
+        Block bad = good1.createNextBlock(null);
+        Transaction t = new Transaction(PARAMS);
+        t.addOutput(new TransactionOutput(PARAMS, t, FIFTY_COINS, new byte[] {}));
+        TransactionInput input = t.addInput(blocks.get(0).getTransactions().get(0).getOutput(0));
+        input.clearScriptBytes();
+        bad.addTransaction(t);
+        bad.solve();
+        Block good2 = bad.createNextBlockWithCoinbase(Block.BLOCK_VERSION_GENESIS, outKey.getPubKey(), height++);
+        chain.setPipelineDepth(10);
+        try {
+            chain.addAll(Arrays.asList(good1, bad, good2));
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+        // Everything since the last commit was rolled back, but the valid block can be added again.
+        assertEquals(committedHead, chain.getChainHead());
+        assertEquals(committedHead, store.getVerifiedChainHead());
+        assertTrue(chain.add(good1));
+        assertEquals(good1.getHash(), chain.getChainHead().getHeader().getHash());
+        try {
+            store.close();
+        } catch (Exception e) {}
+    }
+
+    @Test
+    public void addAllNotifiesCommittedBlocksOnly() throws Exception {
+        store = createStore(PARAMS, 10);
+        resetStore(store);
+        chain = new FullPrunedBlockChain(PARAMS, store);
+        Wallet wallet = new Wallet(PARAMS);
+        ECKey walletKey = wallet.freshReceiveKey();
+        chain.addWallet(wallet);
+        chain.setPipelineDepth(10);
+
+        ECKey outKey = new ECKey();
+        int height = 1;
+        List<Block> blocks = Lists.newArrayList();
+        Block rollingBlock = PARAMS.getGenesisBlock();
+        for (int i = 0; i < PARAMS.getSpendableCoinbaseDepth(); i++) {
+            rollingBlock = rollingBlock.createNextBlockWithCoinbase(Block.BLOCK_VERSION_GENESIS, outKey.getPubKey(), height++);
+            blocks.add(rollingBlock);
+        }
+        assertTrue(chain.addAll(blocks));
+        StoredBlock committedHead = chain.getChainHead();
+        assertEquals(committedHead.getHeader().getHash(), wallet.getLastBlockSeenHash());
+        Set<Transaction> committedTxns = wallet.getTransactions(true);
+        Coin committedBalance = wallet.getBalance(Wallet.BalanceType.ESTIMATED);
+
+        // Blocks paying the wallet around one whose script check fails after the blocks that follow were added.
+        Block good1 = rollingBlock.createNextBlockWithCoinbase(Block.BLOCK_VERSION_GENESIS, walletKey.getPubKey(), height++);
+        Block bad = good1.createNextBlock(null);
+        Transaction t = new Transaction(PARAMS);
+        t.addOutput(new TransactionOutput(PARAMS, t, FIFTY_COINS, new byte[] {}));
+        TransactionInput input = t.addInput(blocks.get(0).getTransactions().get(0).getOutput(0));
+        input.clearScriptBytes();
+        bad.addTransaction(t);
+        bad.solve();
+        Block good2 = bad.createNextBlockWithCoinbase(Block.BLOCK_VERSION_GENESIS, walletKey.getPubKey(), height++);
+        try {
+            chain.addAll(Arrays.asList(good1, bad, good2));
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+        // The wallet never heard of the blocks that were rolled back.
+        assertEquals(committedHead, chain.getChainHead());
+        assertEquals(committedHead.getHeader().getHash(), wallet.getLastBlockSeenHash());
+        assertEquals(committedHead.getHeight(), wallet.getLastBlockSeenHeight());
+        assertEquals(committedTxns, wallet.getTransactions(true));
+        assertNull(wallet.getTransaction(good1.getTransactions().get(0).getHash()));
+        assertNull(wallet.getTransaction(good2.getTransactions().get(0).getHash()));
+        assertEquals(committedBalance, wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+
+        // Adding the valid block again tells the wallet about it once.
+        assertTrue(chain.add(good1));
+        assertEquals(good1.getHash(), wallet.getLastBlockSeenHash());
+        assertEquals(committedTxns.size() + 1, wallet.getTransactions(true).size());
+        Transaction coinbase = wallet.getTransaction(good1.getTransactions().get(0).getHash());
+        assertNotNull(coinbase);
+        assertEquals(committedBalance.add(coinbase.getValueSentToMe(wallet)),
+                wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        try {
+            store.close();
+        } catch (Exception e) {}
+    }
+
+    @Test
+    public void getTransactionOutputsBatch() throws Exception {
+        store = createStore(PARAMS, 10);
+        resetStore(store);
+        chain = new FullPrunedBlockChain(PARAMS, store);
+
+        ECKey outKey = new ECKey();
+        int height = 1;
+        List<Block> blocks = Lists.newArrayList();
+        Block rollingBlock = PARAMS.getGenesisBlock();
+        for (int i = 0; i < PARAMS.getSpendableCoinbaseDepth(); i++) {
+            rollingBlock = rollingBlock.createNextBlockWithCoinbase(Block.BLOCK_VERSION_GENESIS, outKey.getPubKey(), height++);
+            assertTrue(chain.add(rollingBlock));
+            blocks.add(rollingBlock);
+        }
+        TransactionOutPoint first = new TransactionOutPoint(PARAMS, 0, blocks.get(0).getTransactions().get(0).getHash());
+        TransactionOutPoint second = new TransactionOutPoint(PARAMS, 0, blocks.get(1).getTransactions().get(0).getHash());
+        TransactionOutPoint missing = new TransactionOutPoint(PARAMS, 1, blocks.get(1).getTransactions().get(0).getHash());
+        Map<TransactionOutPoint, UTXO> outputs = store.getTransactionOutputs(Arrays.asList(first, second, missing));
+        assertEquals(2, outputs.size());
+        assertEquals(store.getTransactionOutput(first.getHash(), 0), outputs.get(first));
+        assertEquals(store.getTransactionOutput(second.getHash(), 0), outputs.get(second));
+        assertFalse(outputs.containsKey(missing));
+
+        // Two transactions in one block spending the same output must still be caught with the inputs prefetched.
+        Block doubleSpend = rollingBlock.createNextBlock(null);
+        for (int i = 0; i < 2; i++) {
+            Transaction t = new Transaction(PARAMS);
+            t.addOutput(new TransactionOutput(PARAMS, t, Coin.COIN.multiply(i + 1), new byte[] {}));
+            t.addSignedInput(first, blocks.get(0).getTransactions().get(0).getOutput(0).getScriptPubKey(), outKey);
+            doubleSpend.addTransaction(t);
+        }
+        doubleSpend.solve();
+        try {
+            chain.add(doubleSpend);
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+        assertEquals(rollingBlock.getHash(), chain.getChainHead().getHeader().getHash());
+        try {
+            store.close();
+        } catch (Exception e) {}
+    }
+
+    @Test
+    public void unspentOutputsInBatchWrite() throws Exception {
+        store = createStore(PARAMS, 10);
+        resetStore(store);
+        UTXO out = new UTXO(Sha256Hash.of(new byte[] { 1 }), 0, Coin.COIN, 1, false,
+                ScriptBuilder.createOutputScript(new ECKey()), "");
+        TransactionOutPoint outPoint = new TransactionOutPoint(PARAMS, 0, out.getHash());
+
+        // Changes are visible inside the batch and gone after an abort.
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(out);
+        assertEquals(out, store.getTransactionOutput(out.getHash(), 0));
+        store.abortDatabaseBatchWrite();
+        assertNull(store.getTransactionOutput(out.getHash(), 0));
+
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(out);
+        store.commitDatabaseBatchWrite();
+        assertEquals(out, store.getTransactionOutput(out.getHash(), 0));
+
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(out);
+        assertNull(store.getTransactionOutput(out.getHash(), 0));
+        assertTrue(store.getTransactionOutputs(Arrays.asList(outPoint)).isEmpty());
+        store.commitDatabaseBatchWrite();
+        assertNull(store.getTransactionOutput(out.getHash(), 0));
+        try {
+            store.close();
+        } catch (Exception e) {}
+    }
+
     @Test
     public void testFinalizedBlocks() throws Exception {
         final int UNDOABLE_BLOCKS_STORED = 10;
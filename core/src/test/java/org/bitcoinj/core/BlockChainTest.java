@@ -35,7 +35,9 @@ import org.junit.Test;
 
 import java.math.BigInteger;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.Locale;
 
 import static org.bitcoinj.core.Coin.*;
@@ -149,6 +151,45 @@ public class BlockChainTest {
         assertEquals(chain.getChainHead().getHeader(), b3.cloneAsHeader());
     }
 
+    @Test
+    public void orphanBlocks() throws Exception {
+        // Blocks arriving in reverse order are all connected once the first one shows up.
+        List<Block> blocks = new ArrayList<>();
+        Block prev = PARAMS.getGenesisBlock();
+        for (int i = 0; i < 5; i++) {
+            prev = prev.createNextBlock(coinbaseTo);
+            blocks.add(prev);
+        }
+        for (int i = blocks.size() - 1; i > 0; i--)
+            assertFalse(chain.add(blocks.get(i)));
+        assertEquals(blocks.get(1), chain.getOrphanRoot(blocks.get(4).getHash()));
+        assertTrue(chain.add(blocks.get(0)));
+        assertEquals(blocks.get(4).cloneAsHeader(), chain.getChainHead().getHeader());
+        for (Block block : blocks)
+            assertFalse(chain.isOrphan(block.getHash()));
+
+        // Only the newest orphans are kept.
+        int maxOrphanBlocks = AbstractBlockChain.MAX_ORPHAN_BLOCKS;
+        AbstractBlockChain.MAX_ORPHAN_BLOCKS = 2;
+        try {
+            Block b1 = prev.createNextBlock(coinbaseTo);
+            Block b2 = b1.createNextBlock(coinbaseTo);
+            Block b3 = b2.createNextBlock(coinbaseTo);
+            Block b4 = b3.createNextBlock(coinbaseTo);
+            assertFalse(chain.add(b2));
+            assertFalse(chain.add(b3));
+            assertFalse(chain.add(b4));
+            assertFalse(chain.isOrphan(b2.getHash()));
+            assertTrue(chain.isOrphan(b3.getHash()));
+            assertTrue(chain.isOrphan(b4.getHash()));
+            assertTrue(chain.add(b1));
+            assertEquals(b1.cloneAsHeader(), chain.getChainHead().getHeader());
+            assertTrue(chain.isOrphan(b3.getHash()));
+        } finally {
+            AbstractBlockChain.MAX_ORPHAN_BLOCKS = maxOrphanBlocks;
+        }
+    }
+
     @Test
     public void difficultyTransitions() throws Exception {
         // Add a bunch of blocks in a loop until we reach a difficulty transition point. The unit test params have an
@@ -346,6 +346,55 @@ public class PeerGroupTest extends TestWithPeerGroup {
         assertNull(message == null ? "" : message.toString(), message);
     }
 
+    @Test
+    public void headersFirstDownload() throws Exception {
+        // Check that headers come from the download peer, bodies from all peers, and that blocks are added to the
+        // chain in order even when they arrive out of order.
+        int windowSize = HeadersFirstDownload.WINDOW_SIZE;
+        HeadersFirstDownload.WINDOW_SIZE = 2;
+        try {
+            peerGroup.start();
+            peerGroup.setHeadersFirstDownload(true);
+            remoteVersionMessage.bestHeight = 3;
+            InboundMessageQueuer p1 = connectPeer(1);
+            InboundMessageQueuer p2 = connectPeer(2);
+            assertEquals(peerOf(p1), peerGroup.getDownloadPeer());
+
+            // Set up a little block chain.
+            Block b1 = FakeTxBuilder.createFakeBlock(blockStore, BLOCK_HEIGHT_GENESIS).block;
+            Block b2 = FakeTxBuilder.makeSolvedTestBlock(b1);
+            Block b3 = FakeTxBuilder.makeSolvedTestBlock(b2);
+
+            peerGroup.startBlockChainDownload(new AbstractPeerDataEventListener() {
+            });
+            GetHeadersMessage getheaders = (GetHeadersMessage) outbound(p1);
+            assertEquals(Sha256Hash.ZERO_HASH, getheaders.getStopHash());
+            inbound(p1, new HeadersMessage(PARAMS, b1.cloneAsHeader(), b2.cloneAsHeader(), b3.cloneAsHeader()));
+
+            // The bodies are spread over both peers.
+            GetDataMessage getdata1 = (GetDataMessage) outbound(p1);
+            assertEquals(2, getdata1.getItems().size());
+            assertEquals(b1.getHash(), getdata1.getItems().get(0).hash);
+            assertEquals(b2.getHash(), getdata1.getItems().get(1).hash);
+            GetDataMessage getdata2 = (GetDataMessage) outbound(p2);
+            assertEquals(1, getdata2.getItems().size());
+            assertEquals(b3.getHash(), getdata2.getItems().get(0).hash);
+
+            // Nothing can be connected until the first block is here.
+            inbound(p2, b3);
+            inbound(p1, b2);
+            assertNull(outbound(p2));
+            assertEquals(b1.getPrevBlockHash(), blockChain.getChainHead().getHeader().getHash());
+            inbound(p1, b1);
+            // Once everything is connected the regular download takes over from the new chain head.
+            GetBlocksMessage getblocks = (GetBlocksMessage) waitForOutbound(p1);
+            assertEquals(b3.getHash(), getblocks.getLocator().get(0));
+            assertEquals(b3, blockChain.getChainHead().getHeader());
+        } finally {
+            HeadersFirstDownload.WINDOW_SIZE = windowSize;
+        }
+    }
+
     @Test
     public void transactionConfidence() throws Exception {
         // Checks that we correctly count how many peers broadcast a transaction, so we can establish some measure of
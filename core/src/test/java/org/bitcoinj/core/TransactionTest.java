@@ -404,4 +404,33 @@ public class TransactionTest {
             };
         }
     }
+
+    @Test
+    public void hashesForSignatureMatchHashForSignature() {
+        Transaction tx = new Transaction(PARAMS);
+        List<byte[]> scripts = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            tx.addInput(new TransactionInput(PARAMS, tx, new byte[] { (byte) i },
+                    new TransactionOutPoint(PARAMS, i, Sha256Hash.of(new byte[] { (byte) i }))));
+            tx.getInput(i).setSequenceNumber(TransactionInput.NO_SEQUENCE - i);
+            if (i % 3 == 0)
+                scripts.add(null);
+            else if (i % 3 == 1)
+                scripts.add(ScriptBuilder.createOutputScript(new ECKey().toAddress(PARAMS)).getProgram());
+            else
+                scripts.add(new ScriptBuilder().op(ScriptOpCodes.OP_CODESEPARATOR).op(ScriptOpCodes.OP_TRUE).build().getProgram());
+        }
+        tx.addOutput(Coin.COIN, ADDRESS);
+        tx.addOutput(Coin.CENT, new ECKey());
+        tx.setLockTime(123456);
+
+        List<Sha256Hash> hashes = tx.hashesForSignature(scripts);
+        assertEquals(tx.getInputs().size(), hashes.size());
+        for (int i = 0; i < scripts.size(); i++) {
+            if (scripts.get(i) == null)
+                assertNull(hashes.get(i));
+            else
+                assertEquals(tx.hashForSignature(i, scripts.get(i), Transaction.SigHash.ALL, false), hashes.get(i));
+        }
+    }
 }
@@ -0,0 +1,200 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.ScriptBuilder;
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.store.FullPrunedBlockStore;
+import org.bitcoinj.store.MemoryFullPrunedBlockStore;
+import org.bitcoinj.utils.BriefLogFormatter;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.bitcoinj.core.Coin.FIFTY_COINS;
+import static org.junit.Assert.*;
+
+public class UTXOSnapshotTest {
+    // With the four byte address version and checksum of this chain, so that outputs have addresses.
+    private static final NetworkParameters PARAMS = new UnitTestParams() {
+        {
+            addressHeader = 0x00edd263;
+            acceptableAddressCodes = new int[] { addressHeader };
+            addressChecksum = 0x1b530478;
+        }
+    };
+
+    private final ECKey signingKey = new ECKey();
+    private final ECKey outKey = new ECKey();
+    private MemoryFullPrunedBlockStore sourceStore;
+    private Block rollingBlock;
+
+    @Before
+    public void setUp() throws Exception {
+        BriefLogFormatter.init();
+        Context.propagate(new Context(PARAMS, 100, Coin.ZERO, false));
+        sourceStore = new MemoryFullPrunedBlockStore(PARAMS, 10);
+        FullPrunedBlockChain chain = new FullPrunedBlockChain(PARAMS, sourceStore);
+        rollingBlock = PARAMS.getGenesisBlock();
+        for (int i = 1; i <= PARAMS.getSpendableCoinbaseDepth(); i++) {
+            rollingBlock = rollingBlock.createNextBlockWithCoinbase(Block.BLOCK_VERSION_GENESIS, outKey.getPubKey(), i);
+            assertTrue(chain.add(rollingBlock));
+        }
+    }
+
+    @Test
+    public void writeAndLoad() throws Exception {
+        ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+        UTXOSnapshot.write(sourceStore, snapshot, signingKey);
+
+        MemoryFullPrunedBlockStore store = new MemoryFullPrunedBlockStore(PARAMS, 10);
+        StoredBlock head = UTXOSnapshot.load(PARAMS, new ByteArrayInputStream(snapshot.toByteArray()), store,
+                ECKey.fromPublicOnly(signingKey.getPubKey()));
+        assertEquals(sourceStore.getVerifiedChainHead(), head);
+        assertEquals(head, store.getVerifiedChainHead());
+        assertEquals(head, store.getChainHead());
+        assertEquals(outputs(sourceStore), outputs(store));
+
+        // Outputs are found by address, as they are in the store the snapshot was taken from.
+        Address address = rollingBlock.getTransactions().get(0).getOutput(0).getScriptPubKey().getToAddress(PARAMS, true);
+        List<UTXO> byAddress = store.getOpenTransactionOutputs(Collections.singletonList(address));
+        assertEquals(PARAMS.getSpendableCoinbaseDepth(), byAddress.size());
+        assertEquals(new HashSet<>(sourceStore.getOpenTransactionOutputs(Collections.singletonList(address))),
+                new HashSet<>(byAddress));
+        for (UTXO output : byAddress)
+            assertEquals(address.toString(), output.getAddress());
+
+        // The loaded store can carry on from the snapshot, spending an output it only knows from there.
+        FullPrunedBlockChain chain = new FullPrunedBlockChain(PARAMS, store);
+        UTXO spendable = null;
+        for (UTXO output : outputs(store)) {
+            if (output.getHeight() == 1)
+                spendable = output;
+        }
+        assertNotNull(spendable);
+        Block next = rollingBlock.createNextBlock(null);
+        Transaction t = new Transaction(PARAMS);
+        t.addOutput(new TransactionOutput(PARAMS, t, FIFTY_COINS, new byte[] {}));
+        t.addSignedInput(new TransactionOutPoint(PARAMS, spendable.getIndex(), spendable.getHash()),
+                spendable.getScript(), outKey);
+        next.addTransaction(t);
+        next.solve();
+        assertTrue(chain.add(next));
+        assertNull(store.getTransactionOutput(spendable.getHash(), spendable.getIndex()));
+    }
+
+    @Test
+    public void rejectsAlteredSnapshot() throws Exception {
+        ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+        UTXOSnapshot.write(sourceStore, snapshot, signingKey);
+        byte[] bytes = snapshot.toByteArray();
+        // Somewhere in the value of the first output.
+        bytes[14 + StoredBlock.COMPACT_SERIALIZED_SIZE + 40] ^= 1;
+
+        MemoryFullPrunedBlockStore store = new MemoryFullPrunedBlockStore(PARAMS, 10);
+        try {
+            UTXOSnapshot.load(PARAMS, new ByteArrayInputStream(bytes), store,
+                    ECKey.fromPublicOnly(signingKey.getPubKey()));
+            fail();
+        } catch (IOException e) {
+            // Expected.
+        }
+        assertEquals(0, store.getVerifiedChainHead().getHeight());
+    }
+
+    @Test
+    public void rejectsOtherSigner() throws Exception {
+        ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+        UTXOSnapshot.write(sourceStore, snapshot, new ECKey());
+
+        MemoryFullPrunedBlockStore store = new MemoryFullPrunedBlockStore(PARAMS, 10);
+        try {
+            UTXOSnapshot.load(PARAMS, new ByteArrayInputStream(snapshot.toByteArray()), store,
+                    ECKey.fromPublicOnly(signingKey.getPubKey()));
+            fail();
+        } catch (IOException e) {
+            // Expected.
+        }
+        assertEquals(0, store.getVerifiedChainHead().getHeight());
+    }
+
+    @Test
+    public void readerStopsWhenStoreFails() throws Exception {
+        // More outputs than fit in the queue, so that the reader is still waiting to hand some over.
+        ECKey key = new ECKey();
+        sourceStore.beginDatabaseBatchWrite();
+        for (int i = 0; i < 60000; i++)
+            sourceStore.addUnspentTransactionOutput(new UTXO(Sha256Hash.of(ByteBuffer.allocate(4).putInt(i).array()), 0,
+                    Coin.valueOf(i + 1), 1, false, ScriptBuilder.createOutputScript(key), ""));
+        sourceStore.commitDatabaseBatchWrite();
+        ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+        UTXOSnapshot.write(sourceStore, snapshot, signingKey);
+
+        MemoryFullPrunedBlockStore store = new MemoryFullPrunedBlockStore(PARAMS, 10) {
+            @Override
+            public synchronized void addUnspentTransactionOutput(UTXO out) throws BlockStoreException {
+                // Wait for the reader to fill the queue.
+                Thread reader = readerThread();
+                for (int i = 0; i < 300 && reader != null && reader.getState() != Thread.State.WAITING; i++)
+                    Uninterruptibles.sleepUninterruptibly(100, TimeUnit.MILLISECONDS);
+                throw new BlockStoreException("Disk full");
+            }
+        };
+        try {
+            UTXOSnapshot.load(PARAMS, new ByteArrayInputStream(snapshot.toByteArray()), store,
+                    ECKey.fromPublicOnly(signingKey.getPubKey()));
+            fail();
+        } catch (BlockStoreException e) {
+            // Expected.
+        }
+        Thread reader = readerThread();
+        if (reader != null) {
+            reader.join(5000);
+            assertFalse(reader.isAlive());
+        }
+    }
+
+    private static Thread readerThread() {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("UTXO snapshot reader"))
+                return thread;
+        }
+        return null;
+    }
+
+    private static Set<UTXO> outputs(FullPrunedBlockStore store) throws BlockStoreException {
+        final Set<UTXO> outputs = new HashSet<>();
+        store.visitUnspentTransactionOutputs(new FullPrunedBlockStore.UTXOVisitor() {
+            @Override
+            public void visit(UTXO output) {
+                outputs.add(output);
+            }
+        });
+        return outputs;
+    }
+}
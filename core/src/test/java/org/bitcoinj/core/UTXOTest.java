@@ -17,13 +17,19 @@
 
 package org.bitcoinj.core;
 
+import static org.bitcoinj.script.ScriptOpCodes.*;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.List;
 
+import org.bitcoinj.script.Script;
 import org.bitcoinj.script.ScriptBuilder;
 import org.junit.Test;
 
@@ -43,4 +49,81 @@ public class UTXOTest {
         assertEquals(utxo.isCoinbase(), utxoCopy.isCoinbase());
         assertEquals(utxo.getScript(), utxoCopy.getScript());
     }
+
+    @Test
+    public void compactSerialization() throws Exception {
+        ECKey key = new ECKey();
+        byte[] hash160 = key.getPubKeyHash();
+        Script assetScript = new ScriptBuilder().op(OP_DUP).op(OP_HASH160).data(hash160).op(OP_EQUALVERIFY)
+                .op(OP_CHECKSIG).data(new byte[28]).op(OP_DROP).build();
+        List<Script> scripts = Arrays.asList(
+                ScriptBuilder.createOutputScript(key),
+                new ScriptBuilder().op(OP_DUP).op(OP_HASH160).data(hash160).op(OP_EQUALVERIFY).op(OP_CHECKSIG).build(),
+                assetScript,
+                ScriptBuilder.createP2SHOutputScript(hash160),
+                ScriptBuilder.createOutputScript(ECKey.fromPublicOnly(key.decompress().getPubKey())),
+                ScriptBuilder.createOpReturnScript(new byte[]{1, 2, 3}),
+                // Not minimally pushed, so it does not match a template and has to be kept as it is.
+                new Script(new byte[]{OP_PUSHDATA1, 1, 5, (byte) OP_CHECKSIG}));
+        for (Script script : scripts) {
+            UTXO utxo = new UTXO(Sha256Hash.of(script.getProgram()), 3, Coin.COIN, 500000, true, script, "address");
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            utxo.serializeCompactToStream(os);
+            UTXO utxoCopy = UTXO.deserializeCompactFromStream(new ByteArrayInputStream(os.toByteArray()));
+            assertEquals(utxo, utxoCopy);
+            assertEquals(utxo.getValue(), utxoCopy.getValue());
+            assertEquals(utxo.getHeight(), utxoCopy.getHeight());
+            assertEquals(utxo.isCoinbase(), utxoCopy.isCoinbase());
+            assertArrayEquals(script.getProgram(), utxoCopy.getScript().getProgram());
+            assertEquals("", utxoCopy.getAddress());
+
+            ByteArrayOutputStream legacy = new ByteArrayOutputStream();
+            utxo.serializeToStream(legacy);
+            assertTrue(os.size() < legacy.size());
+        }
+
+        // Only the hash160 and the asset payload are left of the 55 script bytes.
+        UTXO utxo = new UTXO(Sha256Hash.ZERO_HASH, 0, Coin.COIN, 100, false, assetScript);
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        utxo.serializeCompactToStream(os);
+        assertEquals(1 + 32 + 1 + 1 + 5 + 1 + 20 + 28, os.size());
+
+        // Pay to pubkey scripts keep only the key, whatever its length on this curve.
+        for (byte[] pubKey : Arrays.asList(key.getPubKey(), key.decompress().getPubKey())) {
+            utxo = new UTXO(Sha256Hash.ZERO_HASH, 0, Coin.COIN, 100, false,
+                    ScriptBuilder.createOutputScript(ECKey.fromPublicOnly(pubKey)));
+            os = new ByteArrayOutputStream();
+            utxo.serializeCompactToStream(os);
+            assertEquals(1 + 32 + 1 + 1 + 5 + 1 + pubKey.length, os.size());
+        }
+    }
+
+    @Test
+    public void transactionOutputChangesReadLegacyFormat() throws Exception {
+        UTXO created = new UTXO(Sha256Hash.of(new byte[]{1}), 0, Coin.COIN, 10, false,
+                ScriptBuilder.createOutputScript(new ECKey()));
+        UTXO spent = new UTXO(Sha256Hash.of(new byte[]{2}), 1, Coin.CENT, 5, true,
+                ScriptBuilder.createOutputScript(new ECKey()));
+
+        // The original format: counts followed by outputs in the original encoding.
+        ByteArrayOutputStream legacy = new ByteArrayOutputStream();
+        Utils.uint32ToByteStreamLE(1, legacy);
+        created.serializeToStream(legacy);
+        Utils.uint32ToByteStreamLE(1, legacy);
+        spent.serializeToStream(legacy);
+        TransactionOutputChanges changes =
+                new TransactionOutputChanges(new ByteArrayInputStream(legacy.toByteArray()));
+        assertEquals(Arrays.asList(created), changes.txOutsCreated);
+        assertEquals(Arrays.asList(spent), changes.txOutsSpent);
+        assertEquals(Coin.CENT, changes.txOutsSpent.get(0).getValue());
+
+        ByteArrayOutputStream compact = new ByteArrayOutputStream();
+        changes.serializeToStream(compact);
+        assertTrue(compact.size() < legacy.size());
+        changes = new TransactionOutputChanges(new ByteArrayInputStream(compact.toByteArray()));
+        assertEquals(Arrays.asList(created), changes.txOutsCreated);
+        assertEquals(Arrays.asList(spent), changes.txOutsSpent);
+        assertEquals(5, changes.txOutsSpent.get(0).getHeight());
+        assertTrue(changes.txOutsSpent.get(0).isCoinbase());
+    }
 }
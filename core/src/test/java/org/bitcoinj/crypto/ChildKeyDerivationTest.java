@@ -22,6 +22,8 @@ import org.bitcoinj.params.*;
 import org.junit.*;
 import org.spongycastle.crypto.params.*;
 
+import com.google.common.collect.ImmutableList;
+
 import static org.bitcoinj.core.Utils.*;
 import static org.junit.Assert.*;
 
@@ -185,6 +187,60 @@ public class ChildKeyDerivationTest {
         assertEquals(key3.getPubKeyPoint(), pubkey3.getPubKeyPoint());
     }
 
+    @Test
+    public void hierarchyLookups() throws Exception {
+        DeterministicKey master = HDKeyDerivation.createMasterPrivateKey("satoshi lives!".getBytes());
+        DeterministicHierarchy hierarchy = new DeterministicHierarchy(master);
+        DeterministicKey account = hierarchy.deriveChild(master.getPath(), false, false, ChildNumber.ZERO_HARDENED);
+        assertEquals(1, hierarchy.getNumChildren(master.getPath()));
+        for (int i = 0; i < 40; i++)
+            assertEquals(i, hierarchy.deriveNextChild(account.getPath(), false, false, false).getChildNumber().num());
+        assertEquals(40, hierarchy.getNumChildren(account.getPath()));
+        // A child number far beyond the ones derived so far.
+        ChildNumber far = new ChildNumber(1000000, false);
+        DeterministicKey farKey = hierarchy.deriveChild(account.getPath(), false, false, far);
+        assertEquals(HDKeyDerivation.deriveChildKey(account, far), farKey);
+        assertEquals(1000001, hierarchy.getNumChildren(account.getPath()));
+
+        assertEquals(master, hierarchy.getRootKey());
+        assertEquals(account, hierarchy.get(HDUtils.parsePath("0H"), false, false));
+        assertEquals(account, hierarchy.get(HDUtils.parsePath("0H"), true, false));
+        assertEquals(farKey, hierarchy.getChild(account.getPath(), far));
+        DeterministicKey key = hierarchy.get(HDUtils.parsePath("0H/7"), false, false);
+        assertEquals(HDKeyDerivation.deriveChildKey(account, new ChildNumber(7, false)), key);
+        assertEquals(key, hierarchy.getChild(account.getPath(), new ChildNumber(7, false)));
+        try {
+            hierarchy.getChild(account.getPath(), new ChildNumber(7, true));
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+        try {
+            hierarchy.get(HDUtils.parsePath("1H"), false, false);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+        // Missing keys are derived on request, including their ancestors.
+        DeterministicKey deep = hierarchy.get(HDUtils.parsePath("1H/2/3"), false, true);
+        assertEquals(HDUtils.parsePath("1H/2/3"), deep.getPath());
+        assertEquals(deep, hierarchy.getChild(HDUtils.parsePath("1H/2"), new ChildNumber(3, false)));
+    }
+
+    @Test
+    public void hierarchyKeepsFarChildrenWhenGrowing() throws Exception {
+        DeterministicKey master = HDKeyDerivation.createMasterPrivateKey("satoshi lives!".getBytes());
+        DeterministicHierarchy hierarchy = new DeterministicHierarchy(master);
+        hierarchy.deriveChild(master.getPath(), false, false, ChildNumber.ZERO);
+        // Too far past the children so far to go next to them.
+        DeterministicKey far = hierarchy.deriveChild(master.getPath(), false, false, new ChildNumber(100, false));
+        // Deriving up to it makes room for it among them, where it still has to be found.
+        for (int i = 0; i < 128; i++)
+            hierarchy.get(ImmutableList.of(new ChildNumber(i, false)), false, true);
+        assertSame(far, hierarchy.get(HDUtils.parsePath("100"), false, false));
+        assertSame(far, hierarchy.getChild(master.getPath(), new ChildNumber(100, false)));
+    }
+
     @Test
     public void testSerializationMainAndTestNetworks() {
         DeterministicKey key1 = HDKeyDerivation.createMasterPrivateKey("satoshi lives!".getBytes());
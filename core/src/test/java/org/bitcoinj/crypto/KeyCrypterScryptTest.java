@@ -23,6 +23,8 @@ import com.google.protobuf.ByteString;
 
 import org.bitcoinj.wallet.Protos;
 import org.bitcoinj.wallet.Protos.ScryptParameters;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.spongycastle.crypto.params.KeyParameter;
 import org.junit.Before;
 import org.junit.Test;
 import org.slf4j.Logger;
@@ -30,6 +32,7 @@ import org.slf4j.LoggerFactory;
 
 import java.util.Random;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.*;
 
@@ -156,4 +159,39 @@ public class KeyCrypterScryptTest {
             assertEquals(Utils.HEX.encode(plainBytes), Utils.HEX.encode(rebornPlainBytes));
         }
     }
+
+    @Test
+    public void testDeriveKeyAsync() throws Exception {
+        KeyCrypterScrypt keyCrypter = new KeyCrypterScrypt(scryptParameters);
+        StringBuilder password = new StringBuilder(PASSWORD1);
+        ListenableFuture<KeyParameter> future = keyCrypter.deriveKeyAsync(password);
+        // The password is copied up front, so it can be wiped by the caller straight away.
+        password.setLength(0);
+        assertArrayEquals(keyCrypter.deriveKey(PASSWORD1).getKey(), future.get().getKey());
+    }
+
+    @Test
+    public void testAesKeyCache() throws Exception {
+        KeyCrypterScrypt keyCrypter = new KeyCrypterScrypt(scryptParameters);
+        KeyParameter aesKey = keyCrypter.deriveKey(PASSWORD1);
+        AesKeyCache cache = new AesKeyCache();
+        assertNull(cache.get());
+        cache.put(aesKey, 1, TimeUnit.HOURS);
+        assertTrue(cache.isCached());
+        KeyParameter cached = cache.get();
+        assertArrayEquals(aesKey.getKey(), cached.getKey());
+        assertNotSame(aesKey.getKey(), cached.getKey());
+
+        // Wiping a handed out copy must not affect the cache.
+        AesKeyCache.wipe(cached);
+        assertArrayEquals(aesKey.getKey(), cache.get().getKey());
+
+        cache.clear();
+        assertFalse(cache.isCached());
+        assertNull(cache.get());
+
+        cache.put(aesKey, 1, TimeUnit.MILLISECONDS);
+        Thread.sleep(50);
+        assertNull(cache.get());
+    }
 }
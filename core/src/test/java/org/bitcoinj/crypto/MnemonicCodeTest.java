@@ -176,6 +176,30 @@ public class MnemonicCodeTest {
         }
     }
 
+    @Test
+    public void testVectorsInParallel() throws Exception {
+        List<List<String>> codes = new ArrayList<>();
+        for (int ii = 0; ii < vectors.length; ii += 3)
+            codes.add(split(vectors[ii+1]));
+        List<byte[]> seeds = MnemonicCode.toSeeds(codes, "TREZOR");
+        assertEquals(codes.size(), seeds.size());
+        for (int ii = 0; ii < vectors.length; ii += 3)
+            assertEquals(vectors[ii+2], HEX.encode(seeds.get(ii / 3)));
+    }
+
+    @Test
+    public void testPBKDF2SHA512() throws Exception {
+        assertEquals("867f70cf1ade02cff3752599a3a53dc4af34c7a669815ae5d513554e1c8cf252c02d470a285a0501bad999bfe943c08f050235d7d68b1da55e63f73b60a57fce",
+                HEX.encode(PBKDF2SHA512.derive("password", "salt", 1, 64)));
+        assertEquals("e1d9c16aa681708a45f5c7c4e215ceb66e011a2e9f0040713f18aefdb866d53cf76cab2868a39b9f7840edce4fef5a82be67335c77a6068e04112754f27ccf4e",
+                HEX.encode(PBKDF2SHA512.derive("password", "salt", 2, 64)));
+        // Keys longer than one block are the concatenation of consecutive blocks.
+        byte[] longKey = PBKDF2SHA512.derive("password", "salt", 2, 100);
+        assertEquals(100, longKey.length);
+        assertEquals(HEX.encode(PBKDF2SHA512.derive("password", "salt", 2, 64)), HEX.encode(Arrays.copyOf(longKey, 64)));
+        assertEquals(HEX.encode(Arrays.copyOf(longKey, 32)), HEX.encode(PBKDF2SHA512.derive("password", "salt", 2, 32)));
+    }
+
     @Test(expected = MnemonicException.MnemonicLengthException.class)
     public void testBadEntropyLength() throws Exception {
         byte[] entropy = HEX.decode("7f7f7f7f7f7f7f7f7f7f7f7f7f7f");
@@ -0,0 +1,147 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.StoredUndoableBlock;
+import org.bitcoinj.params.UnitTestParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BlockFileStoreTest {
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDir();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        deleteRecursively(directory);
+    }
+
+    @Test
+    public void appendAndRead() throws Exception {
+        BlockFileStore store = new BlockFileStore(directory, "blk", 64);
+        List<BlockFileStore.Location> locations = new ArrayList<>();
+        for (int i = 0; i < 10; i++)
+            locations.add(store.append(record(i, 20)));
+        // Only two records of 4 + 20 bytes fit in a segment.
+        assertEquals(4, store.getCurrentSegment());
+        for (int i = 0; i < 10; i++)
+            assertArrayEquals(record(i, 20), toBytes(store.read(locations.get(i))));
+        try {
+            store.read(locations.get(0)).put((byte) 0);
+            fail();
+        } catch (ReadOnlyBufferException e) {
+            // Expected.
+        }
+        store.close();
+
+        // Reopening continues after the last record, and the index entries stay valid.
+        store = new BlockFileStore(directory, "blk", 64);
+        BlockFileStore.Location next = store.append(record(10, 10));
+        assertEquals(new BlockFileStore.Location(4, 2 * 24 + 4, 10), next);
+        assertArrayEquals(record(10, 10), toBytes(store.read(next)));
+        BlockFileStore.Location first = BlockFileStore.Location.deserialize(locations.get(0).serialize());
+        assertArrayEquals(record(0, 20), toBytes(store.read(first)));
+        store.close();
+    }
+
+    @Test
+    public void deleteSegments() throws Exception {
+        BlockFileStore store = new BlockFileStore(directory, "rev", 64);
+        List<BlockFileStore.Location> locations = new ArrayList<>();
+        for (int i = 0; i < 6; i++)
+            locations.add(store.append(record(i, 20)));
+        assertEquals(2, store.getCurrentSegment());
+        store.deleteSegmentsBefore(2);
+        try {
+            store.read(locations.get(0));
+            fail();
+        } catch (BlockStoreException e) {
+            // Expected.
+        }
+        assertArrayEquals(record(5, 20), toBytes(store.read(locations.get(5))));
+        // The segment being appended to is never deleted.
+        store.deleteSegmentsBefore(Integer.MAX_VALUE);
+        assertArrayEquals(record(5, 20), toBytes(store.read(locations.get(5))));
+        assertEquals(1, directory.listFiles().length);
+        store.delete();
+        assertEquals(0, directory.listFiles().length);
+    }
+
+    @Test
+    public void levelDBUndoFiles() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        File dbDirectory = new File(directory, "db");
+        File undoDirectory = new File(directory, "undo");
+        LevelDBFullPrunedBlockStore store = new LevelDBFullPrunedBlockStore(params, dbDirectory.getPath(), 10,
+                1048576, 1048576, 1000, false, Integer.MAX_VALUE, undoDirectory);
+        StoredUndoableBlock genesisUndo = store.getUndoBlock(params.getGenesisBlock().getHash());
+        assertNotNull(genesisUndo);
+        assertEquals(1, undoDirectory.listFiles().length);
+        store.close();
+
+        try {
+            new LevelDBFullPrunedBlockStore(params, dbDirectory.getPath(), 10);
+            fail();
+        } catch (RuntimeException e) {
+            // Expected: the undo data lives in the flat files.
+        }
+
+        store = new LevelDBFullPrunedBlockStore(params, dbDirectory.getPath(), 10, 1048576, 1048576, 1000, false,
+                Integer.MAX_VALUE, undoDirectory);
+        assertEquals(genesisUndo.getTransactions(),
+                store.getUndoBlock(params.getGenesisBlock().getHash()).getTransactions());
+        store.close();
+    }
+
+    private static byte[] record(int seed, int length) {
+        byte[] bytes = new byte[length];
+        Arrays.fill(bytes, (byte) (seed + 1));
+        return bytes;
+    }
+
+    private static byte[] toBytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children)
+                deleteRecursively(child);
+        }
+        file.delete();
+    }
+}
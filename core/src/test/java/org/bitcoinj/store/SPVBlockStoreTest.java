@@ -19,13 +19,18 @@ package org.bitcoinj.store;
 import org.bitcoinj.core.Address;
 import org.bitcoinj.core.ECKey;
 import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
 import org.bitcoinj.core.StoredBlock;
 import org.bitcoinj.params.UnitTestParams;
 import org.junit.Test;
 
 import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 
-import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.*;
 
 public class SPVBlockStoreTest {
 
@@ -58,4 +63,94 @@ public class SPVBlockStoreTest {
         StoredBlock chainHead = store.getChainHead();
         assertEquals(b1, chainHead);
     }
+
+    @Test
+    public void lookupsAfterWrapping() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        File f = File.createTempFile("spvblockstore", null);
+        f.delete();
+        f.deleteOnExit();
+        final int capacity = 10;
+        SPVBlockStore store = new SPVBlockStore(params, f, capacity);
+        Address to = new ECKey().toAddress(params);
+        List<StoredBlock> blocks = new ArrayList<>();
+        StoredBlock prev = store.getChainHead();
+        blocks.add(prev);
+        for (int i = 0; i < 55; i++) {
+            prev = prev.build(prev.getHeader().createNextBlock(to).cloneAsHeader());
+            store.put(prev);
+            blocks.add(prev);
+        }
+        store.setChainHead(prev);
+        store.close();
+
+        // Reopen, so that nothing can be answered from the in-memory caches.
+        store = new SPVBlockStore(params, f, capacity);
+        for (int i = 0; i < blocks.size(); i++) {
+            StoredBlock block = store.get(blocks.get(i).getHeader().getHash());
+            if (i < blocks.size() - capacity)
+                assertNull(block);
+            else
+                assertEquals(blocks.get(i), block);
+        }
+        assertEquals(prev, store.getChainHead());
+        assertNull(store.get(Sha256Hash.of(new byte[] { 1 })));
+        store.close();
+    }
+
+    @Test
+    public void upgradeLegacyFile() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        File f = File.createTempFile("spvblockstore", null);
+        f.deleteOnExit();
+        final int capacity = 10;
+        final int prologue = 1024;
+        final int recordSize = 32 + StoredBlock.COMPACT_SERIALIZED_SIZE;
+        Address to = new ECKey().toAddress(params);
+        List<StoredBlock> blocks = new ArrayList<>();
+        StoredBlock prev = new StoredBlock(params.getGenesisBlock().cloneAsHeader(), params.getGenesisBlock().getWork(), 0);
+        blocks.add(prev);
+        for (int i = 0; i < 14; i++) {
+            prev = prev.build(prev.getHeader().createNextBlock(to).cloneAsHeader());
+            blocks.add(prev);
+        }
+        // Write the blocks the way the store did before it had an index, wrapping around the ring.
+        ByteBuffer buffer = ByteBuffer.allocate(prologue + capacity * recordSize);
+        buffer.put("SPVB".getBytes("US-ASCII"));
+        int cursor = prologue;
+        for (StoredBlock block : blocks) {
+            if (cursor == buffer.capacity())
+                cursor = prologue;
+            buffer.position(cursor);
+            buffer.put(block.getHeader().getHash().getBytes());
+            block.serializeCompact(buffer);
+            cursor = buffer.position();
+        }
+        buffer.putInt(4, cursor);
+        buffer.position(8);
+        buffer.put(prev.getHeader().getHash().getBytes());
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        raf.setLength(0);
+        raf.write(buffer.array());
+        raf.close();
+
+        SPVBlockStore store = new SPVBlockStore(params, f, capacity);
+        assertEquals(SPVBlockStore.getFileSize(capacity), f.length());
+        assertEquals(prev, store.getChainHead());
+        for (int i = 0; i < blocks.size(); i++) {
+            StoredBlock block = store.get(blocks.get(i).getHeader().getHash());
+            if (i < blocks.size() - capacity)
+                assertNull(block);
+            else
+                assertEquals(blocks.get(i), block);
+        }
+        StoredBlock next = prev.build(prev.getHeader().createNextBlock(to).cloneAsHeader());
+        store.put(next);
+        store.close();
+
+        store = new SPVBlockStore(params, f, capacity);
+        assertEquals(next, store.get(next.getHeader().getHash()));
+        assertNull(store.get(blocks.get(blocks.size() - capacity).getHeader().getHash()));
+        store.close();
+    }
 }
@@ -0,0 +1,267 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.UTXO;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.ScriptBuilder;
+import org.junit.Test;
+
+import com.google.common.io.Files;
+import com.google.common.primitives.UnsignedBytes;
+import org.iq80.leveldb.DB;
+import org.iq80.leveldb.Options;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.fusesource.leveldbjni.JniDBFactory.factory;
+import static org.junit.Assert.*;
+
+public class UTXOCacheTest {
+    private final Map<ByteBuffer, byte[]> written = new HashMap<>();
+    private final UTXOCache.Writer writer = new UTXOCache.Writer() {
+        @Override
+        public void write(ByteBuffer key, byte[] serializedOutput) {
+            written.put(key, serializedOutput);
+        }
+    };
+
+    @Test
+    public void getPutRemove() throws Exception {
+        UTXOCache cache = new UTXOCache(1024 * 1024, 4, writer);
+        UTXO out = output(1);
+        assertNull(cache.get(key(1)));
+        cache.put(key(1), out);
+        UTXO cached = cache.get(key(1));
+        assertEquals(out, cached);
+        assertEquals(out.getValue(), cached.getValue());
+        assertEquals(out.getScript(), cached.getScript());
+        assertEquals(1, cache.size());
+        cache.remove(key(1));
+        assertNull(cache.get(key(1)));
+        assertEquals(0, cache.getSizeInBytes());
+    }
+
+    @Test
+    public void evictsBySize() throws Exception {
+        UTXOCache cache = new UTXOCache(2000, 1, writer);
+        for (int i = 0; i < 100; i++)
+            cache.put(key(i), output(i));
+        assertTrue(cache.getSizeInBytes() <= 2000);
+        assertTrue(cache.size() < 100);
+        // The most recent entries survive.
+        assertNotNull(cache.get(key(99)));
+        assertNull(cache.get(key(0)));
+        // Clean entries are simply dropped.
+        assertTrue(written.isEmpty());
+    }
+
+    @Test
+    public void dirtyEntriesAreWrittenBack() throws Exception {
+        UTXOCache cache = new UTXOCache(2000, 1, writer);
+        cache.putDirty(key(0), output(0));
+        cache.putDirty(key(1), output(1));
+        assertTrue(cache.isDirty(key(0)));
+        // Spent before being written: never reaches the writer.
+        cache.remove(key(1));
+        for (int i = 2; i < 100; i++)
+            cache.put(key(i), output(i));
+        assertEquals(1, written.size());
+        assertNotNull(written.get(key(0)));
+
+        written.clear();
+        cache.putDirty(key(200), output(200));
+        cache.flush();
+        assertEquals(1, written.size());
+        assertFalse(cache.isDirty(key(200)));
+        assertNotNull(cache.get(key(200)));
+    }
+
+    @Test
+    public void levelDBWriteBack() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        File directory = Files.createTempDir();
+        try {
+            LevelDBFullPrunedBlockStore store = new LevelDBFullPrunedBlockStore(params, directory.getPath(), 10);
+            store.setUTXOWriteBack(true);
+            UTXO kept = output(1);
+            UTXO spent = output(2);
+            store.beginDatabaseBatchWrite();
+            store.addUnspentTransactionOutput(kept);
+            store.addUnspentTransactionOutput(spent);
+            store.commitDatabaseBatchWrite();
+            assertEquals(kept, store.getTransactionOutput(kept.getHash(), 0));
+            assertTrue(store.hasUnspentOutputs(kept.getHash(), 1));
+            store.beginDatabaseBatchWrite();
+            store.removeUnspentTransactionOutput(spent);
+            store.commitDatabaseBatchWrite();
+            assertNull(store.getTransactionOutput(spent.getHash(), 0));
+            store.close();
+
+            // Closing wrote the held back output.
+            store = new LevelDBFullPrunedBlockStore(params, directory.getPath(), 10);
+            assertEquals(kept, store.getTransactionOutput(kept.getHash(), 0));
+            assertNull(store.getTransactionOutput(spent.getHash(), 0));
+            store.close();
+        } finally {
+            for (File file : directory.listFiles())
+                file.delete();
+            directory.delete();
+        }
+    }
+
+    @Test
+    public void levelDBWriteBackSpendAtCacheLimit() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        File directory = Files.createTempDir();
+        try {
+            LevelDBFullPrunedBlockStore store = new LevelDBFullPrunedBlockStore(params, directory.getPath(), 10);
+            store.setUTXOCacheSize(UTXOCache.DEFAULT_CONCURRENCY * 2 * UTXOCache.TYPICAL_ENTRY_SIZE);
+            store.setUTXOWriteBack(true);
+            UTXO spent = output(1);
+            store.beginDatabaseBatchWrite();
+            store.addUnspentTransactionOutput(spent);
+            store.commitDatabaseBatchWrite();
+            // Spend the still dirty output in a batch whose new outputs push it out of the full cache.
+            store.beginDatabaseBatchWrite();
+            store.removeUnspentTransactionOutput(spent);
+            for (int i = 2; i < 500; i++)
+                store.addUnspentTransactionOutput(output(i));
+            store.commitDatabaseBatchWrite();
+            assertNull(store.getTransactionOutput(spent.getHash(), 0));
+            assertNotNull(store.getTransactionOutput(output(2).getHash(), 0));
+            store.close();
+
+            store = new LevelDBFullPrunedBlockStore(params, directory.getPath(), 10);
+            assertNull(store.getTransactionOutput(spent.getHash(), 0));
+            assertNotNull(store.getTransactionOutput(output(499).getHash(), 0));
+            store.close();
+        } finally {
+            for (File file : directory.listFiles())
+                file.delete();
+            directory.delete();
+        }
+    }
+
+    @Test
+    public void levelDBUpgradesLegacyOutputs() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        File directory = Files.createTempDir();
+        try {
+            LevelDBFullPrunedBlockStore store = new LevelDBFullPrunedBlockStore(params, directory.getPath(), 10);
+            store.close();
+
+            // Make it look like a store written before the compact encoding.
+            UTXO out = output(1);
+            ByteBuffer key = ByteBuffer.allocate(37)
+                    .put((byte) LevelDBFullPrunedBlockStore.KeyType.OPENOUT_ALL.ordinal())
+                    .put(out.getHash().getBytes()).putInt(0);
+            ByteArrayOutputStream legacy = new ByteArrayOutputStream();
+            out.serializeToStream(legacy);
+            DB db = factory.open(directory, new Options());
+            db.put(key.array(), legacy.toByteArray());
+            db.delete(new byte[] { (byte) LevelDBFullPrunedBlockStore.KeyType.VERSION_SETTING.ordinal() });
+            db.close();
+
+            store = new LevelDBFullPrunedBlockStore(params, directory.getPath(), 10);
+            UTXO upgraded = store.getTransactionOutput(out.getHash(), 0);
+            assertEquals(out, upgraded);
+            assertEquals(out.getValue(), upgraded.getValue());
+            assertEquals(out.getScript(), upgraded.getScript());
+            store.close();
+
+            db = factory.open(directory, new Options());
+            assertTrue(db.get(key.array()).length < legacy.size());
+            db.close();
+        } finally {
+            for (File file : directory.listFiles())
+                file.delete();
+            directory.delete();
+        }
+    }
+
+    @Test
+    public void levelDBResumesInterruptedUpgrade() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        File directory = Files.createTempDir();
+        try {
+            LevelDBFullPrunedBlockStore store = new LevelDBFullPrunedBlockStore(params, directory.getPath(), 10);
+            store.close();
+
+            // Make it look like the upgrade of an old store stopped after rewriting the first of two outputs.
+            List<UTXO> outs = new ArrayList<>();
+            Map<UTXO, byte[]> keys = new HashMap<>();
+            for (int i = 1; i <= 2; i++) {
+                UTXO out = output(i);
+                outs.add(out);
+                keys.put(out, ByteBuffer.allocate(37)
+                        .put((byte) LevelDBFullPrunedBlockStore.KeyType.OPENOUT_ALL.ordinal())
+                        .put(out.getHash().getBytes()).putInt(0).array());
+            }
+            if (UnsignedBytes.lexicographicalComparator().compare(keys.get(outs.get(0)), keys.get(outs.get(1))) > 0)
+                Collections.reverse(outs);
+            ByteArrayOutputStream upgraded = new ByteArrayOutputStream();
+            outs.get(0).serializeCompactToStream(upgraded);
+            ByteArrayOutputStream legacy = new ByteArrayOutputStream();
+            outs.get(1).serializeToStream(legacy);
+            DB db = factory.open(directory, new Options());
+            db.put(keys.get(outs.get(0)), upgraded.toByteArray());
+            db.put(keys.get(outs.get(1)), legacy.toByteArray());
+            db.put(new byte[] { (byte) LevelDBFullPrunedBlockStore.KeyType.UPGRADE_PROGRESS_SETTING.ordinal() },
+                    keys.get(outs.get(0)));
+            db.delete(new byte[] { (byte) LevelDBFullPrunedBlockStore.KeyType.VERSION_SETTING.ordinal() });
+            db.close();
+
+            store = new LevelDBFullPrunedBlockStore(params, directory.getPath(), 10);
+            for (UTXO out : outs) {
+                UTXO read = store.getTransactionOutput(out.getHash(), 0);
+                assertEquals(out, read);
+                assertEquals(out.getValue(), read.getValue());
+                assertEquals(out.getScript(), read.getScript());
+            }
+            store.close();
+
+            db = factory.open(directory, new Options());
+            assertNull(db.get(new byte[] { (byte) LevelDBFullPrunedBlockStore.KeyType.UPGRADE_PROGRESS_SETTING.ordinal() }));
+            db.close();
+        } finally {
+            for (File file : directory.listFiles())
+                file.delete();
+            directory.delete();
+        }
+    }
+
+    private static ByteBuffer key(int i) {
+        return ByteBuffer.wrap(ByteBuffer.allocate(37).put((byte) 7).putInt(i).array());
+    }
+
+    private static UTXO output(int i) {
+        return new UTXO(Sha256Hash.of(ByteBuffer.allocate(4).putInt(i).array()), 0, Coin.valueOf(i), i, false,
+                ScriptBuilder.createOutputScript(new ECKey()), "");
+    }
+}
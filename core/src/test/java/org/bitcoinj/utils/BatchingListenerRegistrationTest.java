@@ -0,0 +1,111 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bitcoinj.utils;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class BatchingListenerRegistrationTest {
+    private Queue<Runnable> tasks;
+    private Executor executor;
+    private List<List<String>> batches;
+
+    @Before
+    public void setUp() {
+        tasks = new LinkedList<>();
+        executor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                tasks.add(command);
+            }
+        };
+        batches = new ArrayList<>();
+    }
+
+    @Test
+    public void batchesWhileWaiting() {
+        BatchingListenerRegistration<Object, String> registration = registration(false);
+        registration.add("a");
+        registration.add("b");
+        registration.add("a");
+        assertEquals(1, tasks.size());
+        assertEquals(3, registration.getStats().queuedEvents);
+        runTasks();
+        assertEquals(Arrays.asList(Arrays.asList("a", "b", "a")), batches);
+
+        // Once dispatched, the next event starts a new batch.
+        registration.add("c");
+        assertEquals(1, tasks.size());
+        runTasks();
+        assertEquals(Arrays.asList("c"), batches.get(1));
+        EventDispatchStats stats = registration.getStats();
+        assertEquals(0, stats.queuedEvents);
+        assertEquals(2, stats.dispatches);
+        assertEquals(4, stats.dispatchedEvents);
+        assertEquals(0, stats.coalescedEvents);
+    }
+
+    @Test
+    public void coalesces() {
+        BatchingListenerRegistration<Object, String> registration = registration(true);
+        registration.add("a");
+        registration.add("b");
+        registration.add("a");
+        assertEquals(1, tasks.size());
+        runTasks();
+        assertEquals(Arrays.asList(Arrays.asList("a", "b")), batches);
+        assertEquals(1, registration.getStats().coalescedEvents);
+        assertEquals(2, registration.getStats().add(registration.getStats()).coalescedEvents);
+    }
+
+    @Test
+    public void sameThread() {
+        BatchingListenerRegistration<Object, String> registration =
+                new BatchingListenerRegistration<Object, String>(new Object(), Threading.SAME_THREAD, true) {
+            @Override
+            protected void dispatch(Object listener, List<String> events) {
+                batches.add(events);
+            }
+        };
+        registration.add("a");
+        registration.add("a");
+        assertEquals(Arrays.asList(Arrays.asList("a"), Arrays.asList("a")), batches);
+    }
+
+    private BatchingListenerRegistration<Object, String> registration(boolean coalesce) {
+        return new BatchingListenerRegistration<Object, String>(new Object(), executor, coalesce) {
+            @Override
+            protected void dispatch(Object listener, List<String> events) {
+                batches.add(events);
+            }
+        };
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null)
+            task.run();
+    }
+}
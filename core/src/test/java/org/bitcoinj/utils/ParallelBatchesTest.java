@@ -0,0 +1,101 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.utils;
+
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+public class ParallelBatchesTest {
+    private final ListeningExecutorService executor = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(4));
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void coversEveryIndexOnce() throws Exception {
+        ParallelBatches batches = new ParallelBatches(executor, 10, 4);
+        final int[] counts = new int[103];
+        final Set<String> threads = Collections.synchronizedSet(new HashSet<String>());
+        batches.run(counts.length, new ParallelBatches.Batch() {
+            @Override
+            public void run(int from, int to) {
+                threads.add(Thread.currentThread().getName());
+                for (int i = from; i < to; i++)
+                    counts[i]++;
+            }
+        });
+        for (int count : counts)
+            assertEquals(1, count);
+        assertFalse(threads.contains(Thread.currentThread().getName()));
+    }
+
+    @Test
+    public void smallWorkRunsOnCallingThread() throws Exception {
+        ParallelBatches batches = new ParallelBatches(executor, 10, 4);
+        assertEquals(1, batches.numWorkers(0));
+        assertEquals(1, batches.numWorkers(19));
+        assertEquals(2, batches.numWorkers(20));
+        assertEquals(4, batches.numWorkers(1000));
+        final Thread caller = Thread.currentThread();
+        batches.run(19, new ParallelBatches.Batch() {
+            @Override
+            public void run(int from, int to) {
+                assertEquals(caller, Thread.currentThread());
+                assertEquals(0, from);
+                assertEquals(19, to);
+            }
+        });
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rethrowsBatchFailure() throws Exception {
+        new ParallelBatches(executor, 1, 4).run(8, new ParallelBatches.Batch() {
+            @Override
+            public void run(int from, int to) {
+                if (from > 0)
+                    throw new IllegalStateException();
+            }
+        });
+    }
+
+    @Test
+    public void keepsInterruptFlag() throws Exception {
+        Thread.currentThread().interrupt();
+        try {
+            new ParallelBatches(executor, 1, 4).run(8, new ParallelBatches.Batch() {
+                @Override
+                public void run(int from, int to) {
+                }
+            });
+            fail();
+        } catch (RuntimeException e) {
+            assertTrue(e.getCause() instanceof InterruptedException);
+        }
+        assertTrue(Thread.interrupted());
+    }
+}
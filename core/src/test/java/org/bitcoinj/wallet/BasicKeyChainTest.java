@@ -23,6 +23,7 @@ import org.bitcoinj.crypto.KeyCrypter;
 import org.bitcoinj.crypto.KeyCrypterException;
 import org.bitcoinj.crypto.KeyCrypterScrypt;
 import org.bitcoinj.utils.Threading;
+import org.spongycastle.crypto.params.KeyParameter;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 
@@ -33,6 +34,8 @@ import org.bitcoinj.wallet.listeners.AbstractKeyChainEventListener;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.math.BigInteger;
+import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
@@ -170,6 +173,33 @@ public class BasicKeyChainTest {
         key.getPrivKeyBytes();
     }
 
+    @Test
+    public void encryptDecryptKeepsKeyOrder() {
+        // Keep the private keys well inside 32 bytes so they survive the encryption round trip.
+        List<ECKey> keys = new ArrayList<>();
+        for (int i = 0; i < 20; i++)
+            keys.add(ECKey.fromPrivate(new BigInteger(200, new SecureRandom())));
+        chain.importKeys(keys);
+        KeyCrypter keyCrypter = new KeyCrypterScrypt(2);
+        KeyParameter aesKey = keyCrypter.deriveKey("foobar");
+        BasicKeyChain encrypted = chain.toEncrypted(keyCrypter, aesKey);
+        // Order must be preserved so the chain serializes identically.
+        List<ECKey> encryptedKeys = encrypted.getKeys();
+        assertEquals(keys.size(), encryptedKeys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            assertTrue(encryptedKeys.get(i).isEncrypted());
+            assertArrayEquals(keys.get(i).getPubKey(), encryptedKeys.get(i).getPubKey());
+        }
+        List<ECKey> decryptedKeys = encrypted.toDecrypted(aesKey).getKeys();
+        for (int i = 0; i < keys.size(); i++)
+            assertArrayEquals(keys.get(i).getPrivKeyBytes(), decryptedKeys.get(i).getPrivKeyBytes());
+
+        try {
+            encrypted.toDecrypted(keyCrypter.deriveKey("wrong"));
+            fail();
+        } catch (KeyCrypterException e) {}
+    }
+
     @Test(expected = KeyCrypterException.class)
     public void cannotImportEncryptedKey() {
         final ECKey key1 = new ECKey();
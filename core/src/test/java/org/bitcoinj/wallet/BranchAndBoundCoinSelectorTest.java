@@ -0,0 +1,165 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionConfidence;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.utils.BriefLogFormatter;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import static org.bitcoinj.core.Coin.*;
+import static org.junit.Assert.*;
+
+public class BranchAndBoundCoinSelectorTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    private ECKey key;
+
+    @Before
+    public void setUp() throws Exception {
+        BriefLogFormatter.init();
+        Context.propagate(new Context(PARAMS, 100, Coin.ZERO, false));
+        key = new ECKey();
+    }
+
+    @Test
+    public void exactMatchNeedsNoChange() throws Exception {
+        List<TransactionOutput> candidates = outputs(true, COIN.multiply(5), COIN.multiply(3), COIN.multiply(2),
+                COIN.divide(2), CENT);
+        BranchAndBoundCoinSelector selector = new BranchAndBoundCoinSelector();
+        CoinSelection selection = selector.select(COIN.multiply(5).add(COIN.divide(2)), candidates);
+        assertEquals(COIN.multiply(5).add(COIN.divide(2)), selection.valueGathered);
+        assertEquals(2, selection.gathered.size());
+        selection = selector.select(COIN.multiply(2).add(CENT), candidates);
+        assertEquals(COIN.multiply(2).add(CENT), selection.valueGathered);
+        // Within the cost of change of the target is good enough, and the least excess wins.
+        selection = selector.select(COIN.multiply(2).add(CENT).subtract(Transaction.MIN_NONDUST_OUTPUT.divide(2)),
+                candidates);
+        assertEquals(COIN.multiply(2).add(CENT), selection.valueGathered);
+    }
+
+    @Test
+    public void fallsBackWithoutAnExactMatch() throws Exception {
+        List<TransactionOutput> candidates = outputs(true, COIN.multiply(5), COIN.multiply(3), COIN.multiply(2));
+        BranchAndBoundCoinSelector selector = new BranchAndBoundCoinSelector();
+        // The smallest output that covers the target on its own.
+        CoinSelection selection = selector.select(COIN.multiply(4), candidates);
+        assertEquals(COIN.multiply(5), selection.valueGathered);
+        assertEquals(1, selection.gathered.size());
+        // Otherwise the largest outputs first.
+        selection = selector.select(COIN.multiply(9), candidates);
+        assertEquals(COIN.multiply(10), selection.valueGathered);
+        // Not enough, so everything.
+        selection = selector.select(COIN.multiply(11), candidates);
+        assertEquals(COIN.multiply(10), selection.valueGathered);
+    }
+
+    @Test
+    public void selectsEverythingSelectableForTheBalance() throws Exception {
+        List<TransactionOutput> candidates = outputs(true, COIN, COIN.multiply(2));
+        candidates.addAll(outputs(false, COIN.multiply(4)));
+        CoinSelection selection = new BranchAndBoundCoinSelector().select(NetworkParameters.MAX_MONEY, candidates);
+        assertEquals(COIN.multiply(3), selection.valueGathered);
+        assertEquals(2, selection.gathered.size());
+    }
+
+    @Test
+    public void followsTheCandidates() throws Exception {
+        List<TransactionOutput> candidates = outputs(true, COIN.multiply(5), COIN.multiply(3));
+        BranchAndBoundCoinSelector selector = new BranchAndBoundCoinSelector();
+        assertEquals(COIN.multiply(3), selector.select(COIN.multiply(3), candidates).valueGathered);
+        // Spent outputs are no longer offered and new ones come in.
+        TransactionOutput spent = candidates.remove(1);
+        candidates.addAll(outputs(true, COIN.multiply(2)));
+        CoinSelection selection = selector.select(COIN.multiply(3), candidates);
+        assertFalse(selection.gathered.contains(spent));
+        assertEquals(COIN.multiply(5), selection.valueGathered);
+        assertEquals(COIN.multiply(7), selector.select(NetworkParameters.MAX_MONEY, candidates).valueGathered);
+    }
+
+    @Test
+    public void largeWallet() throws Exception {
+        // A wallet with many outputs of random value, which the wallet hands over in value order as they change.
+        Random random = new Random(1);
+        List<TransactionOutput> candidates = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            Coin[] values = new Coin[100];
+            for (int j = 0; j < values.length; j++)
+                values[j] = Coin.valueOf(MILLICOIN.value + random.nextInt((int) COIN.value));
+            candidates.addAll(outputs(true, values));
+        }
+        TreeSet<TransactionOutput> byValue = new TreeSet<>(BranchAndBoundCoinSelector.BY_VALUE);
+        byValue.addAll(candidates);
+        // Bounded by the number of tries only, so that the search goes the same way every time.
+        BranchAndBoundCoinSelector selector =
+                new BranchAndBoundCoinSelector(BranchAndBoundCoinSelector.DEFAULT_COST_OF_CHANGE, 1, TimeUnit.HOURS);
+        int exact = 0;
+        for (int i = 0; i < 20; i++) {
+            Coin target = Coin.valueOf(COIN.value + random.nextInt((int) COIN.multiply(10).value));
+            // A payment spends some outputs and adds change, as between two spends from a wallet.
+            byValue.remove(candidates.remove(random.nextInt(candidates.size())));
+            List<TransactionOutput> change = outputs(true, Coin.valueOf(MILLICOIN.value + random.nextInt((int) COIN.value)));
+            candidates.addAll(change);
+            byValue.addAll(change);
+            BranchAndBoundCoinSelector.ValueOrderedCandidates ordered =
+                    new BranchAndBoundCoinSelector.ValueOrderedCandidates(byValue.size());
+            ordered.addAll(byValue);
+
+            CoinSelection selection = selector.select(target, ordered);
+            assertTrue(selection.valueGathered.compareTo(target) >= 0);
+            assertEquals(selection.gathered.size(), new HashSet<>(selection.gathered).size());
+            if (!selection.valueGathered.subtract(target).isGreaterThan(BranchAndBoundCoinSelector.DEFAULT_COST_OF_CHANGE))
+                exact++;
+            // The same outputs unsorted and unfiltered make the same choice.
+            List<TransactionOutput> shuffled = new ArrayList<>(candidates);
+            Collections.shuffle(shuffled, random);
+            shuffled.addAll(outputs(false, COIN.multiply(20)));
+            assertEquals(new HashSet<>(selection.gathered), new HashSet<>(selector.select(target, shuffled).gathered));
+        }
+        // Within the limit on tries, a good part of the payments still find a selection without change.
+        assertTrue("Only " + exact + " of 20 without change", exact >= 5);
+    }
+
+    private List<TransactionOutput> outputs(boolean selectable, Coin... values) {
+        Transaction tx = new Transaction(PARAMS);
+        for (Coin value : values)
+            tx.addOutput(value, key);
+        TransactionConfidence confidence = tx.getConfidence();
+        if (selectable) {
+            confidence.setConfidenceType(TransactionConfidence.ConfidenceType.BUILDING);
+            confidence.setDepthInBlocks(1);
+        } else {
+            confidence.setConfidenceType(TransactionConfidence.ConfidenceType.PENDING);
+        }
+        return new ArrayList<>(tx.getOutputs());
+    }
+}
@@ -211,6 +211,32 @@ public class DeterministicKeyChainTest {
         chain.getKey(KeyChain.KeyPurpose.CHANGE).sign(Sha256Hash.ZERO_HASH);
     }
 
+    @Test
+    public void bulkKeysDerivedInParallel() {
+        DeterministicKeyChain chain = new DeterministicKeyChain(new SecureRandom(), 384);
+        final List<List<ECKey>> listenerKeys = Lists.newArrayList();
+        chain.addEventListener(new AbstractKeyChainEventListener() {
+            @Override
+            public void onKeysAdded(List<ECKey> keys) {
+                listenerKeys.add(keys);
+            }
+        }, Threading.SAME_THREAD);
+        // Enough keys for the lookahead to be split into several batches.
+        List<DeterministicKey> keys = chain.getKeys(KeyChain.KeyPurpose.RECEIVE_FUNDS, 200);
+        assertEquals(1, listenerKeys.size());
+        assertEquals(200, listenerKeys.get(0).size());
+        assertEquals(keys, chain.getIssuedReceiveKeys());
+        // Every key must be what deriving the children one by one produces.
+        DeterministicKey parent = keys.get(0).getParent();
+        int nextChild = 0;
+        for (DeterministicKey key : keys) {
+            DeterministicKey expected = HDKeyDerivation.deriveThisOrNextChildKey(parent, nextChild);
+            assertEquals(expected.getChildNumber(), key.getChildNumber());
+            assertArrayEquals(expected.getPubKey(), key.getPubKey());
+            nextChild = expected.getChildNumber().num() + 1;
+        }
+    }
+
     @Test
     public void serializeUnencrypted() throws UnreadableWalletException {
         chain.maybeLookAhead();
@@ -0,0 +1,126 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class PersistentHashMapTest {
+    @Test
+    public void followsHashMap() throws Exception {
+        Random random = new Random(1);
+        PersistentHashMap<Integer, Integer> map = new PersistentHashMap<>();
+        Map<Integer, Integer> expected = new HashMap<>();
+        for (int i = 0; i < 20000; i++) {
+            // Keys spread over all hash bits, and some that share their low bits.
+            Integer key = random.nextBoolean() ? random.nextInt() : random.nextInt(64) << 20;
+            if (random.nextInt(3) == 0)
+                assertEquals(expected.remove(key), map.remove(key));
+            else
+                assertEquals(expected.put(key, i), map.put(key, i));
+        }
+        assertEquals(expected, map);
+        assertEquals(expected.size(), map.size());
+        for (Integer key : expected.keySet())
+            assertEquals(expected.get(key), map.get(key));
+        assertFalse(map.containsKey(random.nextInt()));
+    }
+
+    @Test
+    public void snapshotsDoNotChange() throws Exception {
+        PersistentHashMap<Integer, String> map = new PersistentHashMap<>();
+        for (int i = 0; i < 1000; i++)
+            map.put(i, "a" + i);
+        Map<Integer, String> snapshot = map.snapshot();
+        Map<Integer, String> copy = new HashMap<>(map);
+        for (int i = 0; i < 1000; i += 2)
+            map.remove(i);
+        map.put(1, "b");
+        map.put(5000, "c");
+        assertEquals(copy, snapshot);
+        assertEquals(501, map.size());
+        assertEquals("b", map.get(1));
+        map.clear();
+        assertEquals(1000, snapshot.size());
+        try {
+            snapshot.put(1, "d");
+            fail();
+        } catch (UnsupportedOperationException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void keysWithTheSameHash() throws Exception {
+        PersistentHashMap<Key, Integer> map = new PersistentHashMap<>();
+        Key a = new Key(7), b = new Key(7), c = new Key(7), d = new Key(39);
+        map.put(a, 1);
+        map.put(b, 2);
+        map.put(d, 4);
+        Map<Key, Integer> snapshot = map.snapshot();
+        map.put(c, 3);
+        map.put(b, 5);
+        assertEquals(4, map.size());
+        assertEquals(5, (int) map.get(b));
+        assertEquals(3, (int) map.get(c));
+        assertEquals(2, (int) snapshot.get(b));
+        assertNull(snapshot.get(c));
+        assertEquals(1, (int) map.remove(a));
+        assertEquals(3, (int) map.remove(c));
+        assertNull(map.remove(c));
+        assertEquals(5, (int) map.get(b));
+        assertEquals(4, (int) map.get(d));
+        assertEquals(2, map.size());
+        assertEquals(3, snapshot.size());
+    }
+
+    @Test
+    public void removeWhileIterating() throws Exception {
+        PersistentHashMap<Integer, Integer> map = new PersistentHashMap<>();
+        for (int i = 0; i < 1000; i++)
+            map.put(i, i);
+        int seen = 0;
+        for (Iterator<Integer> it = map.values().iterator(); it.hasNext();) {
+            if (it.next() % 3 != 0)
+                it.remove();
+            seen++;
+        }
+        assertEquals(1000, seen);
+        assertEquals(334, map.size());
+        for (Integer value : map.values())
+            assertEquals(0, value % 3);
+    }
+
+    private static class Key {
+        private final int hash;
+
+        Key(int hash) {
+            this.hash = hash;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
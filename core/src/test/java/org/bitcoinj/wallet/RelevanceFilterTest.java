@@ -0,0 +1,161 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.crypto.KeyCrypterScrypt;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
+import org.bitcoinj.utils.BriefLogFormatter;
+import org.junit.Before;
+import org.junit.Test;
+import org.spongycastle.crypto.params.KeyParameter;
+
+import com.google.common.collect.ImmutableList;
+
+import java.security.SecureRandom;
+
+import static org.bitcoinj.core.Coin.*;
+import static org.bitcoinj.script.ScriptOpCodes.*;
+import static org.bitcoinj.testing.FakeTxBuilder.createFakeTx;
+import static org.junit.Assert.*;
+
+public class RelevanceFilterTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    private Wallet wallet;
+    private ECKey key;
+
+    @Before
+    public void setUp() throws Exception {
+        BriefLogFormatter.init();
+        Context.propagate(new Context(PARAMS, 100, Coin.ZERO, false));
+        wallet = new Wallet(PARAMS);
+        key = wallet.currentReceiveKey();
+    }
+
+    @Test
+    public void outputs() throws Exception {
+        assertFalse(wallet.isPendingTransactionRelevant(createFakeTx(PARAMS, COIN, new ECKey())));
+        assertTrue(wallet.isPendingTransactionRelevant(createFakeTx(PARAMS, COIN, key)));
+        assertTrue(wallet.isPendingTransactionRelevant(payTo(payToPubKeyHash(key))));
+        // Lookahead keys count, as the wallet would receive to them.
+        assertTrue(wallet.isPendingTransactionRelevant(payTo(payToPubKeyHash(wallet.freshReceiveKey()))));
+    }
+
+    @Test
+    public void inputs() throws Exception {
+        Transaction tx = createFakeTx(PARAMS, COIN, key);
+        wallet.receivePending(tx, null);
+        // Spends from the wallet.
+        Transaction spend = new Transaction(PARAMS);
+        spend.addInput(tx.getOutput(0));
+        spend.addOutput(COIN, new ECKey());
+        assertTrue(wallet.isPendingTransactionRelevant(spend));
+        // Double spends an input of a wallet transaction that isn't ours.
+        Transaction doubleSpend = new Transaction(PARAMS);
+        doubleSpend.addInput(tx.getInput(0).getOutpoint().getHash(), tx.getInput(0).getOutpoint().getIndex(),
+                new ScriptBuilder().build());
+        doubleSpend.addOutput(COIN, new ECKey());
+        assertTrue(wallet.isPendingTransactionRelevant(doubleSpend));
+        assertFalse(wallet.isPendingTransactionRelevant(createFakeTx(PARAMS, COIN.multiply(2), new ECKey())));
+    }
+
+    @Test
+    public void followsKeysAndScripts() throws Exception {
+        ECKey imported = new ECKey();
+        Transaction toImported = createFakeTx(PARAMS, COIN, imported);
+        assertFalse(wallet.isPendingTransactionRelevant(toImported));
+        wallet.importKey(imported);
+        assertTrue(wallet.isPendingTransactionRelevant(toImported));
+
+        Script watched = payToPubKeyHash(new ECKey());
+        Transaction toWatched = payTo(watched);
+        assertFalse(wallet.isPendingTransactionRelevant(toWatched));
+        wallet.addWatchedScripts(ImmutableList.of(watched));
+        assertTrue(wallet.isPendingTransactionRelevant(toWatched));
+    }
+
+    @Test
+    public void followsAddedChains() throws Exception {
+        DeterministicKeyChain chain = new DeterministicKeyChain(new SecureRandom());
+        ECKey chainKey = chain.getKey(KeyChain.KeyPurpose.RECEIVE_FUNDS);
+        Transaction toChain = createFakeTx(PARAMS, COIN, chainKey);
+        // Builds the filter before the chain is added, so its keys have to make it out of date.
+        assertFalse(wallet.isPendingTransactionRelevant(toChain));
+        wallet.addAndActivateHDChain(chain);
+        assertTrue(wallet.isPendingTransactionRelevant(toChain));
+    }
+
+    @Test
+    public void followsKeysOfEncryptedWallet() throws Exception {
+        KeyCrypterScrypt keyCrypter = new KeyCrypterScrypt(2);
+        KeyParameter aesKey = keyCrypter.deriveKey("password");
+        wallet.encrypt(keyCrypter, aesKey);
+        assertTrue(wallet.isPendingTransactionRelevant(createFakeTx(PARAMS, COIN, key)));
+        // The chains of an encrypted wallet are new objects, and keys added to them still count.
+        ECKey imported = new ECKey();
+        Transaction toImported = createFakeTx(PARAMS, COIN, imported);
+        assertFalse(wallet.isPendingTransactionRelevant(toImported));
+        wallet.importKeysAndEncrypt(ImmutableList.of(imported), aesKey);
+        assertTrue(wallet.isPendingTransactionRelevant(toImported));
+    }
+
+    @Test
+    public void addsKeysWithoutRebuilding() throws Exception {
+        KeyChainGroup group = new KeyChainGroup(PARAMS);
+        group.freshKey(KeyChain.KeyPurpose.RECEIVE_FUNDS);
+        RelevanceFilter filter = RelevanceFilter.of(group, ImmutableList.<Script>of());
+        WalletSnapshot snapshot = wallet.getSnapshot();
+        ECKey imported = new ECKey();
+        Transaction toImported = createFakeTx(PARAMS, COIN, imported);
+        assertFalse(filter.mayBeRelevant(toImported, snapshot));
+        group.importKeys(imported);
+        assertTrue(filter.mayBeRelevant(toImported, snapshot));
+        // Keys derived past the lookahead the filter copied are added too.
+        ECKey derived = null;
+        for (int i = 0; i < 200; i++)
+            derived = group.freshKey(KeyChain.KeyPurpose.RECEIVE_FUNDS);
+        assertTrue(filter.mayBeRelevant(createFakeTx(PARAMS, COIN, derived), snapshot));
+        assertFalse(filter.isOutOfDate());
+        // A new chain can bring keys of its own, so it takes a new filter.
+        group.addAndActivateHDChain(new DeterministicKeyChain(new SecureRandom()));
+        assertTrue(filter.isOutOfDate());
+        // A closed filter stops following the group.
+        filter.close();
+        ECKey late = new ECKey();
+        group.importKeys(late);
+        assertFalse(filter.mayBeRelevant(createFakeTx(PARAMS, COIN, late), snapshot));
+    }
+
+    // With the asset metadata that outputs to addresses carry on this chain.
+    private static Script payToPubKeyHash(ECKey key) {
+        return new ScriptBuilder().op(OP_DUP).op(OP_HASH160).data(key.getPubKeyHash()).op(OP_EQUALVERIFY)
+                .op(OP_CHECKSIG).data(new byte[28]).op(OP_DROP).build();
+    }
+
+    private static Transaction payTo(Script script) {
+        Transaction tx = createFakeTx(PARAMS, COIN.multiply(3), new ECKey());
+        tx.addOutput(new TransactionOutput(PARAMS, tx, COIN, script.getProgram()));
+        return tx;
+    }
+}
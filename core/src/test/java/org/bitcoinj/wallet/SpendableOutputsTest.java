@@ -0,0 +1,185 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.BlockChain;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.PeerAddress;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionConfidence;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.core.TxConfidenceTable;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.utils.BriefLogFormatter;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+import static org.bitcoinj.core.Coin.COIN;
+import static org.bitcoinj.testing.FakeTxBuilder.createFakeTx;
+import static org.junit.Assert.*;
+
+public class SpendableOutputsTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    private Wallet wallet;
+    private ECKey key;
+    private StoredBlock head;
+
+    @Before
+    public void setUp() throws Exception {
+        BriefLogFormatter.init();
+        Context.propagate(new Context(PARAMS, 100, Coin.ZERO, false));
+        wallet = new Wallet(PARAMS);
+        key = wallet.currentReceiveKey();
+        head = new StoredBlock(PARAMS.getGenesisBlock(), BigInteger.ONE, 0);
+    }
+
+    @Test
+    public void followsConfidenceChanges() throws Exception {
+        // Pending from the network: estimated, but not available.
+        Transaction tx = createFakeTx(PARAMS, COIN, key);
+        wallet.receivePending(tx, null);
+        assertBalances(Coin.ZERO, COIN);
+
+        receive(tx);
+        assertBalances(COIN, COIN);
+
+        // Our own spend, with change that becomes available once peers announce it.
+        Transaction spend = new Transaction(PARAMS);
+        spend.addInput(tx.getOutput(0));
+        spend.addOutput(COIN.divide(4), new ECKey());
+        spend.addOutput(COIN.divide(2), key);
+        spend.getConfidence().setSource(TransactionConfidence.Source.SELF);
+        wallet.commitTx(spend);
+        assertBalances(Coin.ZERO, COIN.divide(2));
+        TxConfidenceTable table = Context.get().getConfidenceTable();
+        table.seen(spend.getHash(), new PeerAddress(PARAMS, InetAddress.getByAddress(new byte[] { 1, 2, 3, 4 })));
+        assertBalances(Coin.ZERO, COIN.divide(2));
+        table.seen(spend.getHash(), new PeerAddress(PARAMS, InetAddress.getByAddress(new byte[] { 1, 2, 3, 5 })));
+        assertBalances(COIN.divide(2), COIN.divide(2));
+
+        receive(spend);
+        assertBalances(COIN.divide(2), COIN.divide(2));
+        wallet.reset();
+        assertBalances(Coin.ZERO, Coin.ZERO);
+    }
+
+    @Test
+    public void coinbaseBecomesAvailableWhenMature() throws Exception {
+        Block block = head.getHeader().createNextBlockWithCoinbase(Block.BLOCK_VERSION_GENESIS, key.getPubKey(), COIN,
+                head.getHeight() + 1);
+        head = head.build(block);
+        Transaction coinbase = block.getTransactions().get(0);
+        wallet.receiveFromBlock(coinbase, head, BlockChain.NewBlockType.BEST_CHAIN, 0);
+        wallet.notifyNewBestBlock(head);
+        assertBalances(Coin.ZERO, COIN);
+        for (int i = 1; i < PARAMS.getSpendableCoinbaseDepth() - 1; i++)
+            receive();
+        assertBalances(Coin.ZERO, COIN);
+        receive();
+        assertBalances(COIN, COIN);
+    }
+
+    @Test
+    public void followsTheCoinSelector() throws Exception {
+        wallet.receivePending(createFakeTx(PARAMS, COIN, key), null);
+        receive(createFakeTx(PARAMS, COIN.multiply(2), key));
+        assertBalances(COIN.multiply(2), COIN.multiply(3));
+
+        wallet.allowSpendingUnconfirmedTransactions();
+        assertBalances(COIN.multiply(3), COIN.multiply(3));
+
+        // A selector that isn't a plain DefaultCoinSelector is asked directly.
+        wallet.setCoinSelector(new CoinSelector() {
+            @Override
+            public CoinSelection select(Coin target, List<TransactionOutput> candidates) {
+                return new CoinSelection(COIN.divide(10), candidates);
+            }
+        });
+        assertBalances(COIN.divide(10), COIN.multiply(3));
+    }
+
+    @Test
+    public void keepsAvailableOutputsInValueOrder() throws Exception {
+        BranchAndBoundCoinSelector selector = new BranchAndBoundCoinSelector();
+        wallet.setCoinSelector(selector);
+        Transaction pending = createFakeTx(PARAMS, COIN.multiply(4), key);
+        wallet.receivePending(pending, null);
+        receive(createFakeTx(PARAMS, COIN, key), createFakeTx(PARAMS, COIN.multiply(3), key),
+                createFakeTx(PARAMS, COIN.multiply(2), key));
+        assertBalances(COIN.multiply(6), COIN.multiply(10));
+        SpendableOutputs outputs = (SpendableOutputs) wallet.myUnspents;
+        assertNull(outputs.getAvailable(new BranchAndBoundCoinSelector()));
+        assertAvailable(outputs.getAvailable(selector), COIN.multiply(3), COIN.multiply(2), COIN);
+
+        // Confirming the pending transaction makes its output available.
+        receive(pending);
+        assertBalances(COIN.multiply(10), COIN.multiply(10));
+        assertAvailable(outputs.getAvailable(selector), COIN.multiply(4), COIN.multiply(3), COIN.multiply(2), COIN);
+
+        // A send picks from them without change, and the outputs it spends leave the index.
+        SendRequest req = SendRequest.to(new ECKey().toAddress(PARAMS), COIN.multiply(5));
+        req.feePerKb = Coin.ZERO;
+        req.ensureMinRequiredFee = false;
+        wallet.completeTx(req);
+        assertEquals(1, req.tx.getOutputs().size());
+        wallet.commitTx(req.tx);
+        assertEquals(COIN.multiply(5), wallet.getBalance(Wallet.BalanceType.AVAILABLE));
+        assertEquals(2, outputs.getAvailable(selector).size());
+        Coin left = Coin.ZERO;
+        for (TransactionOutput output : outputs.getAvailable(selector))
+            left = left.add(output.getValue());
+        assertEquals(COIN.multiply(5), left);
+    }
+
+    private static void assertAvailable(Set<TransactionOutput> available, Coin... values) {
+        List<Coin> actual = new ArrayList<>();
+        for (TransactionOutput output : available)
+            actual.add(output.getValue());
+        assertEquals(Arrays.asList(values), actual);
+    }
+
+    private void assertBalances(Coin available, Coin estimated) {
+        assertEquals(available, wallet.getBalance(Wallet.BalanceType.AVAILABLE));
+        assertEquals(estimated, wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        // The same as the coin selector works out from all the candidates.
+        assertEquals(wallet.getBalance(wallet.getCoinSelector()), wallet.getBalance(Wallet.BalanceType.AVAILABLE));
+    }
+
+    private void receive(Transaction... transactions) throws Exception {
+        Block block = head.getHeader().createNextBlock(null);
+        for (Transaction tx : transactions)
+            block.addTransaction(tx);
+        block.solve();
+        head = head.build(block);
+        for (Transaction tx : transactions)
+            wallet.receiveFromBlock(tx, head, BlockChain.NewBlockType.BEST_CHAIN, 0);
+        wallet.notifyNewBestBlock(head);
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.ScriptBuilder;
+import org.bitcoinj.utils.BriefLogFormatter;
+import org.bitcoinj.wallet.WalletTransaction.Pool;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.bitcoinj.core.Coin.*;
+import static org.bitcoinj.testing.FakeTxBuilder.createFakeTx;
+import static org.junit.Assert.*;
+
+public class SpentOutPointIndexTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    private Wallet wallet;
+    private ECKey key;
+
+    @Before
+    public void setUp() throws Exception {
+        BriefLogFormatter.init();
+        Context.propagate(new Context(PARAMS, 100, Coin.ZERO, false));
+        wallet = new Wallet(PARAMS);
+        key = wallet.currentReceiveKey();
+    }
+
+    @Test
+    public void addAndRemove() throws Exception {
+        Transaction funding = createFakeTx(PARAMS, COIN, key);
+        Transaction spend1 = spend(funding, 0);
+        Transaction spend2 = spend(funding, 0);
+        SpentOutPointIndex index = new SpentOutPointIndex();
+        index.add(spend1);
+        index.add(spend2);
+        assertEquals(Arrays.asList(spend1.getInput(0), spend2.getInput(0)),
+                index.getInputsSpending(funding.getHash()));
+        assertTrue(index.getInputsSpending(spend1.getHash()).isEmpty());
+        index.remove(spend1);
+        assertEquals(Arrays.asList(spend2.getInput(0)), index.getInputsSpending(funding.getHash()));
+        index.remove(spend2);
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    public void findsDoubleSpends() throws Exception {
+        Transaction funding = createFakeTx(PARAMS, COIN, key);
+        wallet.receivePending(funding, null);
+        Transaction spend = spend(funding, 0);
+        wallet.receivePending(spend, null);
+        assertTrue(wallet.isTransactionRelevant(spend(funding, 0)));
+        // A transaction spending another output of the same transaction isn't in conflict with the wallet.
+        assertFalse(wallet.isTransactionRelevant(spend(funding, 1)));
+    }
+
+    @Test
+    public void connectsPendingSpendsOfLaterTransactions() throws Exception {
+        Transaction funding = createFakeTx(PARAMS, COIN, key);
+        Transaction spend = spend(funding, 0);
+        spend.addOutput(CENT, key);
+        // The spend arrives first, as it can from the memory pool.
+        wallet.receivePending(spend, null);
+        assertNull(spend.getInput(0).getConnectedOutput());
+        wallet.receivePending(funding, null);
+        assertSame(funding.getOutput(0), spend.getInput(0).getConnectedOutput());
+        assertSame(spend.getInput(0), funding.getOutput(0).getSpentBy());
+        assertTrue(wallet.poolContainsTxHash(Pool.PENDING, spend.getHash()));
+        assertTrue(wallet.isConsistent());
+
+        wallet.clearTransactions(0);
+        assertFalse(wallet.isTransactionRelevant(spend(funding, 0)));
+    }
+
+    private static Transaction spend(Transaction tx, int index) {
+        Transaction spend = new Transaction(PARAMS);
+        spend.addInput(tx.getHash(), index, new ScriptBuilder().build());
+        spend.addOutput(CENT, new ECKey());
+        return spend;
+    }
+}
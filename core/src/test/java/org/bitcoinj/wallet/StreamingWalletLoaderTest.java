@@ -0,0 +1,150 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.BlockChain;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.utils.BriefLogFormatter;
+import org.bitcoinj.wallet.WalletTransaction.Pool;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.math.BigInteger;
+
+import static org.bitcoinj.core.Coin.COIN;
+import static org.bitcoinj.testing.FakeTxBuilder.createFakeTx;
+import static org.junit.Assert.*;
+
+public class StreamingWalletLoaderTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    private File directory;
+    private File walletFile;
+    private Wallet wallet;
+    private ECKey key;
+    private StoredBlock head;
+    private Transaction spentByUnspent, unspentChange, partlySpent, spendingPart;
+
+    @Before
+    public void setUp() throws Exception {
+        BriefLogFormatter.init();
+        Context.propagate(new Context(PARAMS, 100, Coin.ZERO, false));
+        directory = Files.createTempDir();
+        walletFile = new File(directory, "test.wallet");
+        wallet = new Wallet(PARAMS);
+        key = wallet.currentReceiveKey();
+        head = new StoredBlock(PARAMS.getGenesisBlock(), BigInteger.ONE, 0);
+
+        // Spent, and spent by an unspent transaction.
+        spentByUnspent = createFakeTx(PARAMS, COIN, key);
+        receive(spentByUnspent);
+        unspentChange = new Transaction(PARAMS);
+        unspentChange.addInput(spentByUnspent.getOutput(0));
+        unspentChange.addOutput(COIN.divide(2), key);
+        unspentChange.addOutput(COIN.divide(2), new ECKey());
+        receive(unspentChange);
+        // Unspent, with one output spent by a spent transaction.
+        partlySpent = createFakeTx(PARAMS, COIN, key);
+        partlySpent.addOutput(COIN, key);
+        receive(partlySpent);
+        spendingPart = new Transaction(PARAMS);
+        spendingPart.addInput(partlySpent.getOutput(0));
+        spendingPart.addOutput(COIN, new ECKey());
+        receive(spendingPart);
+        // Spent and spent by a spent transaction, which is of no interest until the history is loaded.
+        Transaction spent = createFakeTx(PARAMS, COIN, key);
+        receive(spent);
+        Transaction spending = new Transaction(PARAMS);
+        spending.addInput(spent.getOutput(0));
+        spending.addOutput(COIN, new ECKey());
+        receive(spending);
+
+        assertEquals(COIN.add(COIN.divide(2)), wallet.getBalance());
+        wallet.saveToFile(walletFile);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (File file : directory.listFiles())
+            file.delete();
+        directory.delete();
+    }
+
+    @Test
+    public void usableBeforeHistoryIsLoaded() throws Exception {
+        Wallet loaded = StreamingWalletLoader.load(walletFile, 1, null);
+        assertFalse(loaded.isHistoryLoaded());
+        assertEquals(wallet.getBalance(), loaded.getBalance());
+        assertEquals(wallet.getBalance(Wallet.BalanceType.ESTIMATED), loaded.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertEquals(wallet.getPoolSize(Pool.UNSPENT), loaded.getPoolSize(Pool.UNSPENT));
+        assertNotNull(loaded.getTransaction(spendingPart.getHash()));
+        assertNull(loaded.getTransaction(spentByUnspent.getHash()));
+
+        loaded.loadDeferredHistory();
+        assertTrue(loaded.isHistoryLoaded());
+        assertTrue(loaded.isConsistent());
+        assertEquals(wallet.getTransactions(true), loaded.getTransactions(true));
+        for (Pool pool : Pool.values())
+            assertEquals(wallet.getPoolSize(pool), loaded.getPoolSize(pool));
+        assertEquals(wallet.getBalance(), loaded.getBalance());
+        // Links between transactions loaded at different times are there.
+        Transaction loadedChange = loaded.getTransaction(unspentChange.getHash());
+        Transaction loadedSpent = loaded.getTransaction(spentByUnspent.getHash());
+        assertEquals(loadedSpent.getOutput(0), loadedChange.getInput(0).getConnectedOutput());
+        assertEquals(loadedChange.getInput(0), loadedSpent.getOutput(0).getSpentBy());
+    }
+
+    @Test
+    public void savingLoadsTheRestFirst() throws Exception {
+        Wallet loaded = StreamingWalletLoader.load(walletFile, 1, null);
+        assertFalse(loaded.isHistoryLoaded());
+        File copy = new File(directory, "copy.wallet");
+        loaded.saveToFile(copy);
+        assertTrue(loaded.isHistoryLoaded());
+        assertEquals(wallet.getTransactions(true), Wallet.loadFromFile(copy).getTransactions(true));
+    }
+
+    @Test
+    public void loadsHistoryInTheBackground() throws Exception {
+        Wallet loaded = StreamingWalletLoader.load(walletFile);
+        for (int i = 0; i < 100 && !loaded.isHistoryLoaded(); i++)
+            Thread.sleep(50);
+        assertTrue(loaded.isHistoryLoaded());
+        assertEquals(wallet.getTransactions(true), loaded.getTransactions(true));
+        assertEquals(wallet.getBalance(), loaded.getBalance());
+    }
+
+    private void receive(Transaction tx) throws Exception {
+        Block block = head.getHeader().createNextBlock(null);
+        block.addTransaction(tx);
+        block.solve();
+        head = head.build(block);
+        wallet.receiveFromBlock(tx, head, BlockChain.NewBlockType.BEST_CHAIN, 0);
+        wallet.notifyNewBestBlock(head);
+    }
+}
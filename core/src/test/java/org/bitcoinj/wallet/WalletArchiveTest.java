@@ -0,0 +1,183 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.BlockChain;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.utils.BriefLogFormatter;
+import org.bitcoinj.wallet.WalletTransaction.Pool;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.util.Set;
+
+import static org.bitcoinj.core.Coin.COIN;
+import static org.bitcoinj.testing.FakeTxBuilder.createFakeTx;
+import static org.junit.Assert.*;
+
+public class WalletArchiveTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    private File directory;
+    private WalletArchive archive;
+    private Wallet wallet;
+    private ECKey key;
+    private StoredBlock head;
+    private Transaction spentByUnspent, unspentChange, partlySpent, spendingPart, spent, spending;
+    private Set<Transaction> transactions;
+
+    @Before
+    public void setUp() throws Exception {
+        BriefLogFormatter.init();
+        Context.propagate(new Context(PARAMS, 100, Coin.ZERO, false));
+        directory = Files.createTempDir();
+        archive = new WalletArchive(new File(directory, "test.archive"), 2);
+        wallet = new Wallet(PARAMS);
+        key = wallet.currentReceiveKey();
+        head = new StoredBlock(PARAMS.getGenesisBlock(), BigInteger.ONE, 0);
+
+        // Spent, and spent by an unspent transaction.
+        spentByUnspent = createFakeTx(PARAMS, COIN, key);
+        receive(spentByUnspent);
+        unspentChange = new Transaction(PARAMS);
+        unspentChange.addInput(spentByUnspent.getOutput(0));
+        unspentChange.addOutput(COIN.divide(2), key);
+        unspentChange.addOutput(COIN.divide(2), new ECKey());
+        receive(unspentChange);
+        // Unspent, with one output spent by a spent transaction that has to stay for it.
+        partlySpent = createFakeTx(PARAMS, COIN.multiply(2), key);
+        partlySpent.addOutput(COIN, key);
+        receive(partlySpent);
+        spendingPart = new Transaction(PARAMS);
+        spendingPart.addInput(partlySpent.getOutput(0));
+        spendingPart.addOutput(COIN.multiply(2), new ECKey());
+        receive(spendingPart);
+        // Spent, and spent by a transaction that can go with it.
+        spent = createFakeTx(PARAMS, COIN.multiply(3), key);
+        receive(spent);
+        spending = new Transaction(PARAMS);
+        spending.addInput(spent.getOutput(0));
+        spending.addOutput(COIN.multiply(3), new ECKey());
+        receive(spending);
+        receive();
+
+        transactions = wallet.getTransactions(true);
+        assertEquals(2, wallet.getPoolSize(Pool.SPENT));
+        assertEquals(4, wallet.getPoolSize(Pool.UNSPENT));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        archive.close();
+        for (File file : directory.listFiles())
+            file.delete();
+        directory.delete();
+    }
+
+    @Test
+    public void prunesSpentHistory() throws Exception {
+        Coin balance = wallet.getBalance();
+        Coin changeValue = unspentChange.getValue(wallet);
+        wallet.setArchive(archive);
+        // Transactions without outputs of ours are in the unspent pool, and go too.
+        assertEquals(3, archive.size());
+        assertEquals(0, wallet.getPoolSize(Pool.SPENT));
+        assertEquals(3, wallet.getPoolSize(Pool.UNSPENT));
+        assertTrue(wallet.poolContainsTxHash(Pool.UNSPENT, spendingPart.getHash()));
+        assertTrue(wallet.isConsistent());
+        assertEquals(balance, wallet.getBalance());
+        // What spent from a pruned transaction is connected to a copy of the output instead, and keeps its value.
+        assertNull(unspentChange.getInput(0).getConnectedTransaction());
+        assertEquals(COIN, unspentChange.getInput(0).getConnectedOutput().getValue());
+        assertEquals(changeValue, unspentChange.getValue(wallet));
+        assertEquals(COIN, unspentChange.getValueSentFromMe(wallet));
+
+        // The pruned transactions are still there to read, and their depth keeps up with the chain. The recent
+        // transactions only cover what is in memory.
+        int depth = spending.getConfidence().getDepthInBlocks();
+        receive();
+        receive();
+        assertEquals(transactions, wallet.getTransactions(true));
+        assertEquals(3, wallet.getRecentTransactions(0, true).size());
+        Transaction read = wallet.getTransaction(spending.getHash());
+        assertNotNull(read);
+        assertNotSame(spending, read);
+        assertEquals(depth + 2, read.getConfidence().getDepthInBlocks());
+        assertEquals(COIN.multiply(3), read.getInput(0).getConnectedOutput().getValue());
+        assertEquals(read, wallet.getArchivedTransaction(spending.getHash()));
+        assertNull(wallet.getTransaction(Sha256Hash.ZERO_HASH));
+        assertNull(wallet.getArchivedTransaction(Sha256Hash.ZERO_HASH));
+
+        // Hearing of it again doesn't make it new.
+        assertFalse(wallet.isPendingTransactionRelevant(read));
+    }
+
+    @Test
+    public void savesPrunedHistory() throws Exception {
+        wallet.setArchive(archive);
+        receive();
+        File file = new File(directory, "test.wallet");
+        wallet.saveToFile(file);
+        Wallet loaded = Wallet.loadFromFile(file);
+        assertEquals(transactions, loaded.getTransactions(true));
+        assertEquals(2, loaded.getPoolSize(Pool.SPENT));
+        assertEquals(4, loaded.getPoolSize(Pool.UNSPENT));
+        assertEquals(wallet.getBalance(), loaded.getBalance());
+        assertEquals(spending.getConfidence().getDepthInBlocks(),
+                loaded.getTransaction(spending.getHash()).getConfidence().getDepthInBlocks());
+        assertTrue(loaded.isConsistent());
+    }
+
+    @Test
+    public void restoresPrunedHistory() throws Exception {
+        wallet.setArchive(archive);
+        receive();
+        wallet.setArchive(null);
+        assertEquals(0, archive.size());
+        assertEquals(2, wallet.getPoolSize(Pool.SPENT));
+        assertEquals(4, wallet.getPoolSize(Pool.UNSPENT));
+        assertEquals(transactions, wallet.getTransactions(true));
+        assertTrue(wallet.isConsistent());
+        Transaction restored = wallet.getTransaction(spentByUnspent.getHash());
+        assertEquals(restored.getOutput(0), unspentChange.getInput(0).getConnectedOutput());
+        assertEquals(unspentChange.getInput(0), restored.getOutput(0).getSpentBy());
+    }
+
+    private void receive(Transaction... transactions) throws Exception {
+        Block block = head.getHeader().createNextBlock(null);
+        for (Transaction tx : transactions)
+            block.addTransaction(tx);
+        block.solve();
+        head = head.build(block);
+        for (Transaction tx : transactions)
+            wallet.receiveFromBlock(tx, head, BlockChain.NewBlockType.BEST_CHAIN, 0);
+        wallet.notifyNewBestBlock(head);
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.BlockChain;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionConfidence.ConfidenceType;
+import org.bitcoinj.core.listeners.TransactionConfidenceBatchEventListener;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.store.MemoryBlockStore;
+import org.bitcoinj.utils.BriefLogFormatter;
+import org.bitcoinj.utils.EventDispatchStats;
+import org.bitcoinj.utils.Threading;
+import org.bitcoinj.wallet.WalletTransaction.Pool;
+import org.bitcoinj.wallet.listeners.WalletCoinsReceivedBatchEventListener;
+import org.bitcoinj.wallet.listeners.WalletCoinsReceivedEventListener;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.bitcoinj.core.Coin.*;
+import static org.bitcoinj.testing.FakeTxBuilder.createFakeTx;
+import static org.junit.Assert.*;
+
+public class WalletBlockReceiveTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    private Wallet wallet;
+    private ECKey key;
+    private StoredBlock head;
+
+    @Before
+    public void setUp() throws Exception {
+        BriefLogFormatter.init();
+        Context.propagate(new Context(PARAMS, 100, Coin.ZERO, false));
+        wallet = new Wallet(PARAMS);
+        key = wallet.currentReceiveKey();
+        head = new StoredBlock(PARAMS.getGenesisBlock(), BigInteger.ONE, 0);
+    }
+
+    @Test
+    public void receivesTheWholeBlockAtOnce() throws Exception {
+        final AtomicInteger coinsReceived = new AtomicInteger();
+        wallet.addCoinsReceivedEventListener(Threading.SAME_THREAD, new WalletCoinsReceivedEventListener() {
+            @Override
+            public void onCoinsReceived(Wallet wallet, Transaction tx, Coin prevBalance, Coin newBalance) {
+                coinsReceived.incrementAndGet();
+            }
+        });
+        Transaction tx1 = createFakeTx(PARAMS, COIN, key);
+        Transaction tx2 = createFakeTx(PARAMS, COIN.multiply(2), key);
+        Transaction spend = new Transaction(PARAMS);
+        spend.addInput(tx1.getOutput(0));
+        spend.addOutput(COIN, new ECKey());
+        long version = wallet.getSnapshot().getVersion();
+
+        Set<Sha256Hash> known = receive(Collections.<Sha256Hash>emptyList(), tx1, tx2, spend);
+        assertTrue(known.isEmpty());
+        // Every transaction is announced, but the new state is published once for the block.
+        assertEquals(2, coinsReceived.get());
+        assertEquals(version + 1, wallet.getSnapshot().getVersion());
+        assertEquals(COIN.multiply(2), wallet.getBalance());
+        assertTrue(wallet.poolContainsTxHash(Pool.SPENT, tx1.getHash()));
+        assertTrue(wallet.poolContainsTxHash(Pool.UNSPENT, tx2.getHash()));
+        assertEquals(ConfidenceType.BUILDING, spend.getConfidence().getConfidenceType());
+        assertEquals(1, spend.getConfidence().getDepthInBlocks());
+        assertEquals(1, tx2.getAppearsInHashes().get(head.getHeader().getHash()).intValue());
+        assertTrue(wallet.isConsistent());
+    }
+
+    @Test
+    public void confirmsKnownTransactionsByHash() throws Exception {
+        Transaction pending = createFakeTx(PARAMS, COIN, key);
+        wallet.receivePending(pending, null);
+        Transaction tx = createFakeTx(PARAMS, COIN.multiply(2), key);
+        Sha256Hash falsePositive = createFakeTx(PARAMS, COIN.multiply(3), new ECKey()).getHash();
+
+        Set<Sha256Hash> known = receive(Collections.singletonList(falsePositive), pending, tx);
+        assertEquals(Collections.singleton(pending.getHash()), known);
+        assertEquals(0, wallet.getPoolSize(Pool.PENDING));
+        assertEquals(ConfidenceType.BUILDING, pending.getConfidence().getConfidenceType());
+        assertEquals(COIN.multiply(3), wallet.getBalance());
+        assertTrue(wallet.isConsistent());
+    }
+
+    @Test
+    public void receivesFromTheBlockChain() throws Exception {
+        BlockChain chain = new BlockChain(PARAMS, wallet, new MemoryBlockStore(PARAMS));
+        Transaction tx1 = createFakeTx(PARAMS, COIN, key);
+        Transaction tx2 = createFakeTx(PARAMS, COIN.multiply(2), key);
+        Block block = chain.getChainHead().getHeader().createNextBlock(null);
+        block.addTransaction(tx1);
+        block.addTransaction(createFakeTx(PARAMS, COIN.multiply(3), new ECKey()));
+        block.addTransaction(tx2);
+        block.solve();
+        assertTrue(chain.add(block));
+        assertEquals(COIN.multiply(3), wallet.getBalance());
+        assertTrue(wallet.poolContainsTxHash(Pool.UNSPENT, tx1.getHash()));
+        assertTrue(wallet.poolContainsTxHash(Pool.UNSPENT, tx2.getHash()));
+        // The coinbase comes first, so the first transaction of the wallet is the second of the block.
+        assertEquals(1, tx1.getAppearsInHashes().get(block.getHash()).intValue());
+        assertEquals(3, tx2.getAppearsInHashes().get(block.getHash()).intValue());
+        assertTrue(wallet.isConsistent());
+    }
+
+    @Test
+    public void batchesEvents() throws Exception {
+        final List<Runnable> tasks = new ArrayList<>();
+        Executor executor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                tasks.add(command);
+            }
+        };
+        final List<List<Transaction>> confidenceBatches = new ArrayList<>();
+        wallet.addTransactionConfidenceBatchEventListener(executor, new TransactionConfidenceBatchEventListener() {
+            @Override
+            public void onTransactionConfidencesChanged(Wallet wallet, List<Transaction> txns) {
+                confidenceBatches.add(txns);
+            }
+        });
+        final List<List<Transaction>> receivedBatches = new ArrayList<>();
+        final List<Coin> receivedBalances = new ArrayList<>();
+        wallet.addCoinsReceivedBatchEventListener(executor, new WalletCoinsReceivedBatchEventListener() {
+            @Override
+            public void onCoinsReceived(Wallet wallet, List<Transaction> txns, Coin prevBalance, Coin newBalance) {
+                receivedBatches.add(txns);
+                receivedBalances.add(prevBalance);
+                receivedBalances.add(newBalance);
+            }
+        });
+        // The balances reported for a batch are those before the first and after the last single event.
+        final List<Coin> singleBalances = new ArrayList<>();
+        wallet.addCoinsReceivedEventListener(Threading.SAME_THREAD, new WalletCoinsReceivedEventListener() {
+            @Override
+            public void onCoinsReceived(Wallet wallet, Transaction tx, Coin prevBalance, Coin newBalance) {
+                if (singleBalances.isEmpty())
+                    singleBalances.add(prevBalance);
+                else
+                    singleBalances.remove(1);
+                singleBalances.add(newBalance);
+            }
+        });
+        Transaction tx1 = createFakeTx(PARAMS, COIN, key);
+        Transaction tx2 = createFakeTx(PARAMS, COIN.multiply(2), key);
+        receive(Collections.<Sha256Hash>emptyList(), tx1);
+        receive(Collections.<Sha256Hash>emptyList(), tx2);
+        receive(Collections.<Sha256Hash>emptyList());
+        receive(Collections.<Sha256Hash>emptyList());
+
+        // One task per listener however many events, and each transaction once however often its depth changed.
+        assertEquals(2, tasks.size());
+        assertEquals(4, wallet.getBatchEventDispatchStats().queuedEvents);
+        for (Runnable task : tasks)
+            task.run();
+        assertEquals(1, confidenceBatches.size());
+        assertEquals(Arrays.asList(tx1, tx2), confidenceBatches.get(0));
+        assertEquals(Arrays.asList(Arrays.asList(tx1, tx2)), receivedBatches);
+        assertEquals(singleBalances, receivedBalances);
+        EventDispatchStats stats = wallet.getBatchEventDispatchStats();
+        assertEquals(0, stats.queuedEvents);
+        assertEquals(2, stats.dispatches);
+        assertEquals(4, stats.dispatchedEvents);
+        assertTrue(stats.coalescedEvents > 0);
+    }
+
+    // Receives a block with the given transactions, and the hashes of the given known ones in front.
+    private Set<Sha256Hash> receive(List<Sha256Hash> unknown, Transaction... transactions) throws Exception {
+        Block block = head.getHeader().createNextBlock(null);
+        List<Sha256Hash> hashes = new ArrayList<>(unknown);
+        Map<Sha256Hash, Transaction> txns = new HashMap<>();
+        for (Transaction tx : transactions) {
+            block.addTransaction(tx);
+            hashes.add(tx.getHash());
+            if (!wallet.poolContainsTxHash(Pool.PENDING, tx.getHash()))
+                txns.put(tx.getHash(), tx);
+        }
+        block.solve();
+        head = head.build(block);
+        Set<Sha256Hash> known = wallet.receiveFromBlock(hashes, txns, head, BlockChain.NewBlockType.BEST_CHAIN);
+        wallet.notifyNewBestBlock(head);
+        return known;
+    }
+}
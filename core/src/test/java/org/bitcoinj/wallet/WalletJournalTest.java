@@ -0,0 +1,190 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.BlockChain;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionConfidence.ConfidenceType;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.utils.BriefLogFormatter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.math.BigInteger;
+import java.util.concurrent.TimeUnit;
+
+import static org.bitcoinj.core.Coin.COIN;
+import static org.bitcoinj.testing.FakeTxBuilder.createFakeTx;
+import static org.junit.Assert.*;
+
+public class WalletJournalTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    private File directory;
+    private File walletFile;
+    private File journalFile;
+    private Wallet wallet;
+    private WalletFiles files;
+    private StoredBlock head;
+    private ECKey key;
+
+    @Before
+    public void setUp() throws Exception {
+        BriefLogFormatter.init();
+        Context.propagate(new Context(PARAMS, 100, COIN.divide(1000), false));
+        directory = Files.createTempDir();
+        walletFile = new File(directory, "test.wallet");
+        journalFile = WalletJournal.journalFileFor(walletFile);
+        wallet = new Wallet(PARAMS);
+        files = wallet.autosaveToFile(walletFile, 1, TimeUnit.DAYS, null);
+        files.setJournaling(true);
+        head = new StoredBlock(PARAMS.getGenesisBlock(), BigInteger.ONE, 0);
+
+        // Using the first key extends the key chain, which only a full save can record.
+        key = wallet.currentReceiveKey();
+        receive(createFakeTx(PARAMS, COIN, key));
+        files.saveNow();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        wallet.shutdownAutosaveAndWait();
+        for (File file : directory.listFiles())
+            file.delete();
+        directory.delete();
+    }
+
+    @Test
+    public void journalsChangesAndReplaysThem() throws Exception {
+        long walletFileSize = walletFile.length();
+        long journalSize = journalFile.length();
+
+        Transaction tx = createFakeTx(PARAMS, COIN, key);
+        StoredBlock block = receive(tx);
+        files.saveNow();
+        // Only the journal was written to.
+        assertEquals(walletFileSize, walletFile.length());
+        assertTrue(journalFile.length() > journalSize);
+
+        Wallet loaded = WalletJournal.loadFromFile(walletFile);
+        assertEquals(COIN.multiply(2), loaded.getBalance());
+        assertEquals(block.getHeader().getHash(), loaded.getLastBlockSeenHash());
+        assertEquals(1, loaded.getTransaction(tx.getHash()).getConfidence().getDepthInBlocks());
+
+        // A block without our transactions only moves the last seen block, and replay works out the depth.
+        wallet.notifyNewBestBlock(nextBlock());
+        wallet.notifyNewBestBlock(nextBlock());
+        files.saveNow();
+        assertEquals(walletFileSize, walletFile.length());
+        loaded = WalletJournal.loadFromFile(walletFile);
+        assertEquals(4, loaded.getLastBlockSeenHeight());
+        Transaction loadedTx = loaded.getTransaction(tx.getHash());
+        assertEquals(ConfidenceType.BUILDING, loadedTx.getConfidence().getConfidenceType());
+        assertEquals(3, loadedTx.getConfidence().getDepthInBlocks());
+        assertEquals(wallet.getBalance(), loaded.getBalance());
+    }
+
+    @Test
+    public void ignoresCorruptTail() throws Exception {
+        receive(createFakeTx(PARAMS, COIN, key));
+        files.saveNow();
+
+        // As left behind by a crash half way through appending a record.
+        FileOutputStream out = new FileOutputStream(journalFile, true);
+        out.write(new byte[] { 0, 0, 1, 0, 42, 42, 42 });
+        out.close();
+        Wallet loaded = WalletJournal.loadFromFile(walletFile);
+        assertEquals(COIN.multiply(2), loaded.getBalance());
+        assertEquals(2, loaded.getLastBlockSeenHeight());
+    }
+
+    @Test
+    public void fullSaveStartsNewJournal() throws Exception {
+        receive(createFakeTx(PARAMS, COIN, key));
+        files.saveNow();
+        long journalSize = journalFile.length();
+
+        wallet.freshReceiveKey();
+        assertTrue(journalFile.length() < journalSize);
+        Wallet loaded = WalletJournal.loadFromFile(walletFile);
+        assertEquals(COIN.multiply(2), loaded.getBalance());
+        assertEquals(wallet.getActiveKeyChain().getIssuedExternalKeys(),
+                loaded.getActiveKeyChain().getIssuedExternalKeys());
+
+        // A journal left over from an older wallet file is ignored.
+        File stale = new File(directory, "stale");
+        Files.copy(journalFile, stale);
+        wallet.freshReceiveKey();
+        Files.copy(stale, journalFile);
+        assertEquals(COIN.multiply(2), WalletJournal.loadFromFile(walletFile).getBalance());
+    }
+
+    @Test
+    public void keyAddedDuringFullSaveIsSaved() throws Exception {
+        final ECKey imported = new ECKey();
+        final Thread importer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                wallet.importKey(imported);
+            }
+        });
+        files.setListener(new WalletFiles.Listener() {
+            @Override
+            public void onBeforeAutoSave(File tempFile) {
+            }
+
+            @Override
+            public void onAfterAutoSave(File newlySavedFile) {
+                if (importer.getState() != Thread.State.NEW)
+                    return;
+                // The key is imported after this save was written, and its own save has to wait for this one.
+                importer.start();
+                while (!wallet.hasKey(imported) || importer.getState() != Thread.State.WAITING)
+                    Thread.yield();
+            }
+        });
+        wallet.freshReceiveKey();
+        importer.join();
+        assertTrue(WalletJournal.loadFromFile(walletFile).hasKey(imported));
+    }
+
+    private StoredBlock receive(Transaction tx) throws Exception {
+        StoredBlock block = nextBlock(tx);
+        wallet.receiveFromBlock(tx, block, BlockChain.NewBlockType.BEST_CHAIN, 0);
+        wallet.notifyNewBestBlock(block);
+        return block;
+    }
+
+    private StoredBlock nextBlock(Transaction... transactions) throws Exception {
+        Block block = head.getHeader().createNextBlock(null);
+        for (Transaction tx : transactions)
+            block.addTransaction(tx);
+        block.solve();
+        head = head.build(block);
+        return head;
+    }
+}
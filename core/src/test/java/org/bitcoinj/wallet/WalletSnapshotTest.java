@@ -0,0 +1,121 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.BlockChain;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.utils.BriefLogFormatter;
+import org.bitcoinj.wallet.WalletTransaction.Pool;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.bitcoinj.core.Coin.COIN;
+import static org.bitcoinj.testing.FakeTxBuilder.createFakeTx;
+import static org.junit.Assert.*;
+
+public class WalletSnapshotTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    private Wallet wallet;
+    private ECKey key;
+    private StoredBlock head;
+
+    @Before
+    public void setUp() throws Exception {
+        BriefLogFormatter.init();
+        Context.propagate(new Context(PARAMS, 100, Coin.ZERO, false));
+        wallet = new Wallet(PARAMS);
+        key = wallet.currentReceiveKey();
+        head = new StoredBlock(PARAMS.getGenesisBlock(), BigInteger.ONE, 0);
+    }
+
+    @Test
+    public void publishedAfterEachChange() throws Exception {
+        WalletSnapshot empty = wallet.getSnapshot();
+        assertTrue(empty.getTransactions(true).isEmpty());
+
+        Transaction tx = createFakeTx(PARAMS, COIN, key);
+        receive(tx);
+        WalletSnapshot first = wallet.getSnapshot();
+        assertTrue(first.getVersion() > empty.getVersion());
+        assertEquals(tx, first.getPool(Pool.UNSPENT).get(tx.getHash()));
+        assertEquals(COIN, first.getEstimatedBalance());
+        assertEquals(COIN, wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+
+        receive(createFakeTx(PARAMS, COIN, key));
+        // Earlier snapshots don't change.
+        assertEquals(1, first.getUnspentOutputs().size());
+        assertEquals(COIN, first.getEstimatedBalance());
+        assertEquals(2, wallet.getSnapshot().getUnspentOutputs().size());
+        assertEquals(COIN.multiply(2), wallet.getBalance());
+        assertTrue(empty.getTransactions(true).isEmpty());
+
+        wallet.reset();
+        assertEquals(0, wallet.getPoolSize(Pool.UNSPENT));
+        assertEquals(Coin.ZERO, wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+    }
+
+    @Test
+    public void readsDoNotWaitForTheLock() throws Exception {
+        receive(createFakeTx(PARAMS, COIN, key));
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        wallet.lock.lock();
+        try {
+            // While the lock is held, as by block processing, other threads still get answers.
+            Future<Coin> balance = executor.submit(new Callable<Coin>() {
+                @Override
+                public Coin call() {
+                    return wallet.getBalance();
+                }
+            });
+            assertEquals(COIN, balance.get(10, TimeUnit.SECONDS));
+            Future<Integer> transactions = executor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    return wallet.getRecentTransactions(0, true).size();
+                }
+            });
+            assertEquals(1, (int) transactions.get(10, TimeUnit.SECONDS));
+        } finally {
+            wallet.lock.unlock();
+            executor.shutdown();
+        }
+    }
+
+    private void receive(Transaction tx) throws Exception {
+        Block block = head.getHeader().createNextBlock(null);
+        block.addTransaction(tx);
+        block.solve();
+        head = head.build(block);
+        wallet.receiveFromBlock(tx, head, BlockChain.NewBlockType.BEST_CHAIN, 0);
+        wallet.notifyNewBestBlock(head);
+    }
+}
@@ -39,6 +39,7 @@ import org.bitcoinj.core.TransactionConfidence.ConfidenceType;
 import org.bitcoinj.crypto.*;
 import org.bitcoinj.script.Script;
 import org.bitcoinj.script.ScriptBuilder;
+import org.bitcoinj.signers.LocalTransactionSigner;
 import org.bitcoinj.signers.StatelessTransactionSigner;
 import org.bitcoinj.signers.TransactionSigner;
 import org.bitcoinj.store.BlockStoreException;
@@ -75,6 +76,7 @@ import java.net.InetAddress;
 import java.security.SecureRandom;
 import java.util.*;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -1998,6 +2000,90 @@ public class WalletTest extends TestWithWallet {
         }
     }
 
+    @Test
+    public void encryptionDecryptionAsync() throws Exception {
+        Wallet encryptedWallet = new Wallet(PARAMS);
+        encryptedWallet.encryptAsync(PASSWORD1).get();
+        assertTrue(encryptedWallet.isEncrypted());
+        assertTrue(encryptedWallet.checkPassword(PASSWORD1));
+
+        CharSequence newPassword = "My name is Tom";
+        encryptedWallet.changeEncryptionPasswordAsync(PASSWORD1, newPassword).get();
+        assertTrue(encryptedWallet.checkPassword(newPassword));
+        assertFalse(encryptedWallet.checkPassword(PASSWORD1));
+
+        encryptedWallet.decryptAsync(newPassword).get();
+        assertFalse(encryptedWallet.isEncrypted());
+    }
+
+    @Test
+    public void unlockAsync() throws Exception {
+        Wallet encryptedWallet = new Wallet(PARAMS);
+        encryptedWallet.encrypt(PASSWORD1);
+        try {
+            encryptedWallet.unlockAsync(WRONG_PASSWORD, 1, TimeUnit.HOURS).get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof KeyCrypterException);
+        }
+        assertNull(encryptedWallet.getCachedAesKey());
+
+        KeyParameter aesKey = encryptedWallet.unlockAsync(PASSWORD1, 1, TimeUnit.HOURS).get();
+        assertTrue(encryptedWallet.checkAESKey(aesKey));
+        assertArrayEquals(aesKey.getKey(), encryptedWallet.getCachedAesKey().getKey());
+        encryptedWallet.clearCachedAesKey();
+        assertNull(encryptedWallet.getCachedAesKey());
+    }
+
+    @Test
+    public void encryptionChangesClearCachedAesKey() throws Exception {
+        Wallet encryptedWallet = new Wallet(PARAMS);
+        encryptedWallet.encrypt(PASSWORD1);
+        encryptedWallet.unlockAsync(PASSWORD1, 1, TimeUnit.HOURS).get();
+        encryptedWallet.decrypt(PASSWORD1);
+        assertNull(encryptedWallet.getCachedAesKey());
+
+        KeyCrypter keyCrypter = new KeyCrypterScrypt(2);
+        KeyParameter aesKey = keyCrypter.deriveKey(PASSWORD1);
+        encryptedWallet.encrypt(keyCrypter, aesKey);
+        encryptedWallet.unlockAsync(PASSWORD1, 1, TimeUnit.HOURS).get();
+        encryptedWallet.decrypt(aesKey);
+        assertNull(encryptedWallet.getCachedAesKey());
+
+        encryptedWallet.encrypt(PASSWORD1);
+        encryptedWallet.unlockAsync(PASSWORD1, 1, TimeUnit.HOURS).get();
+        encryptedWallet.changeEncryptionPassword(PASSWORD1, WRONG_PASSWORD);
+        assertNull(encryptedWallet.getCachedAesKey());
+
+        KeyCrypter newKeyCrypter = new KeyCrypterScrypt(2);
+        KeyParameter newAesKey = newKeyCrypter.deriveKey(PASSWORD1);
+        encryptedWallet.unlockAsync(WRONG_PASSWORD, 1, TimeUnit.HOURS).get();
+        encryptedWallet.changeEncryptionKey(newKeyCrypter, encryptedWallet.getKeyCrypter().deriveKey(WRONG_PASSWORD), newAesKey);
+        assertNull(encryptedWallet.getCachedAesKey());
+    }
+
+    @Test
+    public void signManyInputsInParallel() throws Exception {
+        ECKey key = new ECKey();
+        wallet.importKey(key);
+        Transaction funding = new Transaction(PARAMS);
+        for (int i = 0; i < 20; i++)
+            funding.addOutput(CENT, key);
+        Transaction tx = new Transaction(PARAMS);
+        for (TransactionOutput output : funding.getOutputs())
+            tx.addInput(output).setScriptSig(output.getScriptPubKey().createEmptyInputScript(key, null));
+        tx.addOutput(COIN.divide(10), OTHER_ADDRESS);
+        Transaction unsigned = PARAMS.getDefaultSerializer().makeTransaction(tx.bitcoinSerialize());
+        LocalTransactionSigner signer = new LocalTransactionSigner(Threading.THREAD_POOL, 2);
+        assertTrue(signer.signInputs(new TransactionSigner.ProposedTransaction(tx), wallet));
+        // Signatures are deterministic, so every input must carry exactly what signing it on its own produces.
+        for (int i = 0; i < tx.getInputs().size(); i++) {
+            Script scriptPubKey = funding.getOutput(i).getScriptPubKey();
+            TransactionSignature signature = unsigned.calculateSignature(i, key, scriptPubKey, Transaction.SigHash.ALL, false);
+            assertArrayEquals(ScriptBuilder.createInputScript(signature).getProgram(), tx.getInput(i).getScriptBytes());
+        }
+    }
+
     @Test
     public void changePasswordTest() {
         Wallet encryptedWallet = new Wallet(PARAMS);
@@ -3408,6 +3494,29 @@ public class WalletTest extends TestWithWallet {
         assertEquals("5ca8cd6c01aa004d3c5396c628b78a4a89462f412f460a845b594ac42eceaa264b0e14dcd4fe73d4ed08ce06f4c28facfa85042d26d784ab2798a870bb7af556", seed);
     }
 
+    @Test
+    public void freshReceiveAddresses() throws Exception {
+        final List<List<ECKey>> events = Lists.newArrayList();
+        wallet.addKeyChainEventListener(Threading.SAME_THREAD, new KeyChainEventListener() {
+            @Override
+            public void onKeysAdded(List<ECKey> keys) {
+                events.add(keys);
+            }
+        });
+        int issuedBefore = wallet.getIssuedReceiveAddresses().size();
+        List<Address> addresses = wallet.freshReceiveAddresses(50);
+        assertEquals(50, addresses.size());
+        assertEquals(50, new HashSet<>(addresses).size());
+        assertTrue(events.size() <= 1);
+        List<Address> issued = wallet.getIssuedReceiveAddresses();
+        assertEquals(issuedBefore + 50, issued.size());
+        assertTrue(issued.containsAll(addresses));
+        for (Address address : addresses)
+            assertTrue(wallet.isPubKeyHashMine(address.getHash160()));
+        // The next single address carries on where the batch left off.
+        assertFalse(addresses.contains(wallet.freshReceiveAddress()));
+    }
+
     @Test
     public void reset() {
         sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN, myAddress);